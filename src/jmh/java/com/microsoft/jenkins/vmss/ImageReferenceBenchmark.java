@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.microsoft.azure.management.compute.implementation.ImageReferenceInner;
+import hudson.EnvVars;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ImageReference#apply} with environment variable expansion, for both custom image IDs and marketplace
+ * image references.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageReferenceBenchmark {
+
+    private static final int ENV_SIZE = 100;
+
+    private ImageReference customImage;
+    private ImageReference marketplaceImage;
+    private EnvVars env;
+
+    @Setup
+    public void setUp() {
+        customImage = new ImageReference();
+        customImage.setId("/subscriptions/${SUBSCRIPTION}/resourceGroups/${RG}/providers/Microsoft.Compute"
+                + "/images/app-${BUILD_NUMBER}");
+
+        marketplaceImage = new ImageReference();
+        marketplaceImage.setPublisher("Canonical");
+        marketplaceImage.setOffer("UbuntuServer");
+        marketplaceImage.setSku("${SKU}");
+        marketplaceImage.setVersion("${VERSION}");
+
+        // a build environment is typically much larger than the handful of variables referenced
+        env = new EnvVars();
+        for (int i = 0; i < ENV_SIZE; ++i) {
+            env.put("VAR_" + i, "value-" + i);
+        }
+        env.put("SUBSCRIPTION", "00000000-0000-0000-0000-000000000000");
+        env.put("RG", "rg");
+        env.put("BUILD_NUMBER", "42");
+        env.put("SKU", "16.04-LTS");
+        env.put("VERSION", "latest");
+    }
+
+    @Benchmark
+    public ImageReferenceInner applyCustomImage() {
+        return customImage.apply(new ImageReferenceInner().withId("old"), env);
+    }
+
+    @Benchmark
+    public ImageReferenceInner applyMarketplaceImage() {
+        return marketplaceImage.apply(new ImageReferenceInner(), env);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.Interceptor;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request overhead of {@link AzureVMSSPlugin.AzureTelemetryInterceptor}: operation classification, latency
+ * metrics and telemetry queueing, against a chain that answers immediately.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TelemetryInterceptorBenchmark {
+
+    private static final String URL = "https://management.azure.com/subscriptions/00000000-0000-0000-0000-000000000000"
+            + "/resourceGroups/rg/providers/Microsoft.Compute/virtualMachineScaleSets/vmss?api-version=2017-12-01";
+    private static final int CONCURRENT_THREADS = 8;
+
+    private final Interceptor interceptor = new AzureVMSSPlugin.AzureTelemetryInterceptor();
+    private Interceptor.Chain chain;
+
+    @Setup
+    public void setUp() {
+        final Request request = new Request.Builder().url(URL).get().build();
+        final Response response = new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .header("x-ms-request-id", "00000000-0000-0000-0000-000000000000")
+                .build();
+        chain = new StubChain(request, response);
+    }
+
+    @Benchmark
+    public Response intercept() throws IOException {
+        return interceptor.intercept(chain);
+    }
+
+    @Benchmark
+    @Threads(CONCURRENT_THREADS)
+    public Response interceptConcurrently() throws IOException {
+        return interceptor.intercept(chain);
+    }
+
+    private static final class StubChain implements Interceptor.Chain {
+        private final Request request;
+        private final Response response;
+
+        StubChain(final Request request, final Response response) {
+            this.request = request;
+            this.response = response;
+        }
+
+        @Override
+        public Request request() {
+            return request;
+        }
+
+        @Override
+        public Response proceed(final Request req) {
+            return response;
+        }
+
+        @Override
+        public Connection connection() {
+            return null;
+        }
+
+        @Override
+        public Call call() {
+            return null;
+        }
+
+        @Override
+        public int connectTimeoutMillis() {
+            return 0;
+        }
+
+        @Override
+        public Interceptor.Chain withConnectTimeout(final int timeout, final TimeUnit unit) {
+            return this;
+        }
+
+        @Override
+        public int readTimeoutMillis() {
+            return 0;
+        }
+
+        @Override
+        public Interceptor.Chain withReadTimeout(final int timeout, final TimeUnit unit) {
+            return this;
+        }
+
+        @Override
+        public int writeTimeoutMillis() {
+            return 0;
+        }
+
+        @Override
+        public Interceptor.Chain withWriteTimeout(final int timeout, final TimeUnit unit) {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.microsoft.azure.PagedList;
+import com.microsoft.azure.management.Azure;
+import com.microsoft.azure.management.compute.VirtualMachineScaleSets;
+import com.microsoft.azure.management.compute.implementation.ComputeManagementClientImpl;
+import com.microsoft.azure.management.compute.implementation.ComputeManager;
+import com.microsoft.azure.management.compute.implementation.OperationStatusResponseInner;
+import com.microsoft.azure.management.compute.implementation.VirtualMachineScaleSetVMInner;
+import com.microsoft.azure.management.compute.implementation.VirtualMachineScaleSetVMsInner;
+import com.microsoft.azure.management.compute.implementation.VirtualMachineScaleSetsInner;
+import com.microsoft.rest.RestClient;
+import com.microsoft.rest.ServiceResponse;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import okhttp3.OkHttpClient;
+import org.apache.commons.io.output.NullOutputStream;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import retrofit2.Response;
+import rx.Observable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * A full {@link UpdateInstancesBuilder#perform} against a stubbed {@link Azure} client, set up like
+ * {@code UpdateInstancesBuilderTest}. Measures the plugin's own overhead around the Azure calls: argument parsing,
+ * environment expansion, instance validation, logging, telemetry and metrics.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UpdateInstancesPerformBenchmark {
+
+    @Param({"10", "1000"})
+    private int instances;
+
+    private UpdateInstancesBuilder builder;
+    private Run run;
+    private FilePath workspace;
+    private Launcher launcher;
+    private TaskListener listener;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        final StringBuilder ids = new StringBuilder("${FIRST_ID}");
+        for (int i = 1; i < instances; ++i) {
+            ids.append(',').append(i);
+        }
+        builder = new UpdateInstancesBuilder("cid", "rg", "name", ids.toString());
+
+        // stub only, so that invocations are not recorded across millions of iterations
+        final VirtualMachineScaleSetsInner vmssMgrInner = mock(VirtualMachineScaleSetsInner.class,
+                withSettings().stubOnly());
+        // the update completes synchronously, without an operation to poll
+        when(vmssMgrInner.beginUpdateInstancesWithServiceResponseAsync(anyString(), anyString(), anyList()))
+                .thenReturn(Observable.just(
+                        new ServiceResponse<OperationStatusResponseInner>(null, Response.success(null))));
+        final VirtualMachineScaleSets vmssMgr = mock(VirtualMachineScaleSets.class, withSettings().stubOnly());
+        when(vmssMgr.inner()).thenReturn(vmssMgrInner);
+        when(vmssMgr.manager()).thenReturn(mockComputeManager());
+        final Azure azure = mock(Azure.class, withSettings().stubOnly());
+        when(azure.virtualMachineScaleSets()).thenReturn(vmssMgr);
+        when(azure.subscriptionId()).thenReturn("00000000-0000-0000-0000-000000000000");
+        builder.setAzureClientFactory(new BaseBuilder.AzureClientFactory() {
+            @Override
+            public Azure createAzureClient(final Item owner, final String azureCredentialsId) {
+                return azure;
+            }
+        });
+
+        run = mock(Run.class, withSettings().stubOnly());
+        workspace = new FilePath(new File(System.getProperty("java.io.tmpdir")));
+        launcher = mock(Launcher.class, withSettings().stubOnly());
+        listener = mock(TaskListener.class, withSettings().stubOnly());
+        when(run.getEnvironment(listener)).thenReturn(new EnvVars("FIRST_ID", "0"));
+        when(run.getUrl()).thenReturn("job/benchmark/1/");
+        when(listener.getLogger()).thenReturn(new PrintStream(new NullOutputStream()));
+    }
+
+    private ComputeManager mockComputeManager() {
+        final List<VirtualMachineScaleSetVMInner> vms = new ArrayList<>();
+        for (int i = 0; i < instances; ++i) {
+            final VirtualMachineScaleSetVMInner vm = mock(VirtualMachineScaleSetVMInner.class,
+                    withSettings().stubOnly());
+            when(vm.instanceId()).thenReturn(String.valueOf(i));
+            vms.add(vm);
+        }
+        final PagedList<VirtualMachineScaleSetVMInner> vmList = mock(PagedList.class, withSettings().stubOnly());
+        when(vmList.iterator()).thenAnswer(new Answer<Iterator<VirtualMachineScaleSetVMInner>>() {
+            @Override
+            public Iterator<VirtualMachineScaleSetVMInner> answer(final InvocationOnMock invocation) {
+                return vms.iterator();
+            }
+        });
+        final VirtualMachineScaleSetVMsInner vmsInner = mock(VirtualMachineScaleSetVMsInner.class,
+                withSettings().stubOnly());
+        when(vmsInner.list("rg", "name")).thenReturn(vmList);
+        final ComputeManagementClientImpl computeInner = mock(ComputeManagementClientImpl.class,
+                withSettings().stubOnly());
+        when(computeInner.virtualMachineScaleSetVMs()).thenReturn(vmsInner);
+        final RestClient restClient = mock(RestClient.class, withSettings().stubOnly());
+        when(restClient.httpClient()).thenReturn(new OkHttpClient());
+        when(computeInner.restClient()).thenReturn(restClient);
+        final ComputeManager computeManager = mock(ComputeManager.class, withSettings().stubOnly());
+        when(computeManager.inner()).thenReturn(computeInner);
+        return computeManager;
+    }
+
+    @Benchmark
+    public void perform() throws IOException, InterruptedException {
+        builder.perform(run, workspace, launcher, listener);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.microsoft.jenkins.vmss.util.Constants;
+import hudson.Extension;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Global settings of the resource group and scale set fields of the configuration forms.
+ * <p>
+ * By default the fields are drop-down lists of all the resource groups and scale sets. With type-ahead enabled they
+ * become text fields suggesting the first names that start with the text typed so far, which keeps the forms small
+ * for subscriptions with thousands of them.
+ */
+@Extension
+public class AzureLookupConfiguration extends GlobalConfiguration {
+
+    private boolean typeAhead;
+    private int maxMatches = Constants.LOOKUP_MAX_MATCHES;
+
+    public AzureLookupConfiguration() {
+        load();
+    }
+
+    public boolean isTypeAhead() {
+        return typeAhead;
+    }
+
+    @DataBoundSetter
+    public void setTypeAhead(final boolean typeAhead) {
+        this.typeAhead = typeAhead;
+    }
+
+    public int getMaxMatches() {
+        return maxMatches;
+    }
+
+    @DataBoundSetter
+    public void setMaxMatches(final int maxMatches) {
+        this.maxMatches = Math.max(1, maxMatches);
+    }
+
+    @Override
+    public boolean configure(final StaplerRequest req, final JSONObject json) {
+        req.bindJSON(this, json);
+        save();
+        return true;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.AzureLookupConfiguration_DisplayName();
+    }
+
+    static boolean isTypeAheadEnabled() {
+        final AzureLookupConfiguration configuration = get();
+        return configuration != null && configuration.isTypeAhead();
+    }
+
+    static int maxMatchesOrDefault() {
+        final AzureLookupConfiguration configuration = get();
+        return configuration == null ? Constants.LOOKUP_MAX_MATCHES : configuration.getMaxMatches();
+    }
+
+    private static AzureLookupConfiguration get() {
+        return Jenkins.getInstance() == null ? null : GlobalConfiguration.all().get(AzureLookupConfiguration.class);
+    }
+}
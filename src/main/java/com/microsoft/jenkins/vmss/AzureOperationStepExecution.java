@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.microsoft.azure.management.Azure;
+import com.microsoft.jenkins.azurecommons.telemetry.AppInsightsUtils;
+import com.microsoft.jenkins.vmss.util.AsyncOperation;
+import com.microsoft.jenkins.vmss.util.AzureUtils;
+import com.microsoft.jenkins.vmss.util.Constants;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import jenkins.util.Timer;
+import okhttp3.Call;
+import okhttp3.ResponseBody;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import retrofit2.Response;
+import rx.Observable;
+import rx.Subscription;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.schedulers.Schedulers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pipeline step execution that starts an Azure long running operation and releases the executor thread while the
+ * operation runs.
+ * <p>
+ * The operation is started through the SDK's asynchronous API. Once Azure has accepted it, the polling URL is saved
+ * with the step state, so polling resumes after a controller restart. The polls are scheduled on the shared
+ * {@link Timer} but sent asynchronously by the HTTP client, so that a poll waiting for the rate limiter does not hold
+ * a {@link Timer} thread. Stopping the step cancels the polling; the operation itself keeps running in Azure.
+ * <p>
+ * The start, success and failure of the operation are reported to telemetry like the corresponding builders do.
+ */
+abstract class AzureOperationStepExecution extends AbstractStepExecutionImpl {
+    private static final long serialVersionUID = 1L;
+
+    private final String azureCredentialsId;
+    private final String resourceGroup;
+    private final String name;
+    private AsyncOperation operation;
+
+    private transient volatile boolean stopped;
+    private transient volatile boolean accepted;
+    private transient volatile Subscription subscription;
+    private transient volatile ScheduledFuture<?> pollTask;
+    private transient volatile Call pollCall;
+    private transient int pollErrors;
+    private transient volatile ScaleSetCoordinator.Permit permit;
+    private transient volatile String runUrl;
+    private transient volatile String subscriptionId;
+    private transient BaseBuilder.AzureClientFactory azureClientFactory;
+    private transient ScheduledExecutorService scheduler;
+
+    AzureOperationStepExecution(final StepContext context,
+                                final String azureCredentialsId,
+                                final String resourceGroup,
+                                final String name) {
+        super(context);
+        this.azureCredentialsId = azureCredentialsId;
+        this.resourceGroup = resourceGroup;
+        this.name = name;
+    }
+
+    String getAzureCredentialsId() {
+        return azureCredentialsId;
+    }
+
+    String getResourceGroup() {
+        return resourceGroup;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return the subscription of the Azure client, once the execution started or resumed
+     */
+    String getSubscriptionId() {
+        return subscriptionId;
+    }
+
+    @VisibleForTesting
+    void setAzureClientFactory(final BaseBuilder.AzureClientFactory factory) {
+        azureClientFactory = factory;
+    }
+
+    @VisibleForTesting
+    void setScheduler(final ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Waits for the earlier writes of the scale set by other builds, see {@link ScaleSetCoordinator}. Call it from
+     * the observable returned by {@link #begin}, which runs off the thread starting the step. The permit is held until
+     * the step completes, but not across a controller restart.
+     */
+    protected void acquireWrite(final Azure azure,
+                                final boolean imageUpdate,
+                                final TaskListener listener) throws InterruptedException {
+        final String key = ScaleSetCoordinator.key(azure.subscriptionId(), resourceGroup, name);
+        permit = ScaleSetCoordinator.getInstance().acquireWrite(key, imageUpdate, listener.getLogger());
+        if (stopped) {
+            releaseWrite();
+        }
+    }
+
+    private void releaseWrite() {
+        final ScaleSetCoordinator.Permit p = permit;
+        permit = null;
+        if (p != null) {
+            p.close();
+        }
+    }
+
+    /**
+     * Starts the operation and emits the raw response of the initial request. Completing without emitting anything
+     * means there was nothing to do, and the step succeeds right away.
+     */
+    protected abstract Observable<Response<ResponseBody>> begin(Azure azure, EnvVars env, TaskListener listener)
+            throws Exception;
+
+    protected abstract void onSucceeded(TaskListener listener);
+
+    /**
+     * Called once the step failed, before the failure is reported to the pipeline.
+     */
+    protected abstract void onFailed(Throwable cause);
+
+    @Override
+    public boolean start() throws Exception {
+        final Run<?, ?> run = getContext().get(Run.class);
+        final TaskListener listener = getContext().get(TaskListener.class);
+        final EnvVars env = getContext().get(EnvVars.class);
+        final Azure azure = connect(run);
+
+        subscription = begin(azure, env, listener)
+                .subscribeOn(Schedulers.io())
+                .subscribe(new Action1<Response<ResponseBody>>() {
+                    @Override
+                    public void call(final Response<ResponseBody> response) {
+                        accepted = true;
+                        accepted(azure, response, listener);
+                    }
+                }, new Action1<Throwable>() {
+                    @Override
+                    public void call(final Throwable throwable) {
+                        if (!stopped) {
+                            fail(throwable);
+                        }
+                    }
+                }, new Action0() {
+                    @Override
+                    public void call() {
+                        if (!accepted && !stopped) {
+                            succeed();
+                        }
+                    }
+                });
+        return false;
+    }
+
+    private void accepted(final Azure azure, final Response<ResponseBody> response, final TaskListener listener) {
+        operation = AsyncOperation.fromHeaders(response.headers());
+        if (operation == null) {
+            onSucceeded(listener);
+            succeed();
+            return;
+        }
+        listener.getLogger().println(Messages.AzureOperationStepExecution_Polling(operation.getUrl()));
+        getContext().saveState();
+        schedulePoll(azure, listener, 0);
+    }
+
+    private void schedulePoll(final Azure azure, final TaskListener listener, final int delaySeconds) {
+        if (stopped) {
+            return;
+        }
+        pollTask = (scheduler == null ? Timer.get() : scheduler).schedule(new Runnable() {
+            @Override
+            public void run() {
+                poll(azure, listener);
+            }
+        }, delaySeconds, TimeUnit.SECONDS);
+    }
+
+    private void poll(final Azure azure, final TaskListener listener) {
+        if (stopped) {
+            return;
+        }
+        pollCall = operation.pollAsync(AzureUtils.httpClient(azure), new AsyncOperation.PollCallback() {
+            @Override
+            public void onStatus(final AsyncOperation.Status status) {
+                polled(azure, listener, status);
+            }
+
+            @Override
+            public void onError(final IOException ex) {
+                if (stopped) {
+                    return;
+                }
+                if (++pollErrors >= Constants.LRO_MAX_POLL_ERRORS) {
+                    fail(ex);
+                } else {
+                    listener.getLogger().println(Messages.AzureOperationStepExecution_PollError(ex.getMessage()));
+                    schedulePoll(azure, listener, Constants.LRO_DEFAULT_POLL_INTERVAL_SECONDS);
+                }
+            }
+        });
+    }
+
+    private void polled(final Azure azure, final TaskListener listener, final AsyncOperation.Status status) {
+        if (stopped) {
+            return;
+        }
+        pollErrors = 0;
+
+        if (!status.isDone()) {
+            schedulePoll(azure, listener, status.getRetryAfterSeconds());
+        } else if (status.isSucceeded()) {
+            onSucceeded(listener);
+            succeed();
+        } else {
+            fail(new AbortException(Messages.AzureOperationStepExecution_Failed(status.getError())));
+        }
+    }
+
+    private void succeed() {
+        releaseWrite();
+        getContext().onSuccess(null);
+    }
+
+    private void fail(final Throwable cause) {
+        releaseWrite();
+        onFailed(cause);
+        getContext().onFailure(cause);
+    }
+
+    private Azure connect(final Run<?, ?> run) {
+        runUrl = run.getUrl();
+        final BaseBuilder.AzureClientFactory factory = azureClientFactory == null
+                ? BaseBuilder.AzureClientFactory.DEFAULT
+                : azureClientFactory;
+        final Azure azure = factory.createAzureClient(run.getParent(), azureCredentialsId);
+        subscriptionId = azure.subscriptionId();
+        return azure;
+    }
+
+    /**
+     * Sends a telemetry event about the operation, identifying the run and the scale set like the builders do.
+     */
+    protected void sendEvent(final String action, final String... properties) {
+        final List<String> all = new ArrayList<>(Arrays.asList(
+                "Run", AppInsightsUtils.hash(runUrl),
+                "Subscription", AppInsightsUtils.hash(subscriptionId),
+                "ResourceGroup", AppInsightsUtils.hash(resourceGroup),
+                "Name", AppInsightsUtils.hash(name)));
+        all.addAll(Arrays.asList(properties));
+        AzureVMSSPlugin.sendEvent(Constants.AI_VMSS, action, all.toArray(new String[all.size()]));
+    }
+
+    @Override
+    public void stop(final Throwable cause) throws Exception {
+        stopped = true;
+        final Subscription s = subscription;
+        if (s != null) {
+            s.unsubscribe();
+        }
+        final ScheduledFuture<?> task = pollTask;
+        if (task != null) {
+            task.cancel(true);
+        }
+        final Call call = pollCall;
+        if (call != null) {
+            call.cancel();
+        }
+        releaseWrite();
+        getContext().onFailure(cause);
+    }
+
+    @Override
+    public void onResume() {
+        // not calling super, which re-injects @StepContextParameter fields this execution does not have
+        if (operation == null) {
+            // The controller went down before Azure accepted the request, so there is nothing to resume
+            fail(new AbortException(Messages.AzureOperationStepExecution_NotResumable()));
+            return;
+        }
+        try {
+            final Run<?, ?> run = getContext().get(Run.class);
+            final TaskListener listener = getContext().get(TaskListener.class);
+            listener.getLogger().println(Messages.AzureOperationStepExecution_Polling(operation.getUrl()));
+            schedulePoll(connect(run), listener, 0);
+        } catch (IOException | InterruptedException | RuntimeException ex) {
+            fail(ex);
+        }
+    }
+}
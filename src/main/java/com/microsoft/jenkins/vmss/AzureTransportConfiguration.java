@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.microsoft.jenkins.vmss.util.AzureClientCache;
+import com.microsoft.jenkins.vmss.util.Constants;
+import com.microsoft.jenkins.vmss.util.SharedTransport;
+import hudson.Extension;
+import jenkins.model.GlobalConfiguration;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Global settings of the HTTP transport shared by all the Azure clients of the plugin, see {@link SharedTransport}.
+ */
+@Extension
+public class AzureTransportConfiguration extends GlobalConfiguration {
+
+    private int maxIdleConnections = Constants.TRANSPORT_MAX_IDLE_CONNECTIONS;
+    private int keepAliveSeconds = Constants.TRANSPORT_KEEP_ALIVE_SECONDS;
+    private int maxRequests = Constants.TRANSPORT_MAX_REQUESTS;
+    private int maxRequestsPerHost = Constants.TRANSPORT_MAX_REQUESTS_PER_HOST;
+    private boolean http2 = true;
+
+    public AzureTransportConfiguration() {
+        load();
+        apply();
+    }
+
+    public int getMaxIdleConnections() {
+        return maxIdleConnections;
+    }
+
+    @DataBoundSetter
+    public void setMaxIdleConnections(final int maxIdleConnections) {
+        this.maxIdleConnections = Math.max(0, maxIdleConnections);
+    }
+
+    public int getKeepAliveSeconds() {
+        return keepAliveSeconds;
+    }
+
+    @DataBoundSetter
+    public void setKeepAliveSeconds(final int keepAliveSeconds) {
+        this.keepAliveSeconds = Math.max(1, keepAliveSeconds);
+    }
+
+    public int getMaxRequests() {
+        return maxRequests;
+    }
+
+    @DataBoundSetter
+    public void setMaxRequests(final int maxRequests) {
+        this.maxRequests = Math.max(1, maxRequests);
+    }
+
+    public int getMaxRequestsPerHost() {
+        return maxRequestsPerHost;
+    }
+
+    @DataBoundSetter
+    public void setMaxRequestsPerHost(final int maxRequestsPerHost) {
+        this.maxRequestsPerHost = Math.max(1, maxRequestsPerHost);
+    }
+
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    @DataBoundSetter
+    public void setHttp2(final boolean http2) {
+        this.http2 = http2;
+    }
+
+    @Override
+    public boolean configure(final StaplerRequest req, final JSONObject json) {
+        req.bindJSON(this, json);
+        save();
+        apply();
+        // clients built on the previous transport would keep it until they expire from the cache
+        AzureClientCache.getInstance().invalidateAll();
+        return true;
+    }
+
+    private void apply() {
+        SharedTransport.getInstance().configure(
+                maxIdleConnections, keepAliveSeconds, maxRequests, maxRequestsPerHost, http2);
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.AzureTransportConfiguration_DisplayName();
+    }
+}
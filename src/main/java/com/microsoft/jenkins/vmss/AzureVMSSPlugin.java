@@ -6,44 +6,61 @@
 
 package com.microsoft.jenkins.vmss;
 
-import com.microsoft.jenkins.azurecommons.telemetry.AppInsightsClientFactory;
-import com.microsoft.jenkins.azurecommons.telemetry.AzureHttpRecorder;
+import com.microsoft.jenkins.vmss.util.OperationMetrics;
 import hudson.Plugin;
 import okhttp3.Interceptor;
 import okhttp3.Request;
 import okhttp3.Response;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class AzureVMSSPlugin extends Plugin {
     public static void sendEvent(final String item, final String action, final String... properties) {
-        final Map<String, String> props = new HashMap<>();
-        for (int i = 1; i < properties.length; i += 2) {
-            props.put(properties[i - 1], properties[i]);
-        }
-        sendEvent(item, action, props);
+        TelemetryPipeline.getInstance().offer(new TelemetryPipeline.CustomEvent(item, action, properties));
     }
 
     public static void sendEvent(final String item, final String action, final Map<String, String> properties) {
-        AppInsightsClientFactory.getInstance(AzureVMSSPlugin.class)
-                .sendEvent(item, action, properties, false);
+        TelemetryPipeline.getInstance().offer(new TelemetryPipeline.CustomEvent(item, action, properties));
+    }
+
+    public static long getTelemetryQueuedCount() {
+        return TelemetryPipeline.getInstance().getQueuedCount();
+    }
+
+    public static long getTelemetrySentCount() {
+        return TelemetryPipeline.getInstance().getSentCount();
+    }
+
+    public static long getTelemetryDroppedCount() {
+        return TelemetryPipeline.getInstance().getDroppedCount();
     }
 
     public static class AzureTelemetryInterceptor implements Interceptor {
         @Override
         public Response intercept(final Chain chain) throws IOException {
             final Request request = chain.request();
-            final Response response = chain.proceed(request);
-            new AzureHttpRecorder(AppInsightsClientFactory.getInstance(AzureVMSSPlugin.class))
-                    .record(new AzureHttpRecorder.HttpRecordable()
-                            .withHttpCode(response.code())
-                            .withHttpMessage(response.message())
-                            .withHttpMethod(request.method())
-                            .withRequestUri(request.url().uri())
-                            .withRequestId(response.header("x-ms-request-id"))
-                    );
+            final String operation = OperationMetrics.classify(request.method(), request.url());
+            final OperationMetrics metrics = OperationMetrics.getInstance();
+            metrics.requestStarted();
+            final long start = System.nanoTime();
+            final Response response;
+            try {
+                response = chain.proceed(request);
+            } catch (IOException | RuntimeException ex) {
+                metrics.requestFailed(operation, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                throw ex;
+            }
+            metrics.requestFinished(operation, response.code(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+            TelemetryPipeline.getInstance().offer(new TelemetryPipeline.HttpEvent(
+                    response.code(),
+                    response.message(),
+                    request.method(),
+                    request.url(),
+                    response.header("x-ms-request-id")));
             return response;
         }
     }
@@ -8,6 +8,8 @@ package com.microsoft.jenkins.vmss;
 
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
 import com.microsoft.azure.PagedList;
 import com.microsoft.azure.management.Azure;
 import com.microsoft.azure.management.compute.VirtualMachineScaleSet;
@@ -15,6 +17,8 @@ import com.microsoft.azure.management.resources.ResourceGroup;
 import com.microsoft.azure.util.AzureBaseCredentials;
 import com.microsoft.jenkins.vmss.util.AzureUtils;
 import com.microsoft.jenkins.vmss.util.Constants;
+import com.microsoft.jenkins.vmss.util.ListingCache;
+import com.microsoft.jenkins.vmss.util.PrefixMatches;
 import hudson.model.AbstractProject;
 import hudson.model.Item;
 import hudson.security.ACL;
@@ -25,6 +29,12 @@ import hudson.util.ListBoxModel;
 import jenkins.tasks.SimpleBuildStep;
 import org.apache.commons.lang.StringUtils;
 
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
 public abstract class BaseBuilder extends Builder implements SimpleBuildStep {
 
     private transient AzureClientFactory azureClientFactory;
@@ -53,6 +63,16 @@ public abstract class BaseBuilder extends Builder implements SimpleBuildStep {
         return name;
     }
 
+    /**
+     * Prints how long the Azure Resource Manager requests of a build step were held back by
+     * {@link com.microsoft.jenkins.vmss.util.ArmRateLimiter}, if at all.
+     */
+    static void logRateLimitWait(final PrintStream logger, final long waitMillis, final long retries) {
+        if (waitMillis > 0 || retries > 0) {
+            logger.println(Messages.BaseBuilder_RateLimitWait(waitMillis, retries));
+        }
+    }
+
     @VisibleForTesting
     void setAzureClientFactory(final AzureClientFactory factory) {
         azureClientFactory = factory;
@@ -102,8 +122,20 @@ public abstract class BaseBuilder extends Builder implements SimpleBuildStep {
             if (StringUtils.isNotBlank(azureCredentialsId)) {
                 final Azure azureClient = AzureUtils.buildClient(owner, azureCredentialsId);
                 try {
-                    for (final ResourceGroup rg : azureClient.resourceGroups().list()) {
-                        model.add(rg.name());
+                    final List<String> names = ListingCache.getInstance().get(
+                            ListingCache.resourceGroupsKey(azureCredentialsId, azureClient.subscriptionId()),
+                            new Callable<List<String>>() {
+                                @Override
+                                public List<String> call() {
+                                    final List<String> result = new ArrayList<>();
+                                    for (final ResourceGroup rg : azureClient.resourceGroups().list()) {
+                                        result.add(rg.name());
+                                    }
+                                    return Collections.unmodifiableList(result);
+                                }
+                            });
+                    for (final String name : names) {
+                        model.add(name);
                     }
                 } catch (Exception ex) {
                     // If the credential selected is an MSI, and the MSI is not granted access to any of the resource
@@ -124,10 +156,22 @@ public abstract class BaseBuilder extends Builder implements SimpleBuildStep {
             if (StringUtils.isNotBlank(azureCredentialsId) && StringUtils.isNotBlank(resourceGroup)) {
                 final Azure azureClient = AzureUtils.buildClient(owner, azureCredentialsId);
                 try {
-                    final PagedList<VirtualMachineScaleSet> vmssList =
-                            azureClient.virtualMachineScaleSets().listByResourceGroup(resourceGroup);
-                    for (final VirtualMachineScaleSet vmss : vmssList) {
-                        model.add(vmss.name());
+                    final List<String> names = ListingCache.getInstance().get(
+                            ListingCache.scaleSetsKey(azureCredentialsId, azureClient.subscriptionId(), resourceGroup),
+                            new Callable<List<String>>() {
+                                @Override
+                                public List<String> call() {
+                                    final List<String> result = new ArrayList<>();
+                                    final PagedList<VirtualMachineScaleSet> vmssList =
+                                            azureClient.virtualMachineScaleSets().listByResourceGroup(resourceGroup);
+                                    for (final VirtualMachineScaleSet vmss : vmssList) {
+                                        result.add(vmss.name());
+                                    }
+                                    return Collections.unmodifiableList(result);
+                                }
+                            });
+                    for (final String name : names) {
+                        model.add(name);
                     }
                 } catch (Exception ex) {
                     // If the credential previously configured is an MSI, and we revoked all the resource group access
@@ -141,6 +185,61 @@ public abstract class BaseBuilder extends Builder implements SimpleBuildStep {
 
             return model;
         }
+
+        public boolean isTypeAhead() {
+            return AzureLookupConfiguration.isTypeAheadEnabled();
+        }
+
+        /**
+         * Suggests the resource groups whose names start with {@code prefix}. A listing already cached for the
+         * drop-down list is filtered in memory, otherwise the pages are fetched only until enough matches are found.
+         */
+        protected PrefixMatches lookupResourceGroups(Item owner, String azureCredentialsId, String prefix) {
+            if (StringUtils.isBlank(azureCredentialsId)) {
+                return PrefixMatches.none();
+            }
+            try {
+                final Azure azureClient = AzureUtils.buildClient(owner, azureCredentialsId);
+                final List<String> cached = ListingCache.getInstance().getIfPresent(
+                        ListingCache.resourceGroupsKey(azureCredentialsId, azureClient.subscriptionId()));
+                final Iterable<String> names = cached != null ? cached : Iterables.transform(
+                        azureClient.resourceGroups().list(), new Function<ResourceGroup, String>() {
+                            @Override
+                            public String apply(final ResourceGroup rg) {
+                                return rg.name();
+                            }
+                        });
+                return PrefixMatches.of(names, prefix, AzureLookupConfiguration.maxMatchesOrDefault());
+            } catch (Exception ex) {
+                return PrefixMatches.failed(Messages.BaseBuilder_FailedToLoadResourceGroups(ex.getMessage()));
+            }
+        }
+
+        /**
+         * Suggests the scale sets of {@code resourceGroup} whose names start with {@code prefix}, like
+         * {@link #lookupResourceGroups(Item, String, String)}.
+         */
+        protected PrefixMatches lookupVMSS(Item owner, String azureCredentialsId, String resourceGroup, String prefix) {
+            if (StringUtils.isBlank(azureCredentialsId) || StringUtils.isBlank(resourceGroup)) {
+                return PrefixMatches.none();
+            }
+            try {
+                final Azure azureClient = AzureUtils.buildClient(owner, azureCredentialsId);
+                final List<String> cached = ListingCache.getInstance().getIfPresent(
+                        ListingCache.scaleSetsKey(azureCredentialsId, azureClient.subscriptionId(), resourceGroup));
+                final Iterable<String> names = cached != null ? cached : Iterables.transform(
+                        azureClient.virtualMachineScaleSets().listByResourceGroup(resourceGroup),
+                        new Function<VirtualMachineScaleSet, String>() {
+                            @Override
+                            public String apply(final VirtualMachineScaleSet vmss) {
+                                return vmss.name();
+                            }
+                        });
+                return PrefixMatches.of(names, prefix, AzureLookupConfiguration.maxMatchesOrDefault());
+            } catch (Exception ex) {
+                return PrefixMatches.failed(Messages.BaseBuilder_FailedToLoadVMSSItems(ex.getMessage()));
+            }
+        }
     }
 
 }
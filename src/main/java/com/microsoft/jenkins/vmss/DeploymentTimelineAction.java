@@ -0,0 +1,418 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.microsoft.jenkins.vmss.util.RequestTimeline;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Timeline of the scale set deployments of a build: the duration of each phase of every update, and for instance
+ * updates the duration and outcome of each batch and instance. Shown on the build page, and available as JSON from
+ * {@code <build>/azure-vmss-timeline/json} to compare deployments across builds.
+ */
+public class DeploymentTimelineAction implements RunAction2 {
+
+    static final String PHASE_AUTHENTICATE = "Authenticate";
+    static final String PHASE_LRO_WAIT = "LRO wait";
+    static final String OUTCOME_SUCCEEDED = "SUCCEEDED";
+    static final String OUTCOME_FAILED = "FAILED";
+    static final String OUTCOME_UNCHANGED = "UNCHANGED";
+    static final String OUTCOME_SUPERSEDED = "SUPERSEDED";
+
+    private static final int JSON_INDENT = 2;
+
+    private final List<Deployment> deployments = new ArrayList<>();
+    private transient Run<?, ?> run;
+
+    /**
+     * @return the action of the run, added if missing
+     */
+    static DeploymentTimelineAction of(final Run<?, ?> run) {
+        synchronized (run) {
+            DeploymentTimelineAction action = run.getAction(DeploymentTimelineAction.class);
+            if (action == null) {
+                action = new DeploymentTimelineAction();
+                run.addAction(action);
+            }
+            return action;
+        }
+    }
+
+    synchronized Deployment start(final String operation, final String resourceGroup, final String name) {
+        final Deployment deployment = new Deployment(operation, resourceGroup, name, System.currentTimeMillis());
+        deployments.add(deployment);
+        return deployment;
+    }
+
+    @Override
+    public void onAttached(final Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(final Run<?, ?> r) {
+        this.run = r;
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    public synchronized List<Deployment> getDeployments() {
+        return new ArrayList<>(deployments);
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "clock.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.DeploymentTimelineAction_DisplayName();
+    }
+
+    @Override
+    public String getUrlName() {
+        return "azure-vmss-timeline";
+    }
+
+    public void doJson(final StaplerRequest req, final StaplerResponse rsp) throws IOException {
+        final JSONArray json = new JSONArray();
+        for (final Deployment deployment : getDeployments()) {
+            json.add(deployment.toJson());
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(new JSONObject().element("deployments", json).toString(JSON_INDENT));
+    }
+
+    static String scaleSetId(final String subscriptionId, final String resourceGroup, final String name) {
+        return String.format(
+                "/subscriptions/%s/resourceGroups/%s/providers/Microsoft.Compute/virtualMachineScaleSets/%s",
+                subscriptionId, resourceGroup, name);
+    }
+
+    /**
+     * A single build step updating a scale set. Records the requests about the scale set through
+     * {@link RequestTimeline} while the step runs.
+     */
+    public static final class Deployment implements RequestTimeline.Recorder {
+        private final String operation;
+        private final String resourceGroup;
+        private final String name;
+        private final long startTime;
+        private long durationMillis;
+        private String outcome;
+        private String message;
+        private final List<Phase> phases = new ArrayList<>();
+        private final List<Batch> batches = new ArrayList<>();
+        // end of the last request that may have started a long running operation
+        private transient long lastWriteEnd;
+
+        Deployment(final String operation, final String resourceGroup, final String name, final long startTime) {
+            this.operation = operation;
+            this.resourceGroup = resourceGroup;
+            this.name = name;
+            this.startTime = startTime;
+        }
+
+        /**
+         * Starts recording the requests about the scale set, until the returned watch is closed.
+         */
+        RequestTimeline.Watch watch(final String subscriptionId) {
+            return RequestTimeline.getInstance().watch(scaleSetId(subscriptionId, resourceGroup, name), this);
+        }
+
+        synchronized void phase(final String phaseName, final long start, final long duration) {
+            phaseNamed(phaseName, start).add(start - startTime, duration);
+        }
+
+        @Override
+        public synchronized void request(final String method,
+                                         final String path,
+                                         final boolean operationPoll,
+                                         final long start,
+                                         final long duration,
+                                         final int statusCode) {
+            if (operationPoll) {
+                // the wait starts when the operation is accepted, not with the first poll
+                final long waitStart = lastWriteEnd > 0 ? Math.min(lastWriteEnd, start) : start;
+                phaseNamed(PHASE_LRO_WAIT, waitStart).add(waitStart - startTime, start + duration - waitStart);
+                return;
+            }
+            phaseNamed(method, start).add(start - startTime, duration);
+            if (!"GET".equals(method)) {
+                lastWriteEnd = start + duration;
+            }
+        }
+
+        private Phase phaseNamed(final String phaseName, final long start) {
+            for (final Phase phase : phases) {
+                if (phase.name.equals(phaseName)) {
+                    return phase;
+                }
+            }
+            final Phase phase = new Phase(phaseName, start - startTime);
+            phases.add(phase);
+            return phase;
+        }
+
+        synchronized Batch startBatch(final List<String> instanceIds) {
+            final Batch batch = new Batch(batches.size() + 1, instanceIds,
+                    System.currentTimeMillis() - startTime);
+            batches.add(batch);
+            return batch;
+        }
+
+        synchronized void finish(final String result, final String errorMessage) {
+            this.durationMillis = System.currentTimeMillis() - startTime;
+            this.outcome = result;
+            this.message = errorMessage;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public String getResourceGroup() {
+            return resourceGroup;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public synchronized long getDurationMillis() {
+            return durationMillis;
+        }
+
+        public synchronized String getOutcome() {
+            return outcome;
+        }
+
+        public synchronized String getMessage() {
+            return message;
+        }
+
+        public synchronized List<Phase> getPhases() {
+            final List<Phase> sorted = new ArrayList<>(phases);
+            Collections.sort(sorted, new Comparator<Phase>() {
+                @Override
+                public int compare(final Phase a, final Phase b) {
+                    return Long.compare(a.offsetMillis, b.offsetMillis);
+                }
+            });
+            return sorted;
+        }
+
+        public synchronized List<Batch> getBatches() {
+            return new ArrayList<>(batches);
+        }
+
+        /**
+         * @return the updated instances, slowest first. The service upgrades a batch in a single operation, so an
+         * instance takes the duration and outcome of its batch.
+         */
+        public List<InstanceResult> getInstances() {
+            final List<InstanceResult> instances = new ArrayList<>();
+            for (final Batch batch : getBatches()) {
+                for (final String instanceId : batch.instanceIds) {
+                    instances.add(new InstanceResult(instanceId, batch));
+                }
+            }
+            Collections.sort(instances, new Comparator<InstanceResult>() {
+                @Override
+                public int compare(final InstanceResult a, final InstanceResult b) {
+                    return Long.compare(b.getDurationMillis(), a.getDurationMillis());
+                }
+            });
+            return instances;
+        }
+
+        JSONObject toJson() {
+            final JSONArray phaseJson = new JSONArray();
+            for (final Phase phase : getPhases()) {
+                phaseJson.add(phase.toJson());
+            }
+            final JSONArray batchJson = new JSONArray();
+            for (final Batch batch : getBatches()) {
+                batchJson.add(batch.toJson());
+            }
+            final JSONArray instanceJson = new JSONArray();
+            for (final InstanceResult instance : getInstances()) {
+                instanceJson.add(new JSONObject()
+                        .element("instanceId", instance.getInstanceId())
+                        .element("batch", instance.getBatch())
+                        .element("durationMillis", instance.getDurationMillis())
+                        .element("outcome", instance.getOutcome()));
+            }
+            return new JSONObject()
+                    .element("operation", operation)
+                    .element("resourceGroup", resourceGroup)
+                    .element("name", name)
+                    .element("startTime", startTime)
+                    .element("durationMillis", getDurationMillis())
+                    .element("outcome", getOutcome())
+                    .element("message", getMessage())
+                    .element("phases", phaseJson)
+                    .element("batches", batchJson)
+                    .element("instances", instanceJson);
+        }
+    }
+
+    /**
+     * The requests of one kind, such as all the GET requests of a deployment, from the start of the first one to the
+     * end of the last one.
+     */
+    public static final class Phase {
+        private final String name;
+        private long offsetMillis;
+        private long endMillis;
+        private int requests;
+
+        Phase(final String name, final long offsetMillis) {
+            this.name = name;
+            this.offsetMillis = offsetMillis;
+            this.endMillis = offsetMillis;
+        }
+
+        /**
+         * @param startOffset start of the request relative to the start of the deployment
+         */
+        private void add(final long startOffset, final long duration) {
+            ++requests;
+            offsetMillis = Math.min(offsetMillis, startOffset);
+            endMillis = Math.max(endMillis, startOffset + duration);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getOffsetMillis() {
+            return offsetMillis;
+        }
+
+        public long getDurationMillis() {
+            return endMillis - offsetMillis;
+        }
+
+        public int getRequests() {
+            return requests;
+        }
+
+        JSONObject toJson() {
+            return new JSONObject()
+                    .element("name", name)
+                    .element("offsetMillis", offsetMillis)
+                    .element("durationMillis", getDurationMillis())
+                    .element("requests", requests);
+        }
+    }
+
+    /**
+     * A batch of instances upgraded together.
+     */
+    public static final class Batch {
+        private final int number;
+        private final List<String> instanceIds;
+        private final long offsetMillis;
+        private long durationMillis;
+        private String outcome;
+        private String message;
+
+        Batch(final int number, final List<String> instanceIds, final long offsetMillis) {
+            this.number = number;
+            this.instanceIds = new ArrayList<>(instanceIds);
+            this.offsetMillis = offsetMillis;
+        }
+
+        synchronized void finish(final long duration, final String result, final String errorMessage) {
+            this.durationMillis = duration;
+            this.outcome = result;
+            this.message = errorMessage;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public List<String> getInstanceIds() {
+            return Collections.unmodifiableList(instanceIds);
+        }
+
+        public long getOffsetMillis() {
+            return offsetMillis;
+        }
+
+        public synchronized long getDurationMillis() {
+            return durationMillis;
+        }
+
+        public synchronized String getOutcome() {
+            return outcome;
+        }
+
+        public synchronized String getMessage() {
+            return message;
+        }
+
+        JSONObject toJson() {
+            return new JSONObject()
+                    .element("number", number)
+                    .element("instanceIds", instanceIds)
+                    .element("offsetMillis", offsetMillis)
+                    .element("durationMillis", getDurationMillis())
+                    .element("outcome", getOutcome())
+                    .element("message", getMessage());
+        }
+    }
+
+    /**
+     * An instance of a batch.
+     */
+    public static final class InstanceResult {
+        private final String instanceId;
+        private final Batch batch;
+
+        InstanceResult(final String instanceId, final Batch batch) {
+            this.instanceId = instanceId;
+            this.batch = batch;
+        }
+
+        public String getInstanceId() {
+            return instanceId;
+        }
+
+        public int getBatch() {
+            return batch.getNumber();
+        }
+
+        public long getDurationMillis() {
+            return batch.getDurationMillis();
+        }
+
+        public String getOutcome() {
+            return batch.getOutcome();
+        }
+    }
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.microsoft.azure.management.Azure;
+import com.microsoft.azure.management.compute.VirtualMachineScaleSet;
+import com.microsoft.azure.management.resources.ResourceGroup;
+import com.microsoft.jenkins.azurecommons.telemetry.AppInsightsUtils;
+import com.microsoft.jenkins.vmss.util.Constants;
+import com.microsoft.jenkins.vmss.util.ImageMetadataCache;
+import com.microsoft.jenkins.vmss.util.ListingCache;
+import com.microsoft.jenkins.vmss.util.OperationMetrics;
+import com.microsoft.jenkins.vmss.util.RequestTimeline;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.Item;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.Builder;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import hudson.util.NamingThreadFactory;
+import jenkins.tasks.SimpleBuildStep;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+/**
+ * Applies the same {@link ImageReference} to several scale sets, using one Azure client and a bounded pool of
+ * workers.
+ * <p>
+ * Targets are given one per line as {@code resourceGroup/name}. Both parts may contain the {@code *} and {@code ?}
+ * wildcards, which are matched against the resource groups of the subscription and the scale sets in each of them.
+ */
+public class FanOutUpdateBuilder extends Builder implements SimpleBuildStep {
+    private static final int DEFAULT_MAX_PARALLELISM = 4;
+
+    private transient BaseBuilder.AzureClientFactory azureClientFactory;
+    private final String azureCredentialsId;
+    private final String targets;
+    private final ImageReference imageReference;
+    private int maxParallelism = DEFAULT_MAX_PARALLELISM;
+    private boolean failFast;
+
+    @DataBoundConstructor
+    public FanOutUpdateBuilder(
+            final String azureCredentialsId,
+            final String targets,
+            final ImageReference imageReference) {
+        this.azureCredentialsId = azureCredentialsId;
+        this.targets = targets;
+        this.imageReference = imageReference;
+    }
+
+    public String getAzureCredentialsId() {
+        return azureCredentialsId;
+    }
+
+    public String getTargets() {
+        return targets;
+    }
+
+    public ImageReference getImageReference() {
+        return imageReference;
+    }
+
+    public int getMaxParallelism() {
+        return maxParallelism;
+    }
+
+    @DataBoundSetter
+    public void setMaxParallelism(final int maxParallelism) {
+        this.maxParallelism = Math.max(1, maxParallelism);
+    }
+
+    public boolean isFailFast() {
+        return failFast;
+    }
+
+    @DataBoundSetter
+    public void setFailFast(final boolean failFast) {
+        this.failFast = failFast;
+    }
+
+    @VisibleForTesting
+    void setAzureClientFactory(final BaseBuilder.AzureClientFactory factory) {
+        azureClientFactory = factory;
+    }
+
+    private Azure getAzureClient(final Item owner) {
+        final BaseBuilder.AzureClientFactory factory =
+                azureClientFactory != null ? azureClientFactory : BaseBuilder.AzureClientFactory.DEFAULT;
+        return factory.createAzureClient(owner, azureCredentialsId);
+    }
+
+    @Override
+    public BuildStepMonitor getRequiredMonitorService() {
+        return BuildStepMonitor.NONE;
+    }
+
+    @Override
+    public void perform(@Nonnull final Run<?, ?> run,
+                        @Nonnull final FilePath workspace,
+                        @Nonnull final Launcher launcher,
+                        @Nonnull final TaskListener listener) throws InterruptedException, IOException {
+        final EnvVars env = run.getEnvironment(listener);
+        final Azure azure = getAzureClient(run.getParent());
+
+        final List<Target> resolvedTargets = resolveTargets(azure, env.expand(targets));
+        listener.getLogger().println(Messages.FanOutUpdateBuilder_PerformLogStart(resolvedTargets.size()));
+        if (resolvedTargets.isEmpty()) {
+            listener.getLogger().println(Messages.FanOutUpdateBuilder_NoTargets());
+            run.setResult(Result.FAILURE);
+            return;
+        }
+
+        AzureVMSSPlugin.sendEvent(Constants.AI_VMSS, Constants.AI_FAN_OUT_UPDATE_START,
+                "Run", AppInsightsUtils.hash(run.getUrl()),
+                "Subscription", AppInsightsUtils.hash(azure.subscriptionId()),
+                "TargetCount", String.valueOf(resolvedTargets.size()));
+
+        final ImageUpdater updater = new ImageUpdater(azure, azureCredentialsId, imageReference, env);
+        if (imageReference.isPinLatestVersion()) {
+            // all the targets get the same version, even if a newer one is published while the fan-out runs
+            updater.pinLatestVersion(ResolvedImageVersionsAction.of(run));
+        }
+        final List<TargetResult> results = updateAll(azure, updater, resolvedTargets, listener);
+
+        int failed = 0;
+        listener.getLogger().println(Messages.FanOutUpdateBuilder_Summary());
+        for (final TargetResult result : results) {
+            listener.getLogger().println(Messages.FanOutUpdateBuilder_SummaryLine(
+                    result.target, result.status, TimeUnit.MILLISECONDS.toSeconds(result.durationMillis),
+                    Util.fixNull(result.message)));
+            if (result.status != TargetStatus.SUCCEEDED && result.status != TargetStatus.UNCHANGED) {
+                ++failed;
+            }
+        }
+
+        if (failed > 0) {
+            run.setResult(Result.FAILURE);
+            AzureVMSSPlugin.sendEvent(Constants.AI_VMSS, Constants.AI_FAN_OUT_UPDATE_FAILED,
+                    "Run", AppInsightsUtils.hash(run.getUrl()),
+                    "Subscription", AppInsightsUtils.hash(azure.subscriptionId()),
+                    "TargetCount", String.valueOf(results.size()),
+                    "FailedCount", String.valueOf(failed));
+        } else {
+            AzureVMSSPlugin.sendEvent(Constants.AI_VMSS, Constants.AI_FAN_OUT_UPDATE_SUCCESS,
+                    "Run", AppInsightsUtils.hash(run.getUrl()),
+                    "Subscription", AppInsightsUtils.hash(azure.subscriptionId()),
+                    "TargetCount", String.valueOf(results.size()));
+        }
+    }
+
+    private List<TargetResult> updateAll(final Azure azure,
+                                         final ImageUpdater updater,
+                                         final List<Target> resolvedTargets,
+                                         final TaskListener listener) throws InterruptedException {
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(maxParallelism, resolvedTargets.size()),
+                new NamingThreadFactory(new DaemonThreadFactory(), "azure-vmss-fan-out-update"));
+
+        final List<Future<TargetResult>> futures = new ArrayList<>();
+        try {
+            for (final Target target : resolvedTargets) {
+                futures.add(executor.submit(new Callable<TargetResult>() {
+                    @Override
+                    public TargetResult call() {
+                        return updateTarget(azure, updater, target, cancelled, listener);
+                    }
+                }));
+            }
+
+            final List<TargetResult> results = new ArrayList<>();
+            for (final Future<TargetResult> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (ExecutionException ex) {
+            // updateTarget handles its own failures
+            throw new IllegalStateException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private TargetResult updateTarget(final Azure azure,
+                                      final ImageUpdater updater,
+                                      final Target target,
+                                      final AtomicBoolean cancelled,
+                                      final TaskListener listener) {
+        if (cancelled.get()) {
+            return new TargetResult(target, TargetStatus.SKIPPED, 0, null);
+        }
+
+        // Buffer the log of each target so that the output of parallel updates is not interleaved
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final PrintStream logger = new PrintStream(buffer, true);
+        final long start = System.currentTimeMillis();
+        // counts the rate limiter waits of the target, including the polls the SDK sends on its own threads
+        final RequestTimeline.Watch watch = RequestTimeline.getInstance().watch(DeploymentTimelineAction.scaleSetId(
+                azure.subscriptionId(), target.resourceGroup, target.name), RequestTimeline.Recorder.NONE);
+        TargetStatus status;
+        String message = null;
+        try {
+            switch (updater.update(target.resourceGroup, target.name, logger)) {
+                case UPDATED:
+                    status = TargetStatus.SUCCEEDED;
+                    break;
+                case UNCHANGED:
+                case SUPERSEDED:
+                    status = TargetStatus.UNCHANGED;
+                    break;
+                default:
+                    status = TargetStatus.NOT_FOUND;
+                    break;
+            }
+        } catch (InterruptedException ex) {
+            // the fan-out was aborted while this target waited for another build writing the same scale set
+            Thread.currentThread().interrupt();
+            status = TargetStatus.SKIPPED;
+        } catch (IOException | RuntimeException ex) {
+            status = TargetStatus.FAILED;
+            message = ex.getMessage();
+            ex.printStackTrace(logger);
+        } finally {
+            watch.close();
+            BaseBuilder.logRateLimitWait(logger, watch.getRateLimitWaitMillis(), watch.getRateLimitRetries());
+            ListingCache.getInstance().invalidate(ListingCache.scaleSetsKey(
+                    azureCredentialsId, azure.subscriptionId(), target.resourceGroup));
+            ImageMetadataCache.getInstance().invalidate(ImageMetadataCache.key(
+                    azureCredentialsId, azure.subscriptionId(), target.resourceGroup, target.name));
+            OperationMetrics.getInstance().recordScaleSetOperation(target.resourceGroup, target.name,
+                    Constants.AI_UPDATE, System.currentTimeMillis() - start);
+        }
+
+        if (failFast && (status == TargetStatus.FAILED || status == TargetStatus.NOT_FOUND)) {
+            cancelled.set(true);
+        }
+
+        synchronized (listener) {
+            listener.getLogger().println(Messages.FanOutUpdateBuilder_TargetLog(target));
+            listener.getLogger().print(new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+        }
+        return new TargetResult(target, status, System.currentTimeMillis() - start, message);
+    }
+
+    /**
+     * Parses the target lines, skipping blank lines and {@code #} comments.
+     *
+     * @return the targets, whose resource group and name may still be wildcard patterns
+     * @throws AbortException if a line is not of the form {@code resourceGroup/name}
+     */
+    static List<Target> parseTargets(final String targetsText) throws AbortException {
+        final Set<Target> result = new LinkedHashSet<>();
+        for (final String line : StringUtils.split(StringUtils.defaultString(targetsText), "\r\n,")) {
+            final String spec = line.trim();
+            if (spec.isEmpty() || spec.startsWith("#")) {
+                continue;
+            }
+            final String[] parts = spec.split("/", 2);
+            if (parts.length != 2 || StringUtils.isBlank(parts[0]) || StringUtils.isBlank(parts[1])) {
+                throw new AbortException(Messages.FanOutUpdateBuilder_InvalidTarget(spec));
+            }
+            result.add(new Target(parts[0].trim(), parts[1].trim()));
+        }
+        return new ArrayList<>(result);
+    }
+
+    @VisibleForTesting
+    static List<Target> resolveTargets(final Azure azure, final String targetsText) throws AbortException {
+        final Set<Target> result = new LinkedHashSet<>();
+        List<String> resourceGroups = null;
+
+        for (final Target spec : parseTargets(targetsText)) {
+            final String resourceGroupPattern = spec.resourceGroup;
+            final String namePattern = spec.name;
+
+            final List<String> matchedResourceGroups = new ArrayList<>();
+            if (isPattern(resourceGroupPattern)) {
+                if (resourceGroups == null) {
+                    resourceGroups = new ArrayList<>();
+                    for (final ResourceGroup rg : azure.resourceGroups().list()) {
+                        resourceGroups.add(rg.name());
+                    }
+                }
+                final Pattern pattern = globToPattern(resourceGroupPattern);
+                for (final String rg : resourceGroups) {
+                    if (pattern.matcher(rg).matches()) {
+                        matchedResourceGroups.add(rg);
+                    }
+                }
+            } else {
+                matchedResourceGroups.add(resourceGroupPattern);
+            }
+
+            for (final String rg : matchedResourceGroups) {
+                if (isPattern(namePattern)) {
+                    final Pattern pattern = globToPattern(namePattern);
+                    for (final VirtualMachineScaleSet vmss
+                            : azure.virtualMachineScaleSets().listByResourceGroup(rg)) {
+                        if (pattern.matcher(vmss.name()).matches()) {
+                            result.add(new Target(rg, vmss.name()));
+                        }
+                    }
+                } else {
+                    result.add(new Target(rg, namePattern));
+                }
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    private static boolean isPattern(final String text) {
+        return StringUtils.containsAny(text, "*?");
+    }
+
+    static Pattern globToPattern(final String glob) {
+        final StringBuilder result = new StringBuilder();
+        int literalStart = 0;
+        for (int i = 0; i < glob.length(); ++i) {
+            final char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > literalStart) {
+                    result.append(Pattern.quote(glob.substring(literalStart, i)));
+                }
+                result.append(c == '*' ? ".*" : ".");
+                literalStart = i + 1;
+            }
+        }
+        if (literalStart < glob.length()) {
+            result.append(Pattern.quote(glob.substring(literalStart)));
+        }
+        return Pattern.compile(result.toString(), Pattern.CASE_INSENSITIVE);
+    }
+
+    enum TargetStatus {
+        SUCCEEDED, UNCHANGED, FAILED, NOT_FOUND, SKIPPED
+    }
+
+    static final class Target {
+        private final String resourceGroup;
+        private final String name;
+
+        Target(final String resourceGroup, final String name) {
+            this.resourceGroup = resourceGroup;
+            this.name = name;
+        }
+
+        String getResourceGroup() {
+            return resourceGroup;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Target)) {
+                return false;
+            }
+            final Target other = (Target) o;
+            return resourceGroup.equalsIgnoreCase(other.resourceGroup) && name.equalsIgnoreCase(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return (resourceGroup.toLowerCase() + "/" + name.toLowerCase()).hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return resourceGroup + "/" + name;
+        }
+    }
+
+    private static final class TargetResult {
+        private final Target target;
+        private final TargetStatus status;
+        private final long durationMillis;
+        private final String message;
+
+        TargetResult(final Target target, final TargetStatus status, final long durationMillis, final String message) {
+            this.target = target;
+            this.status = status;
+            this.durationMillis = durationMillis;
+            this.message = message;
+        }
+    }
+
+    @Extension
+    @Symbol("azureVMSSFanOutUpdate")
+    public static class DescriptorImpl extends BaseBuilder.DescriptorImpl {
+
+        @Override
+        public String getDisplayName() {
+            return Messages.FanOutUpdateBuilder_DisplayName();
+        }
+
+        public ListBoxModel doFillAzureCredentialsIdItems(@AncestorInPath Item owner) {
+            return listAzureCredentialsIdItems(owner);
+        }
+
+        public FormValidation doCheckTargets(@QueryParameter final String value) {
+            if (StringUtils.isBlank(value)) {
+                return FormValidation.error(Messages.FanOutUpdateBuilder_NoTargets());
+            }
+            if (value.contains("$")) {
+                // the lines are only known once the build variables are expanded
+                return FormValidation.ok();
+            }
+            try {
+                if (parseTargets(value).isEmpty()) {
+                    return FormValidation.error(Messages.FanOutUpdateBuilder_NoTargets());
+                }
+            } catch (AbortException ex) {
+                return FormValidation.error(ex.getMessage());
+            }
+            return FormValidation.ok();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.microsoft.jenkins.vmss.util.ScaleSetInstances;
+import hudson.Extension;
+import hudson.model.Describable;
+import hudson.model.Descriptor;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for updated instances to become healthy before an instance update is reported successful.
+ * <p>
+ * The health of all the instances comes from a single listing of the scale set VMs with their instance views, so a
+ * poll costs one request per page rather than one per instance. The polls back off while nothing changes and speed
+ * up again as instances turn healthy.
+ */
+public class HealthGate implements Describable<HealthGate> {
+    private static final int DEFAULT_TIMEOUT_SECONDS = 600;
+    private static final int MIN_POLL_INTERVAL_SECONDS = 5;
+    private static final int MAX_POLL_INTERVAL_SECONDS = 60;
+
+    private int timeoutInSeconds = DEFAULT_TIMEOUT_SECONDS;
+    private transient Clock clock;
+
+    @DataBoundConstructor
+    public HealthGate() {
+    }
+
+    public int getTimeoutInSeconds() {
+        return timeoutInSeconds;
+    }
+
+    @DataBoundSetter
+    public void setTimeoutInSeconds(final int timeoutInSeconds) {
+        this.timeoutInSeconds = Math.max(0, timeoutInSeconds);
+    }
+
+    @VisibleForTesting
+    void setClock(final Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Polls the health of {@code instanceIds} until all of them are healthy, one of them failed to provision, or the
+     * timeout expires. Instances no longer in the scale set are ignored.
+     *
+     * @return the instances that are not healthy, empty if all of them are
+     */
+    List<String> await(final ScaleSetInstances instances,
+                       final String resourceGroup,
+                       final String name,
+                       final Collection<String> instanceIds,
+                       final PrintStream logger) throws IOException, InterruptedException {
+        final Clock time = clock == null ? Clock.SYSTEM : clock;
+        final long deadline = time.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutInSeconds);
+        int interval = MIN_POLL_INTERVAL_SECONDS;
+        int lastNotHealthy = Integer.MAX_VALUE;
+        while (true) {
+            final Map<String, ScaleSetInstances.Health> health = poll(instances, resourceGroup, name, instanceIds);
+            final List<String> notHealthy = new ArrayList<>();
+            boolean failed = false;
+            for (final Map.Entry<String, ScaleSetInstances.Health> entry : health.entrySet()) {
+                if (entry.getValue() != ScaleSetInstances.Health.HEALTHY) {
+                    notHealthy.add(entry.getKey());
+                    failed |= entry.getValue() == ScaleSetInstances.Health.FAILED;
+                }
+            }
+            if (notHealthy.isEmpty()) {
+                logger.println(Messages.HealthGate_Healthy(health.size()));
+                return Collections.emptyList();
+            }
+
+            final long remainingNanos = deadline - time.nanoTime();
+            if (failed || remainingNanos <= 0) {
+                Collections.sort(notHealthy);
+                return notHealthy;
+            }
+            interval = notHealthy.size() < lastNotHealthy
+                    ? MIN_POLL_INTERVAL_SECONDS
+                    : Math.min(interval * 2, MAX_POLL_INTERVAL_SECONDS);
+            lastNotHealthy = notHealthy.size();
+            logger.println(Messages.HealthGate_Waiting(health.size() - notHealthy.size(), health.size(), interval));
+            time.sleep(Math.min(TimeUnit.SECONDS.toNanos(interval), remainingNanos));
+        }
+    }
+
+    private static Map<String, ScaleSetInstances.Health> poll(final ScaleSetInstances instances,
+                                                              final String resourceGroup,
+                                                              final String name,
+                                                              final Collection<String> instanceIds)
+            throws IOException, InterruptedException {
+        final Map<String, ScaleSetInstances.Health> health = new HashMap<>();
+        final Set<String> targets = new HashSet<>(instanceIds);
+        instances.forEach(resourceGroup, name, null, ScaleSetInstances.EXPAND_INSTANCE_VIEW,
+                new ScaleSetInstances.Visitor() {
+                    @Override
+                    public void visit(final ScaleSetInstances.Instance instance) {
+                        if (targets.contains(instance.getInstanceId())) {
+                            health.put(instance.getInstanceId(), instance.getHealth());
+                        }
+                    }
+                });
+        return health;
+    }
+
+    /**
+     * Source of time for the polls, replaced in tests.
+     */
+    @VisibleForTesting
+    interface Clock {
+        Clock SYSTEM = new Clock() {
+            @Override
+            public long nanoTime() {
+                return System.nanoTime();
+            }
+
+            @Override
+            public void sleep(final long nanos) throws InterruptedException {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            }
+        };
+
+        long nanoTime();
+
+        void sleep(long nanos) throws InterruptedException;
+    }
+
+    @Override
+    public Descriptor<HealthGate> getDescriptor() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins != null) {
+            return jenkins.getDescriptor(getClass());
+        } else {
+            return null;
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<HealthGate> {
+
+        @Override
+        public String getDisplayName() {
+            return Messages.HealthGate_DisplayName();
+        }
+    }
+}
@@ -7,22 +7,40 @@
 package com.microsoft.jenkins.vmss;
 
 import com.microsoft.azure.management.compute.implementation.ImageReferenceInner;
+import com.microsoft.jenkins.vmss.util.AzureUtils;
+import com.microsoft.jenkins.vmss.util.Constants;
+import com.microsoft.jenkins.vmss.util.ImageCatalog;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.Util;
 import hudson.model.Describable;
 import hudson.model.Descriptor;
+import hudson.model.Item;
+import hudson.util.ComboBoxModel;
 import jenkins.model.Jenkins;
 import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.RelativePath;
+
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class ImageReference implements Describable<ImageReference> {
+    private static final Logger LOGGER = Logger.getLogger(ImageReference.class.getName());
+
     private String id;
     private String offer;
     private String publisher;
     private String sku;
     private String version;
+    private boolean pinLatestVersion;
+    private String galleryName;
+    private String galleryImageDefinition;
+    private String galleryImageVersion;
 
     @DataBoundConstructor
     public ImageReference() {
@@ -73,6 +91,57 @@ public class ImageReference implements Describable<ImageReference> {
         this.version = version;
     }
 
+    public boolean isPinLatestVersion() {
+        return pinLatestVersion;
+    }
+
+    /**
+     * Resolve the {@code latest} version once per build to a concrete version, which is then used by every step of
+     * the build that updates to the same image.
+     */
+    @DataBoundSetter
+    public void setPinLatestVersion(final boolean pinLatestVersion) {
+        this.pinLatestVersion = pinLatestVersion;
+    }
+
+    public String getGalleryName() {
+        return galleryName;
+    }
+
+    @DataBoundSetter
+    public void setGalleryName(final String galleryName) {
+        this.galleryName = galleryName;
+    }
+
+    public String getGalleryImageDefinition() {
+        return galleryImageDefinition;
+    }
+
+    @DataBoundSetter
+    public void setGalleryImageDefinition(final String galleryImageDefinition) {
+        this.galleryImageDefinition = galleryImageDefinition;
+    }
+
+    public String getGalleryImageVersion() {
+        return galleryImageVersion;
+    }
+
+    /**
+     * A version such as {@code 1.4.2}, a prefix such as {@code 1.4.*}, or {@code latest}.
+     */
+    @DataBoundSetter
+    public void setGalleryImageVersion(final String galleryImageVersion) {
+        this.galleryImageVersion = galleryImageVersion;
+    }
+
+    /**
+     * @return whether the image ID is looked up in a Shared Image Gallery by {@link #galleryName},
+     * {@link #galleryImageDefinition} and {@link #galleryImageVersion}
+     */
+    public boolean isGalleryImage() {
+        return StringUtils.isNotBlank(galleryName);
+    }
+
     public ImageReferenceInner apply(final ImageReferenceInner azureImageRef, final EnvVars env) {
         if (StringUtils.isNotBlank(azureImageRef.id())) {
             azureImageRef.withId(env.expand(Util.fixNull(id)));
@@ -100,5 +169,97 @@ public class ImageReference implements Describable<ImageReference> {
     @Extension
     public static class DescriptorImpl extends Descriptor<ImageReference> {
 
+        public ComboBoxModel doFillPublisherItems(@AncestorInPath final Item owner,
+                                                  @RelativePath("..") @QueryParameter final String azureCredentialsId,
+                                                  @RelativePath("..") @QueryParameter final String resourceGroup,
+                                                  @RelativePath("..") @QueryParameter final String name) {
+            return listCatalog(owner, azureCredentialsId, resourceGroup, name, new CatalogListing() {
+                @Override
+                public List<String> list(final ImageCatalog catalog, final String location) {
+                    return catalog.publishers(location);
+                }
+            });
+        }
+
+        public ComboBoxModel doFillOfferItems(@AncestorInPath final Item owner,
+                                              @RelativePath("..") @QueryParameter final String azureCredentialsId,
+                                              @RelativePath("..") @QueryParameter final String resourceGroup,
+                                              @RelativePath("..") @QueryParameter final String name,
+                                              @QueryParameter final String publisher) {
+            return listCatalog(owner, azureCredentialsId, resourceGroup, name, new CatalogListing() {
+                @Override
+                public List<String> list(final ImageCatalog catalog, final String location) {
+                    return isLiteral(publisher) ? catalog.offers(location, publisher) : null;
+                }
+            });
+        }
+
+        public ComboBoxModel doFillSkuItems(@AncestorInPath final Item owner,
+                                            @RelativePath("..") @QueryParameter final String azureCredentialsId,
+                                            @RelativePath("..") @QueryParameter final String resourceGroup,
+                                            @RelativePath("..") @QueryParameter final String name,
+                                            @QueryParameter final String publisher,
+                                            @QueryParameter final String offer) {
+            return listCatalog(owner, azureCredentialsId, resourceGroup, name, new CatalogListing() {
+                @Override
+                public List<String> list(final ImageCatalog catalog, final String location) {
+                    return isLiteral(publisher) && isLiteral(offer) ? catalog.skus(location, publisher, offer) : null;
+                }
+            });
+        }
+
+        public ComboBoxModel doFillVersionItems(@AncestorInPath final Item owner,
+                                                @RelativePath("..") @QueryParameter final String azureCredentialsId,
+                                                @RelativePath("..") @QueryParameter final String resourceGroup,
+                                                @RelativePath("..") @QueryParameter final String name,
+                                                @QueryParameter final String publisher,
+                                                @QueryParameter final String offer,
+                                                @QueryParameter final String sku) {
+            final ComboBoxModel model = listCatalog(owner, azureCredentialsId, resourceGroup, name,
+                    new CatalogListing() {
+                        @Override
+                        public List<String> list(final ImageCatalog catalog, final String location) {
+                            return isLiteral(publisher) && isLiteral(offer) && isLiteral(sku)
+                                    ? catalog.versions(location, publisher, offer, sku) : null;
+                        }
+                    });
+            model.add(0, Constants.LATEST_VERSION);
+            return model;
+        }
+
+        private interface CatalogListing {
+            List<String> list(ImageCatalog catalog, String location);
+        }
+
+        private static ComboBoxModel listCatalog(final Item owner,
+                                                 final String azureCredentialsId,
+                                                 final String resourceGroup,
+                                                 final String name,
+                                                 final CatalogListing listing) {
+            final ComboBoxModel model = new ComboBoxModel();
+            // the catalog depends on the region of the scale set, which is unknown until it is selected
+            if (!isLiteral(azureCredentialsId) || !isLiteral(resourceGroup) || !isLiteral(name)) {
+                return model;
+            }
+            try {
+                final ImageCatalog catalog = new ImageCatalog(
+                        AzureUtils.buildClient(owner, azureCredentialsId), azureCredentialsId);
+                final String location = catalog.location(resourceGroup, name);
+                if (location != null) {
+                    final List<String> names = listing.list(catalog, location);
+                    if (names != null) {
+                        model.addAll(names);
+                    }
+                }
+            } catch (Exception ex) {
+                // the fields accept free text, so the suggestions are simply left out
+                LOGGER.log(Level.FINE, "Failed to list the image catalog", ex);
+            }
+            return model;
+        }
+
+        private static boolean isLiteral(final String value) {
+            return StringUtils.isNotBlank(value) && !value.contains("$");
+        }
     }
 }
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.microsoft.azure.CloudException;
+import com.microsoft.azure.management.Azure;
+import com.microsoft.azure.management.compute.VirtualMachineScaleSetUpdate;
+import com.microsoft.azure.management.compute.VirtualMachineScaleSetUpdateStorageProfile;
+import com.microsoft.azure.management.compute.VirtualMachineScaleSetUpdateVMProfile;
+import com.microsoft.azure.management.compute.implementation.ImageReferenceInner;
+import com.microsoft.jenkins.vmss.util.Constants;
+import com.microsoft.jenkins.vmss.util.GalleryImageIndex;
+import com.microsoft.jenkins.vmss.util.ImageCatalog;
+import hudson.EnvVars;
+import hudson.Util;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.Callable;
+
+/**
+ * Applies an {@link ImageReference} to the model of a scale set. Shared by the builders and steps that update the
+ * scale set image.
+ * <p>
+ * The scale set is only written when the image reference actually changes, and then with a PATCH that carries
+ * nothing but the new storage profile image reference, conditional on the {@code ETag} of the model read. A PATCH
+ * merges the image reference into the current one, so a switch from a marketplace image to an image referenced by
+ * ID, such as a gallery image, PUTs the whole model instead.
+ * <p>
+ * The read and the write are coordinated with the other builds updating the same scale set through
+ * {@link ScaleSetCoordinator}: the update waits for the earlier writes to finish, and then reads the model it is
+ * going to change.
+ */
+final class ImageUpdater {
+
+    enum Outcome {
+        UPDATED, UNCHANGED, NOT_FOUND, IMAGE_NOT_FOUND, SUPERSEDED
+    }
+
+    private final Azure azure;
+    private final String credentialsId;
+    private final ImageReference imageReference;
+    private final EnvVars env;
+    private final ScaleSetCoordinator coordinator;
+    private boolean skipIfSuperseded;
+    private ResolvedImageVersionsAction resolvedVersions;
+
+    /**
+     * @param credentialsId the credentials of the Azure client, which scope the cached image listings
+     */
+    ImageUpdater(final Azure azure,
+                 final String credentialsId,
+                 final ImageReference imageReference,
+                 final EnvVars env) {
+        this(azure, credentialsId, imageReference, env, ScaleSetCoordinator.getInstance());
+    }
+
+    ImageUpdater(final Azure azure,
+                 final String credentialsId,
+                 final ImageReference imageReference,
+                 final EnvVars env,
+                 final ScaleSetCoordinator coordinator) {
+        this.azure = azure;
+        this.credentialsId = credentialsId;
+        this.imageReference = imageReference;
+        this.env = env;
+        this.coordinator = coordinator;
+    }
+
+    /**
+     * Skip the update if another build queued a newer image update for the same scale set while this one was
+     * waiting for its turn.
+     */
+    ImageUpdater skipIfSuperseded(final boolean skip) {
+        this.skipIfSuperseded = skip;
+        return this;
+    }
+
+    /**
+     * Replace the {@code latest} marketplace image version with the concrete version recorded in the build, resolving
+     * it if this is the first step of the build to use the image.
+     */
+    ImageUpdater pinLatestVersion(final ResolvedImageVersionsAction versions) {
+        this.resolvedVersions = versions;
+        return this;
+    }
+
+    Outcome update(final String resourceGroup,
+                   final String name,
+                   final PrintStream logger) throws IOException, InterruptedException {
+        String galleryImageId = null;
+        if (imageReference.isGalleryImage()) {
+            // resolved before queueing for the scale set, the index may have to list the gallery
+            galleryImageId = resolveGalleryImage(azure, credentialsId, imageReference, env, logger);
+            if (galleryImageId == null) {
+                return Outcome.IMAGE_NOT_FOUND;
+            }
+        }
+
+        final String key = ScaleSetCoordinator.key(azure.subscriptionId(), resourceGroup, name);
+        try (ScaleSetCoordinator.Permit permit = coordinator.acquireWrite(key, true, logger)) {
+            if (skipIfSuperseded && permit.isSuperseded()) {
+                logger.println(Messages.ImageUpdater_Superseded(name));
+                return Outcome.SUPERSEDED;
+            }
+            return update(resourceGroup, name, galleryImageId, logger);
+        }
+    }
+
+    /**
+     * Resolves the gallery image version matching {@code imageReference} to its resource ID.
+     *
+     * @return the ID, or {@code null} if no version matches, in which case the reason was logged
+     */
+    static String resolveGalleryImage(final Azure azure,
+                                      final String credentialsId,
+                                      final ImageReference imageReference,
+                                      final EnvVars env,
+                                      final PrintStream logger) throws IOException {
+        final String gallery = env.expand(imageReference.getGalleryName());
+        final String definition = env.expand(imageReference.getGalleryImageDefinition());
+        final String versionPattern = env.expand(Util.fixNull(imageReference.getGalleryImageVersion()));
+        final GalleryImageIndex.Version version;
+        try {
+            version = GalleryImageIndex.of(credentialsId, azure.subscriptionId())
+                    .resolve(GalleryImageIndex.source(azure), gallery, definition, versionPattern);
+        } catch (IllegalArgumentException ex) {
+            logger.println(ex.getMessage());
+            return null;
+        }
+        if (version == null) {
+            logger.println(Messages.ImageUpdater_GalleryImageNotFound(gallery, definition, versionPattern));
+            return null;
+        }
+        logger.println(Messages.ImageUpdater_GalleryImageResolved(version, version.getId()));
+        return version.getId();
+    }
+
+    private Outcome update(final String resourceGroup,
+                           final String name,
+                           final String galleryImageId,
+                           final PrintStream logger) throws IOException, InterruptedException {
+        final ScaleSetModel model = coordinator.read(azure, credentialsId, resourceGroup, name);
+        if (model == null) {
+            logger.println(Messages.UpdateBuilder_VMSSNotFound(name));
+            return Outcome.NOT_FOUND;
+        }
+
+        final ImageReferenceInner currentImageRef =
+                model.inner().virtualMachineProfile().storageProfile().imageReference();
+        logger.println(Messages.UpdateBuilder_PerformLogCurrentImageReference(printImageReference(currentImageRef)));
+
+        final ImageReferenceInner newImageRef;
+        if (galleryImageId != null) {
+            newImageRef = new ImageReferenceInner();
+            newImageRef.withId(galleryImageId);
+        } else {
+            newImageRef = imageReference.apply(copyOf(currentImageRef), env);
+        }
+        if (resolvedVersions != null) {
+            pinLatestVersion(azure, credentialsId, resolvedVersions, model.inner().location(), newImageRef, logger);
+        }
+        logger.println(Messages.UpdateBuilder_PerformLogNewImageReference(printImageReference(newImageRef)));
+
+        if (isSameImage(currentImageRef, newImageRef)) {
+            logger.println(Messages.UpdateBuilder_PerformLogUnchanged());
+            return Outcome.UNCHANGED;
+        }
+
+        try {
+            if (changesImageKind(currentImageRef, newImageRef)) {
+                model.replaceImage(azure, newImageRef);
+            } else {
+                model.update(azure, imageUpdate(newImageRef));
+            }
+        } catch (CloudException ex) {
+            // the update is conditional on the model read above
+            if (ex.response() != null && ex.response().code() == HttpURLConnection.HTTP_PRECON_FAILED) {
+                logger.println(Messages.ImageUpdater_ModifiedConcurrently(name));
+            }
+            throw ex;
+        }
+        return Outcome.UPDATED;
+    }
+
+    /**
+     * Replaces the {@code latest} version of a marketplace image with the version recorded in {@code versions},
+     * resolving and recording it first if needed. Gallery images and concrete versions are left as they are.
+     */
+    static void pinLatestVersion(final Azure azure,
+                                 final String credentialsId,
+                                 final ResolvedImageVersionsAction versions,
+                                 final String location,
+                                 final ImageReferenceInner image,
+                                 final PrintStream logger) {
+        if (StringUtils.isNotBlank(image.id()) || !Constants.LATEST_VERSION.equalsIgnoreCase(image.version())) {
+            return;
+        }
+        final String version;
+        try {
+            version = versions.resolve(image.publisher(), image.offer(), image.sku(), new Callable<String>() {
+                @Override
+                public String call() {
+                    return new ImageCatalog(azure, credentialsId)
+                            .latestVersion(location, image.publisher(), image.offer(), image.sku());
+                }
+            });
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+        if (version == null) {
+            logger.println(Messages.ImageUpdater_LatestVersionNotFound(printImageReference(image)));
+        } else {
+            logger.println(Messages.ImageUpdater_LatestVersionResolved(version));
+            image.withVersion(version);
+        }
+    }
+
+    static ImageReferenceInner copyOf(final ImageReferenceInner image) {
+        final ImageReferenceInner copy = new ImageReferenceInner()
+                .withPublisher(image.publisher())
+                .withOffer(image.offer())
+                .withSku(image.sku())
+                .withVersion(image.version());
+        copy.withId(image.id());
+        return copy;
+    }
+
+    static boolean isSameImage(final ImageReferenceInner a, final ImageReferenceInner b) {
+        return same(a.id(), b.id())
+                && same(a.publisher(), b.publisher())
+                && same(a.offer(), b.offer())
+                && same(a.sku(), b.sku())
+                && same(a.version(), b.version());
+    }
+
+    /**
+     * @return whether one image is referenced by ID and the other one by publisher, offer, SKU and version, which a
+     * PATCH of the image reference cannot switch between
+     */
+    static boolean changesImageKind(final ImageReferenceInner current, final ImageReferenceInner image) {
+        return StringUtils.isBlank(current.id()) != StringUtils.isBlank(image.id());
+    }
+
+    private static boolean same(final String a, final String b) {
+        // Azure resource IDs and marketplace image names are case insensitive
+        return StringUtils.equalsIgnoreCase(Util.fixEmpty(a), Util.fixEmpty(b));
+    }
+
+    /**
+     * Builds the minimal PATCH payload that only replaces the image reference of the scale set model.
+     */
+    static VirtualMachineScaleSetUpdate imageUpdate(final ImageReferenceInner image) {
+        return new VirtualMachineScaleSetUpdate()
+                .withVirtualMachineProfile(new VirtualMachineScaleSetUpdateVMProfile()
+                        .withStorageProfile(new VirtualMachineScaleSetUpdateStorageProfile()
+                                .withImageReference(image)));
+    }
+
+    static String printImageReference(final ImageReferenceInner image) {
+        return Messages.UpdateBuilder_PrintImageReference(
+                image.id(),
+                image.publisher(),
+                image.offer(),
+                image.sku(),
+                image.version());
+    }
+}
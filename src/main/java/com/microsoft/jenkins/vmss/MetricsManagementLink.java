@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.microsoft.jenkins.vmss.util.OperationMetrics;
+import com.microsoft.jenkins.vmss.util.ScaleSetModelCache;
+import com.microsoft.jenkins.vmss.util.SharedTransport;
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import java.io.IOException;
+
+/**
+ * Manage Jenkins page showing the Azure Resource Manager latency and throughput metrics of the plugin. The same data
+ * is available as JSON from {@code <jenkins>/azure-vmss-metrics/json}.
+ */
+@Extension
+public class MetricsManagementLink extends ManagementLink {
+
+    private static final int JSON_INDENT = 2;
+
+    @Override
+    public String getIconFileName() {
+        return "graph.png";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "azure-vmss-metrics";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.MetricsManagementLink_DisplayName();
+    }
+
+    @Override
+    public String getDescription() {
+        return Messages.MetricsManagementLink_Description();
+    }
+
+    public OperationMetrics getMetrics() {
+        return OperationMetrics.getInstance();
+    }
+
+    public SharedTransport getTransport() {
+        return SharedTransport.getInstance();
+    }
+
+    public ScaleSetModelCache getModelCache() {
+        return ScaleSetModelCache.getInstance();
+    }
+
+    public long getTelemetryQueuedCount() {
+        return AzureVMSSPlugin.getTelemetryQueuedCount();
+    }
+
+    public long getTelemetrySentCount() {
+        return AzureVMSSPlugin.getTelemetrySentCount();
+    }
+
+    public long getTelemetryDroppedCount() {
+        return AzureVMSSPlugin.getTelemetryDroppedCount();
+    }
+
+    public void doJson(final StaplerRequest req, final StaplerResponse rsp) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+
+        final JSONObject json = getMetrics().toJson();
+        final JSONObject telemetry = new JSONObject();
+        telemetry.put("queued", getTelemetryQueuedCount());
+        telemetry.put("sent", getTelemetrySentCount());
+        telemetry.put("dropped", getTelemetryDroppedCount());
+        json.put("telemetry", telemetry);
+        json.put("transport", getTransport().toJson());
+        final JSONObject modelCache = new JSONObject();
+        modelCache.put("size", getModelCache().size());
+        modelCache.put("notModified", getModelCache().getNotModifiedCount());
+        modelCache.put("preconditionFailed", getModelCache().getPreconditionFailedCount());
+        json.put("modelCache", modelCache);
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(json.toString(JSON_INDENT));
+    }
+
+    @RequirePOST
+    public HttpResponse doReset() {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        getMetrics().reset();
+        return HttpResponses.redirectToDot();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.microsoft.jenkins.vmss.util.ScaleSetInstances;
+import hudson.Extension;
+import hudson.model.Describable;
+import hudson.model.Descriptor;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Restricts an instance update to the instances that do not run the latest scale set model, optionally narrowed to a
+ * tag and a set of availability zones. Re-running an interrupted deployment then only touches the instances that
+ * still need it.
+ */
+public class OutdatedInstances implements Describable<OutdatedInstances> {
+    private static final String TAG_VALUE_SEPARATOR = "=";
+
+    private String tag;
+    private String zones;
+
+    @DataBoundConstructor
+    public OutdatedInstances() {
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    /**
+     * @param tag a tag name, or {@code name=value} to also match the value
+     */
+    @DataBoundSetter
+    public void setTag(final String tag) {
+        this.tag = StringUtils.trimToNull(tag);
+    }
+
+    public String getZones() {
+        return zones;
+    }
+
+    /**
+     * @param zones availability zones separated by commas, e.g. {@code 1,2}
+     */
+    @DataBoundSetter
+    public void setZones(final String zones) {
+        this.zones = StringUtils.trimToNull(zones);
+    }
+
+    /**
+     * @return the IDs of the instances of the scale set that are outdated and match the tag and zone filters
+     */
+    BitSet select(final ScaleSetInstances instances,
+                  final String resourceGroup,
+                  final String name) throws IOException, InterruptedException {
+        final BitSet selected = new BitSet();
+        instances.forEach(resourceGroup, name, ScaleSetInstances.FILTER_OUTDATED, new ScaleSetInstances.Visitor() {
+            @Override
+            public void visit(final ScaleSetInstances.Instance instance) {
+                if (matches(instance) && StringUtils.isNumeric(instance.getInstanceId())
+                        && !instance.getInstanceId().isEmpty()) {
+                    selected.set(Integer.parseInt(instance.getInstanceId()));
+                }
+            }
+        });
+        return selected;
+    }
+
+    boolean matches(final ScaleSetInstances.Instance instance) {
+        // the service side filter is only an optimization, check again in case it was ignored
+        if (instance.isLatestModelApplied()) {
+            return false;
+        }
+        if (tag != null) {
+            final String tagName = StringUtils.substringBefore(tag, TAG_VALUE_SEPARATOR).trim();
+            final String tagValue = tag.contains(TAG_VALUE_SEPARATOR)
+                    ? StringUtils.substringAfter(tag, TAG_VALUE_SEPARATOR).trim()
+                    : null;
+            final String actual = instance.getTags().get(tagName);
+            if (actual == null || tagValue != null && !tagValue.equals(actual)) {
+                return false;
+            }
+        }
+        final Set<String> zoneSet = zoneSet();
+        return zoneSet.isEmpty() || !Collections.disjoint(zoneSet, instance.getZones());
+    }
+
+    private Set<String> zoneSet() {
+        final Set<String> result = new HashSet<>();
+        for (String zone : StringUtils.split(StringUtils.defaultString(zones), ", ")) {
+            result.add(zone);
+        }
+        return result;
+    }
+
+    @Override
+    public Descriptor<OutdatedInstances> getDescriptor() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins != null) {
+            return jenkins.getDescriptor(getClass());
+        } else {
+            return null;
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<OutdatedInstances> {
+
+        @Override
+        public String getDisplayName() {
+            return Messages.OutdatedInstances_DisplayName();
+        }
+    }
+}
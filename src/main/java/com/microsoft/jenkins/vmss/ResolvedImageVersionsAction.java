@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import hudson.model.Action;
+import hudson.model.Run;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Records the concrete versions the {@code latest} marketplace images resolved to in a build.
+ * <p>
+ * Every step of the build that pins the {@code latest} version of the same image gets the version resolved by the
+ * first one, so that scale sets updated by different steps, or in parallel by a fan-out, run the same image even if
+ * a newer version is published during the build.
+ */
+public class ResolvedImageVersionsAction implements Action {
+
+    private final Map<String, String> versions = new LinkedHashMap<>();
+
+    /**
+     * @return the action of the run, added if missing
+     */
+    static ResolvedImageVersionsAction of(final Run<?, ?> run) {
+        synchronized (run) {
+            ResolvedImageVersionsAction action = run.getAction(ResolvedImageVersionsAction.class);
+            if (action == null) {
+                action = new ResolvedImageVersionsAction();
+                run.addAction(action);
+            }
+            return action;
+        }
+    }
+
+    static String imageName(final String publisher, final String offer, final String sku) {
+        return String.format("%s:%s:%s", publisher, offer, sku).toLowerCase();
+    }
+
+    /**
+     * Returns the version recorded for the image, resolving and recording it first if needed.
+     *
+     * @param resolver returns the newest version of the image, or {@code null} if the image cannot be found
+     */
+    synchronized String resolve(final String publisher,
+                                final String offer,
+                                final String sku,
+                                final Callable<String> resolver) throws Exception {
+        final String image = imageName(publisher, offer, sku);
+        String version = versions.get(image);
+        if (version == null) {
+            version = resolver.call();
+            if (version != null) {
+                versions.put(image, version);
+            }
+        }
+        return version;
+    }
+
+    public synchronized Map<String, String> getVersions() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(versions));
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.ResolvedImageVersionsAction_DisplayName();
+    }
+
+    @Override
+    public String getUrlName() {
+        return null;
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.google.common.collect.Lists;
+import hudson.Extension;
+import hudson.model.Describable;
+import hudson.model.Descriptor;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.FormValidation;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings for upgrading scale set instances in batches, each batch being a separate {@code updateInstances}
+ * operation.
+ */
+public class RollingUpdate implements Describable<RollingUpdate> {
+    private static final String PERCENT = "%";
+    private static final int HUNDRED_PERCENT = 100;
+    private static final int INVALID_BATCH_SIZE = -1;
+
+    private String batchSize = "20%";
+    private int maxConcurrentBatches = 1;
+    private int pauseTimeInSeconds = 0;
+    private int maxFailedInstances = 0;
+    private int surgeCount = 0;
+
+    @DataBoundConstructor
+    public RollingUpdate() {
+    }
+
+    public String getBatchSize() {
+        return batchSize;
+    }
+
+    @DataBoundSetter
+    public void setBatchSize(final String batchSize) {
+        this.batchSize = StringUtils.trimToNull(batchSize);
+    }
+
+    public int getMaxConcurrentBatches() {
+        return maxConcurrentBatches;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentBatches(final int maxConcurrentBatches) {
+        this.maxConcurrentBatches = Math.max(1, maxConcurrentBatches);
+    }
+
+    public int getPauseTimeInSeconds() {
+        return pauseTimeInSeconds;
+    }
+
+    @DataBoundSetter
+    public void setPauseTimeInSeconds(final int pauseTimeInSeconds) {
+        this.pauseTimeInSeconds = Math.max(0, pauseTimeInSeconds);
+    }
+
+    public int getMaxFailedInstances() {
+        return maxFailedInstances;
+    }
+
+    @DataBoundSetter
+    public void setMaxFailedInstances(final int maxFailedInstances) {
+        this.maxFailedInstances = Math.max(0, maxFailedInstances);
+    }
+
+    public int getSurgeCount() {
+        return surgeCount;
+    }
+
+    /**
+     * Number of instances added to the scale set for the duration of the rollout, {@code 0} to upgrade within the
+     * current capacity.
+     */
+    @DataBoundSetter
+    public void setSurgeCount(final int surgeCount) {
+        this.surgeCount = Math.max(0, surgeCount);
+    }
+
+    /**
+     * Number of batches to run at the same time while the surge instances are serving, enough to keep as many
+     * instances upgrading as were added, and never less than {@link #getMaxConcurrentBatches()}.
+     */
+    int surgeConcurrency(final int batchSize) {
+        if (batchSize <= 0) {
+            return maxConcurrentBatches;
+        }
+        return Math.max(maxConcurrentBatches, (int) Math.ceil(surgeCount / (double) batchSize));
+    }
+
+    /**
+     * @return whether the configured batch size is blank, a positive number of instances, or a percentage between 1
+     * and 100
+     */
+    boolean isBatchSizeValid() {
+        return StringUtils.isBlank(batchSize) || parseBatchSize(batchSize) != INVALID_BATCH_SIZE;
+    }
+
+    /**
+     * Resolves the configured batch size, either an absolute count or a percentage of {@code total}, to the number
+     * of instances per batch. Never returns less than 1.
+     *
+     * @throws IllegalArgumentException if the batch size is not valid, see {@link #isBatchSizeValid()}
+     */
+    int resolveBatchSize(final int total) {
+        if (StringUtils.isBlank(batchSize)) {
+            return Math.max(1, total);
+        }
+        final int number = parseBatchSize(batchSize);
+        if (number == INVALID_BATCH_SIZE) {
+            throw new IllegalArgumentException(Messages.RollingUpdate_InvalidBatchSizeValue(batchSize));
+        }
+        final int size;
+        if (batchSize.trim().endsWith(PERCENT)) {
+            size = (int) Math.ceil(total * (double) number / HUNDRED_PERCENT);
+        } else {
+            size = number;
+        }
+        return Math.max(1, size);
+    }
+
+    /**
+     * Parses a batch size, shared by the build and the form validation so that both accept the same values.
+     *
+     * @return the number without the percent sign, or {@link #INVALID_BATCH_SIZE} if {@code value} is not a positive
+     * number of instances or a percentage between 1 and 100
+     */
+    private static int parseBatchSize(final String value) {
+        final String trimmed = value.trim();
+        final String number = StringUtils.removeEnd(trimmed, PERCENT).trim();
+        if (number.isEmpty() || !StringUtils.isNumeric(number)) {
+            return INVALID_BATCH_SIZE;
+        }
+        final int parsed;
+        try {
+            parsed = Integer.parseInt(number);
+        } catch (NumberFormatException ex) {
+            // too many digits for an int
+            return INVALID_BATCH_SIZE;
+        }
+        if (parsed <= 0 || trimmed.endsWith(PERCENT) && parsed > HUNDRED_PERCENT) {
+            return INVALID_BATCH_SIZE;
+        }
+        return parsed;
+    }
+
+    List<List<String>> partition(final List<String> instanceIds) {
+        if (instanceIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Lists.partition(instanceIds, resolveBatchSize(instanceIds.size()));
+    }
+
+    /**
+     * Operation applied to a single batch of instances.
+     */
+    interface BatchOperation {
+        void apply(List<String> batch) throws Exception;
+    }
+
+    /**
+     * Runs {@code operation} over the batches of {@code instanceIds}, at most {@link #getMaxConcurrentBatches()} at a
+     * time. No new batch is started once more than {@link #getMaxFailedInstances()} instances have failed.
+     */
+    Summary execute(final List<String> instanceIds,
+                    final BatchOperation operation,
+                    final PrintStream logger) throws InterruptedException {
+        return executeBatches(partition(instanceIds), maxConcurrentBatches, operation, logger);
+    }
+
+    /**
+     * Runs {@code operation} over batches already partitioned, such as the batches left by an interrupted rollout,
+     * at most {@code concurrency} at a time.
+     */
+    Summary executeBatches(final List<List<String>> batches,
+                           final int concurrency,
+                           final BatchOperation operation,
+                           final PrintStream logger) throws InterruptedException {
+        final Summary summary = new Summary(batches.size());
+        final Semaphore slots = new Semaphore(concurrency);
+        final ExecutorService executor = Executors.newFixedThreadPool(concurrency,
+                new NamingThreadFactory(new DaemonThreadFactory(), "azure-vmss-rolling-update"));
+        final List<Future<?>> futures = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < batches.size(); ++i) {
+                slots.acquire();
+                if (i > 0 && pauseTimeInSeconds > 0) {
+                    TimeUnit.SECONDS.sleep(pauseTimeInSeconds);
+                }
+                if (summary.getFailedCount() > maxFailedInstances) {
+                    slots.release();
+                    summary.aborted = true;
+                    logger.println(Messages.RollingUpdate_Aborted(summary.getFailedCount(), maxFailedInstances));
+                    break;
+                }
+
+                final int batchNumber = i + 1;
+                final List<String> batch = batches.get(i);
+                logger.println(Messages.RollingUpdate_BatchStart(batchNumber, batches.size(), batch));
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            operation.apply(batch);
+                            summary.succeeded(batch);
+                            logger.println(Messages.RollingUpdate_BatchSuccess(batchNumber, batches.size()));
+                        } catch (Exception ex) {
+                            summary.failed(batch);
+                            logger.println(Messages.RollingUpdate_BatchFailed(
+                                    batchNumber, batches.size(), ex.getMessage()));
+                        } finally {
+                            slots.release();
+                        }
+                    }
+                }));
+            }
+
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException ex) {
+            // the batch runnable handles its own failures
+            throw new IllegalStateException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (summary.getFailedCount() > maxFailedInstances) {
+            summary.aborted = true;
+        }
+        return summary;
+    }
+
+    /**
+     * Outcome of a rolling update.
+     */
+    static final class Summary {
+        private final int batchCount;
+        private final List<String> updatedInstanceIds = new ArrayList<>();
+        private final List<String> failedInstanceIds = new ArrayList<>();
+        private boolean aborted;
+
+        Summary(final int batchCount) {
+            this.batchCount = batchCount;
+        }
+
+        synchronized void succeeded(final List<String> batch) {
+            updatedInstanceIds.addAll(batch);
+        }
+
+        synchronized void failed(final List<String> batch) {
+            failedInstanceIds.addAll(batch);
+        }
+
+        int getBatchCount() {
+            return batchCount;
+        }
+
+        synchronized List<String> getUpdatedInstanceIds() {
+            return new ArrayList<>(updatedInstanceIds);
+        }
+
+        synchronized List<String> getFailedInstanceIds() {
+            return new ArrayList<>(failedInstanceIds);
+        }
+
+        synchronized int getFailedCount() {
+            return failedInstanceIds.size();
+        }
+
+        boolean isAborted() {
+            return aborted;
+        }
+    }
+
+    @Override
+    public Descriptor<RollingUpdate> getDescriptor() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins != null) {
+            return jenkins.getDescriptor(getClass());
+        } else {
+            return null;
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<RollingUpdate> {
+
+        @Override
+        public String getDisplayName() {
+            return Messages.RollingUpdate_DisplayName();
+        }
+
+        public FormValidation doCheckBatchSize(@QueryParameter final String value) {
+            if (StringUtils.isBlank(value)) {
+                return FormValidation.ok();
+            }
+            if (parseBatchSize(value) == INVALID_BATCH_SIZE) {
+                return FormValidation.error(Messages.RollingUpdate_InvalidBatchSize());
+            }
+            return FormValidation.ok();
+        }
+    }
+}
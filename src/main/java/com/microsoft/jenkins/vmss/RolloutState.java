@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.microsoft.jenkins.vmss.util.AsyncOperation;
+import hudson.XmlFile;
+import hudson.model.Result;
+import hudson.model.Run;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Progress of an instance rollout, saved to the build directory after every change: the planned batches, the
+ * batches completed, the long running operations of the batches in flight, the instances that failed, and the
+ * capacity to return to if instances were added for the rollout.
+ * <p>
+ * A build does not survive a controller restart, so the next build updating the same instances of the scale set
+ * picks up the unfinished rollout of the previous one with {@link #resumable}: it waits for the operations that
+ * were in flight and only updates the batches that did not complete.
+ */
+final class RolloutState {
+    private static final Logger LOGGER = Logger.getLogger(RolloutState.class.getName());
+
+    private static final String DIRECTORY = "azure-vmss-rollouts";
+
+    // loading a build record is expensive, and a rollout left unfinished is resumed by one of the next few builds
+    private static final int MAX_SEARCHED_BUILDS = 10;
+
+    private final String resourceGroup;
+    private final String name;
+    private final List<List<String>> batches;
+    private final Set<Integer> completedBatches = new TreeSet<>();
+    private final Map<Integer, AsyncOperation> inFlight = new TreeMap<>();
+    private final Set<String> failedInstanceIds = new LinkedHashSet<>();
+    private long surgeOriginalCapacity;
+    private int resumedFrom;
+
+    private transient XmlFile file;
+
+    private RolloutState(final String resourceGroup, final String name, final List<List<String>> batches) {
+        this.resourceGroup = resourceGroup;
+        this.name = name;
+        this.batches = new ArrayList<>();
+        for (final List<String> batch : batches) {
+            this.batches.add(new ArrayList<>(batch));
+        }
+    }
+
+    /**
+     * Starts tracking a new rollout of {@code batches} in {@code run}.
+     */
+    static RolloutState create(final Run<?, ?> run,
+                               final String resourceGroup,
+                               final String name,
+                               final List<List<String>> batches) {
+        final RolloutState state = new RolloutState(resourceGroup, name, batches);
+        state.attach(run);
+        return state;
+    }
+
+    /**
+     * Finds the rollout of the same instances left unfinished by the last build of the job that updated the scale
+     * set, and copies it to {@code run}. Only the builds since the last successful one are searched, and at most
+     * {@value #MAX_SEARCHED_BUILDS} of them, so that a job that never saved a rollout does not load its whole
+     * history.
+     *
+     * @return the state to continue with, or {@code null} if there is nothing to resume
+     */
+    static RolloutState resumable(final Run<?, ?> run,
+                                  final String resourceGroup,
+                                  final String name,
+                                  final List<String> instanceIds) {
+        Run<?, ?> previous = run.getPreviousBuild();
+        for (int searched = 0; previous != null && searched < MAX_SEARCHED_BUILDS;
+             ++searched, previous = previous.getPreviousBuild()) {
+            final Result result = previous.getResult();
+            if (result != null && result.isBetterOrEqualTo(Result.SUCCESS)) {
+                // a successful build finished its rollouts
+                return null;
+            }
+            final XmlFile previousFile = fileOf(previous, resourceGroup, name);
+            if (previousFile == null || !previousFile.exists()) {
+                continue;
+            }
+            final RolloutState state;
+            try {
+                state = (RolloutState) previousFile.read();
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "Failed to load rollout state " + previousFile, ex);
+                return null;
+            }
+            if (state.isFinished()
+                    || !new HashSet<>(state.getInstanceIds()).equals(new HashSet<>(instanceIds))) {
+                return null;
+            }
+            final RolloutState resumed = new RolloutState(resourceGroup, name, state.batches);
+            resumed.completedBatches.addAll(state.completedBatches);
+            resumed.inFlight.putAll(state.inFlight);
+            resumed.surgeOriginalCapacity = state.surgeOriginalCapacity;
+            resumed.resumedFrom = previous.getNumber();
+            resumed.attach(run);
+            return resumed;
+        }
+        return null;
+    }
+
+    private static XmlFile fileOf(final Run<?, ?> run, final String resourceGroup, final String name) {
+        final File rootDir = run.getRootDir();
+        if (rootDir == null) {
+            return null;
+        }
+        return new XmlFile(new File(new File(rootDir, DIRECTORY),
+                (resourceGroup + "." + name).toLowerCase() + ".xml"));
+    }
+
+    private void attach(final Run<?, ?> run) {
+        file = fileOf(run, resourceGroup, name);
+        save();
+    }
+
+    private void save() {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.write(this);
+        } catch (IOException ex) {
+            // losing the state only costs the ability to resume, the rollout itself goes on
+            LOGGER.log(Level.WARNING, "Failed to save rollout state " + file, ex);
+        }
+    }
+
+    synchronized void started(final int batch, final AsyncOperation operation) {
+        inFlight.put(batch, operation);
+        save();
+    }
+
+    synchronized void completed(final int batch) {
+        inFlight.remove(batch);
+        completedBatches.add(batch);
+        save();
+    }
+
+    /**
+     * Forgets the operation of a batch that failed before the restart, so that the batch is updated again.
+     */
+    synchronized void retry(final int batch) {
+        inFlight.remove(batch);
+        save();
+    }
+
+    synchronized void failed(final int batch) {
+        inFlight.remove(batch);
+        failedInstanceIds.addAll(batches.get(batch));
+        save();
+    }
+
+    /**
+     * Records the capacity before surge instances are added, {@code 0} once it is restored.
+     */
+    synchronized void surge(final long originalCapacity) {
+        surgeOriginalCapacity = originalCapacity;
+        save();
+    }
+
+    synchronized long getSurgeOriginalCapacity() {
+        return surgeOriginalCapacity;
+    }
+
+    List<List<String>> getBatches() {
+        return batches;
+    }
+
+    /**
+     * @return the number of the build this rollout was resumed from, {@code 0} for a new rollout
+     */
+    int getResumedFrom() {
+        return resumedFrom;
+    }
+
+    synchronized Map<Integer, AsyncOperation> getInFlight() {
+        return new TreeMap<>(inFlight);
+    }
+
+    /**
+     * @return the indexes of the batches neither completed nor in flight
+     */
+    synchronized List<Integer> getPendingBatches() {
+        final List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < batches.size(); ++i) {
+            if (!completedBatches.contains(i) && !inFlight.containsKey(i)) {
+                pending.add(i);
+            }
+        }
+        return pending;
+    }
+
+    synchronized int getCompletedCount() {
+        return completedBatches.size();
+    }
+
+    synchronized List<String> getFailedInstanceIds() {
+        return new ArrayList<>(failedInstanceIds);
+    }
+
+    synchronized boolean isFinished() {
+        return completedBatches.size() == batches.size() && surgeOriginalCapacity == 0;
+    }
+
+    private List<String> getInstanceIds() {
+        final List<String> instanceIds = new ArrayList<>();
+        for (final List<String> batch : batches) {
+            instanceIds.addAll(batch);
+        }
+        return instanceIds;
+    }
+
+    @VisibleForTesting
+    XmlFile getFile() {
+        return file;
+    }
+}
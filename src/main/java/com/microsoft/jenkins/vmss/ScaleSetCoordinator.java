@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.microsoft.azure.management.Azure;
+
+import java.io.PrintStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coordinates the builds of this Jenkins instance that read and write the same scale set.
+ * <ul>
+ * <li>Writes to a scale set are serialized in arrival order by a FIFO lock of that scale set, so that two builds
+ * neither get a 409 conflict nor silently overwrite each other. A waiting build reports how many writes of the same
+ * scale set are ahead of it. The lock state of a scale set is dropped once no build holds or waits for it.</li>
+ * <li>Concurrent reads of a scale set model with the same credentials share a single GET, as long as no write
+ * completed since that GET started. Reads do not wait for the writes, so the model loaded by a build holding the
+ * write permit can be shared with the configuration pages and the other builds reading the scale set.</li>
+ * <li>An image update that is still queued when a newer image update of the same scale set gets queued can be
+ * skipped, so that only the newest image is applied.</li>
+ * </ul>
+ */
+final class ScaleSetCoordinator {
+
+    private static final ScaleSetCoordinator INSTANCE = new ScaleSetCoordinator();
+
+    // held by the permits, the waiting writers and the reads in flight, and collected once none is left
+    private final Cache<String, KeyState> states = CacheBuilder.newBuilder().weakValues().build();
+    private final ConcurrentMap<String, Read> reads = new ConcurrentHashMap<>();
+
+    static ScaleSetCoordinator getInstance() {
+        return INSTANCE;
+    }
+
+    @VisibleForTesting
+    ScaleSetCoordinator() {
+    }
+
+    static String key(final String subscriptionId, final String resourceGroup, final String name) {
+        return String.format("/subscriptions/%s/resourceGroups/%s/virtualMachineScaleSets/%s",
+                subscriptionId, resourceGroup, name).toLowerCase();
+    }
+
+    /**
+     * Loads the scale set model, sharing the GET with the concurrent callers using the same credentials. The callers
+     * sharing the GET also share its {@code ETag}, so their writes are conditional on the model they actually read.
+     *
+     * @return the model, or {@code null} if the scale set does not exist
+     */
+    ScaleSetModel read(final Azure azure,
+                       final String credentialsId,
+                       final String resourceGroup,
+                       final String name) throws InterruptedException {
+        return read(key(azure.subscriptionId(), resourceGroup, name), credentialsId,
+                new Callable<ScaleSetModel>() {
+                    @Override
+                    public ScaleSetModel call() {
+                        return ScaleSetModel.read(azure, resourceGroup, name);
+                    }
+                });
+    }
+
+    /**
+     * Loads the scale set model, sharing the result with the concurrent callers for the same key and credentials,
+     * which may not be allowed to read the scale set with other credentials.
+     */
+    @VisibleForTesting
+    ScaleSetModel read(final String key,
+                       final String credentialsId,
+                       final Callable<ScaleSetModel> loader) throws InterruptedException {
+        final KeyState state = state(key);
+        final String readKey = key + "|" + credentialsId;
+        final Read mine = new Read(state, state.epoch.get(), new FutureTask<>(loader));
+        final Read existing = reads.putIfAbsent(readKey, mine);
+        if (existing != null) {
+            if (existing.state == state && existing.epoch == mine.epoch) {
+                return existing.get();
+            }
+            reads.replace(readKey, existing, mine);
+        }
+        // nobody else is loading, or the load in flight started before the last write and may be outdated
+        try {
+            mine.task.run();
+            return mine.get();
+        } finally {
+            reads.remove(readKey, mine);
+        }
+    }
+
+    /**
+     * Waits for the earlier writes to the scale set to finish. The returned permit must be closed once the write is
+     * done.
+     *
+     * @param imageUpdate whether the write replaces the image, which makes earlier queued image updates superseded
+     * @param logger      receives the position of the caller in the queue of the scale set while it waits
+     */
+    Permit acquireWrite(final String key,
+                        final boolean imageUpdate,
+                        final PrintStream logger) throws InterruptedException {
+        final KeyState state = state(key);
+        final long generation = imageUpdate ? state.imageGeneration.incrementAndGet() : 0;
+        final long ticket = state.take();
+        state.await(ticket, key, logger);
+        return new Permit(state, generation);
+    }
+
+    private KeyState state(final String key) {
+        try {
+            return states.get(key, new Callable<KeyState>() {
+                @Override
+                public KeyState call() {
+                    return new KeyState();
+                }
+            });
+        } catch (ExecutionException ex) {
+            // the loader cannot fail
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    /**
+     * Exclusive right to write a scale set.
+     */
+    static final class Permit implements AutoCloseable {
+        private final KeyState state;
+        private final long generation;
+        private boolean closed;
+
+        private Permit(final KeyState state, final long generation) {
+            this.state = state;
+            this.generation = generation;
+        }
+
+        /**
+         * @return whether a newer image update of the same scale set was queued after this one
+         */
+        boolean isSuperseded() {
+            return generation > 0 && generation < state.imageGeneration.get();
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            // reads started before this point may not see the write
+            state.epoch.incrementAndGet();
+            state.release();
+        }
+    }
+
+    /**
+     * Read and write state of a scale set, including its FIFO ticket lock. Tickets abandoned by interrupted waiters
+     * are skipped.
+     */
+    private static final class KeyState {
+        private final AtomicLong epoch = new AtomicLong();
+        private final AtomicLong imageGeneration = new AtomicLong();
+        private final Set<Long> abandoned = new HashSet<>();
+        private long nextTicket;
+        private long serving;
+
+        synchronized long take() {
+            return nextTicket++;
+        }
+
+        synchronized void await(final long ticket,
+                                final String key,
+                                final PrintStream logger) throws InterruptedException {
+            long reportedPosition = 0;
+            try {
+                while (serving != ticket) {
+                    final long position = ticket - serving;
+                    if (logger != null && position != reportedPosition) {
+                        logger.println(Messages.ScaleSetCoordinator_Waiting(position, key));
+                        reportedPosition = position;
+                    }
+                    wait();
+                }
+            } catch (InterruptedException ex) {
+                if (serving == ticket) {
+                    release();
+                } else {
+                    abandoned.add(ticket);
+                }
+                throw ex;
+            }
+        }
+
+        synchronized void release() {
+            ++serving;
+            while (abandoned.remove(serving)) {
+                ++serving;
+            }
+            notifyAll();
+        }
+    }
+
+    private static final class Read {
+        private final KeyState state;
+        private final long epoch;
+        private final FutureTask<ScaleSetModel> task;
+
+        Read(final KeyState state, final long epoch, final FutureTask<ScaleSetModel> task) {
+            this.state = state;
+            this.epoch = epoch;
+            this.task = task;
+        }
+
+        ScaleSetModel get() throws InterruptedException {
+            try {
+                return task.get();
+            } catch (ExecutionException ex) {
+                Throwables.throwIfUnchecked(ex.getCause());
+                throw new UncheckedExecutionException(ex.getCause());
+            }
+        }
+    }
+}
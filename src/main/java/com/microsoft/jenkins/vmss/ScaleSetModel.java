@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.microsoft.azure.CloudException;
+import com.microsoft.azure.management.Azure;
+import com.microsoft.azure.management.compute.VirtualMachineScaleSetUpdate;
+import com.microsoft.azure.management.compute.implementation.ImageReferenceInner;
+import com.microsoft.azure.management.compute.implementation.VirtualMachineScaleSetInner;
+import com.microsoft.jenkins.vmss.util.AsyncOperation;
+import com.microsoft.jenkins.vmss.util.AzureUtils;
+import com.microsoft.jenkins.vmss.util.Constants;
+import com.microsoft.rest.ServiceResponse;
+import com.microsoft.rest.protocol.SerializerAdapter;
+import okhttp3.ResponseBody;
+import retrofit2.Response;
+import retrofit2.http.Body;
+import retrofit2.http.Header;
+import retrofit2.http.Headers;
+import retrofit2.http.PATCH;
+import retrofit2.http.PUT;
+import retrofit2.http.Path;
+import retrofit2.http.Query;
+import rx.Observable;
+import rx.functions.Func1;
+
+import java.io.IOException;
+
+/**
+ * Scale set model as read by one caller, together with the {@code ETag} it was returned with.
+ * <p>
+ * The writes made through the model are conditional on that {@code ETag}, so a scale set changed by someone else
+ * since the caller read it fails with {@code 412 Precondition Failed} instead of being overwritten. The SDK update
+ * methods cannot send an {@code If-Match} header, so the PATCH and the PUT are declared here on the Retrofit instance
+ * of the SDK client, which keeps its authentication, serialization and interceptors.
+ */
+final class ScaleSetModel {
+    private static final String ETAG = "ETag";
+
+    private final String resourceGroup;
+    private final String name;
+    private final VirtualMachineScaleSetInner inner;
+    private final String etag;
+
+    ScaleSetModel(final String resourceGroup,
+                  final String name,
+                  final VirtualMachineScaleSetInner inner,
+                  final String etag) {
+        this.resourceGroup = resourceGroup;
+        this.name = name;
+        this.inner = inner;
+        this.etag = etag;
+    }
+
+    /**
+     * @return the model, or {@code null} if the scale set does not exist
+     */
+    static ScaleSetModel read(final Azure azure, final String resourceGroup, final String name) {
+        final ServiceResponse<VirtualMachineScaleSetInner> response = azure.virtualMachineScaleSets().inner()
+                .getByResourceGroupWithServiceResponseAsync(resourceGroup, name).toBlocking().single();
+        if (response.body() == null) {
+            return null;
+        }
+        return new ScaleSetModel(resourceGroup, name, response.body(), response.response().headers().get(ETAG));
+    }
+
+    VirtualMachineScaleSetInner inner() {
+        return inner;
+    }
+
+    /**
+     * @return the {@code ETag} of the model, {@code null} if the service did not return one
+     */
+    String etag() {
+        return etag;
+    }
+
+    /**
+     * Starts a PATCH of the scale set, conditional on the {@code ETag} of this model if it has one.
+     *
+     * @return the response of the PATCH, whose headers locate the long running operation. A rejected PATCH is
+     * reported as a {@link CloudException}.
+     */
+    Observable<Response<ResponseBody>> beginUpdate(final Azure azure, final VirtualMachineScaleSetUpdate update) {
+        return checked(service(azure)
+                .update(azure.subscriptionId(), resourceGroup, name, Constants.COMPUTE_API_VERSION, etag, update));
+    }
+
+    /**
+     * PATCHes the scale set like {@link #beginUpdate} does, and waits for the operation to finish.
+     */
+    void update(final Azure azure, final VirtualMachineScaleSetUpdate update)
+            throws IOException, InterruptedException {
+        await(azure, beginUpdate(azure, update));
+    }
+
+    /**
+     * Starts a PUT of the whole model with its image reference replaced, conditional on the {@code ETag} of this
+     * model if it has one. The PUT is written from a copy, the model of this instance may be shared with other
+     * readers.
+     *
+     * @return the response of the PUT, whose headers locate the long running operation. A rejected PUT is reported
+     * as a {@link CloudException}.
+     */
+    Observable<Response<ResponseBody>> beginReplaceImage(final Azure azure, final ImageReferenceInner image)
+            throws IOException {
+        final SerializerAdapter<?> serializer =
+                azure.virtualMachineScaleSets().manager().inner().restClient().serializerAdapter();
+        final VirtualMachineScaleSetInner copy =
+                serializer.deserialize(serializer.serialize(inner), VirtualMachineScaleSetInner.class);
+        copy.virtualMachineProfile().storageProfile().withImageReference(image);
+        return checked(service(azure).createOrUpdate(
+                azure.subscriptionId(), resourceGroup, name, Constants.COMPUTE_API_VERSION, etag, copy));
+    }
+
+    /**
+     * PUTs the model like {@link #beginReplaceImage} does, and waits for the operation to finish.
+     */
+    void replaceImage(final Azure azure, final ImageReferenceInner image) throws IOException, InterruptedException {
+        await(azure, beginReplaceImage(azure, image));
+    }
+
+    private static UpdateService service(final Azure azure) {
+        return azure.virtualMachineScaleSets().manager().inner().restClient().retrofit().create(UpdateService.class);
+    }
+
+    private static Observable<Response<ResponseBody>> checked(final Observable<Response<ResponseBody>> write) {
+        return write.map(new Func1<Response<ResponseBody>, Response<ResponseBody>>() {
+            @Override
+            public Response<ResponseBody> call(final Response<ResponseBody> response) {
+                if (!response.isSuccessful()) {
+                    throw new CloudException(String.format("Status code %d, %s",
+                            response.code(), errorBody(response)), response);
+                }
+                return response;
+            }
+        });
+    }
+
+    private static void await(final Azure azure, final Observable<Response<ResponseBody>> write)
+            throws IOException, InterruptedException {
+        final AsyncOperation operation = AsyncOperation.fromHeaders(write.toBlocking().single().headers());
+        if (operation != null) {
+            final AsyncOperation.Status status = operation.await(AzureUtils.httpClient(azure));
+            if (!status.isSucceeded()) {
+                throw new IOException(Messages.AzureOperationStepExecution_Failed(status.getError()));
+            }
+        }
+    }
+
+    private static String errorBody(final Response<ResponseBody> response) {
+        try (ResponseBody body = response.errorBody()) {
+            return body == null ? "" : body.string();
+        } catch (IOException ex) {
+            return ex.getMessage();
+        }
+    }
+
+    /**
+     * The scale set PATCH and PUT of the compute API, with the optional {@code If-Match} header the SDK does not
+     * declare. A {@code null} header value is not sent.
+     */
+    interface UpdateService {
+        @Headers("Content-Type: application/json; charset=utf-8")
+        @PATCH("subscriptions/{subscriptionId}/resourceGroups/{resourceGroupName}"
+                + "/providers/Microsoft.Compute/virtualMachineScaleSets/{vmScaleSetName}")
+        Observable<Response<ResponseBody>> update(@Path("subscriptionId") String subscriptionId,
+                                                  @Path("resourceGroupName") String resourceGroupName,
+                                                  @Path("vmScaleSetName") String vmScaleSetName,
+                                                  @Query("api-version") String apiVersion,
+                                                  @Header("If-Match") String ifMatch,
+                                                  @Body VirtualMachineScaleSetUpdate parameters);
+
+        @Headers("Content-Type: application/json; charset=utf-8")
+        @PUT("subscriptions/{subscriptionId}/resourceGroups/{resourceGroupName}"
+                + "/providers/Microsoft.Compute/virtualMachineScaleSets/{vmScaleSetName}")
+        Observable<Response<ResponseBody>> createOrUpdate(@Path("subscriptionId") String subscriptionId,
+                                                          @Path("resourceGroupName") String resourceGroupName,
+                                                          @Path("vmScaleSetName") String vmScaleSetName,
+                                                          @Query("api-version") String apiVersion,
+                                                          @Header("If-Match") String ifMatch,
+                                                          @Body VirtualMachineScaleSetInner parameters);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.microsoft.azure.management.Azure;
+import com.microsoft.azure.management.compute.Sku;
+import com.microsoft.azure.management.compute.VirtualMachineScaleSetUpdate;
+import com.microsoft.azure.management.compute.implementation.VirtualMachineScaleSetVMInner;
+import com.microsoft.jenkins.vmss.util.ScaleSetInstances;
+import hudson.AbortException;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Temporary capacity added to a scale set for the duration of a rollout. The added instances are created from the
+ * latest model, so they keep the capacity of the scale set up while the existing instances are upgraded.
+ */
+final class SurgeCapacity {
+    private static final String PROVISIONING_SUCCEEDED = "Succeeded";
+
+    private final Azure azure;
+    private final String resourceGroup;
+    private final String name;
+
+    SurgeCapacity(final Azure azure, final String resourceGroup, final String name) {
+        this.azure = azure;
+        this.resourceGroup = resourceGroup;
+        this.name = name;
+    }
+
+    long currentCapacity() throws AbortException {
+        final Sku sku = scaleSet().inner().sku();
+        return sku == null || sku.capacity() == null ? 0 : sku.capacity();
+    }
+
+    /**
+     * Raises the capacity to {@code originalCapacity + surgeCount} and waits for the new instances to be provisioned,
+     * then to pass {@code healthGate} if it is set, as the upgraded instances must.
+     *
+     * @return the new instances that failed to provision, do not run the latest model or are not healthy, empty if
+     * all are healthy
+     */
+    List<String> raise(final long originalCapacity,
+                       final int surgeCount,
+                       final HealthGate healthGate,
+                       final PrintStream logger) throws IOException, InterruptedException {
+        final Set<String> existing = new HashSet<>();
+        for (final VirtualMachineScaleSetVMInner vm : listInstances()) {
+            existing.add(vm.instanceId());
+        }
+
+        logger.println(Messages.SurgeCapacity_Raising(surgeCount, originalCapacity + surgeCount));
+        resize(originalCapacity + surgeCount);
+
+        List<String> unhealthy = new ArrayList<>();
+        final List<String> added = new ArrayList<>();
+        for (final VirtualMachineScaleSetVMInner vm : listInstances()) {
+            if (existing.contains(vm.instanceId())) {
+                continue;
+            }
+            added.add(vm.instanceId());
+            final boolean provisioned = vm.provisioningState() == null
+                    || PROVISIONING_SUCCEEDED.equalsIgnoreCase(vm.provisioningState());
+            if (!provisioned || Boolean.FALSE.equals(vm.latestModelApplied())) {
+                unhealthy.add(vm.instanceId());
+            }
+        }
+        if (unhealthy.isEmpty() && healthGate != null && !added.isEmpty()) {
+            unhealthy = healthGate.await(ScaleSetInstances.of(azure), resourceGroup, name, added, logger);
+        }
+        logger.println(Messages.SurgeCapacity_Raised(added.size() - unhealthy.size(), added.size()));
+        return unhealthy;
+    }
+
+    /**
+     * Returns the scale set to its capacity before the rollout. The scale-in policy of the scale set chooses the
+     * instances removed.
+     */
+    void restore(final long originalCapacity, final PrintStream logger) throws IOException, InterruptedException {
+        logger.println(Messages.SurgeCapacity_Restoring(originalCapacity));
+        resize(originalCapacity);
+    }
+
+    /**
+     * Changes the capacity with a PATCH conditional on the model the SKU was read from.
+     */
+    private void resize(final long capacity) throws IOException, InterruptedException {
+        final ScaleSetModel model = scaleSet();
+        final Sku current = model.inner().sku();
+        final Sku sku = new Sku()
+                .withName(current.name())
+                .withTier(current.tier())
+                .withCapacity(capacity);
+        model.update(azure, new VirtualMachineScaleSetUpdate().withSku(sku));
+    }
+
+    private ScaleSetModel scaleSet() throws AbortException {
+        final ScaleSetModel model = ScaleSetModel.read(azure, resourceGroup, name);
+        if (model == null) {
+            throw new AbortException(Messages.UpdateBuilder_VMSSNotFound(name));
+        }
+        return model;
+    }
+
+    private List<VirtualMachineScaleSetVMInner> listInstances() {
+        return azure.virtualMachineScaleSets().manager().inner().virtualMachineScaleSetVMs()
+                .list(resourceGroup, name);
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.microsoft.jenkins.azurecommons.telemetry.AppInsightsClientFactory;
+import com.microsoft.jenkins.azurecommons.telemetry.AzureHttpRecorder;
+import com.microsoft.jenkins.vmss.util.Constants;
+import jenkins.util.Timer;
+import okhttp3.HttpUrl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded in-memory queue of telemetry events, drained in batches by a background flusher.
+ * <p>
+ * Producers never block: when the queue is full the event is dropped and counted. Event payloads such as the
+ * property maps are only built by the flusher, off the request path.
+ */
+final class TelemetryPipeline {
+
+    private static final Logger LOGGER = Logger.getLogger(TelemetryPipeline.class.getName());
+
+    private static final TelemetryPipeline INSTANCE = new TelemetryPipeline(
+            Constants.TELEMETRY_QUEUE_CAPACITY, Constants.TELEMETRY_BATCH_SIZE, Timer.get());
+
+    /**
+     * A telemetry event waiting to be sent.
+     */
+    interface Event {
+        void send();
+    }
+
+    private final BlockingQueue<Event> queue;
+    private final int batchSize;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicBoolean flushing = new AtomicBoolean();
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param scheduler runs the background flusher; {@code null} to flush only through {@link #flush()}
+     */
+    @VisibleForTesting
+    TelemetryPipeline(final int capacity, final int batchSize, final ScheduledExecutorService scheduler) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.scheduler = scheduler;
+    }
+
+    static TelemetryPipeline getInstance() {
+        return INSTANCE;
+    }
+
+    boolean offer(final Event event) {
+        if (!queue.offer(event)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        queued.incrementAndGet();
+
+        if (scheduler != null) {
+            if (started.compareAndSet(false, true)) {
+                scheduler.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, Constants.TELEMETRY_FLUSH_INTERVAL_SECONDS, Constants.TELEMETRY_FLUSH_INTERVAL_SECONDS,
+                        TimeUnit.SECONDS);
+            }
+            if (queue.size() >= batchSize && !flushing.get()) {
+                scheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                });
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends all queued events in batches. Only one flush runs at a time.
+     */
+    void flush() {
+        if (!flushing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            final List<Event> batch = new ArrayList<>(batchSize);
+            while (queue.drainTo(batch, batchSize) > 0) {
+                for (final Event event : batch) {
+                    try {
+                        event.send();
+                        sent.incrementAndGet();
+                    } catch (RuntimeException ex) {
+                        dropped.incrementAndGet();
+                        LOGGER.log(Level.FINE, "Failed to send telemetry event", ex);
+                    }
+                }
+                batch.clear();
+            }
+        } finally {
+            flushing.set(false);
+        }
+    }
+
+    long getQueuedCount() {
+        return queued.get();
+    }
+
+    long getSentCount() {
+        return sent.get();
+    }
+
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    int getPendingCount() {
+        return queue.size();
+    }
+
+    /**
+     * Custom event, with the properties given as alternating keys and values.
+     */
+    static final class CustomEvent implements Event {
+        private final String item;
+        private final String action;
+        private final String[] properties;
+        private final Map<String, String> propertyMap;
+
+        CustomEvent(final String item, final String action, final String[] properties) {
+            this.item = item;
+            this.action = action;
+            this.properties = properties;
+            this.propertyMap = null;
+        }
+
+        CustomEvent(final String item, final String action, final Map<String, String> properties) {
+            this.item = item;
+            this.action = action;
+            this.properties = null;
+            this.propertyMap = properties;
+        }
+
+        @Override
+        public void send() {
+            Map<String, String> props = propertyMap;
+            if (props == null) {
+                props = new HashMap<>();
+                for (int i = 1; i < properties.length; i += 2) {
+                    props.put(properties[i - 1], properties[i]);
+                }
+            }
+            AppInsightsClientFactory.getInstance(AzureVMSSPlugin.class).sendEvent(item, action, props, false);
+        }
+    }
+
+    /**
+     * Record of an HTTP exchange with Azure.
+     */
+    static final class HttpEvent implements Event {
+        private final int code;
+        private final String message;
+        private final String method;
+        private final HttpUrl url;
+        private final String requestId;
+
+        HttpEvent(final int code, final String message, final String method, final HttpUrl url,
+                  final String requestId) {
+            this.code = code;
+            this.message = message;
+            this.method = method;
+            this.url = url;
+            this.requestId = requestId;
+        }
+
+        @Override
+        public void send() {
+            new AzureHttpRecorder(AppInsightsClientFactory.getInstance(AzureVMSSPlugin.class))
+                    .record(new AzureHttpRecorder.HttpRecordable()
+                            .withHttpCode(code)
+                            .withHttpMessage(message)
+                            .withHttpMethod(method)
+                            .withRequestUri(url.uri())
+                            .withRequestId(requestId)
+                    );
+        }
+    }
+}
@@ -8,11 +8,14 @@ package com.microsoft.jenkins.vmss;
 
 import com.microsoft.azure.CloudException;
 import com.microsoft.azure.management.Azure;
-import com.microsoft.azure.management.compute.VirtualMachineScaleSet;
-import com.microsoft.azure.management.compute.implementation.ImageReferenceInner;
 import com.microsoft.jenkins.azurecommons.telemetry.AppInsightsUtils;
 import com.microsoft.jenkins.vmss.util.AzureUtils;
 import com.microsoft.jenkins.vmss.util.Constants;
+import com.microsoft.jenkins.vmss.util.ImageMetadataCache;
+import com.microsoft.jenkins.vmss.util.ListingCache;
+import com.microsoft.jenkins.vmss.util.OperationMetrics;
+import com.microsoft.jenkins.vmss.util.PrefixMatches;
+import com.microsoft.jenkins.vmss.util.RequestTimeline;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
@@ -21,18 +24,28 @@ import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 
 import javax.annotation.Nonnull;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.concurrent.Callable;
 
 public class UpdateBuilder extends BaseBuilder {
 
     private final ImageReference imageReference;
+    private boolean skipIfSuperseded;
 
     @DataBoundConstructor
     public UpdateBuilder(
@@ -48,6 +61,15 @@ public class UpdateBuilder extends BaseBuilder {
         return imageReference;
     }
 
+    public boolean isSkipIfSuperseded() {
+        return skipIfSuperseded;
+    }
+
+    @DataBoundSetter
+    public void setSkipIfSuperseded(final boolean skipIfSuperseded) {
+        this.skipIfSuperseded = skipIfSuperseded;
+    }
+
     @Override
     public void perform(@Nonnull final Run<?, ?> run,
                         @Nonnull final FilePath workspace,
@@ -56,7 +78,12 @@ public class UpdateBuilder extends BaseBuilder {
 
         listener.getLogger().println(Messages.UpdateBuilder_PerformLogStart());
 
+        final DeploymentTimelineAction.Deployment deployment =
+                DeploymentTimelineAction.of(run).start(Constants.AI_UPDATE, getResourceGroup(), getName());
+        final long authStart = System.currentTimeMillis();
         final Azure azure = getAzureClient(run.getParent());
+        deployment.phase(DeploymentTimelineAction.PHASE_AUTHENTICATE, authStart,
+                System.currentTimeMillis() - authStart);
 
         AzureVMSSPlugin.sendEvent(Constants.AI_VMSS, Constants.AI_UPDATE_START,
                 "Run", AppInsightsUtils.hash(run.getUrl()),
@@ -64,34 +91,34 @@ public class UpdateBuilder extends BaseBuilder {
                 "ResourceGroup", AppInsightsUtils.hash(getResourceGroup()),
                 "Name", AppInsightsUtils.hash(getName()));
 
-        final VirtualMachineScaleSet vmss = azure.virtualMachineScaleSets().getByResourceGroup(
-                getResourceGroup(), getName());
-        if (vmss == null) {
-            listener.getLogger().println(Messages.UpdateBuilder_VMSSNotFound(getName()));
-            run.setResult(Result.FAILURE);
-            return;
+        final ImageUpdater updater = new ImageUpdater(
+                azure, getAzureCredentialsId(), imageReference, run.getEnvironment(listener))
+                .skipIfSuperseded(skipIfSuperseded);
+        if (imageReference.isPinLatestVersion()) {
+            updater.pinLatestVersion(ResolvedImageVersionsAction.of(run));
         }
-
-        final ImageReferenceInner azureImageRef = vmss.storageProfile().imageReference();
-        listener.getLogger().println(
-                Messages.UpdateBuilder_PerformLogCurrentImageReference(printImageReference(azureImageRef)));
-
-        imageReference.apply(azureImageRef, run.getEnvironment(listener));
-
-        listener.getLogger().println(
-                Messages.UpdateBuilder_PerformLogNewImageReference(printImageReference(azureImageRef)));
-
+        final long start = System.currentTimeMillis();
+        final RequestTimeline.Watch watch = deployment.watch(azure.subscriptionId());
+        String result = DeploymentTimelineAction.OUTCOME_FAILED;
+        String error = null;
         try {
-            azure.virtualMachineScaleSets().inner().createOrUpdate(getResourceGroup(), getName(), vmss.inner());
-
-            listener.getLogger().println(Messages.UpdateBuilder_PerformLogSuccess());
+            final ImageUpdater.Outcome outcome = updater.update(getResourceGroup(), getName(), listener.getLogger());
+            result = timelineOutcome(outcome);
+            if (outcome == ImageUpdater.Outcome.NOT_FOUND || outcome == ImageUpdater.Outcome.IMAGE_NOT_FOUND) {
+                run.setResult(Result.FAILURE);
+                return;
+            }
+            if (outcome == ImageUpdater.Outcome.UPDATED) {
+                listener.getLogger().println(Messages.UpdateBuilder_PerformLogSuccess());
+            }
 
             AzureVMSSPlugin.sendEvent(Constants.AI_VMSS, Constants.AI_UPDATE_SUCCESS,
                     "Run", AppInsightsUtils.hash(run.getUrl()),
                     "Subscription", AppInsightsUtils.hash(azure.subscriptionId()),
                     "ResourceGroup", AppInsightsUtils.hash(getResourceGroup()),
                     "Name", AppInsightsUtils.hash(getName()));
-        } catch (CloudException ex) {
+        } catch (CloudException | IOException | IllegalStateException ex) {
+            error = ex.getMessage();
             ex.printStackTrace(listener.getLogger());
             run.setResult(Result.FAILURE);
 
@@ -101,16 +128,33 @@ public class UpdateBuilder extends BaseBuilder {
                     "ResourceGroup", AppInsightsUtils.hash(getResourceGroup()),
                     "Name", AppInsightsUtils.hash(getName()),
                     "Message", ex.getMessage());
+        } finally {
+            watch.close();
+            deployment.finish(result, error);
+            logRateLimitWait(listener.getLogger(), watch.getRateLimitWaitMillis(), watch.getRateLimitRetries());
+            ListingCache.getInstance().invalidate(ListingCache.scaleSetsKey(
+                    getAzureCredentialsId(), azure.subscriptionId(), getResourceGroup()));
+            ImageMetadataCache.getInstance().invalidate(ImageMetadataCache.key(
+                    getAzureCredentialsId(), azure.subscriptionId(), getResourceGroup(), getName()));
+            OperationMetrics.getInstance().recordScaleSetOperation(getResourceGroup(), getName(),
+                    Constants.AI_UPDATE, System.currentTimeMillis() - start);
         }
     }
 
-    private String printImageReference(final ImageReferenceInner image) {
-        return Messages.UpdateBuilder_PrintImageReference(
-                image.id(),
-                image.publisher(),
-                image.offer(),
-                image.sku(),
-                image.version());
+    /**
+     * @return the outcome recorded in the deployment timeline for the outcome of the image update
+     */
+    private static String timelineOutcome(final ImageUpdater.Outcome outcome) {
+        switch (outcome) {
+            case UPDATED:
+                return DeploymentTimelineAction.OUTCOME_SUCCEEDED;
+            case UNCHANGED:
+                return DeploymentTimelineAction.OUTCOME_UNCHANGED;
+            case SUPERSEDED:
+                return DeploymentTimelineAction.OUTCOME_SUPERSEDED;
+            default:
+                return DeploymentTimelineAction.OUTCOME_FAILED;
+        }
     }
 
     @Extension
@@ -137,22 +181,90 @@ public class UpdateBuilder extends BaseBuilder {
             return listVMSSItems(owner, azureCredentialsId, resourceGroup);
         }
 
+        public PrefixMatches doLookupResourceGroup(@AncestorInPath Item owner,
+                                                   @QueryParameter String azureCredentialsId,
+                                                   @QueryParameter String value) {
+            return lookupResourceGroups(owner, azureCredentialsId, value);
+        }
+
+        public PrefixMatches doLookupName(@AncestorInPath Item owner,
+                                          @QueryParameter String azureCredentialsId,
+                                          @QueryParameter String resourceGroup,
+                                          @QueryParameter String value) {
+            return lookupVMSS(owner, azureCredentialsId, resourceGroup, value);
+        }
+
         public String doIsCustomImage(@AncestorInPath Item owner,
                                       @QueryParameter String azureCredentialsId,
                                       @QueryParameter String resourceGroup,
                                       @QueryParameter String name) {
-            if (StringUtils.isNotBlank(azureCredentialsId)
-                    && StringUtils.isNotBlank(resourceGroup)
-                    && StringUtils.isNotBlank(name)) {
-                final Azure azure = AzureUtils.buildClient(owner, azureCredentialsId);
-                final VirtualMachineScaleSet vmss = azure.virtualMachineScaleSets()
-                        .getByResourceGroup(resourceGroup, name);
-                if (vmss == null) {
-                    return "false";
+            return String.valueOf(imageMetadata(owner, azureCredentialsId, resourceGroup, name).isCustomImage());
+        }
+
+        /**
+         * Returns the image metadata of the scale sets of all the builders on a configuration page in one response.
+         * {@code builders} is a JSON array of objects with the {@code azureCredentialsId}, {@code resourceGroup} and
+         * {@code name} of each builder, and the response is a JSON array of the metadata in the same order.
+         */
+        @RequirePOST
+        public void doImageMetadata(@AncestorInPath Item owner,
+                                    @QueryParameter String builders,
+                                    StaplerResponse rsp) throws IOException {
+            if (owner != null) {
+                owner.checkPermission(Item.CONFIGURE);
+            } else {
+                Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+            }
+
+            final JSONArray requested;
+            try {
+                requested = StringUtils.isBlank(builders) ? new JSONArray() : JSONArray.fromObject(builders);
+            } catch (JSONException ex) {
+                rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+                return;
+            }
+
+            final JSONArray result = new JSONArray();
+            for (int i = 0; i < requested.size(); i++) {
+                try {
+                    final JSONObject builder = requested.getJSONObject(i);
+                    result.add(imageMetadata(owner, builder.optString("azureCredentialsId"),
+                            builder.optString("resourceGroup"), builder.optString("name")).toJson());
+                } catch (Exception ex) {
+                    final JSONObject error = new JSONObject();
+                    error.put("error", ex.getMessage());
+                    result.add(error);
                 }
-                return String.valueOf(StringUtils.isNotBlank(vmss.storageProfile().imageReference().id()));
             }
-            return "false";
+            rsp.setContentType("application/json;charset=UTF-8");
+            rsp.getWriter().print(result.toString());
+        }
+
+        private static ImageMetadataCache.Metadata imageMetadata(final Item owner,
+                                                                 final String azureCredentialsId,
+                                                                 final String resourceGroup,
+                                                                 final String name) {
+            if (StringUtils.isBlank(azureCredentialsId)
+                    || StringUtils.isBlank(resourceGroup)
+                    || StringUtils.isBlank(name)) {
+                return ImageMetadataCache.Metadata.notFound();
+            }
+            final Azure azure = AzureUtils.buildClient(owner, azureCredentialsId);
+            return ImageMetadataCache.getInstance().get(
+                    ImageMetadataCache.key(azureCredentialsId, azure.subscriptionId(), resourceGroup, name),
+                    new Callable<ImageMetadataCache.Metadata>() {
+                        @Override
+                        public ImageMetadataCache.Metadata call() throws InterruptedException {
+                            // shares the GET with the builds reading the same scale set
+                            final ScaleSetModel model = ScaleSetCoordinator.getInstance()
+                                    .read(azure, azureCredentialsId, resourceGroup, name);
+                            if (model == null) {
+                                return ImageMetadataCache.Metadata.notFound();
+                            }
+                            return ImageMetadataCache.Metadata.of(
+                                    model.inner().virtualMachineProfile().storageProfile().imageReference());
+                        }
+                    });
         }
     }
 
@@ -8,8 +8,16 @@ package com.microsoft.jenkins.vmss;
 
 import com.microsoft.azure.CloudException;
 import com.microsoft.azure.management.Azure;
+import com.microsoft.azure.management.compute.implementation.VirtualMachineScaleSetVMInner;
 import com.microsoft.jenkins.azurecommons.telemetry.AppInsightsUtils;
+import com.microsoft.jenkins.vmss.util.AsyncOperation;
+import com.microsoft.jenkins.vmss.util.AzureUtils;
 import com.microsoft.jenkins.vmss.util.Constants;
+import com.microsoft.jenkins.vmss.util.InstanceIdSet;
+import com.microsoft.jenkins.vmss.util.OperationMetrics;
+import com.microsoft.jenkins.vmss.util.PrefixMatches;
+import com.microsoft.jenkins.vmss.util.RequestTimeline;
+import com.microsoft.jenkins.vmss.util.ScaleSetInstances;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
@@ -18,19 +26,28 @@ import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.util.ListBoxModel;
+import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class UpdateInstancesBuilder extends BaseBuilder {
 
     private final String instanceIds;
+    private RollingUpdate rollingUpdate;
+    private OutdatedInstances outdatedInstances;
+    private HealthGate healthGate;
 
     @DataBoundConstructor
     public UpdateInstancesBuilder(
@@ -46,6 +63,33 @@ public class UpdateInstancesBuilder extends BaseBuilder {
         return instanceIds;
     }
 
+    public RollingUpdate getRollingUpdate() {
+        return rollingUpdate;
+    }
+
+    @DataBoundSetter
+    public void setRollingUpdate(final RollingUpdate rollingUpdate) {
+        this.rollingUpdate = rollingUpdate;
+    }
+
+    public OutdatedInstances getOutdatedInstances() {
+        return outdatedInstances;
+    }
+
+    @DataBoundSetter
+    public void setOutdatedInstances(final OutdatedInstances outdatedInstances) {
+        this.outdatedInstances = outdatedInstances;
+    }
+
+    public HealthGate getHealthGate() {
+        return healthGate;
+    }
+
+    @DataBoundSetter
+    public void setHealthGate(final HealthGate healthGate) {
+        this.healthGate = healthGate;
+    }
+
     @Override
     public void perform(@Nonnull final Run<?, ?> run,
                         @Nonnull final FilePath workspace,
@@ -54,13 +98,62 @@ public class UpdateInstancesBuilder extends BaseBuilder {
 
         listener.getLogger().println(Messages.UpdateInstancesBuilder_PerformLogStart());
 
-        final String resolvedInstanceIds = run.getEnvironment(listener).expand(instanceIds);
+        if (rollingUpdate != null && !rollingUpdate.isBatchSizeValid()) {
+            listener.getLogger().println(Messages.RollingUpdate_InvalidBatchSizeValue(rollingUpdate.getBatchSize()));
+            run.setResult(Result.FAILURE);
+            return;
+        }
 
-        listener.getLogger().println(Messages.UpdateInstancesBuilder_PerformLogInstanceIDs(
-                resolvedInstanceIds.toString()));
+        final String resolvedInstanceIds = run.getEnvironment(listener).expand(instanceIds);
+        final InstanceIdSet requestedIds;
+        try {
+            requestedIds = InstanceIdSet.parse(resolvedInstanceIds);
+        } catch (IllegalArgumentException ex) {
+            listener.getLogger().println(ex.getMessage());
+            run.setResult(Result.FAILURE);
+            return;
+        }
+        if (requestedIds.getDuplicateCount() > 0) {
+            listener.getLogger().println(Messages.UpdateInstancesBuilder_PerformLogDuplicates(
+                    requestedIds.getDuplicateCount()));
+        }
 
+        final DeploymentTimelineAction.Deployment deployment = DeploymentTimelineAction.of(run)
+                .start(Constants.AI_UPDATE_INSTANCES, getResourceGroup(), getName());
+        final long authStart = System.currentTimeMillis();
         final Azure azure = getAzureClient(run.getParent());
-        final List<String> instanceIdsList = parseInstanceIds(resolvedInstanceIds);
+        deployment.phase(DeploymentTimelineAction.PHASE_AUTHENTICATE, authStart,
+                System.currentTimeMillis() - authStart);
+        final RequestTimeline.Watch watch = deployment.watch(azure.subscriptionId());
+
+        final List<String> instanceIdsList;
+        try {
+            if (outdatedInstances == null) {
+                instanceIdsList = selectExistingInstances(azure, getResourceGroup(), getName(), requestedIds, listener);
+            } else {
+                instanceIdsList = selectOutdatedInstances(azure,
+                        StringUtils.isBlank(resolvedInstanceIds) ? null : requestedIds, listener);
+            }
+        } catch (CloudException | IOException ex) {
+            watch.close();
+            deployment.finish(DeploymentTimelineAction.OUTCOME_FAILED, ex.getMessage());
+            ex.printStackTrace(listener.getLogger());
+            run.setResult(Result.FAILURE);
+            return;
+        }
+        if (instanceIdsList.isEmpty()) {
+            watch.close();
+            if (outdatedInstances == null) {
+                deployment.finish(DeploymentTimelineAction.OUTCOME_FAILED,
+                        Messages.UpdateInstancesBuilder_PerformLogNoInstances());
+                listener.getLogger().println(Messages.UpdateInstancesBuilder_PerformLogNoInstances());
+                run.setResult(Result.FAILURE);
+            } else {
+                deployment.finish(DeploymentTimelineAction.OUTCOME_UNCHANGED, null);
+                listener.getLogger().println(Messages.UpdateInstancesBuilder_PerformLogNoOutdatedInstances());
+            }
+            return;
+        }
 
         AzureVMSSPlugin.sendEvent(Constants.AI_VMSS, Constants.AI_UPDATE_INSTANCES_START,
                 "Run", AppInsightsUtils.hash(run.getUrl()),
@@ -69,10 +162,46 @@ public class UpdateInstancesBuilder extends BaseBuilder {
                 "Name", AppInsightsUtils.hash(getName()),
                 "InstanceCount", String.valueOf(instanceIdsList.size()));
 
+        // wait for the other builds writing the same scale set, whose model changes would race with the upgrade
+        ScaleSetCoordinator.Permit permit = null;
+        long start = System.currentTimeMillis();
+        String result = DeploymentTimelineAction.OUTCOME_FAILED;
+        String error = null;
         try {
-            azure.virtualMachineScaleSets().inner().updateInstances(
-                    getResourceGroup(), getName(), instanceIdsList);
+            permit = ScaleSetCoordinator.getInstance().acquireWrite(
+                    ScaleSetCoordinator.key(azure.subscriptionId(), getResourceGroup(), getName()),
+                    false, listener.getLogger());
+            start = System.currentTimeMillis();
+            final RolloutState rollout = startRollout(run, instanceIdsList, listener);
+            resumeInFlight(azure, rollout, deployment, listener);
+            if (rollingUpdate == null) {
+                for (final int batch : rollout.getPendingBatches()) {
+                    updateBatch(azure, rollout, batch, deployment);
+                }
+                final List<String> unhealthy = checkHealth(azure, instanceIdsList, listener);
+                if (!unhealthy.isEmpty()) {
+                    error = Messages.UpdateInstancesBuilder_PerformLogUnhealthyInstances(unhealthy);
+                    listener.getLogger().println(error);
+                    run.setResult(Result.FAILURE);
+                    AzureVMSSPlugin.sendEvent(Constants.AI_VMSS, Constants.AI_UPDATE_INSTANCES_FAILED,
+                            "Run", AppInsightsUtils.hash(run.getUrl()),
+                            "Subscription", AppInsightsUtils.hash(azure.subscriptionId()),
+                            "ResourceGroup", AppInsightsUtils.hash(getResourceGroup()),
+                            "Name", AppInsightsUtils.hash(getName()),
+                            "Message", "Instances not healthy");
+                    return;
+                }
+            } else if (!performRollingUpdate(azure, rollout, deployment, watch, run, listener)) {
+                AzureVMSSPlugin.sendEvent(Constants.AI_VMSS, Constants.AI_UPDATE_INSTANCES_FAILED,
+                        "Run", AppInsightsUtils.hash(run.getUrl()),
+                        "Subscription", AppInsightsUtils.hash(azure.subscriptionId()),
+                        "ResourceGroup", AppInsightsUtils.hash(getResourceGroup()),
+                        "Name", AppInsightsUtils.hash(getName()),
+                        "Message", "Rolling update aborted");
+                return;
+            }
 
+            result = DeploymentTimelineAction.OUTCOME_SUCCEEDED;
             listener.getLogger().println(Messages.UpdateInstancesBuilder_PerformLogSuccess());
 
             AzureVMSSPlugin.sendEvent(Constants.AI_VMSS, Constants.AI_UPDATE_INSTANCES_SUCCESS,
@@ -81,7 +210,8 @@ public class UpdateInstancesBuilder extends BaseBuilder {
                     "ResourceGroup", AppInsightsUtils.hash(getResourceGroup()),
                     "Name", AppInsightsUtils.hash(getName()));
 
-        } catch (CloudException ex) {
+        } catch (CloudException | IOException ex) {
+            error = ex.getMessage();
             ex.printStackTrace(listener.getLogger());
             run.setResult(Result.FAILURE);
 
@@ -91,11 +221,263 @@ public class UpdateInstancesBuilder extends BaseBuilder {
                     "ResourceGroup", AppInsightsUtils.hash(getResourceGroup()),
                     "Name", AppInsightsUtils.hash(getName()),
                     "Message", ex.getMessage());
+        } finally {
+            if (permit != null) {
+                permit.close();
+            }
+            watch.close();
+            deployment.finish(result, error);
+            logRateLimitWait(listener.getLogger(), watch.getRateLimitWaitMillis(), watch.getRateLimitRetries());
+            OperationMetrics.getInstance().recordScaleSetOperation(getResourceGroup(), getName(),
+                    Constants.AI_UPDATE_INSTANCES, System.currentTimeMillis() - start);
         }
     }
 
+    /**
+     * Continues the unfinished rollout of the same instances left by a previous build, typically because the
+     * controller restarted, or plans a new one.
+     */
+    private RolloutState startRollout(final Run<?, ?> run,
+                                      final List<String> instanceIdsList,
+                                      final TaskListener listener) {
+        final RolloutState resumed = RolloutState.resumable(run, getResourceGroup(), getName(), instanceIdsList);
+        if (resumed != null) {
+            listener.getLogger().println(Messages.UpdateInstancesBuilder_PerformLogResume(
+                    resumed.getResumedFrom(), resumed.getCompletedCount(), resumed.getBatches().size()));
+            return resumed;
+        }
+        final List<List<String>> batches = rollingUpdate == null
+                ? Collections.singletonList(instanceIdsList)
+                : rollingUpdate.partition(instanceIdsList);
+        return RolloutState.create(run, getResourceGroup(), getName(), batches);
+    }
+
+    /**
+     * Waits for the operations a previous build started before it was interrupted. The batches whose operation
+     * failed are left to be updated again.
+     */
+    private void resumeInFlight(final Azure azure,
+                                final RolloutState rollout,
+                                final DeploymentTimelineAction.Deployment deployment,
+                                final TaskListener listener) throws IOException, InterruptedException {
+        for (final Map.Entry<Integer, AsyncOperation> entry : rollout.getInFlight().entrySet()) {
+            final List<String> batch = rollout.getBatches().get(entry.getKey());
+            listener.getLogger().println(Messages.UpdateInstancesBuilder_PerformLogResumePolling(
+                    batch, entry.getValue().getUrl()));
+            final DeploymentTimelineAction.Batch record = deployment.startBatch(batch);
+            final long start = System.currentTimeMillis();
+            final AsyncOperation.Status status = entry.getValue().await(AzureUtils.httpClient(azure));
+            if (status.isSucceeded()) {
+                record.finish(System.currentTimeMillis() - start, DeploymentTimelineAction.OUTCOME_SUCCEEDED, null);
+                rollout.completed(entry.getKey());
+            } else {
+                record.finish(System.currentTimeMillis() - start, DeploymentTimelineAction.OUTCOME_FAILED,
+                        status.getError());
+                listener.getLogger().println(Messages.UpdateInstancesBuilder_PerformLogResumeRetry(
+                        batch, status.getError()));
+                rollout.retry(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Upgrades the pending batches of the rollout according to {@link #rollingUpdate}, with surge instances serving
+     * during the rollout if configured.
+     *
+     * @return {@code false} if the rollout was stopped because too many instances failed
+     */
+    private boolean performRollingUpdate(final Azure azure,
+                                         final RolloutState rollout,
+                                         final DeploymentTimelineAction.Deployment deployment,
+                                         final RequestTimeline.Watch watch,
+                                         final Run<?, ?> run,
+                                         final TaskListener listener)
+            throws IOException, InterruptedException {
+        final List<List<String>> batches = new ArrayList<>();
+        final Map<List<String>, Integer> batchIndexes = new IdentityHashMap<>();
+        for (final int index : rollout.getPendingBatches()) {
+            final List<String> batch = rollout.getBatches().get(index);
+            batches.add(batch);
+            batchIndexes.put(batch, index);
+        }
+
+        final SurgeCapacity surge = new SurgeCapacity(azure, getResourceGroup(), getName());
+        final RollingUpdate.Summary summary;
+        try {
+            if (rollingUpdate.getSurgeCount() > 0 && rollout.getSurgeOriginalCapacity() == 0 && !batches.isEmpty()) {
+                final long capacity = surge.currentCapacity();
+                rollout.surge(capacity);
+                final List<String> unhealthy = surge.raise(capacity, rollingUpdate.getSurgeCount(), healthGate,
+                        listener.getLogger());
+                if (!unhealthy.isEmpty()) {
+                    listener.getLogger().println(Messages.UpdateInstancesBuilder_PerformLogSurgeUnhealthy(unhealthy));
+                    run.setResult(Result.FAILURE);
+                    return false;
+                }
+            }
+            final int concurrency = rollout.getSurgeOriginalCapacity() > 0 && !batches.isEmpty()
+                    ? rollingUpdate.surgeConcurrency(batches.get(0).size())
+                    : rollingUpdate.getMaxConcurrentBatches();
+
+            summary = rollingUpdate.executeBatches(batches, concurrency,
+                    new RollingUpdate.BatchOperation() {
+                        @Override
+                        public void apply(final List<String> batch) throws IOException, InterruptedException {
+                            // tells the requests of this build from those of the builds waiting to write the scale set
+                            watch.attach();
+                            try {
+                                updateBatch(azure, rollout, batchIndexes.get(batch), deployment);
+                                final List<String> unhealthy = checkHealth(azure, batch, listener);
+                                if (!unhealthy.isEmpty()) {
+                                    throw new IOException(
+                                            Messages.UpdateInstancesBuilder_PerformLogUnhealthyInstances(unhealthy));
+                                }
+                            } finally {
+                                watch.detach();
+                            }
+                        }
+                    }, listener.getLogger());
+        } finally {
+            // also when the build is aborted, so that the scale set is not left running the surge instances
+            if (rollout.getSurgeOriginalCapacity() > 0) {
+                restoreCapacity(surge, rollout, listener);
+            }
+        }
+
+        if (summary.isAborted()) {
+            listener.getLogger().println(Messages.UpdateInstancesBuilder_PerformLogFailedInstances(
+                    summary.getFailedInstanceIds()));
+            run.setResult(Result.FAILURE);
+            return false;
+        }
+        if (summary.getFailedCount() > 0) {
+            listener.getLogger().println(Messages.UpdateInstancesBuilder_PerformLogFailedInstances(
+                    summary.getFailedInstanceIds()));
+            run.setResult(Result.UNSTABLE);
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the updated instances to become healthy if {@link #healthGate} is set.
+     *
+     * @return the instances that did not become healthy
+     */
+    private List<String> checkHealth(final Azure azure,
+                                     final List<String> updatedIds,
+                                     final TaskListener listener) throws IOException, InterruptedException {
+        if (healthGate == null) {
+            return Collections.emptyList();
+        }
+        return healthGate.await(ScaleSetInstances.of(azure), getResourceGroup(), getName(), updatedIds,
+                listener.getLogger());
+    }
+
+    /**
+     * Returns the scale set to its capacity before the rollout, even if the build was interrupted. If it fails, the
+     * original capacity stays in the rollout state, so that the next build updating the same instances restores it.
+     */
+    private static void restoreCapacity(final SurgeCapacity surge,
+                                        final RolloutState rollout,
+                                        final TaskListener listener) {
+        // the SDK calls fail right away on an interrupted thread
+        boolean interrupted = Thread.interrupted();
+        try {
+            surge.restore(rollout.getSurgeOriginalCapacity(), listener.getLogger());
+            rollout.surge(0);
+        } catch (IOException | RuntimeException ex) {
+            ex.printStackTrace(listener.getLogger());
+        } catch (InterruptedException ex) {
+            ex.printStackTrace(listener.getLogger());
+            interrupted = true;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Upgrades the instances of a batch in a single call, recording its duration and outcome in the deployment
+     * timeline. The operation is saved with the rollout once Azure accepts it, so that it can be waited for after a
+     * restart.
+     */
+    private void updateBatch(final Azure azure,
+                             final RolloutState rollout,
+                             final int index,
+                             final DeploymentTimelineAction.Deployment deployment)
+            throws IOException, InterruptedException {
+        final List<String> batch = rollout.getBatches().get(index);
+        final DeploymentTimelineAction.Batch record = deployment.startBatch(batch);
+        final long start = System.currentTimeMillis();
+        try {
+            final AsyncOperation operation = AsyncOperation.fromHeaders(azure.virtualMachineScaleSets().inner()
+                    .beginUpdateInstancesWithServiceResponseAsync(getResourceGroup(), getName(), batch)
+                    .toBlocking().single().response().headers());
+            if (operation != null) {
+                rollout.started(index, operation);
+                final AsyncOperation.Status status = operation.await(AzureUtils.httpClient(azure));
+                if (!status.isSucceeded()) {
+                    throw new IOException(Messages.AzureOperationStepExecution_Failed(status.getError()));
+                }
+            }
+            rollout.completed(index);
+            record.finish(System.currentTimeMillis() - start, DeploymentTimelineAction.OUTCOME_SUCCEEDED, null);
+        } catch (IOException | RuntimeException ex) {
+            rollout.failed(index);
+            record.finish(System.currentTimeMillis() - start, DeploymentTimelineAction.OUTCOME_FAILED,
+                    ex.getMessage());
+            throw ex;
+        }
+    }
+
+    /**
+     * Keeps the requested instance IDs that exist in the scale set, so that a typo or an instance removed by a scale
+     * in does not fail the whole update call.
+     */
+    static List<String> selectExistingInstances(final Azure azure,
+                                                final String resourceGroup,
+                                                final String name,
+                                                final InstanceIdSet requestedIds,
+                                                final TaskListener listener) {
+        final BitSet existing = new BitSet();
+        for (VirtualMachineScaleSetVMInner vm : azure.virtualMachineScaleSets().manager().inner()
+                .virtualMachineScaleSetVMs().list(resourceGroup, name)) {
+            try {
+                existing.set(Integer.parseInt(vm.instanceId()));
+            } catch (NumberFormatException ex) {
+                // not a numeric ID, it cannot be referenced from an instance ID list anyway
+            }
+        }
+
+        final InstanceIdSet missing = requestedIds.missingFrom(existing);
+        if (!missing.isEmpty()) {
+            listener.getLogger().println(Messages.UpdateInstancesBuilder_PerformLogMissingInstances(missing));
+        }
+        final InstanceIdSet selected = requestedIds.retain(existing);
+        listener.getLogger().println(Messages.UpdateInstancesBuilder_PerformLogInstanceIDs(selected));
+        return selected.toList();
+    }
+
+    /**
+     * Keeps the instances that do not run the latest model and match the filters of {@link #outdatedInstances}.
+     *
+     * @param requestedIds the instances to choose from, {@code null} for all the instances of the scale set
+     */
+    private List<String> selectOutdatedInstances(final Azure azure,
+                                                 final InstanceIdSet requestedIds,
+                                                 final TaskListener listener)
+            throws IOException, InterruptedException {
+        final BitSet outdated = outdatedInstances.select(ScaleSetInstances.of(azure), getResourceGroup(), getName());
+        final InstanceIdSet selected = requestedIds == null
+                ? InstanceIdSet.of(outdated)
+                : requestedIds.retain(outdated);
+        listener.getLogger().println(Messages.UpdateInstancesBuilder_PerformLogOutdatedInstances(selected));
+        return selected.toList();
+    }
+
     static List<String> parseInstanceIds(final String instanceIdsText) {
-        return Arrays.asList(instanceIdsText.split(","));
+        return InstanceIdSet.parse(instanceIdsText).toList();
     }
 
     @Extension
@@ -121,5 +503,18 @@ public class UpdateInstancesBuilder extends BaseBuilder {
                                             @QueryParameter final String resourceGroup) {
             return listVMSSItems(owner, azureCredentialsId, resourceGroup);
         }
+
+        public PrefixMatches doLookupResourceGroup(@AncestorInPath Item owner,
+                                                   @QueryParameter String azureCredentialsId,
+                                                   @QueryParameter String value) {
+            return lookupResourceGroups(owner, azureCredentialsId, value);
+        }
+
+        public PrefixMatches doLookupName(@AncestorInPath Item owner,
+                                          @QueryParameter String azureCredentialsId,
+                                          @QueryParameter String resourceGroup,
+                                          @QueryParameter String value) {
+            return lookupVMSS(owner, azureCredentialsId, resourceGroup, value);
+        }
     }
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.google.common.collect.ImmutableSet;
+import com.microsoft.azure.management.Azure;
+import com.microsoft.azure.management.compute.implementation.OperationStatusResponseInner;
+import com.microsoft.jenkins.vmss.util.Constants;
+import com.microsoft.jenkins.vmss.util.InstanceIdSet;
+import com.microsoft.jenkins.vmss.util.PrefixMatches;
+import com.microsoft.rest.ServiceResponse;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import okhttp3.ResponseBody;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import retrofit2.Response;
+import rx.Observable;
+import rx.functions.Func1;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Pipeline counterpart of {@link UpdateInstancesBuilder} that does not block an executor thread while the instances
+ * are being updated.
+ */
+public class UpdateInstancesStep extends Step {
+
+    private final String azureCredentialsId;
+    private final String resourceGroup;
+    private final String name;
+    private final String instanceIds;
+
+    @DataBoundConstructor
+    public UpdateInstancesStep(
+            final String azureCredentialsId,
+            final String resourceGroup,
+            final String name,
+            final String instanceIds) {
+        this.azureCredentialsId = azureCredentialsId;
+        this.resourceGroup = resourceGroup;
+        this.name = name;
+        this.instanceIds = instanceIds;
+    }
+
+    public String getAzureCredentialsId() {
+        return azureCredentialsId;
+    }
+
+    public String getResourceGroup() {
+        return resourceGroup;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getInstanceIds() {
+        return instanceIds;
+    }
+
+    @Override
+    public StepExecution start(final StepContext context) {
+        return new Execution(context, this);
+    }
+
+    static final class Execution extends AzureOperationStepExecution {
+        private static final long serialVersionUID = 1L;
+
+        private final String instanceIds;
+
+        Execution(final StepContext context, final UpdateInstancesStep step) {
+            super(context, step.getAzureCredentialsId(), step.getResourceGroup(), step.getName());
+            this.instanceIds = step.getInstanceIds();
+        }
+
+        /**
+         * Updates the requested instances that exist in the scale set, like {@link UpdateInstancesBuilder} does.
+         *
+         * @throws AbortException if the instance IDs are malformed or empty. If none of them exists in the scale set,
+         * the returned observable fails with an {@link AbortException}.
+         */
+        @Override
+        protected Observable<Response<ResponseBody>> begin(final Azure azure,
+                                                           final EnvVars env,
+                                                           final TaskListener listener) throws AbortException {
+            listener.getLogger().println(Messages.UpdateInstancesBuilder_PerformLogStart());
+            final InstanceIdSet requestedIds;
+            try {
+                requestedIds = InstanceIdSet.parse(env.expand(instanceIds));
+            } catch (IllegalArgumentException ex) {
+                throw new AbortException(ex.getMessage());
+            }
+            if (requestedIds.isEmpty()) {
+                throw new AbortException(Messages.UpdateInstancesBuilder_PerformLogNoInstances());
+            }
+            if (requestedIds.getDuplicateCount() > 0) {
+                listener.getLogger().println(Messages.UpdateInstancesBuilder_PerformLogDuplicates(
+                        requestedIds.getDuplicateCount()));
+            }
+            // listing the instances and waiting for the other builds writing the scale set must not happen on the
+            // thread starting the step
+            return Observable.fromCallable(new Callable<List<String>>() {
+                @Override
+                public List<String> call() throws AbortException, InterruptedException {
+                    final List<String> ids = UpdateInstancesBuilder.selectExistingInstances(
+                            azure, getResourceGroup(), getName(), requestedIds, listener);
+                    if (ids.isEmpty()) {
+                        throw new AbortException(Messages.UpdateInstancesBuilder_PerformLogNoInstances());
+                    }
+                    sendEvent(Constants.AI_UPDATE_INSTANCES_START, "InstanceCount", String.valueOf(ids.size()));
+                    acquireWrite(azure, false, listener);
+                    return ids;
+                }
+            }).flatMap(new Func1<List<String>, Observable<ServiceResponse<OperationStatusResponseInner>>>() {
+                @Override
+                public Observable<ServiceResponse<OperationStatusResponseInner>> call(final List<String> ids) {
+                    return azure.virtualMachineScaleSets().inner()
+                            .beginUpdateInstancesWithServiceResponseAsync(getResourceGroup(), getName(), ids);
+                }
+            }).map(new Func1<ServiceResponse<OperationStatusResponseInner>, Response<ResponseBody>>() {
+                @Override
+                public Response<ResponseBody> call(final ServiceResponse<OperationStatusResponseInner> rsp) {
+                    return rsp.response();
+                }
+            });
+        }
+
+        @Override
+        protected void onSucceeded(final TaskListener listener) {
+            listener.getLogger().println(Messages.UpdateInstancesBuilder_PerformLogSuccess());
+            sendEvent(Constants.AI_UPDATE_INSTANCES_SUCCESS);
+        }
+
+        @Override
+        protected void onFailed(final Throwable cause) {
+            sendEvent(Constants.AI_UPDATE_INSTANCES_FAILED, "Message", cause.getMessage());
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return ImmutableSet.of(Run.class, TaskListener.class, EnvVars.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "azureVMSSUpdateInstancesAsync";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.UpdateInstancesStep_DisplayName();
+        }
+
+        private static UpdateInstancesBuilder.DescriptorImpl builderDescriptor() {
+            return Jenkins.getActiveInstance().getDescriptorByType(UpdateInstancesBuilder.DescriptorImpl.class);
+        }
+
+        public ListBoxModel doFillAzureCredentialsIdItems(@AncestorInPath Item owner) {
+            return builderDescriptor().doFillAzureCredentialsIdItems(owner);
+        }
+
+        public ListBoxModel doFillResourceGroupItems(@AncestorInPath Item owner,
+                                                     @QueryParameter String azureCredentialsId) {
+            return builderDescriptor().doFillResourceGroupItems(owner, azureCredentialsId);
+        }
+
+        public ListBoxModel doFillNameItems(@AncestorInPath Item owner,
+                                            @QueryParameter String azureCredentialsId,
+                                            @QueryParameter String resourceGroup) {
+            return builderDescriptor().doFillNameItems(owner, azureCredentialsId, resourceGroup);
+        }
+
+        public boolean isTypeAhead() {
+            return builderDescriptor().isTypeAhead();
+        }
+
+        public PrefixMatches doLookupResourceGroup(@AncestorInPath Item owner,
+                                                   @QueryParameter String azureCredentialsId,
+                                                   @QueryParameter String value) {
+            return builderDescriptor().doLookupResourceGroup(owner, azureCredentialsId, value);
+        }
+
+        public PrefixMatches doLookupName(@AncestorInPath Item owner,
+                                          @QueryParameter String azureCredentialsId,
+                                          @QueryParameter String resourceGroup,
+                                          @QueryParameter String value) {
+            return builderDescriptor().doLookupName(owner, azureCredentialsId, resourceGroup, value);
+        }
+    }
+}
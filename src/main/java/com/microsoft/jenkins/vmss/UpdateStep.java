@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.google.common.collect.ImmutableSet;
+import com.microsoft.azure.management.Azure;
+import com.microsoft.azure.management.compute.implementation.ImageReferenceInner;
+import com.microsoft.jenkins.vmss.util.Constants;
+import com.microsoft.jenkins.vmss.util.ImageMetadataCache;
+import com.microsoft.jenkins.vmss.util.PrefixMatches;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import okhttp3.ResponseBody;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import retrofit2.Response;
+import rx.Observable;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Pipeline counterpart of {@link UpdateBuilder} that does not block an executor thread while the scale set model is
+ * being updated.
+ */
+public class UpdateStep extends Step {
+
+    private final String azureCredentialsId;
+    private final String resourceGroup;
+    private final String name;
+    private final ImageReference imageReference;
+
+    @DataBoundConstructor
+    public UpdateStep(
+            final String azureCredentialsId,
+            final String resourceGroup,
+            final String name,
+            final ImageReference imageReference) {
+        this.azureCredentialsId = azureCredentialsId;
+        this.resourceGroup = resourceGroup;
+        this.name = name;
+        this.imageReference = imageReference;
+    }
+
+    public String getAzureCredentialsId() {
+        return azureCredentialsId;
+    }
+
+    public String getResourceGroup() {
+        return resourceGroup;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ImageReference getImageReference() {
+        return imageReference;
+    }
+
+    @Override
+    public StepExecution start(final StepContext context) {
+        return new Execution(context, this);
+    }
+
+    static final class Execution extends AzureOperationStepExecution {
+        private static final long serialVersionUID = 1L;
+
+        // only needed to start the operation, which is never repeated after a restart
+        private final transient ImageReference imageReference;
+
+        Execution(final StepContext context, final UpdateStep step) {
+            super(context, step.getAzureCredentialsId(), step.getResourceGroup(), step.getName());
+            this.imageReference = step.getImageReference();
+        }
+
+        @Override
+        protected Observable<Response<ResponseBody>> begin(final Azure azure,
+                                                           final EnvVars env,
+                                                           final TaskListener listener) {
+            listener.getLogger().println(Messages.UpdateBuilder_PerformLogStart());
+            sendEvent(Constants.AI_UPDATE_START);
+            // waiting for the other builds and listing the gallery must not happen on the thread starting the step
+            return Observable.merge(Observable.fromCallable(new Callable<Observable<Response<ResponseBody>>>() {
+                @Override
+                public Observable<Response<ResponseBody>> call() throws IOException, InterruptedException {
+                    return prepare(azure, env, listener);
+                }
+            }));
+        }
+
+        /**
+         * Resolves the new image and waits for the earlier writes of the scale set like {@link ImageUpdater} does.
+         *
+         * @return the update of the scale set, conditional on the model read, or an empty observable if the scale set
+         * already uses the image
+         */
+        private Observable<Response<ResponseBody>> prepare(final Azure azure,
+                                                           final EnvVars env,
+                                                           final TaskListener listener)
+                throws IOException, InterruptedException {
+            String galleryImageId = null;
+            if (imageReference.isGalleryImage()) {
+                galleryImageId = ImageUpdater.resolveGalleryImage(azure, getAzureCredentialsId(), imageReference, env,
+                        listener.getLogger());
+                if (galleryImageId == null) {
+                    throw new AbortException(Messages.UpdateStep_GalleryImageNotFound(getName()));
+                }
+            }
+
+            acquireWrite(azure, true, listener);
+            final ScaleSetModel model = ScaleSetCoordinator.getInstance()
+                    .read(azure, getAzureCredentialsId(), getResourceGroup(), getName());
+            if (model == null) {
+                throw new AbortException(Messages.UpdateBuilder_VMSSNotFound(getName()));
+            }
+            final ImageReferenceInner currentImageRef =
+                    model.inner().virtualMachineProfile().storageProfile().imageReference();
+            listener.getLogger().println(Messages.UpdateBuilder_PerformLogCurrentImageReference(
+                    ImageUpdater.printImageReference(currentImageRef)));
+            final ImageReferenceInner newImageRef;
+            if (galleryImageId == null) {
+                newImageRef = imageReference.apply(ImageUpdater.copyOf(currentImageRef), env);
+            } else {
+                newImageRef = new ImageReferenceInner();
+                newImageRef.withId(galleryImageId);
+            }
+            if (imageReference.isPinLatestVersion()) {
+                ImageUpdater.pinLatestVersion(azure, getAzureCredentialsId(),
+                        ResolvedImageVersionsAction.of(getContext().get(Run.class)), model.inner().location(),
+                        newImageRef, listener.getLogger());
+            }
+            listener.getLogger().println(Messages.UpdateBuilder_PerformLogNewImageReference(
+                    ImageUpdater.printImageReference(newImageRef)));
+
+            if (ImageUpdater.isSameImage(currentImageRef, newImageRef)) {
+                listener.getLogger().println(Messages.UpdateBuilder_PerformLogUnchanged());
+                return Observable.empty();
+            }
+            if (ImageUpdater.changesImageKind(currentImageRef, newImageRef)) {
+                return model.beginReplaceImage(azure, newImageRef);
+            }
+            return model.beginUpdate(azure, ImageUpdater.imageUpdate(newImageRef));
+        }
+
+        @Override
+        protected void onSucceeded(final TaskListener listener) {
+            invalidateImageMetadata();
+            listener.getLogger().println(Messages.UpdateBuilder_PerformLogSuccess());
+            sendEvent(Constants.AI_UPDATE_SUCCESS);
+        }
+
+        @Override
+        protected void onFailed(final Throwable cause) {
+            // a failed operation may still have changed the image
+            invalidateImageMetadata();
+            sendEvent(Constants.AI_UPDATE_FAILED, "Message", cause.getMessage());
+        }
+
+        private void invalidateImageMetadata() {
+            ImageMetadataCache.getInstance().invalidate(ImageMetadataCache.key(
+                    getAzureCredentialsId(), getSubscriptionId(), getResourceGroup(), getName()));
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return ImmutableSet.of(Run.class, TaskListener.class, EnvVars.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "azureVMSSUpdateAsync";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.UpdateStep_DisplayName();
+        }
+
+        private static UpdateBuilder.DescriptorImpl builderDescriptor() {
+            return Jenkins.getActiveInstance().getDescriptorByType(UpdateBuilder.DescriptorImpl.class);
+        }
+
+        public ListBoxModel doFillAzureCredentialsIdItems(@AncestorInPath Item owner) {
+            return builderDescriptor().doFillAzureCredentialsIdItems(owner);
+        }
+
+        public ListBoxModel doFillResourceGroupItems(@AncestorInPath Item owner,
+                                                     @QueryParameter String azureCredentialsId) {
+            return builderDescriptor().doFillResourceGroupItems(owner, azureCredentialsId);
+        }
+
+        public ListBoxModel doFillNameItems(@AncestorInPath Item owner,
+                                            @QueryParameter String azureCredentialsId,
+                                            @QueryParameter String resourceGroup) {
+            return builderDescriptor().doFillNameItems(owner, azureCredentialsId, resourceGroup);
+        }
+
+        public boolean isTypeAhead() {
+            return builderDescriptor().isTypeAhead();
+        }
+
+        public PrefixMatches doLookupResourceGroup(@AncestorInPath Item owner,
+                                                   @QueryParameter String azureCredentialsId,
+                                                   @QueryParameter String value) {
+            return builderDescriptor().doLookupResourceGroup(owner, azureCredentialsId, value);
+        }
+
+        public PrefixMatches doLookupName(@AncestorInPath Item owner,
+                                          @QueryParameter String azureCredentialsId,
+                                          @QueryParameter String resourceGroup,
+                                          @QueryParameter String value) {
+            return builderDescriptor().doLookupName(owner, azureCredentialsId, resourceGroup, value);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+package com.microsoft.jenkins.vmss.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.RateLimiter;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Paces Azure Resource Manager requests per subscription, shared by all the clients and builds of this Jenkins
+ * instance.
+ * <p>
+ * Reads and writes go through separate token buckets. Their rate drops when the
+ * {@code x-ms-ratelimit-remaining-subscription-reads/writes} headers show that the subscription quota is running
+ * low, and recovers once it has been replenished. A throttled (429) response blocks the whole subscription for the
+ * {@code Retry-After} period, or an exponential backoff if the header is absent, plus some jitter, and the request
+ * is retried.
+ * <p>
+ * The SDK sends the polls of long running operations on its own threads, so the time spent waiting is reported to
+ * the {@link RequestTimeline} watch of each request, from which the builders report it in the build log.
+ */
+public final class ArmRateLimiter implements Interceptor {
+    private static final Logger LOGGER = Logger.getLogger(ArmRateLimiter.class.getName());
+
+    static final String HEADER_REMAINING_READS = "x-ms-ratelimit-remaining-subscription-reads";
+    static final String HEADER_REMAINING_WRITES = "x-ms-ratelimit-remaining-subscription-writes";
+    static final String HEADER_RETRY_AFTER = "Retry-After";
+
+    private static final int JITTER_DIVISOR = 4;
+    private static final double RATE_EPSILON = 0.01;
+    // longest uninterruptible wait for a permit, RateLimiter.acquire cannot be interrupted
+    private static final long ACQUIRE_SLICE_MILLIS = 100;
+
+    private static final ArmRateLimiter INSTANCE = new ArmRateLimiter(new Sleeper() {
+        @Override
+        public void sleep(final long millis) throws InterruptedException {
+            Thread.sleep(millis);
+        }
+    });
+
+    private final ConcurrentMap<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+    private final Sleeper sleeper;
+
+    public static ArmRateLimiter getInstance() {
+        return INSTANCE;
+    }
+
+    @VisibleForTesting
+    ArmRateLimiter(final Sleeper sleeper) {
+        this.sleeper = sleeper;
+    }
+
+    @Override
+    public Response intercept(final Chain chain) throws IOException {
+        final Request request = chain.request();
+        final String subscriptionId = subscriptionId(request);
+        if (subscriptionId == null) {
+            return chain.proceed(request);
+        }
+
+        final Subscription subscription = subscription(subscriptionId);
+        final boolean read = isRead(request.method());
+        int attempt = 0;
+        while (true) {
+            final long waitStart = System.nanoTime();
+            subscription.awaitUnblocked(sleeper);
+            acquire(read ? subscription.reads : subscription.writes, sleeper);
+            recordWait(subscription, request, System.nanoTime() - waitStart);
+
+            final Response response = chain.proceed(request);
+            subscription.adapt(response, read);
+            if (response.code() != OperationMetrics.HTTP_TOO_MANY_REQUESTS
+                    || attempt >= Constants.RATE_LIMIT_MAX_RETRIES) {
+                return response;
+            }
+
+            final long delayMillis = retryDelayMillis(response.header(HEADER_RETRY_AFTER), attempt);
+            LOGGER.log(Level.INFO, "Subscription {0} is throttled, retrying {1} {2} in {3} ms",
+                    new Object[]{subscriptionId, request.method(), request.url().encodedPath(), delayMillis});
+            response.close();
+            subscription.block(delayMillis);
+            subscription.throttled();
+            OperationMetrics.getInstance().recordRetry();
+            RequestTimeline.getInstance().rateLimited(request, 0, 1);
+            ++attempt;
+        }
+    }
+
+    /**
+     * @return the total milliseconds requests to the subscription have been held back, or 0 if it has not been seen
+     */
+    public long getWaitMillis(final String subscriptionId) {
+        final Subscription subscription = subscriptions.get(subscriptionId);
+        return subscription == null ? 0 : subscription.waitMillis.get();
+    }
+
+    public double getReadRate(final String subscriptionId) {
+        final Subscription subscription = subscriptions.get(subscriptionId);
+        return subscription == null ? Constants.RATE_LIMIT_READS_PER_SECOND : subscription.reads.getRate();
+    }
+
+    public double getWriteRate(final String subscriptionId) {
+        final Subscription subscription = subscriptions.get(subscriptionId);
+        return subscription == null ? Constants.RATE_LIMIT_WRITES_PER_SECOND : subscription.writes.getRate();
+    }
+
+    private Subscription subscription(final String subscriptionId) {
+        Subscription subscription = subscriptions.get(subscriptionId);
+        if (subscription == null) {
+            final Subscription created = new Subscription();
+            subscription = subscriptions.putIfAbsent(subscriptionId, created);
+            if (subscription == null) {
+                subscription = created;
+            }
+        }
+        return subscription;
+    }
+
+    /**
+     * Takes a permit of the bucket, waiting in short slices so that an interrupted request gives its thread back
+     * instead of waiting for the permit.
+     */
+    private static void acquire(final RateLimiter limiter, final Sleeper sleeper) throws InterruptedIOException {
+        try {
+            while (true) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (limiter.tryAcquire(ACQUIRE_SLICE_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+                // tryAcquire does not wait when the permit is further away than the timeout
+                sleeper.sleep(ACQUIRE_SLICE_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the ARM request rate limit");
+        }
+    }
+
+    private static void recordWait(final Subscription subscription, final Request request, final long nanos) {
+        final long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        if (millis > 0) {
+            subscription.waitMillis.addAndGet(millis);
+            RequestTimeline.getInstance().rateLimited(request, millis, 0);
+        }
+    }
+
+    static String subscriptionId(final Request request) {
+        final List<String> segments = request.url().pathSegments();
+        for (int i = 0; i < segments.size() - 1; ++i) {
+            if ("subscriptions".equalsIgnoreCase(segments.get(i))) {
+                final String id = segments.get(i + 1);
+                return id.isEmpty() ? null : id.toLowerCase();
+            }
+        }
+        return null;
+    }
+
+    static boolean isRead(final String method) {
+        return "GET".equals(method) || "HEAD".equals(method);
+    }
+
+    static long retryDelayMillis(final String retryAfter, final int attempt) {
+        long base = -1;
+        if (retryAfter != null) {
+            try {
+                base = TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+            } catch (NumberFormatException e) {
+                // HTTP-date form is not used by ARM, fall back to exponential backoff
+            }
+        }
+        if (base < 0) {
+            final long seconds = Math.min(Constants.RATE_LIMIT_BACKOFF_MAX_SECONDS,
+                    (long) Constants.RATE_LIMIT_BACKOFF_BASE_SECONDS << Math.min(attempt, Integer.SIZE - 2));
+            base = TimeUnit.SECONDS.toMillis(seconds);
+        }
+        return base + ThreadLocalRandom.current().nextLong(base / JITTER_DIVISOR + 1);
+    }
+
+    static double adaptedRate(final double nominal, final long lowWatermark, final long remaining) {
+        if (remaining >= lowWatermark) {
+            return nominal;
+        }
+        return Math.max(Constants.RATE_LIMIT_MIN_PER_SECOND, nominal * remaining / lowWatermark);
+    }
+
+    @VisibleForTesting
+    interface Sleeper {
+        void sleep(long millis) throws InterruptedException;
+    }
+
+    private static final class Subscription {
+        private final RateLimiter reads = RateLimiter.create(Constants.RATE_LIMIT_READS_PER_SECOND);
+        private final RateLimiter writes = RateLimiter.create(Constants.RATE_LIMIT_WRITES_PER_SECOND);
+        private final AtomicLong blockedUntilNanos = new AtomicLong(System.nanoTime());
+        private final AtomicLong waitMillis = new AtomicLong();
+
+        void block(final long millis) {
+            final long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+            long current = blockedUntilNanos.get();
+            while (until - current > 0 && !blockedUntilNanos.compareAndSet(current, until)) {
+                current = blockedUntilNanos.get();
+            }
+        }
+
+        void awaitUnblocked(final Sleeper sleeper) throws InterruptedIOException {
+            long remaining = blockedUntilNanos.get() - System.nanoTime();
+            while (remaining > 0) {
+                try {
+                    sleeper.sleep(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for ARM throttling to clear");
+                }
+                remaining = blockedUntilNanos.get() - System.nanoTime();
+            }
+        }
+
+        /**
+         * Halve both rates after a throttled response; the remaining-quota headers of later responses restore them.
+         */
+        void throttled() {
+            setRate(reads, Math.max(Constants.RATE_LIMIT_MIN_PER_SECOND, reads.getRate() / 2));
+            setRate(writes, Math.max(Constants.RATE_LIMIT_MIN_PER_SECOND, writes.getRate() / 2));
+        }
+
+        void adapt(final Response response, final boolean read) {
+            final String header = response.header(read ? HEADER_REMAINING_READS : HEADER_REMAINING_WRITES);
+            if (header == null) {
+                return;
+            }
+            final long remaining;
+            try {
+                remaining = Long.parseLong(header.trim());
+            } catch (NumberFormatException e) {
+                return;
+            }
+            if (read) {
+                setRate(reads, adaptedRate(Constants.RATE_LIMIT_READS_PER_SECOND,
+                        Constants.RATE_LIMIT_LOW_WATERMARK_READS, remaining));
+            } else {
+                setRate(writes, adaptedRate(Constants.RATE_LIMIT_WRITES_PER_SECOND,
+                        Constants.RATE_LIMIT_LOW_WATERMARK_WRITES, remaining));
+            }
+        }
+
+        private static void setRate(final RateLimiter limiter, final double rate) {
+            if (Math.abs(limiter.getRate() - rate) > RATE_EPSILON) {
+                limiter.setRate(rate);
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+package com.microsoft.jenkins.vmss.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Headers;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.HttpURLConnection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle of an Azure Resource Manager long running operation that can be persisted and polled later, possibly from
+ * another thread or after a controller restart.
+ * <p>
+ * Operations that return an {@code Azure-AsyncOperation} header are polled through the status document of that URL.
+ * Otherwise the {@code Location} header is polled until it stops returning 202 Accepted. Only the {@code Succeeded},
+ * {@code Failed} and {@code Canceled} statuses are terminal; any other status, such as {@code InProgress},
+ * {@code Running} or {@code Updating}, means the operation is still running.
+ */
+public final class AsyncOperation implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    public static final String HEADER_ASYNC_OPERATION = "Azure-AsyncOperation";
+    public static final String HEADER_LOCATION = "Location";
+    public static final String HEADER_RETRY_AFTER = "Retry-After";
+
+    private static final String STATUS_IN_PROGRESS = "InProgress";
+    private static final String STATUS_SUCCEEDED = "Succeeded";
+    private static final String STATUS_FAILED = "Failed";
+    private static final String STATUS_CANCELED = "Canceled";
+
+    // more digits may not fit in an int, and are well above the maximum interval anyway
+    private static final int MAX_RETRY_AFTER_DIGITS = 9;
+
+    private final String url;
+    private final boolean asyncOperationHeader;
+
+    private AsyncOperation(final String url, final boolean asyncOperationHeader) {
+        this.url = url;
+        this.asyncOperationHeader = asyncOperationHeader;
+    }
+
+    /**
+     * Returns the operation started by a request with the given response headers, or {@code null} if the request
+     * completed synchronously.
+     */
+    public static AsyncOperation fromHeaders(final Headers headers) {
+        final String asyncOperation = headers.get(HEADER_ASYNC_OPERATION);
+        if (StringUtils.isNotBlank(asyncOperation)) {
+            return new AsyncOperation(asyncOperation, true);
+        }
+        final String location = headers.get(HEADER_LOCATION);
+        if (StringUtils.isNotBlank(location)) {
+            return new AsyncOperation(location, false);
+        }
+        return null;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Status poll(final OkHttpClient httpClient) throws IOException {
+        try (Response response = httpClient.newCall(request()).execute()) {
+            return statusOf(response);
+        }
+    }
+
+    /**
+     * Receives the outcome of {@link #pollAsync}, on a thread of the HTTP client.
+     */
+    public interface PollCallback {
+        void onStatus(Status status);
+
+        void onError(IOException ex);
+    }
+
+    /**
+     * Polls the operation without blocking the calling thread. The request, including the waits of the plugin
+     * interceptors, runs on the dispatcher threads of {@code httpClient}.
+     *
+     * @return the call, which can be cancelled
+     */
+    public Call pollAsync(final OkHttpClient httpClient, final PollCallback callback) {
+        final Call call = httpClient.newCall(request());
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(final Call c, final IOException ex) {
+                callback.onError(ex);
+            }
+
+            @Override
+            public void onResponse(final Call c, final Response response) {
+                final Status status;
+                try (Response r = response) {
+                    status = statusOf(r);
+                } catch (IOException ex) {
+                    callback.onError(ex);
+                    return;
+                }
+                callback.onStatus(status);
+            }
+        });
+        return call;
+    }
+
+    private Request request() {
+        return new Request.Builder().url(url).get().build();
+    }
+
+    private Status statusOf(final Response response) throws IOException {
+        final int retryAfter = parseRetryAfter(response.header(HEADER_RETRY_AFTER));
+        if (!asyncOperationHeader) {
+            if (response.code() == HttpURLConnection.HTTP_ACCEPTED) {
+                return Status.inProgress(retryAfter);
+            }
+            if (response.isSuccessful()) {
+                return Status.succeeded();
+            }
+            return Status.failed(response.code() + " " + response.message());
+        }
+
+        if (!response.isSuccessful()) {
+            throw new IOException(String.format("Failed to poll %s: %d %s",
+                    url, response.code(), response.message()));
+        }
+        final ResponseBody body = response.body();
+        final JsonNode status = MAPPER.readTree(body == null ? "{}" : body.string());
+        final String state = status.path("status").asText(STATUS_IN_PROGRESS);
+        if (STATUS_SUCCEEDED.equalsIgnoreCase(state)) {
+            return Status.succeeded();
+        }
+        if (STATUS_FAILED.equalsIgnoreCase(state) || STATUS_CANCELED.equalsIgnoreCase(state)) {
+            return Status.failed(state + ": " + status.path("error").path("message").asText(""));
+        }
+        return Status.inProgress(retryAfter);
+    }
+
+    /**
+     * Polls the operation until it finishes, blocking the current thread. Up to
+     * {@link Constants#LRO_MAX_POLL_ERRORS} consecutive poll failures are retried.
+     */
+    public Status await(final OkHttpClient httpClient) throws IOException, InterruptedException {
+        int pollErrors = 0;
+        while (true) {
+            final Status status;
+            try {
+                status = poll(httpClient);
+            } catch (IOException ex) {
+                if (++pollErrors >= Constants.LRO_MAX_POLL_ERRORS) {
+                    throw ex;
+                }
+                TimeUnit.SECONDS.sleep(Constants.LRO_DEFAULT_POLL_INTERVAL_SECONDS);
+                continue;
+            }
+            pollErrors = 0;
+            if (status.isDone()) {
+                return status;
+            }
+            TimeUnit.SECONDS.sleep(status.getRetryAfterSeconds());
+        }
+    }
+
+    static int parseRetryAfter(final String header) {
+        if (StringUtils.isEmpty(header) || !StringUtils.isNumeric(header)) {
+            return Constants.LRO_DEFAULT_POLL_INTERVAL_SECONDS;
+        }
+        final String digits = StringUtils.stripStart(header, "0");
+        if (digits.length() > MAX_RETRY_AFTER_DIGITS) {
+            return Constants.LRO_MAX_POLL_INTERVAL_SECONDS;
+        }
+        final int seconds = digits.isEmpty() ? 0 : Integer.parseInt(digits);
+        return Math.min(Math.max(seconds, Constants.LRO_MIN_POLL_INTERVAL_SECONDS),
+                Constants.LRO_MAX_POLL_INTERVAL_SECONDS);
+    }
+
+    /**
+     * Result of a single poll.
+     */
+    public static final class Status {
+        private final boolean done;
+        private final String error;
+        private final int retryAfterSeconds;
+
+        private Status(final boolean done, final String error, final int retryAfterSeconds) {
+            this.done = done;
+            this.error = error;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        static Status inProgress(final int retryAfterSeconds) {
+            return new Status(false, null, retryAfterSeconds);
+        }
+
+        static Status succeeded() {
+            return new Status(true, null, 0);
+        }
+
+        static Status failed(final String error) {
+            return new Status(true, error, 0);
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+
+        public boolean isSucceeded() {
+            return done && error == null;
+        }
+
+        /**
+         * @return the failure reason of a finished operation, {@code null} if it succeeded or is still running
+         */
+        public String getError() {
+            return error;
+        }
+
+        public int getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+package com.microsoft.jenkins.vmss.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.Hashing;
+import com.microsoft.azure.management.Azure;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controller-wide cache of {@link Azure} clients, keyed by the credentials ID and a fingerprint of the serialized
+ * credential data.
+ * <p>
+ * When the credential behind an ID is modified, its fingerprint changes, so the next lookup misses and builds a new
+ * client. The client of the previous revision is left to expire, since the same ID may still resolve to it: a
+ * credential ID can be defined in several folders with different data.
+ */
+public final class AzureClientCache {
+
+    private static final AzureClientCache INSTANCE = new AzureClientCache(
+            Constants.CLIENT_CACHE_MAX_SIZE, Constants.CLIENT_CACHE_EXPIRE_AFTER_ACCESS_MINUTES, TimeUnit.MINUTES);
+
+    private final Cache<Key, Azure> clients;
+
+    @VisibleForTesting
+    AzureClientCache(final long maximumSize, final long expireAfterAccess, final TimeUnit unit) {
+        this.clients = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(expireAfterAccess, unit)
+                .recordStats()
+                .build();
+    }
+
+    public static AzureClientCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the cached client for the given credential revision, building it with {@code loader} on a miss.
+     * Concurrent misses for the same key share a single load.
+     */
+    public Azure get(final String credentialsId, final String serializedTokenData, final Callable<Azure> loader) {
+        try {
+            return clients.get(new Key(credentialsId, fingerprint(serializedTokenData)), loader);
+        } catch (ExecutionException ex) {
+            Throwables.throwIfUnchecked(ex.getCause());
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    /**
+     * Drops the clients of every revision of the credential.
+     */
+    public void invalidate(final String credentialsId) {
+        final Iterator<Key> keys = clients.asMap().keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().credentialsId.equals(credentialsId)) {
+                keys.remove();
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        clients.invalidateAll();
+    }
+
+    public long size() {
+        return clients.size();
+    }
+
+    public CacheStats stats() {
+        return clients.stats();
+    }
+
+    static String fingerprint(final String serializedTokenData) {
+        return Hashing.sha256().hashString(serializedTokenData, StandardCharsets.UTF_8).toString();
+    }
+
+    private static final class Key {
+        private final String credentialsId;
+        private final String fingerprint;
+
+        Key(final String credentialsId, final String fingerprint) {
+            this.credentialsId = credentialsId;
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return credentialsId.equals(other.credentialsId) && fingerprint.equals(other.fingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(credentialsId, fingerprint);
+        }
+    }
+}
@@ -5,44 +5,198 @@
  */
 package com.microsoft.jenkins.vmss.util;
 
+import com.microsoft.azure.AzureEnvironment;
+import com.microsoft.azure.AzureResponseBuilder;
+import com.microsoft.azure.credentials.ApplicationTokenCredentials;
+import com.microsoft.azure.credentials.AzureTokenCredentials;
+import com.microsoft.azure.credentials.MSICredentials;
 import com.microsoft.azure.management.Azure;
 import com.microsoft.azure.util.AzureBaseCredentials;
+import com.microsoft.azure.serializer.AzureJacksonAdapter;
 import com.microsoft.azure.util.AzureCredentialUtil;
 import com.microsoft.jenkins.azurecommons.core.AzureClientFactory;
 import com.microsoft.jenkins.azurecommons.core.credentials.TokenCredentialData;
 import com.microsoft.jenkins.vmss.AzureVMSSPlugin;
+import com.microsoft.rest.RestClient;
+import hudson.ProxyConfiguration;
 import hudson.model.Item;
+import jenkins.model.Jenkins;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import org.apache.commons.lang.StringUtils;
+import retrofit2.Retrofit;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 public final class AzureUtils {
 
+    // names of the Azure environments in the token data, as stored by the Azure Credentials plugin
+    private static final String ENVIRONMENT_CHINA = "AzureChina";
+    private static final String ENVIRONMENT_US_GOVERNMENT = "AzureUSGovernment";
+    private static final String ENVIRONMENT_GERMANY = "AzureGermany";
+
     private AzureUtils() {
         // Hide
     }
 
     static TokenCredentialData getToken(Item owner, String credentialsId) {
+        return TokenCache.getInstance().credentialData(getCredential(owner, credentialsId).serializeToTokenData());
+    }
+
+    private static AzureBaseCredentials getCredential(Item owner, String credentialsId) {
         AzureBaseCredentials credential = AzureCredentialUtil.getCredential(owner, credentialsId);
         if (credential == null) {
             throw new IllegalStateException(
                     String.format("Can't find credential in scope %s with id: %s", owner, credentialsId));
         }
-        return TokenCredentialData.deserialize(credential.serializeToTokenData());
+        return credential;
     }
 
+    /**
+     * Returns a client for the given credentials, reusing the one cached in {@link AzureClientCache} as long as the
+     * credential is unchanged. The credential is still resolved against {@code owner} on every call, so the cache
+     * never grants access to a credential that is out of scope. The access tokens come from {@link TokenCache}, so
+     * they outlive the client and are refreshed before they expire.
+     */
     public static Azure buildClient(Item owner, String credentialsId) {
-        TokenCredentialData token = getToken(owner, credentialsId);
-        return buildClient(token);
-    }
-
-    public static Azure buildClient(TokenCredentialData token) {
-        return AzureClientFactory.getClient(token, new AzureClientFactory.Configurer() {
+        final String tokenData = getCredential(owner, credentialsId).serializeToTokenData();
+        return AzureClientCache.getInstance().get(credentialsId, tokenData, new Callable<Azure>() {
             @Override
-            public Azure.Configurable configure(Azure.Configurable configurable) {
-                return configurable
-                        .withLogLevel(Constants.DEFAULT_AZURE_SDK_LOGGING_LEVEL)
-                        .withInterceptor(new AzureVMSSPlugin.AzureTelemetryInterceptor())
-                        .withUserAgent(AzureClientFactory.getUserAgent(
-                                Constants.PLUGIN_NAME, AzureUtils.class.getPackage().getImplementationVersion()));
+            public Azure call() {
+                return buildSharedTokenClient(TokenCache.getInstance().credentialData(tokenData),
+                        AzureClientCache.fingerprint(tokenData));
             }
         });
     }
+
+    /**
+     * Builds a client like {@link #buildClient(TokenCredentialData)}, with {@link CachedTokenCredentials} so that
+     * all the clients of the credential revision share their tokens.
+     */
+    private static Azure buildSharedTokenClient(final TokenCredentialData token, final String fingerprint) {
+        final CachedTokenCredentials cached = new CachedTokenCredentials(credentials(token), fingerprint,
+                new Callable<AzureTokenCredentials>() {
+                    @Override
+                    public AzureTokenCredentials call() {
+                        return credentials(token);
+                    }
+                });
+        return authenticate(cached).withSubscription(token.getSubscriptionId());
+    }
+
+    public static Azure buildClient(TokenCredentialData token) {
+        return authenticate(credentials(token)).withSubscription(token.getSubscriptionId());
+    }
+
+    /**
+     * Creates the SDK credentials described by the token data, the way {@link AzureClientFactory} does for the
+     * clients it builds.
+     */
+    static AzureTokenCredentials credentials(final TokenCredentialData token) {
+        final AzureEnvironment environment = environment(token);
+        switch (token.getType()) {
+            case TokenCredentialData.TYPE_SP:
+                if (StringUtils.isBlank(token.getClientSecret()) && token.getCertificateBytes() != null) {
+                    return new ApplicationTokenCredentials(token.getClientId(), token.getTenant(),
+                            token.getCertificateBytes(), token.getCertificatePassword(), environment);
+                }
+                return new ApplicationTokenCredentials(token.getClientId(), token.getTenant(),
+                        token.getClientSecret(), environment);
+            case TokenCredentialData.TYPE_MSI:
+                return new MSICredentials(environment).withPort(token.getMsiPort());
+            default:
+                throw new UnsupportedOperationException("Unknown credential type: " + token.getType());
+        }
+    }
+
+    /**
+     * @return the named Azure environment, with the endpoints overridden in the token data
+     */
+    private static AzureEnvironment environment(final TokenCredentialData token) {
+        final AzureEnvironment base;
+        switch (StringUtils.defaultString(token.getAzureEnvironmentName())) {
+            case ENVIRONMENT_CHINA:
+                base = AzureEnvironment.AZURE_CHINA;
+                break;
+            case ENVIRONMENT_US_GOVERNMENT:
+                base = AzureEnvironment.AZURE_US_GOVERNMENT;
+                break;
+            case ENVIRONMENT_GERMANY:
+                base = AzureEnvironment.AZURE_GERMANY;
+                break;
+            default:
+                base = AzureEnvironment.AZURE;
+                break;
+        }
+        final Map<String, String> endpoints = new HashMap<>(base.endpoints());
+        overrideEndpoint(endpoints, AzureEnvironment.Endpoint.MANAGEMENT, token.getManagementEndpoint());
+        overrideEndpoint(endpoints, AzureEnvironment.Endpoint.ACTIVE_DIRECTORY, token.getActiveDirectoryEndpoint());
+        overrideEndpoint(endpoints, AzureEnvironment.Endpoint.RESOURCE_MANAGER, token.getResourceManagerEndpoint());
+        overrideEndpoint(endpoints, AzureEnvironment.Endpoint.GRAPH, token.getGraphEndpoint());
+        return new AzureEnvironment(endpoints);
+    }
+
+    private static void overrideEndpoint(final Map<String, String> endpoints,
+                                         final AzureEnvironment.Endpoint endpoint,
+                                         final String url) {
+        if (StringUtils.isNotBlank(url)) {
+            endpoints.put(endpoint.identifier(), url);
+        }
+    }
+
+    /**
+     * Builds a client with the plugin's usual configuration from explicit credentials. The Resource Manager endpoint
+     * is taken from {@link AzureTokenCredentials#environment()}, which allows pointing the plugin at a local stand-in
+     * for Azure Resource Manager in tests.
+     */
+    public static Azure buildClient(AzureTokenCredentials credentials, String subscriptionId) {
+        return authenticate(credentials).withSubscription(subscriptionId);
+    }
+
+    /**
+     * Authenticates a client whose HTTP client derives from the {@link SharedTransport}, so that it shares the
+     * connection pool and the dispatcher of all the other clients, with the plugin interceptors and the Jenkins proxy.
+     * Every client of the plugin is built here: {@code Azure.configure()} cannot take the shared connection pool and
+     * dispatcher, so the {@link RestClient} is built with the same settings it would use.
+     */
+    private static Azure.Authenticated authenticate(final AzureTokenCredentials credentials) {
+        final OkHttpClient.Builder httpClient = SharedTransport.getInstance().newClientBuilder();
+        final Jenkins jenkins = Jenkins.getInstance();
+        final ProxyConfiguration proxy = jenkins == null ? null : jenkins.proxy;
+        final HttpUrl endpoint = HttpUrl.parse(credentials.environment().resourceManagerEndpoint());
+        if (proxy != null && endpoint != null) {
+            httpClient.proxy(proxy.createProxy(endpoint.host()));
+        }
+        final RestClient restClient = new RestClient.Builder(httpClient, new Retrofit.Builder())
+                .withBaseUrl(credentials.environment(), AzureEnvironment.Endpoint.RESOURCE_MANAGER)
+                .withCredentials(credentials)
+                .withSerializerAdapter(new AzureJacksonAdapter())
+                .withResponseBuilderFactory(new AzureResponseBuilder.Factory())
+                .withLogLevel(Constants.DEFAULT_AZURE_SDK_LOGGING_LEVEL)
+                .withInterceptor(ScaleSetModelCache.getInstance())
+                .withInterceptor(ArmRateLimiter.getInstance())
+                .withInterceptor(new AzureVMSSPlugin.AzureTelemetryInterceptor())
+                .withInterceptor(RequestTimeline.getInstance())
+                .withUserAgent(AzureClientFactory.getUserAgent(
+                        Constants.PLUGIN_NAME, AzureUtils.class.getPackage().getImplementationVersion()))
+                .build();
+        return Azure.authenticate(restClient, credentials.domain());
+    }
+
+    /**
+     * Returns the HTTP client, including authentication and the plugin interceptors, that backs the given Azure
+     * client. Used for requests the SDK does not model, such as polling persisted long running operations.
+     */
+    public static OkHttpClient httpClient(Azure azure) {
+        return azure.virtualMachineScaleSets().manager().inner().restClient().httpClient();
+    }
+
+    /**
+     * Returns the Resource Manager endpoint the given Azure client talks to, for requests built by hand.
+     */
+    public static HttpUrl resourceManagerUrl(Azure azure) {
+        return azure.virtualMachineScaleSets().manager().inner().restClient().retrofit().baseUrl();
+    }
 }
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+package com.microsoft.jenkins.vmss.util;
+
+import com.microsoft.azure.credentials.AzureTokenCredentials;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+/**
+ * Credentials that take their access tokens from {@link TokenCache}.
+ * <p>
+ * The SDK credentials keep their token until it has expired, so a proactive refresh needs a fresh instance. Each
+ * fetch therefore asks {@code delegates} for new credentials, which happens about once per token lifetime.
+ */
+final class CachedTokenCredentials extends AzureTokenCredentials {
+    private final String key;
+    private final Callable<AzureTokenCredentials> delegates;
+
+    CachedTokenCredentials(final AzureTokenCredentials prototype,
+                           final String key,
+                           final Callable<AzureTokenCredentials> delegates) {
+        super(prototype.environment(), prototype.domain());
+        this.key = key;
+        this.delegates = delegates;
+    }
+
+    @Override
+    public String getToken(final String resource) throws IOException {
+        return TokenCache.getInstance().getToken(key + "|" + resource, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return delegates.call().getToken(resource);
+            }
+        });
+    }
+}
@@ -17,14 +17,94 @@ public final class Constants {
 
     public static final LogLevel DEFAULT_AZURE_SDK_LOGGING_LEVEL = LogLevel.NONE;
 
+    // bounds of the shared Azure client cache, see AzureClientCache
+    public static final int CLIENT_CACHE_MAX_SIZE = 64;
+    public static final int CLIENT_CACHE_EXPIRE_AFTER_ACCESS_MINUTES = 30;
+
+    // access tokens shared by the clients of a credential, see TokenCache
+    public static final int TOKEN_CACHE_MAX_SIZE = 256;
+    public static final int TOKEN_REFRESH_AHEAD_SECONDS = 300;
+    public static final int TOKEN_DEFAULT_LIFETIME_SECONDS = 300;
+
+    // defaults of the HTTP transport shared by all the Azure clients, see SharedTransport
+    public static final int TRANSPORT_MAX_IDLE_CONNECTIONS = 16;
+    public static final int TRANSPORT_KEEP_ALIVE_SECONDS = 300;
+    public static final int TRANSPORT_MAX_REQUESTS = 64;
+    public static final int TRANSPORT_MAX_REQUESTS_PER_HOST = 32;
+    public static final int TRANSPORT_CONNECT_TIMEOUT_SECONDS = 60;
+    public static final int TRANSPORT_READ_TIMEOUT_SECONDS = 120;
+
+    // bounds of the resource group / VMSS listing cache used by the configuration forms, see ListingCache
+    public static final int LISTING_CACHE_MAX_SIZE = 256;
+    public static final int LISTING_CACHE_REFRESH_SECONDS = 60;
+    public static final int LISTING_CACHE_EXPIRE_MINUTES = 30;
+
+    // default number of suggestions of the type-ahead resource group and scale set lookups, see PrefixMatches
+    public static final int LOOKUP_MAX_MATCHES = 50;
+
+    // image references of the scale sets shown in the configuration forms, see ImageMetadataCache
+    public static final int IMAGE_METADATA_CACHE_MAX_SIZE = 256;
+    public static final int IMAGE_METADATA_CACHE_TTL_SECONDS = 30;
+
+    // scale set models kept for conditional reads, see ScaleSetModelCache
+    public static final long MODEL_CACHE_MAX_BYTES = 16L * 1024 * 1024;
+    public static final int MODEL_CACHE_EXPIRE_MINUTES = 10;
+
+    // polling of long running operations when the service does not send a Retry-After header
+    public static final int LRO_DEFAULT_POLL_INTERVAL_SECONDS = 15;
+    // bounds of the honored Retry-After, so that 0 does not poll in a tight loop and a huge value does not stall
+    // the build
+    public static final int LRO_MIN_POLL_INTERVAL_SECONDS = 1;
+    public static final int LRO_MAX_POLL_INTERVAL_SECONDS = 600;
+    public static final int LRO_MAX_POLL_ERRORS = 5;
+
+    // telemetry events are queued and sent in batches by a background flusher, see TelemetryPipeline
+    public static final int TELEMETRY_QUEUE_CAPACITY = 1024;
+    public static final int TELEMETRY_BATCH_SIZE = 100;
+    public static final int TELEMETRY_FLUSH_INTERVAL_SECONDS = 5;
+
+    // upper bound of scale sets tracked individually by OperationMetrics
+    public static final int METRICS_MAX_SCALE_SETS = 1000;
+
+    // per-subscription ARM request pacing, see ArmRateLimiter
+    public static final double RATE_LIMIT_READS_PER_SECOND = 20;
+    public static final double RATE_LIMIT_WRITES_PER_SECOND = 4;
+    public static final double RATE_LIMIT_MIN_PER_SECOND = 0.2;
+    public static final long RATE_LIMIT_LOW_WATERMARK_READS = 1000;
+    public static final long RATE_LIMIT_LOW_WATERMARK_WRITES = 100;
+    public static final int RATE_LIMIT_MAX_RETRIES = 4;
+    public static final int RATE_LIMIT_BACKOFF_BASE_SECONDS = 2;
+    public static final int RATE_LIMIT_BACKOFF_MAX_SECONDS = 60;
+
+    // API version of the Microsoft.Compute requests the plugin sends without the SDK, same as the SDK in use
+    public static final String COMPUTE_API_VERSION = "2017-12-01";
+
+    // API version of the instance view listings, the first one reporting the application health of the instances
+    public static final String INSTANCE_VIEW_API_VERSION = "2018-10-01";
+
+    // API version of the Shared Image Gallery requests, galleries are not supported by the SDK in use
+    public static final String GALLERY_API_VERSION = "2019-03-01";
+    public static final int GALLERY_INDEX_REFRESH_SECONDS = 60;
+
+    // upper bound of the instance IDs accepted in an instance ID list, keeps the backing BitSet of InstanceIdSet small
+    public static final int INSTANCE_ID_MAX = 10_000_000;
+
+    // marketplace image version that stands for the newest version of the image
+    public static final String LATEST_VERSION = "latest";
+
     // the first option for select element. Keep the same value as jenkins pre-defined default empty value.
     public static final String EMPTY_SELECTION = "- none -";
 
     public static final String AI_VMSS = "VMSS";
+    public static final String AI_UPDATE = "Update";
+    public static final String AI_UPDATE_INSTANCES = "UpdateInstances";
     public static final String AI_UPDATE_START = "UpdateStart";
     public static final String AI_UPDATE_SUCCESS = "UpdateSuccess";
     public static final String AI_UPDATE_FAILED = "UpdateFailed";
     public static final String AI_UPDATE_INSTANCES_START = "UpdateInstancesStart";
     public static final String AI_UPDATE_INSTANCES_SUCCESS = "UpdateInstancesSuccess";
     public static final String AI_UPDATE_INSTANCES_FAILED = "UpdateInstancesFailed";
+    public static final String AI_FAN_OUT_UPDATE_START = "FanOutUpdateStart";
+    public static final String AI_FAN_OUT_UPDATE_SUCCESS = "FanOutUpdateSuccess";
+    public static final String AI_FAN_OUT_UPDATE_FAILED = "FanOutUpdateFailed";
 }
@@ -0,0 +1,440 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+package com.microsoft.jenkins.vmss.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.microsoft.azure.management.Azure;
+import jenkins.util.Timer;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory index of the Shared Image Gallery images of a subscription, used to turn a gallery name, an image
+ * definition and a version pattern into the resource ID of an image version without listing the gallery on every
+ * deploy.
+ * <p>
+ * The galleries of the subscription and the versions of each image definition are separate entries, loaded on first
+ * use and then refreshed one by one in the background once older than the refresh interval, serving the previous
+ * content meanwhile. A lookup that finds nothing reloads the entries involved once, so that a gallery or a version
+ * published moments ago is found without waiting for the refresh.
+ */
+public final class GalleryImageIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(GalleryImageIndex.class.getName());
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final int VERSION_PARTS = 3;
+
+    private static final Executor BACKGROUND = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            Timer.get().execute(command);
+        }
+    };
+
+    private static final Cache<String, GalleryImageIndex> INDEXES = CacheBuilder.newBuilder()
+            .maximumSize(Constants.CLIENT_CACHE_MAX_SIZE)
+            .expireAfterAccess(Constants.CLIENT_CACHE_EXPIRE_AFTER_ACCESS_MINUTES, TimeUnit.MINUTES)
+            .build();
+
+    private final Cache<String, Entry<Map<String, String>>> galleries;
+    private final Cache<String, Entry<NavigableMap<Version, Version>>> versions;
+    private final long refreshAfterNanos;
+    private final Ticker ticker;
+    private final Executor refreshExecutor;
+
+    @VisibleForTesting
+    GalleryImageIndex(final long refreshAfterNanos, final Ticker ticker, final Executor refreshExecutor) {
+        this.galleries = CacheBuilder.newBuilder().build();
+        this.versions = CacheBuilder.newBuilder()
+                .maximumSize(Constants.LISTING_CACHE_MAX_SIZE)
+                .build();
+        this.refreshAfterNanos = refreshAfterNanos;
+        this.ticker = ticker;
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    /**
+     * @return the index of the galleries the credentials can see in the subscription
+     */
+    public static GalleryImageIndex of(final String credentialsId, final String subscriptionId) {
+        try {
+            return INDEXES.get(credentialsId + "|" + subscriptionId, new Callable<GalleryImageIndex>() {
+                @Override
+                public GalleryImageIndex call() {
+                    return new GalleryImageIndex(
+                            TimeUnit.SECONDS.toNanos(Constants.GALLERY_INDEX_REFRESH_SECONDS),
+                            Ticker.systemTicker(),
+                            BACKGROUND);
+                }
+            });
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    /**
+     * Reads the gallery resources from Azure, only called to load or refresh the index.
+     */
+    public interface Source {
+        /**
+         * @return the resource IDs of the galleries in the subscription, by lower case gallery name
+         */
+        Map<String, String> listGalleries() throws IOException;
+
+        List<Version> listVersions(String galleryId, String imageDefinition) throws IOException;
+    }
+
+    public static Source source(final Azure azure) {
+        return new RestSource(AzureUtils.httpClient(azure), AzureUtils.resourceManagerUrl(azure),
+                azure.subscriptionId());
+    }
+
+    /**
+     * Finds the newest image version matching the pattern.
+     *
+     * @param versionPattern a version such as {@code 1.4.2}, a prefix such as {@code 1.4.*}, or {@code latest}.
+     *                       Versions excluded from latest are only matched by their exact version.
+     * @return the matching image version, or {@code null} if the gallery, the image definition or a matching version
+     * does not exist
+     * @throws IllegalArgumentException if the version pattern is invalid
+     */
+    public Version resolve(final Source source,
+                           final String gallery,
+                           final String imageDefinition,
+                           final String versionPattern) throws IOException {
+        final VersionPattern pattern = VersionPattern.parse(versionPattern);
+
+        final String galleryKey = gallery.toLowerCase();
+        String galleryId = galleries(source, false).get(galleryKey);
+        if (galleryId == null) {
+            galleryId = galleries(source, true).get(galleryKey);
+            if (galleryId == null) {
+                return null;
+            }
+        }
+
+        final Version version = pattern.newest(versions(source, galleryId, imageDefinition, false));
+        if (version != null) {
+            return version;
+        }
+        return pattern.newest(versions(source, galleryId, imageDefinition, true));
+    }
+
+    private Map<String, String> galleries(final Source source, final boolean reload) throws IOException {
+        return get(galleries, "", reload, new Callable<Map<String, String>>() {
+            @Override
+            public Map<String, String> call() throws IOException {
+                return Collections.unmodifiableMap(source.listGalleries());
+            }
+        });
+    }
+
+    private NavigableMap<Version, Version> versions(final Source source,
+                                                    final String galleryId,
+                                                    final String imageDefinition,
+                                                    final boolean reload) throws IOException {
+        return get(versions, (galleryId + "/images/" + imageDefinition).toLowerCase(), reload,
+                new Callable<NavigableMap<Version, Version>>() {
+                    @Override
+                    public NavigableMap<Version, Version> call() throws IOException {
+                        final TreeMap<Version, Version> index = new TreeMap<>();
+                        for (final Version version : source.listVersions(galleryId, imageDefinition)) {
+                            index.put(version, version);
+                        }
+                        return Collections.unmodifiableNavigableMap(index);
+                    }
+                });
+    }
+
+    private <T> T get(final Cache<String, Entry<T>> cache,
+                      final String key,
+                      final boolean reload,
+                      final Callable<T> loader) throws IOException {
+        if (reload) {
+            cache.invalidate(key);
+        }
+        final Entry<T> entry;
+        try {
+            entry = cache.get(key, new Callable<Entry<T>>() {
+                @Override
+                public Entry<T> call() throws Exception {
+                    return new Entry<>(loader.call(), ticker.read());
+                }
+            });
+        } catch (ExecutionException | UncheckedExecutionException ex) {
+            Throwables.propagateIfPossible(ex.getCause(), IOException.class);
+            throw new IOException(ex.getCause());
+        }
+
+        if (ticker.read() - entry.loadedAt >= refreshAfterNanos && entry.refreshing.compareAndSet(false, true)) {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // only replace the entry if it was not reloaded in the meantime
+                        cache.asMap().replace(key, entry, new Entry<>(loader.call(), ticker.read()));
+                    } catch (Exception ex) {
+                        LOGGER.log(Level.FINE, "Failed to refresh gallery index entry " + key, ex);
+                    } finally {
+                        entry.refreshing.set(false);
+                    }
+                }
+            });
+        }
+        return entry.value;
+    }
+
+    private static final class Entry<T> {
+        private final T value;
+        private final long loadedAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(final T value, final long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    /**
+     * An image version of a gallery image definition, ordered by its {@code major.minor.patch} number.
+     */
+    public static final class Version implements Comparable<Version> {
+        private final int[] parts;
+        private final String id;
+        private final boolean excludeFromLatest;
+
+        public Version(final String name, final String id, final boolean excludeFromLatest) {
+            this(parse(name), id, excludeFromLatest);
+        }
+
+        private Version(final int[] parts, final String id, final boolean excludeFromLatest) {
+            this.parts = parts;
+            this.id = id;
+            this.excludeFromLatest = excludeFromLatest;
+        }
+
+        /**
+         * @return the {@code major.minor.patch} parts, missing trailing parts are zero
+         */
+        private static int[] parse(final String name) {
+            final String[] split = name.split("\\.", -1);
+            if (split.length > VERSION_PARTS) {
+                throw new IllegalArgumentException(name);
+            }
+            final int[] parts = new int[VERSION_PARTS];
+            for (int i = 0; i < split.length; ++i) {
+                parts[i] = Integer.parseInt(split[i]);
+                if (parts[i] < 0) {
+                    throw new IllegalArgumentException(name);
+                }
+            }
+            return parts;
+        }
+
+        public String getName() {
+            return parts[0] + "." + parts[1] + "." + parts[2];
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public boolean isExcludeFromLatest() {
+            return excludeFromLatest;
+        }
+
+        @Override
+        public int compareTo(final Version other) {
+            for (int i = 0; i < VERSION_PARTS; ++i) {
+                final int result = Integer.compare(parts[i], other.parts[i]);
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof Version && Arrays.equals(parts, ((Version) o).parts);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(parts);
+        }
+
+        @Override
+        public String toString() {
+            return getName();
+        }
+    }
+
+    /**
+     * A version pattern, matching the versions in the range {@code [from, to)}.
+     */
+    @VisibleForTesting
+    static final class VersionPattern {
+        private final Version from;
+        private final Version to;
+        private final boolean exact;
+
+        private VersionPattern(final Version from, final Version to, final boolean exact) {
+            this.from = from;
+            this.to = to;
+            this.exact = exact;
+        }
+
+        static VersionPattern parse(final String pattern) {
+            final String trimmed = pattern == null ? "" : pattern.trim();
+            if (trimmed.isEmpty() || trimmed.equals("*") || trimmed.equalsIgnoreCase(Constants.LATEST_VERSION)) {
+                return new VersionPattern(null, null, false);
+            }
+            try {
+                if (!trimmed.endsWith(".*")) {
+                    final Version version = new Version(trimmed, null, false);
+                    return new VersionPattern(version, null, true);
+                }
+                final int[] prefix = Version.parse(trimmed.substring(0, trimmed.length() - 2));
+                final int length = trimmed.split("\\.").length - 1;
+                if (length >= VERSION_PARTS) {
+                    throw new IllegalArgumentException(pattern);
+                }
+                final int[] upper = prefix.clone();
+                ++upper[length - 1];
+                return new VersionPattern(new Version(prefix, null, false), new Version(upper, null, false), false);
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("Invalid image version pattern: " + pattern, ex);
+            }
+        }
+
+        Version newest(final NavigableMap<Version, Version> index) {
+            if (exact) {
+                return index.get(from);
+            }
+            NavigableMap<Version, Version> range = index;
+            if (from != null) {
+                range = range.subMap(from, true, to, false);
+            }
+            for (final Version version : range.descendingKeySet()) {
+                if (!version.isExcludeFromLatest()) {
+                    return version;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Lists the galleries through the Resource Manager REST API, the compute SDK in use predates them.
+     */
+    private static final class RestSource implements Source {
+        private final OkHttpClient httpClient;
+        private final HttpUrl baseUrl;
+        private final String subscriptionId;
+
+        RestSource(final OkHttpClient httpClient, final HttpUrl baseUrl, final String subscriptionId) {
+            this.httpClient = httpClient;
+            this.baseUrl = baseUrl;
+            this.subscriptionId = subscriptionId;
+        }
+
+        @Override
+        public Map<String, String> listGalleries() throws IOException {
+            final Map<String, String> result = new HashMap<>();
+            for (final JsonNode gallery : list(baseUrl.newBuilder()
+                    .addPathSegment("subscriptions")
+                    .addPathSegment(subscriptionId)
+                    .addPathSegments("providers/Microsoft.Compute/galleries"))) {
+                result.put(gallery.path("name").asText().toLowerCase(), gallery.path("id").asText());
+            }
+            return result;
+        }
+
+        @Override
+        public List<Version> listVersions(final String galleryId, final String imageDefinition) throws IOException {
+            final List<Version> result = new ArrayList<>();
+            for (final JsonNode version : list(baseUrl.newBuilder()
+                    .addPathSegments(galleryId.startsWith("/") ? galleryId.substring(1) : galleryId)
+                    .addPathSegment("images")
+                    .addPathSegment(imageDefinition)
+                    .addPathSegment("versions"))) {
+                final JsonNode properties = version.path("properties");
+                if (!"Succeeded".equalsIgnoreCase(properties.path("provisioningState").asText("Succeeded"))) {
+                    // still replicating, or failed
+                    continue;
+                }
+                try {
+                    result.add(new Version(version.path("name").asText(), version.path("id").asText(),
+                            properties.path("publishingProfile").path("excludeFromLatest").asBoolean(false)));
+                } catch (IllegalArgumentException ex) {
+                    LOGGER.log(Level.FINE, "Ignored gallery image version {0}", version.path("id").asText());
+                }
+            }
+            return result;
+        }
+
+        private List<JsonNode> list(final HttpUrl.Builder url) throws IOException {
+            final List<JsonNode> items = new ArrayList<>();
+            HttpUrl next = url.addQueryParameter("api-version", Constants.GALLERY_API_VERSION).build();
+            while (next != null) {
+                final JsonNode page = get(next);
+                for (final JsonNode item : page.path("value")) {
+                    items.add(item);
+                }
+                next = HttpUrl.parse(page.path("nextLink").asText(""));
+            }
+            return items;
+        }
+
+        private JsonNode get(final HttpUrl url) throws IOException {
+            try (Response response = httpClient.newCall(new Request.Builder().url(url).get().build()).execute()) {
+                final ResponseBody body = response.body();
+                final JsonNode json = MAPPER.readTree(body == null ? "{}" : body.string());
+                if (response.code() == HttpURLConnection.HTTP_NOT_FOUND) {
+                    // the gallery or the image definition does not exist
+                    return MAPPER.createObjectNode();
+                }
+                if (!response.isSuccessful()) {
+                    throw new IOException(String.format("Failed to list gallery images: %d %s %s",
+                            response.code(), json.path("error").path("code").asText(response.message()),
+                            json.path("error").path("message").asText("")));
+                }
+                return json;
+            }
+        }
+    }
+}
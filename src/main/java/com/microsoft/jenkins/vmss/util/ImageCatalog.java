@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss.util;
+
+import com.microsoft.azure.management.Azure;
+import com.microsoft.azure.management.compute.VirtualMachineScaleSet;
+import com.microsoft.azure.management.compute.implementation.VirtualMachineImageResourceInner;
+import com.microsoft.azure.management.compute.implementation.VirtualMachineImagesInner;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Marketplace image publishers, offers, SKUs and versions available in a region, cached in {@link ListingCache}
+ * so that the configuration form and the builds do not list the catalog again on every request.
+ */
+public final class ImageCatalog {
+
+    /**
+     * Orders image versions such as {@code 16.04.201611150} by their numeric parts.
+     */
+    public static final Comparator<String> VERSION_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(final String a, final String b) {
+            final String[] left = a.split("\\.");
+            final String[] right = b.split("\\.");
+            for (int i = 0; i < Math.min(left.length, right.length); ++i) {
+                final int result = comparePart(left[i], right[i]);
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return Integer.compare(left.length, right.length);
+        }
+    };
+
+    private final Azure azure;
+    private final String credentialsId;
+
+    public ImageCatalog(final Azure azure, final String credentialsId) {
+        this.azure = azure;
+        this.credentialsId = credentialsId;
+    }
+
+    /**
+     * @return the region of the scale set, which determines the images it can use
+     */
+    public String location(final String resourceGroup, final String name) {
+        final List<String> location = ListingCache.getInstance().get(
+                key("location", resourceGroup, name),
+                new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() {
+                        final VirtualMachineScaleSet vmss =
+                                azure.virtualMachineScaleSets().getByResourceGroup(resourceGroup, name);
+                        return vmss == null
+                                ? Collections.<String>emptyList()
+                                : Collections.singletonList(vmss.regionName());
+                    }
+                });
+        return location.isEmpty() ? null : location.get(0);
+    }
+
+    public List<String> publishers(final String location) {
+        return ListingCache.getInstance().get(key("publishers", location), new Callable<List<String>>() {
+            @Override
+            public List<String> call() {
+                return names(images().listPublishers(location));
+            }
+        });
+    }
+
+    public List<String> offers(final String location, final String publisher) {
+        return ListingCache.getInstance().get(key("offers", location, publisher), new Callable<List<String>>() {
+            @Override
+            public List<String> call() {
+                return names(images().listOffers(location, publisher));
+            }
+        });
+    }
+
+    public List<String> skus(final String location, final String publisher, final String offer) {
+        return ListingCache.getInstance().get(key("skus", location, publisher, offer), new Callable<List<String>>() {
+            @Override
+            public List<String> call() {
+                return names(images().listSkus(location, publisher, offer));
+            }
+        });
+    }
+
+    /**
+     * @return the versions of the image, newest first
+     */
+    public List<String> versions(final String location, final String publisher, final String offer, final String sku) {
+        return ListingCache.getInstance().get(key("versions", location, publisher, offer, sku),
+                new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() {
+                        final List<String> versions = new ArrayList<>(names(images().list(
+                                location, publisher, offer, sku)));
+                        Collections.sort(versions, Collections.reverseOrder(VERSION_ORDER));
+                        return Collections.unmodifiableList(versions);
+                    }
+                });
+    }
+
+    /**
+     * @return the newest version of the image, or {@code null} if the image does not exist in the region
+     */
+    public String latestVersion(final String location, final String publisher, final String offer, final String sku) {
+        final List<String> versions = versions(location, publisher, offer, sku);
+        return versions.isEmpty() ? null : versions.get(0);
+    }
+
+    private VirtualMachineImagesInner images() {
+        return azure.virtualMachineScaleSets().manager().inner().virtualMachineImages();
+    }
+
+    private String key(final String kind, final String... path) {
+        final String[] parts = new String[path.length + 1];
+        parts[0] = kind;
+        for (int i = 0; i < path.length; ++i) {
+            // image names are case insensitive
+            parts[i + 1] = StringUtils.lowerCase(path[i]);
+        }
+        return ListingCache.imageCatalogKey(credentialsId, azure.subscriptionId(), parts);
+    }
+
+    private static List<String> names(final List<VirtualMachineImageResourceInner> resources) {
+        final List<String> names = new ArrayList<>();
+        if (resources != null) {
+            for (final VirtualMachineImageResourceInner resource : resources) {
+                names.add(resource.name());
+            }
+        }
+        return Collections.unmodifiableList(names);
+    }
+
+    private static int comparePart(final String a, final String b) {
+        if (StringUtils.isNumeric(a) && StringUtils.isNumeric(b) && !a.isEmpty() && !b.isEmpty()) {
+            // compare by length first, the parts can exceed the range of a long
+            final String left = StringUtils.stripStart(a, "0");
+            final String right = StringUtils.stripStart(b, "0");
+            if (left.length() != right.length()) {
+                return Integer.compare(left.length(), right.length());
+            }
+            return left.compareTo(right);
+        }
+        return a.compareToIgnoreCase(b);
+    }
+}
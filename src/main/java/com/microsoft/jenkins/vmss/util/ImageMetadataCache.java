@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+package com.microsoft.jenkins.vmss.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.microsoft.azure.management.compute.implementation.ImageReferenceInner;
+import net.sf.json.JSONObject;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short-lived cache of the image currently referenced by a scale set model, used by the configuration forms to
+ * select the matching image type.
+ * <p>
+ * A configuration page usually shows the same scale set several times and is reloaded often while a job is being
+ * edited, so each scale set is fetched at most once per time to live. Concurrent misses for the same key share one
+ * fetch.
+ */
+public final class ImageMetadataCache {
+
+    private static final Joiner KEY_JOINER = Joiner.on('|').useForNull("");
+
+    private static final ImageMetadataCache INSTANCE = new ImageMetadataCache(
+            Constants.IMAGE_METADATA_CACHE_MAX_SIZE,
+            TimeUnit.SECONDS.toNanos(Constants.IMAGE_METADATA_CACHE_TTL_SECONDS),
+            Ticker.systemTicker());
+
+    private final Cache<String, Metadata> entries;
+
+    @VisibleForTesting
+    ImageMetadataCache(final long maximumSize, final long expireAfterWriteNanos, final Ticker ticker) {
+        this.entries = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWriteNanos, TimeUnit.NANOSECONDS)
+                .ticker(ticker)
+                .build();
+    }
+
+    public static ImageMetadataCache getInstance() {
+        return INSTANCE;
+    }
+
+    public static String key(final String credentialsId,
+                             final String subscriptionId,
+                             final String resourceGroup,
+                             final String name) {
+        return KEY_JOINER.join(credentialsId, subscriptionId, resourceGroup, name);
+    }
+
+    public Metadata get(final String key, final Callable<Metadata> fetcher) {
+        try {
+            return entries.get(key, fetcher);
+        } catch (ExecutionException | UncheckedExecutionException ex) {
+            Throwables.throwIfUnchecked(ex.getCause());
+            throw new IllegalStateException(ex.getCause().getMessage(), ex.getCause());
+        }
+    }
+
+    public void invalidate(final String key) {
+        entries.invalidate(key);
+    }
+
+    public long size() {
+        return entries.size();
+    }
+
+    /**
+     * Image type and image reference of a scale set model.
+     */
+    public static final class Metadata {
+        public static final String TYPE_OFFICIAL = "official";
+        public static final String TYPE_CUSTOM = "custom";
+        public static final String TYPE_GALLERY = "gallery";
+
+        private static final Metadata NOT_FOUND = new Metadata(null, null, null, null, null, null);
+
+        private static final String GALLERY_PATH = "/providers/microsoft.compute/galleries/";
+
+        private final String type;
+        private final String id;
+        private final String publisher;
+        private final String offer;
+        private final String sku;
+        private final String version;
+
+        private Metadata(final String type,
+                         final String id,
+                         final String publisher,
+                         final String offer,
+                         final String sku,
+                         final String version) {
+            this.type = type;
+            this.id = id;
+            this.publisher = publisher;
+            this.offer = offer;
+            this.sku = sku;
+            this.version = version;
+        }
+
+        public static Metadata notFound() {
+            return NOT_FOUND;
+        }
+
+        public static Metadata of(final ImageReferenceInner reference) {
+            if (reference == null) {
+                return NOT_FOUND;
+            }
+            final String id = reference.id();
+            final String type;
+            if (StringUtils.isBlank(id)) {
+                type = TYPE_OFFICIAL;
+            } else if (id.toLowerCase().contains(GALLERY_PATH)) {
+                type = TYPE_GALLERY;
+            } else {
+                type = TYPE_CUSTOM;
+            }
+            return new Metadata(type, id, reference.publisher(), reference.offer(), reference.sku(),
+                    reference.version());
+        }
+
+        /**
+         * @return the image type as named by the image type radio buttons, or {@code null} if the scale set was not
+         * found
+         */
+        public String getType() {
+            return type;
+        }
+
+        public boolean isCustomImage() {
+            return type != null && !TYPE_OFFICIAL.equals(type);
+        }
+
+        public JSONObject toJson() {
+            final JSONObject json = new JSONObject();
+            if (type == null) {
+                json.put("found", false);
+                return json;
+            }
+            json.put("found", true);
+            json.put("imageType", type);
+            if (TYPE_OFFICIAL.equals(type)) {
+                json.put("publisher", publisher);
+                json.put("offer", offer);
+                json.put("sku", sku);
+                json.put("version", version);
+            } else {
+                json.put("id", id);
+            }
+            return json;
+        }
+    }
+}
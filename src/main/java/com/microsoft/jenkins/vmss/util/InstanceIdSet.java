@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+package com.microsoft.jenkins.vmss.util;
+
+import java.util.AbstractList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Set of scale set instance IDs backed by a {@link BitSet}, parsed from a list such as {@code 0-499, 600, !42}.
+ * <p>
+ * Entries are separated by commas or whitespace. An entry is either a single ID or an inclusive range
+ * {@code from-to}; an entry prefixed with {@code !} is excluded from the set, wherever it appears in the list. Parsing
+ * is done in a single pass over the characters without creating intermediate strings, so that lists of tens of
+ * thousands of IDs stay cheap.
+ */
+public final class InstanceIdSet {
+
+    private static final int RADIX = 10;
+
+    private final BitSet ids;
+    private final int duplicates;
+
+    private InstanceIdSet(final BitSet ids, final int duplicates) {
+        this.ids = ids;
+        this.duplicates = duplicates;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the text is not a valid instance ID list
+     */
+    public static InstanceIdSet parse(final CharSequence text) {
+        final BitSet included = new BitSet();
+        final BitSet excluded = new BitSet();
+        int duplicates = 0;
+
+        final int length = text == null ? 0 : text.length();
+        int i = 0;
+        while (i < length) {
+            final char c = text.charAt(i);
+            if (isSeparator(c)) {
+                ++i;
+                continue;
+            }
+
+            final int entryStart = i;
+            final boolean exclude = c == '!';
+            if (exclude) {
+                ++i;
+            }
+            i = skipSpaces(text, i);
+            final long from = readNumber(text, i, entryStart);
+            i = skipDigits(text, i);
+            long to = from;
+            final int dash = skipSpaces(text, i);
+            if (dash < length && text.charAt(dash) == '-') {
+                i = skipSpaces(text, dash + 1);
+                to = readNumber(text, i, entryStart);
+                i = skipDigits(text, i);
+                if (to < from) {
+                    throw invalid(text, entryStart, i, "range end is lower than its start");
+                }
+            }
+            if (i < length && !isSeparator(text.charAt(i))) {
+                throw invalid(text, entryStart, i + 1, "unexpected character");
+            }
+
+            final BitSet target = exclude ? excluded : included;
+            final int fromIndex = (int) from;
+            final int toIndex = (int) to + 1;
+            if (!exclude) {
+                duplicates += target.get(fromIndex, toIndex).cardinality();
+            }
+            target.set(fromIndex, toIndex);
+        }
+
+        included.andNot(excluded);
+        return new InstanceIdSet(included, duplicates);
+    }
+
+    public static InstanceIdSet of(final BitSet ids) {
+        return new InstanceIdSet((BitSet) ids.clone(), 0);
+    }
+
+    public int size() {
+        return ids.cardinality();
+    }
+
+    public boolean isEmpty() {
+        return ids.isEmpty();
+    }
+
+    public boolean contains(final int id) {
+        return id >= 0 && ids.get(id);
+    }
+
+    /**
+     * @return the number of IDs listed more than once in the parsed text
+     */
+    public int getDuplicateCount() {
+        return duplicates;
+    }
+
+    /**
+     * @return the IDs of this set that are not in {@code existing}
+     */
+    public InstanceIdSet missingFrom(final BitSet existing) {
+        final BitSet missing = (BitSet) ids.clone();
+        missing.andNot(existing);
+        return new InstanceIdSet(missing, 0);
+    }
+
+    /**
+     * @return the IDs of this set that are also in {@code other}
+     */
+    public InstanceIdSet retain(final BitSet other) {
+        final BitSet retained = (BitSet) ids.clone();
+        retained.and(other);
+        return new InstanceIdSet(retained, 0);
+    }
+
+    /**
+     * @return the IDs in ascending order, as the strings expected by the Azure API. The strings are created lazily.
+     */
+    public List<String> toList() {
+        final int[] values = ids.stream().toArray();
+        return new AbstractList<String>() {
+            @Override
+            public String get(final int index) {
+                return Integer.toString(values[index]);
+            }
+
+            @Override
+            public int size() {
+                return values.length;
+            }
+        };
+    }
+
+    /**
+     * @return the compact range form of the set, e.g. {@code 0-499,600}
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        int start = ids.nextSetBit(0);
+        while (start >= 0) {
+            final int end = ids.nextClearBit(start) - 1;
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(start);
+            if (end > start) {
+                builder.append('-').append(end);
+            }
+            start = ids.nextSetBit(end + 1);
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        return o instanceof InstanceIdSet && ids.equals(((InstanceIdSet) o).ids);
+    }
+
+    @Override
+    public int hashCode() {
+        return ids.hashCode();
+    }
+
+    private static boolean isSeparator(final char c) {
+        return c == ',' || Character.isWhitespace(c);
+    }
+
+    private static int skipSpaces(final CharSequence text, final int from) {
+        int i = from;
+        while (i < text.length() && (text.charAt(i) == ' ' || text.charAt(i) == '\t')) {
+            ++i;
+        }
+        return i;
+    }
+
+    private static int skipDigits(final CharSequence text, final int from) {
+        int i = from;
+        while (i < text.length() && Character.isDigit(text.charAt(i))) {
+            ++i;
+        }
+        return i;
+    }
+
+    private static long readNumber(final CharSequence text, final int from, final int entryStart) {
+        long value = 0;
+        int i = from;
+        while (i < text.length() && Character.isDigit(text.charAt(i))) {
+            value = value * RADIX + Character.digit(text.charAt(i), RADIX);
+            if (value > Constants.INSTANCE_ID_MAX) {
+                throw invalid(text, entryStart, i + 1, "instance ID is larger than " + Constants.INSTANCE_ID_MAX);
+            }
+            ++i;
+        }
+        if (i == from) {
+            throw invalid(text, entryStart, Math.min(text.length(), from + 1), "instance ID expected");
+        }
+        return value;
+    }
+
+    private static IllegalArgumentException invalid(final CharSequence text,
+                                                    final int from,
+                                                    final int to,
+                                                    final String reason) {
+        return new IllegalArgumentException(String.format("Invalid instance ID list entry '%s' at position %d: %s",
+                text.subSequence(from, to), from + 1, reason));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+package com.microsoft.jenkins.vmss.util;
+
+import net.sf.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with fixed, roughly exponential millisecond buckets. Percentiles are reported as the
+ * upper bound of the bucket they fall in.
+ */
+public final class LatencyHistogram {
+
+    private static final long[] BOUNDS_MILLIS = {
+            10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 120000, 300000, 600000, 1800000,
+    };
+
+    private static final double P50 = 0.5;
+    private static final double P90 = 0.9;
+    private static final double P99 = 0.99;
+
+    private final LongAdder[] buckets = new LongAdder[BOUNDS_MILLIS.length + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumMillis = new LongAdder();
+    private final AtomicLong maxMillis = new AtomicLong();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; ++i) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(final long millis) {
+        final long value = Math.max(0, millis);
+        int index = 0;
+        while (index < BOUNDS_MILLIS.length && value > BOUNDS_MILLIS[index]) {
+            ++index;
+        }
+        buckets[index].increment();
+        count.increment();
+        sumMillis.add(value);
+
+        long max = maxMillis.get();
+        while (value > max && !maxMillis.compareAndSet(max, value)) {
+            max = maxMillis.get();
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMeanMillis() {
+        final long n = count.sum();
+        return n == 0 ? 0 : sumMillis.sum() / n;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis.get();
+    }
+
+    public long getTotalMillis() {
+        return sumMillis.sum();
+    }
+
+    /**
+     * @param quantile between 0 and 1
+     * @return upper bound of the bucket holding the quantile, capped by the maximum recorded value
+     */
+    public long percentile(final double quantile) {
+        final long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(quantile * n);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; ++i) {
+            seen += buckets[i].sum();
+            if (seen >= rank) {
+                return i < BOUNDS_MILLIS.length ? Math.min(BOUNDS_MILLIS[i], getMaxMillis()) : getMaxMillis();
+            }
+        }
+        return getMaxMillis();
+    }
+
+    public JSONObject toJson() {
+        final JSONObject json = new JSONObject();
+        json.put("count", getCount());
+        json.put("totalMillis", getTotalMillis());
+        json.put("meanMillis", getMeanMillis());
+        json.put("p50Millis", percentile(P50));
+        json.put("p90Millis", percentile(P90));
+        json.put("p99Millis", percentile(P99));
+        json.put("maxMillis", getMaxMillis());
+        return json;
+    }
+}
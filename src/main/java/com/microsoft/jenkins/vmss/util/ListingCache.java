@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+package com.microsoft.jenkins.vmss.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import jenkins.util.Timer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stale-while-revalidate cache for the resource listings shown in the configuration forms.
+ * <p>
+ * A cached listing is returned immediately. Once it is older than the refresh interval, the next lookup triggers a
+ * single background reload and keeps serving the old value until the reload finishes. Concurrent misses for the same
+ * key share one fetch.
+ */
+public final class ListingCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ListingCache.class.getName());
+
+    private static final Joiner KEY_JOINER = Joiner.on('|').useForNull("");
+
+    private static final String RESOURCE_GROUPS = "resourceGroups";
+    private static final String SCALE_SETS = "scaleSets";
+    private static final String IMAGE_CATALOG = "imageCatalog";
+
+    private static final ListingCache INSTANCE = new ListingCache(
+            Constants.LISTING_CACHE_MAX_SIZE,
+            TimeUnit.SECONDS.toNanos(Constants.LISTING_CACHE_REFRESH_SECONDS),
+            TimeUnit.MINUTES.toNanos(Constants.LISTING_CACHE_EXPIRE_MINUTES),
+            Ticker.systemTicker(),
+            new Executor() {
+                @Override
+                public void execute(final Runnable command) {
+                    Timer.get().execute(command);
+                }
+            });
+
+    private final Cache<String, Entry> entries;
+    private final long refreshAfterNanos;
+    private final Ticker ticker;
+    private final Executor refreshExecutor;
+
+    @VisibleForTesting
+    ListingCache(final long maximumSize,
+                 final long refreshAfterNanos,
+                 final long expireAfterWriteNanos,
+                 final Ticker ticker,
+                 final Executor refreshExecutor) {
+        this.entries = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWriteNanos, TimeUnit.NANOSECONDS)
+                .ticker(ticker)
+                .recordStats()
+                .build();
+        this.refreshAfterNanos = refreshAfterNanos;
+        this.ticker = ticker;
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    public static ListingCache getInstance() {
+        return INSTANCE;
+    }
+
+    public static String resourceGroupsKey(final String credentialsId, final String subscriptionId) {
+        return KEY_JOINER.join(RESOURCE_GROUPS, credentialsId, subscriptionId);
+    }
+
+    public static String scaleSetsKey(final String credentialsId,
+                                      final String subscriptionId,
+                                      final String resourceGroup) {
+        return KEY_JOINER.join(SCALE_SETS, credentialsId, subscriptionId, resourceGroup);
+    }
+
+    public static String imageCatalogKey(final String credentialsId,
+                                         final String subscriptionId,
+                                         final String... path) {
+        final List<String> parts = new ArrayList<>(Arrays.asList(IMAGE_CATALOG, credentialsId, subscriptionId));
+        parts.addAll(Arrays.asList(path));
+        return KEY_JOINER.join(parts);
+    }
+
+    public List<String> get(final String key, final Callable<List<String>> fetcher) {
+        final Entry entry;
+        try {
+            entry = entries.get(key, new Callable<Entry>() {
+                @Override
+                public Entry call() throws Exception {
+                    return new Entry(fetcher.call(), ticker.read());
+                }
+            });
+        } catch (ExecutionException | UncheckedExecutionException ex) {
+            Throwables.throwIfUnchecked(ex.getCause());
+            throw new IllegalStateException(ex.getCause().getMessage(), ex.getCause());
+        }
+
+        if (ticker.read() - entry.loadedAt >= refreshAfterNanos && entry.refreshing.compareAndSet(false, true)) {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final List<String> value = fetcher.call();
+                        // Only publish the refreshed value if the entry was not invalidated in the meantime
+                        entries.asMap().replace(key, entry, new Entry(value, ticker.read()));
+                    } catch (Exception ex) {
+                        LOGGER.log(Level.FINE, "Failed to refresh listing " + key, ex);
+                    } finally {
+                        entry.refreshing.set(false);
+                    }
+                }
+            });
+        }
+        return entry.value;
+    }
+
+    /**
+     * Returns the cached listing for {@code key} without fetching or refreshing it, or {@code null} if there is none.
+     */
+    public List<String> getIfPresent(final String key) {
+        final Entry entry = entries.getIfPresent(key);
+        return entry == null ? null : entry.value;
+    }
+
+    public void invalidate(final String key) {
+        entries.invalidate(key);
+    }
+
+    public long size() {
+        return entries.size();
+    }
+
+    public long hitCount() {
+        return entries.stats().hitCount();
+    }
+
+    public long missCount() {
+        return entries.stats().missCount();
+    }
+
+    private static final class Entry {
+        private final List<String> value;
+        private final long loadedAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(final List<String> value, final long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
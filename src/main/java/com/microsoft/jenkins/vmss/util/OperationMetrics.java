@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+package com.microsoft.jenkins.vmss.util;
+
+import net.sf.json.JSONObject;
+import okhttp3.HttpUrl;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Controller-wide registry of Azure Resource Manager latency and throughput metrics.
+ * <p>
+ * HTTP level metrics are fed by the plugin's OkHttp interceptor and keyed by the ARM operation and the response
+ * status. The builders add the end-to-end duration of each scale set operation, so the slowest scale sets can be
+ * identified.
+ */
+public final class OperationMetrics {
+
+    public static final String OP_GET = "vmss.get";
+    public static final String OP_LIST = "list";
+    public static final String OP_LIST_INSTANCES = "vmss.listInstances";
+    public static final String OP_CREATE_OR_UPDATE = "vmss.createOrUpdate";
+    public static final String OP_UPDATE = "vmss.update";
+    public static final String OP_UPDATE_INSTANCES = "vmss.updateInstances";
+    public static final String OP_DELETE_INSTANCES = "vmss.deleteInstances";
+    public static final String OP_LRO_POLL = "lro.poll";
+    public static final String OP_OTHER = "other";
+
+    public static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private static final OperationMetrics INSTANCE = new OperationMetrics();
+
+    private final ConcurrentMap<String, LatencyHistogram> operations = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, LatencyHistogram> statusCodes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>> scaleSets =
+            new ConcurrentHashMap<>();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+
+    public static OperationMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Classifies a request to the ARM operation it performs.
+     */
+    public static String classify(final String method, final HttpUrl url) {
+        final String path = url.encodedPath().toLowerCase();
+        if (path.contains("/operations/") || path.contains("/operationresults/")
+                || path.contains("/operationstatuses/")) {
+            return OP_LRO_POLL;
+        }
+        if (!path.contains("/virtualmachinescalesets")) {
+            return "GET".equals(method) ? OP_LIST : OP_OTHER;
+        }
+        switch (method) {
+            case "GET":
+                if (path.endsWith("/virtualmachinescalesets")) {
+                    return OP_LIST;
+                }
+                if (path.endsWith("/virtualmachines")) {
+                    return OP_LIST_INSTANCES;
+                }
+                return OP_GET;
+            case "PUT":
+                return OP_CREATE_OR_UPDATE;
+            case "PATCH":
+                return OP_UPDATE;
+            case "POST":
+                if (path.endsWith("/manualupgrade")) {
+                    return OP_UPDATE_INSTANCES;
+                }
+                if (path.endsWith("/delete")) {
+                    return OP_DELETE_INSTANCES;
+                }
+                return OP_OTHER;
+            default:
+                return OP_OTHER;
+        }
+    }
+
+    public void requestStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    public void requestFinished(final String operation, final int statusCode, final long millis) {
+        inFlight.decrementAndGet();
+        histogram(operations, operation).record(millis);
+        histogram(statusCodes, statusCode).record(millis);
+        if (statusCode == HTTP_TOO_MANY_REQUESTS) {
+            throttled.increment();
+        }
+    }
+
+    public void requestFailed(final String operation, final long millis) {
+        inFlight.decrementAndGet();
+        histogram(operations, operation).record(millis);
+    }
+
+    public void recordRetry() {
+        retries.increment();
+    }
+
+    /**
+     * Records the end-to-end duration of a plugin level operation, such as a whole image update, on a scale set.
+     */
+    public void recordScaleSetOperation(final String resourceGroup,
+                                        final String name,
+                                        final String operation,
+                                        final long millis) {
+        final String key = resourceGroup + "/" + name;
+        ConcurrentMap<String, LatencyHistogram> perScaleSet = scaleSets.get(key);
+        if (perScaleSet == null) {
+            if (scaleSets.size() >= Constants.METRICS_MAX_SCALE_SETS) {
+                return;
+            }
+            final ConcurrentMap<String, LatencyHistogram> created = new ConcurrentHashMap<>();
+            perScaleSet = scaleSets.putIfAbsent(key, created);
+            if (perScaleSet == null) {
+                perScaleSet = created;
+            }
+        }
+        histogram(perScaleSet, operation).record(millis);
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getThrottledCount() {
+        return throttled.sum();
+    }
+
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    public Map<String, LatencyHistogram> getOperations() {
+        return new TreeMap<>(operations);
+    }
+
+    public Map<Integer, LatencyHistogram> getStatusCodes() {
+        return new TreeMap<>(statusCodes);
+    }
+
+    public Map<String, Map<String, LatencyHistogram>> getScaleSets() {
+        final Map<String, Map<String, LatencyHistogram>> result = new TreeMap<>();
+        for (final Map.Entry<String, ConcurrentMap<String, LatencyHistogram>> entry : scaleSets.entrySet()) {
+            result.put(entry.getKey(), new TreeMap<>(entry.getValue()));
+        }
+        return result;
+    }
+
+    public void reset() {
+        operations.clear();
+        statusCodes.clear();
+        scaleSets.clear();
+        throttled.reset();
+        retries.reset();
+    }
+
+    public JSONObject toJson() {
+        final JSONObject json = new JSONObject();
+
+        final JSONObject operationsJson = new JSONObject();
+        for (final Map.Entry<String, LatencyHistogram> entry : getOperations().entrySet()) {
+            operationsJson.put(entry.getKey(), entry.getValue().toJson());
+        }
+        json.put("operations", operationsJson);
+
+        final JSONObject statusJson = new JSONObject();
+        for (final Map.Entry<Integer, LatencyHistogram> entry : getStatusCodes().entrySet()) {
+            statusJson.put(String.valueOf(entry.getKey()), entry.getValue().toJson());
+        }
+        json.put("statusCodes", statusJson);
+
+        final JSONObject scaleSetsJson = new JSONObject();
+        for (final Map.Entry<String, Map<String, LatencyHistogram>> entry : getScaleSets().entrySet()) {
+            final JSONObject perScaleSet = new JSONObject();
+            for (final Map.Entry<String, LatencyHistogram> op : entry.getValue().entrySet()) {
+                perScaleSet.put(op.getKey(), op.getValue().toJson());
+            }
+            scaleSetsJson.put(entry.getKey(), perScaleSet);
+        }
+        json.put("scaleSets", scaleSetsJson);
+
+        final JSONObject counters = new JSONObject();
+        counters.put("inFlight", getInFlight());
+        counters.put("throttled", getThrottledCount());
+        counters.put("retries", getRetryCount());
+        counters.put("clientCacheHits", AzureClientCache.getInstance().stats().hitCount());
+        counters.put("clientCacheMisses", AzureClientCache.getInstance().stats().missCount());
+        counters.put("listingCacheHits", ListingCache.getInstance().hitCount());
+        counters.put("listingCacheMisses", ListingCache.getInstance().missCount());
+        json.put("counters", counters);
+        return json;
+    }
+
+    private static <K> LatencyHistogram histogram(final ConcurrentMap<K, LatencyHistogram> map, final K key) {
+        LatencyHistogram histogram = map.get(key);
+        if (histogram == null) {
+            final LatencyHistogram created = new LatencyHistogram();
+            histogram = map.putIfAbsent(key, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+package com.microsoft.jenkins.vmss.util;
+
+import net.sf.json.JSONObject;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The first names of a listing that start with a prefix, as suggested by the type-ahead lookups of the configuration
+ * forms.
+ * <p>
+ * The listing is consumed only until enough matches are found, so for a {@link com.microsoft.azure.PagedList} the
+ * remaining pages are never requested.
+ */
+public final class PrefixMatches implements HttpResponse {
+
+    private static final PrefixMatches NONE = new PrefixMatches(Collections.<String>emptyList(), true, null);
+
+    private final List<String> names;
+    private final boolean complete;
+    private final String error;
+
+    private PrefixMatches(final List<String> names, final boolean complete, final String error) {
+        this.names = names;
+        this.complete = complete;
+        this.error = error;
+    }
+
+    public static PrefixMatches none() {
+        return NONE;
+    }
+
+    public static PrefixMatches failed(final String error) {
+        return new PrefixMatches(Collections.<String>emptyList(), false, error);
+    }
+
+    /**
+     * Collects up to {@code limit} names of {@code listing} starting with {@code prefix}, ignoring case as Azure does
+     * for resource names.
+     */
+    public static PrefixMatches of(final Iterable<String> listing, final String prefix, final int limit) {
+        final String lowerPrefix = StringUtils.defaultString(prefix).trim().toLowerCase(Locale.ROOT);
+        final List<String> names = new ArrayList<>();
+        final Iterator<String> it = listing.iterator();
+        while (it.hasNext()) {
+            final String name = it.next();
+            if (name != null && name.toLowerCase(Locale.ROOT).startsWith(lowerPrefix)) {
+                if (names.size() >= limit) {
+                    return new PrefixMatches(Collections.unmodifiableList(names), false, null);
+                }
+                names.add(name);
+            }
+        }
+        return new PrefixMatches(Collections.unmodifiableList(names), true, null);
+    }
+
+    public List<String> getNames() {
+        return names;
+    }
+
+    /**
+     * @return whether {@link #getNames()} holds all the matches, in which case the matches of any longer prefix are
+     * among them
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public JSONObject toJson() {
+        final JSONObject json = new JSONObject();
+        json.put("names", names);
+        json.put("complete", complete);
+        if (error != null) {
+            json.put("error", error);
+        }
+        return json;
+    }
+
+    @Override
+    public void generateResponse(final StaplerRequest req, final StaplerResponse rsp, final Object node)
+            throws IOException {
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(toJson().toString());
+    }
+}
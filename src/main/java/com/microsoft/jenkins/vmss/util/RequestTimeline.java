@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+package com.microsoft.jenkins.vmss.util;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reports the Resource Manager requests about a watched resource, and the polls of the long running operations they
+ * start, to the {@link Recorder} watching it.
+ * <p>
+ * The SDK polls long running operations on its own threads, so the requests of a build step cannot be told apart by
+ * thread. Instead, the operation URL returned by a request to a watched resource is watched as well, until the
+ * watch is closed, and its polls are reported to the watch that sent that request.
+ * <p>
+ * Several builds may watch the same scale set while they wait for each other's writes, so a request to the resource
+ * itself is reported to the watch of the sending thread: the thread that opened the watch, or a worker thread
+ * {@link Watch#attach() attached} to it. The requests of the other threads go to the oldest watch of the resource.
+ * <p>
+ * The time {@link ArmRateLimiter} holds the requests back is added up per watch the same way, so that a build step
+ * can report it whichever threads sent its requests.
+ */
+public final class RequestTimeline implements Interceptor {
+
+    private static final RequestTimeline INSTANCE = new RequestTimeline();
+
+    private static final String ASYNC_OPERATION_HEADER = "Azure-AsyncOperation";
+    private static final String LOCATION_HEADER = "Location";
+
+    // in the order the watches were opened
+    private final List<Watch> resources = new CopyOnWriteArrayList<>();
+    private final ConcurrentMap<String, Watch> operations = new ConcurrentHashMap<>();
+
+    public static RequestTimeline getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Receives the requests about a watched resource. Called on the threads sending the requests.
+     */
+    public interface Recorder {
+        /**
+         * Ignores the requests, for a watch that only adds up the rate limiter waits.
+         */
+        Recorder NONE = new Recorder() {
+            @Override
+            public void request(final String method, final String path, final boolean operationPoll,
+                                final long startMillis, final long durationMillis, final int statusCode) {
+            }
+        };
+
+        /**
+         * @param operationPoll whether the request polls a long running operation started by a request to the
+         *                      resource, rather than addressing the resource itself
+         * @param statusCode    the response status, or {@code 0} if no response was received
+         */
+        void request(String method, String path, boolean operationPoll, long startMillis, long durationMillis,
+                     int statusCode);
+    }
+
+    /**
+     * Starts reporting the requests to the resource and its children to {@code recorder}. The other watches of the
+     * same resource are kept.
+     *
+     * @param resourceId the resource ID, such as the ID of a scale set
+     */
+    public Watch watch(final String resourceId, final Recorder recorder) {
+        final Watch watch = new Watch(normalize(resourceId), recorder);
+        resources.add(watch);
+        return watch;
+    }
+
+    @Override
+    public Response intercept(final Chain chain) throws IOException {
+        if (resources.isEmpty()) {
+            return chain.proceed(chain.request());
+        }
+
+        final Request request = chain.request();
+        final String path = normalize(request.url().encodedPath());
+        boolean operationPoll = false;
+        Watch watch = operations.get(operationKey(request.url()));
+        if (watch != null) {
+            operationPoll = true;
+        } else {
+            watch = find(path);
+        }
+        if (watch == null) {
+            return chain.proceed(request);
+        }
+
+        final long start = System.currentTimeMillis();
+        int statusCode = 0;
+        try {
+            final Response response = chain.proceed(request);
+            statusCode = response.code();
+            if (!"GET".equals(request.method())) {
+                trackOperation(watch, response.header(ASYNC_OPERATION_HEADER));
+                trackOperation(watch, response.header(LOCATION_HEADER));
+            }
+            return response;
+        } finally {
+            watch.recorder.request(request.method(), path, operationPoll, start,
+                    System.currentTimeMillis() - start, statusCode);
+        }
+    }
+
+    /**
+     * Adds the time a request was held back by {@link ArmRateLimiter}, and its retries after being throttled, to the
+     * watch the request is reported to.
+     */
+    void rateLimited(final Request request, final long waitMillis, final int retries) {
+        if (resources.isEmpty()) {
+            return;
+        }
+        Watch watch = operations.get(operationKey(request.url()));
+        if (watch == null) {
+            watch = find(normalize(request.url().encodedPath()));
+        }
+        if (watch != null) {
+            watch.rateLimitWaitMillis.addAndGet(waitMillis);
+            watch.rateLimitRetries.addAndGet(retries);
+        }
+    }
+
+    private Watch find(final String path) {
+        final Thread thread = Thread.currentThread();
+        Watch oldest = null;
+        for (final Watch watch : resources) {
+            if (path.equals(watch.resourcePath) || path.startsWith(watch.resourcePath + "/")) {
+                if (watch.owner == thread || watch.workers.contains(thread)) {
+                    return watch;
+                }
+                if (oldest == null) {
+                    oldest = watch;
+                }
+            }
+        }
+        return oldest;
+    }
+
+    private void trackOperation(final Watch watch, final String url) {
+        final HttpUrl operationUrl = url == null ? null : HttpUrl.parse(url);
+        if (operationUrl != null && !watch.closed) {
+            final String key = operationKey(operationUrl);
+            operations.put(key, watch);
+            watch.operations.put(key, Boolean.TRUE);
+        }
+    }
+
+    private static String operationKey(final HttpUrl url) {
+        return url.host() + normalize(url.encodedPath());
+    }
+
+    private static String normalize(final String path) {
+        final String lower = path.toLowerCase();
+        return lower.endsWith("/") ? lower.substring(0, lower.length() - 1) : lower;
+    }
+
+    /**
+     * Registration of a {@link Recorder}, to close once the requests are no longer of interest.
+     */
+    public final class Watch implements AutoCloseable {
+        private final String resourcePath;
+        private final Recorder recorder;
+        private final Thread owner = Thread.currentThread();
+        private final Set<Thread> workers = ConcurrentHashMap.newKeySet();
+        private final ConcurrentMap<String, Boolean> operations = new ConcurrentHashMap<>();
+        private final AtomicLong rateLimitWaitMillis = new AtomicLong();
+        private final AtomicLong rateLimitRetries = new AtomicLong();
+        private volatile boolean closed;
+
+        private Watch(final String resourcePath, final Recorder recorder) {
+            this.resourcePath = resourcePath;
+            this.recorder = recorder;
+        }
+
+        /**
+         * Reports the requests the current thread sends to the resource to this watch, until {@link #detach()}.
+         */
+        public void attach() {
+            workers.add(Thread.currentThread());
+        }
+
+        public void detach() {
+            workers.remove(Thread.currentThread());
+        }
+
+        /**
+         * @return the total milliseconds the requests reported to this watch were held back by the rate limiter
+         */
+        public long getRateLimitWaitMillis() {
+            return rateLimitWaitMillis.get();
+        }
+
+        /**
+         * @return the number of throttled requests reported to this watch that were retried
+         */
+        public long getRateLimitRetries() {
+            return rateLimitRetries.get();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            resources.remove(this);
+            workers.clear();
+            for (final String key : this.operations.keySet()) {
+                RequestTimeline.this.operations.remove(key, this);
+            }
+        }
+    }
+}
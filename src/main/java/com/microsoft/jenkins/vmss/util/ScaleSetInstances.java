@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+package com.microsoft.jenkins.vmss.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.SettableFuture;
+import com.microsoft.azure.management.Azure;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Lists the VMs of a scale set through the Resource Manager REST API, reading only the fields the plugin needs.
+ * <p>
+ * Pages are chained by their {@code nextLink}, so they cannot be requested all at once. Instead the next page is
+ * fetched in the background while the instances of the current one are visited, and at most two pages are held in
+ * memory whatever the size of the scale set. Unlike the SDK model, the instances carry their availability zones.
+ */
+public final class ScaleSetInstances {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Server side filter keeping only the instances that do not run the latest scale set model.
+     */
+    public static final String FILTER_OUTDATED = "properties/latestModelApplied eq false";
+
+    /**
+     * Expansion including the instance view, and so the health, of every instance in the listing.
+     */
+    public static final String EXPAND_INSTANCE_VIEW = "instanceView";
+
+    private final OkHttpClient httpClient;
+    private final HttpUrl baseUrl;
+    private final String subscriptionId;
+
+    public ScaleSetInstances(final OkHttpClient httpClient, final HttpUrl baseUrl, final String subscriptionId) {
+        this.httpClient = httpClient;
+        this.baseUrl = baseUrl;
+        this.subscriptionId = subscriptionId;
+    }
+
+    public static ScaleSetInstances of(final Azure azure) {
+        return new ScaleSetInstances(
+                AzureUtils.httpClient(azure), AzureUtils.resourceManagerUrl(azure), azure.subscriptionId());
+    }
+
+    /**
+     * Receives the instances of a scale set, in the order returned by the service.
+     */
+    public interface Visitor {
+        void visit(Instance instance);
+    }
+
+    /**
+     * @param filter OData filter supported by the service, such as {@link #FILTER_OUTDATED}, or {@code null}
+     */
+    public void forEach(final String resourceGroup,
+                        final String name,
+                        final String filter,
+                        final Visitor visitor) throws IOException, InterruptedException {
+        forEach(resourceGroup, name, filter, null, visitor);
+    }
+
+    /**
+     * @param expand {@link #EXPAND_INSTANCE_VIEW} to read the health of the instances, or {@code null}
+     */
+    public void forEach(final String resourceGroup,
+                        final String name,
+                        final String filter,
+                        final String expand,
+                        final Visitor visitor) throws IOException, InterruptedException {
+        final HttpUrl.Builder url = baseUrl.newBuilder()
+                .addPathSegment("subscriptions")
+                .addPathSegment(subscriptionId)
+                .addPathSegment("resourceGroups")
+                .addPathSegment(resourceGroup)
+                .addPathSegments("providers/Microsoft.Compute/virtualMachineScaleSets")
+                .addPathSegment(name)
+                .addPathSegment("virtualMachines")
+                .addQueryParameter("api-version",
+                        expand == null ? Constants.COMPUTE_API_VERSION : Constants.INSTANCE_VIEW_API_VERSION);
+        if (filter != null) {
+            url.addQueryParameter("$filter", filter);
+        }
+        if (expand != null) {
+            url.addQueryParameter("$expand", expand);
+        }
+
+        PageFetch current = new PageFetch(url.build());
+        while (current != null) {
+            final JsonNode page = current.get();
+            final HttpUrl nextLink = HttpUrl.parse(page.path("nextLink").asText(""));
+            final PageFetch next = nextLink == null ? null : new PageFetch(nextLink);
+            try {
+                for (JsonNode vm : page.path("value")) {
+                    visitor.visit(Instance.fromJson(vm));
+                }
+            } catch (RuntimeException ex) {
+                if (next != null) {
+                    next.cancel();
+                }
+                throw ex;
+            }
+            current = next;
+        }
+    }
+
+    /**
+     * Request of a single page, started as soon as it is created.
+     */
+    private final class PageFetch implements Callback {
+        private final SettableFuture<JsonNode> result = SettableFuture.create();
+        private final Call call;
+
+        PageFetch(final HttpUrl url) {
+            call = httpClient.newCall(new Request.Builder().url(url).get().build());
+            call.enqueue(this);
+        }
+
+        JsonNode get() throws IOException, InterruptedException {
+            try {
+                return result.get();
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IOException(ex.getCause());
+            } catch (InterruptedException ex) {
+                cancel();
+                throw ex;
+            }
+        }
+
+        void cancel() {
+            call.cancel();
+        }
+
+        @Override
+        public void onFailure(final Call c, final IOException e) {
+            result.setException(e);
+        }
+
+        @Override
+        public void onResponse(final Call c, final Response response) {
+            try (ResponseBody body = response.body()) {
+                final JsonNode json = MAPPER.readTree(body == null ? "{}" : body.string());
+                if (!response.isSuccessful()) {
+                    result.setException(new IOException(String.format("Failed to list instances: %d %s %s",
+                            response.code(), json.path("error").path("code").asText(response.message()),
+                            json.path("error").path("message").asText(""))));
+                    return;
+                }
+                result.set(json);
+            } catch (IOException | RuntimeException ex) {
+                result.setException(ex);
+            }
+        }
+    }
+
+    /**
+     * Health of an instance according to its instance view.
+     */
+    public enum Health {
+        /**
+         * Running, and reported healthy by the application health extension if it is installed.
+         */
+        HEALTHY,
+        /**
+         * Reported unhealthy by the application health extension.
+         */
+        UNHEALTHY,
+        /**
+         * Still provisioning or starting, or the health extension has no verdict yet.
+         */
+        PENDING,
+        /**
+         * The instance or one of its extensions failed to provision, it will not become healthy by itself.
+         */
+        FAILED,
+        /**
+         * The instance view was not requested.
+         */
+        UNKNOWN
+    }
+
+    /**
+     * The fields of a scale set VM used to select the instances to update and to check their health.
+     */
+    public static final class Instance {
+        private static final String PROVISIONING_STATE = "provisioningstate/";
+        private static final String PROVISIONING_SUCCEEDED = "provisioningstate/succeeded";
+        private static final String PROVISIONING_FAILED = "provisioningstate/failed";
+        private static final String POWER_STATE_RUNNING = "powerstate/running";
+        private static final String HEALTH_STATE_HEALTHY = "healthstate/healthy";
+        private static final String HEALTH_STATE_UNHEALTHY = "healthstate/unhealthy";
+
+        private final String instanceId;
+        private final boolean latestModelApplied;
+        private final List<String> zones;
+        private final Map<String, String> tags;
+        private final Health health;
+
+        public Instance(final String instanceId,
+                        final boolean latestModelApplied,
+                        final List<String> zones,
+                        final Map<String, String> tags) {
+            this(instanceId, latestModelApplied, zones, tags, Health.UNKNOWN);
+        }
+
+        public Instance(final String instanceId,
+                        final boolean latestModelApplied,
+                        final List<String> zones,
+                        final Map<String, String> tags,
+                        final Health health) {
+            this.instanceId = instanceId;
+            this.latestModelApplied = latestModelApplied;
+            this.zones = zones;
+            this.tags = tags;
+            this.health = health;
+        }
+
+        static Instance fromJson(final JsonNode vm) {
+            final List<String> zones = new ArrayList<>();
+            for (JsonNode zone : vm.path("zones")) {
+                zones.add(zone.asText());
+            }
+            // tag names are case insensitive in Azure
+            final Map<String, String> tags = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            final Iterator<Map.Entry<String, JsonNode>> fields = vm.path("tags").fields();
+            while (fields.hasNext()) {
+                final Map.Entry<String, JsonNode> tag = fields.next();
+                tags.put(tag.getKey(), tag.getValue().asText());
+            }
+            return new Instance(
+                    vm.path("instanceId").asText(),
+                    vm.path("properties").path("latestModelApplied").asBoolean(true),
+                    Collections.unmodifiableList(zones),
+                    Collections.unmodifiableMap(tags),
+                    healthOf(vm.path("properties").path("instanceView")));
+        }
+
+        static Health healthOf(final JsonNode instanceView) {
+            if (instanceView.isMissingNode()) {
+                return Health.UNKNOWN;
+            }
+            for (JsonNode extension : instanceView.path("extensions")) {
+                for (JsonNode status : extension.path("statuses")) {
+                    if (code(status).startsWith(PROVISIONING_FAILED)) {
+                        return Health.FAILED;
+                    }
+                }
+            }
+            boolean running = false;
+            for (JsonNode status : instanceView.path("statuses")) {
+                final String code = code(status);
+                if (code.startsWith(PROVISIONING_FAILED)) {
+                    return Health.FAILED;
+                }
+                if (code.startsWith(PROVISIONING_STATE) && !code.equals(PROVISIONING_SUCCEEDED)) {
+                    return Health.PENDING;
+                }
+                running |= code.equals(POWER_STATE_RUNNING);
+            }
+            final String health = code(instanceView.path("vmHealth").path("status"));
+            if (health.equals(HEALTH_STATE_HEALTHY)) {
+                return running ? Health.HEALTHY : Health.PENDING;
+            }
+            if (health.equals(HEALTH_STATE_UNHEALTHY)) {
+                return Health.UNHEALTHY;
+            }
+            if (!health.isEmpty()) {
+                return Health.PENDING;
+            }
+            // without the application health extension, a running instance is as healthy as it can tell
+            return running ? Health.HEALTHY : Health.PENDING;
+        }
+
+        private static String code(final JsonNode status) {
+            return status.path("code").asText("").toLowerCase();
+        }
+
+        public String getInstanceId() {
+            return instanceId;
+        }
+
+        public boolean isLatestModelApplied() {
+            return latestModelApplied;
+        }
+
+        public List<String> getZones() {
+            return zones;
+        }
+
+        public Map<String, String> getTags() {
+            return tags;
+        }
+
+        public Health getHealth() {
+            return health;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+package com.microsoft.jenkins.vmss.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Cache of the scale set models read through the plugin's clients, keyed by resource ID, that turns the reads into
+ * conditional requests.
+ * <p>
+ * A model returned with an {@code ETag} is kept, and the next read of the same resource sends it in
+ * {@code If-None-Match}. A {@code 304 Not Modified} answer is replaced by the cached model, so the SDK sees a regular
+ * response while only the status line crossed the network. Responses without an {@code ETag} are passed through and
+ * never cached.
+ * <p>
+ * The cache never makes a write conditional: the newest cached {@code ETag} may come from another caller's read, made
+ * after the model being written was read. Callers send the {@code ETag} of their own read in {@code If-Match}, and the
+ * rejected writes are counted here.
+ * <p>
+ * Entries are evicted by total size and by age, and any write or delete of the resource drops its entry.
+ */
+public final class ScaleSetModelCache implements Interceptor {
+
+    private static final ScaleSetModelCache INSTANCE = new ScaleSetModelCache(
+            Constants.MODEL_CACHE_MAX_BYTES,
+            TimeUnit.MINUTES.toNanos(Constants.MODEL_CACHE_EXPIRE_MINUTES),
+            Ticker.systemTicker());
+
+    private static final Pattern SCALE_SET_PATH = Pattern.compile(
+            "/subscriptions/[^/]+/resourcegroups/[^/]+/providers/microsoft\\.compute/virtualmachinescalesets/[^/]+");
+
+    private static final String ETAG = "ETag";
+    private static final String IF_NONE_MATCH = "If-None-Match";
+    private static final String IF_MATCH = "If-Match";
+    private static final String CONTENT_LENGTH = "Content-Length";
+    private static final String API_VERSION = "api-version";
+
+    private final Cache<String, Entry> models;
+    private final AtomicLong notModifiedCount = new AtomicLong();
+    private final AtomicLong preconditionFailedCount = new AtomicLong();
+
+    @VisibleForTesting
+    ScaleSetModelCache(final long maximumBytes, final long expireAfterWriteNanos, final Ticker ticker) {
+        this.models = CacheBuilder.newBuilder()
+                .maximumWeight(maximumBytes)
+                .weigher(new Weigher<String, Entry>() {
+                    @Override
+                    public int weigh(final String key, final Entry entry) {
+                        return entry.body.length;
+                    }
+                })
+                .expireAfterWrite(expireAfterWriteNanos, TimeUnit.NANOSECONDS)
+                .ticker(ticker)
+                .build();
+    }
+
+    public static ScaleSetModelCache getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public Response intercept(final Chain chain) throws IOException {
+        final Request request = chain.request();
+        final String resourceId = resourceId(request.url());
+        if (resourceId == null) {
+            return chain.proceed(request);
+        }
+        switch (request.method()) {
+            case "GET":
+                return read(chain, request, resourceId);
+            case "PUT":
+            case "PATCH":
+            case "DELETE":
+                return write(chain, request, resourceId);
+            default:
+                return chain.proceed(request);
+        }
+    }
+
+    private Response read(final Chain chain, final Request request, final String resourceId) throws IOException {
+        final String apiVersion = request.url().queryParameter(API_VERSION);
+        final Entry cached = models.getIfPresent(resourceId);
+        // the shape of the model depends on the API version, and callers sending their own condition get its answer
+        final boolean conditional = cached != null
+                && StringUtils.equals(cached.apiVersion, apiVersion)
+                && request.header(IF_NONE_MATCH) == null;
+        final Response response = chain.proceed(conditional
+                ? request.newBuilder().header(IF_NONE_MATCH, cached.etag).build()
+                : request);
+
+        if (conditional && response.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            notModifiedCount.incrementAndGet();
+            response.close();
+            return response.newBuilder()
+                    .code(HttpURLConnection.HTTP_OK)
+                    .message("OK")
+                    .header(ETAG, cached.etag)
+                    .removeHeader(CONTENT_LENGTH)
+                    .body(ResponseBody.create(cached.contentType, cached.body))
+                    .build();
+        }
+
+        final String etag = response.header(ETAG);
+        final ResponseBody body = response.body();
+        if (response.code() != HttpURLConnection.HTTP_OK || etag == null || body == null) {
+            models.invalidate(resourceId);
+            return response;
+        }
+        final MediaType contentType = body.contentType();
+        final byte[] bytes = body.bytes();
+        models.put(resourceId, new Entry(etag, apiVersion, contentType, bytes));
+        return response.newBuilder().body(ResponseBody.create(contentType, bytes)).build();
+    }
+
+    private Response write(final Chain chain, final Request request, final String resourceId) throws IOException {
+        try {
+            final Response response = chain.proceed(request);
+            if (request.header(IF_MATCH) != null && response.code() == HttpURLConnection.HTTP_PRECON_FAILED) {
+                preconditionFailedCount.incrementAndGet();
+            }
+            return response;
+        } finally {
+            // whatever the outcome, the cached model is not known to be current any more
+            models.invalidate(resourceId);
+        }
+    }
+
+    /**
+     * @return the lower case resource ID of the scale set addressed by {@code url}, or {@code null} if it does not
+     * address a scale set itself
+     */
+    static String resourceId(final HttpUrl url) {
+        final String path = StringUtils.removeEnd(url.encodedPath(), "/").toLowerCase(Locale.ROOT);
+        return SCALE_SET_PATH.matcher(path).matches() ? path : null;
+    }
+
+    public void invalidateAll() {
+        models.invalidateAll();
+    }
+
+    public long size() {
+        return models.size();
+    }
+
+    /**
+     * @return how many reads were answered with {@code 304 Not Modified} and served from the cache
+     */
+    public long getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    /**
+     * @return how many conditional writes were rejected because the model had changed since it was read
+     */
+    public long getPreconditionFailedCount() {
+        return preconditionFailedCount.get();
+    }
+
+    private static final class Entry {
+        private final String etag;
+        private final String apiVersion;
+        private final MediaType contentType;
+        private final byte[] body;
+
+        Entry(final String etag, final String apiVersion, final MediaType contentType, final byte[] body) {
+            this.etag = etag;
+            this.apiVersion = apiVersion;
+            this.contentType = contentType;
+            this.body = body;
+        }
+    }
+}
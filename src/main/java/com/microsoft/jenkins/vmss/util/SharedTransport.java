@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+package com.microsoft.jenkins.vmss.util;
+
+import net.sf.json.JSONObject;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP transport shared by all the Azure clients of the plugin: one connection pool, so connections and TLS sessions
+ * to Resource Manager are reused across clients and builds, and one dispatcher bounding the concurrent asynchronous
+ * requests.
+ * <p>
+ * Clients derive their own HTTP client from {@link #newClientBuilder()}, adding their interceptors and credentials
+ * while keeping the shared pool and dispatcher.
+ */
+public final class SharedTransport {
+
+    private static final SharedTransport INSTANCE = new SharedTransport();
+
+    private volatile OkHttpClient client;
+    private volatile boolean http2;
+
+    private SharedTransport() {
+        configure(Constants.TRANSPORT_MAX_IDLE_CONNECTIONS, Constants.TRANSPORT_KEEP_ALIVE_SECONDS,
+                Constants.TRANSPORT_MAX_REQUESTS, Constants.TRANSPORT_MAX_REQUESTS_PER_HOST, true);
+    }
+
+    public static SharedTransport getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Replaces the transport. Clients built earlier keep the previous one until they are discarded.
+     *
+     * @param maxIdleConnections the maximum number of idle connections kept in the pool
+     * @param keepAliveSeconds   how long an idle connection is kept in the pool
+     * @param maxRequests        the maximum number of asynchronous requests running at the same time
+     * @param maxRequestsPerHost the same, per host
+     * @param enableHttp2        whether to negotiate HTTP/2 with the hosts that support it
+     */
+    public synchronized void configure(final int maxIdleConnections,
+                                       final long keepAliveSeconds,
+                                       final int maxRequests,
+                                       final int maxRequestsPerHost,
+                                       final boolean enableHttp2) {
+        final Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(Math.max(1, maxRequests));
+        dispatcher.setMaxRequestsPerHost(Math.max(1, maxRequestsPerHost));
+
+        final OkHttpClient previous = client;
+        client = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(Math.max(0, maxIdleConnections),
+                        Math.max(1, keepAliveSeconds), TimeUnit.SECONDS))
+                .dispatcher(dispatcher)
+                .protocols(enableHttp2
+                        ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)
+                        : Collections.singletonList(Protocol.HTTP_1_1))
+                .connectTimeout(Constants.TRANSPORT_CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .readTimeout(Constants.TRANSPORT_READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .build();
+        http2 = enableHttp2;
+        if (previous != null) {
+            // connections in use are closed by their clients once released
+            previous.connectionPool().evictAll();
+        }
+    }
+
+    /**
+     * @return a builder sharing the connection pool and the dispatcher of the transport
+     */
+    public OkHttpClient.Builder newClientBuilder() {
+        return client.newBuilder();
+    }
+
+    public int getConnectionCount() {
+        return client.connectionPool().connectionCount();
+    }
+
+    public int getIdleConnectionCount() {
+        return client.connectionPool().idleConnectionCount();
+    }
+
+    public int getRunningCallsCount() {
+        return client.dispatcher().runningCallsCount();
+    }
+
+    public int getQueuedCallsCount() {
+        return client.dispatcher().queuedCallsCount();
+    }
+
+    public int getMaxRequests() {
+        return client.dispatcher().getMaxRequests();
+    }
+
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    public JSONObject toJson() {
+        final JSONObject json = new JSONObject();
+        json.put("connections", getConnectionCount());
+        json.put("idleConnections", getIdleConnectionCount());
+        json.put("runningCalls", getRunningCallsCount());
+        json.put("queuedCalls", getQueuedCallsCount());
+        json.put("maxRequests", getMaxRequests());
+        json.put("http2", isHttp2());
+        return json;
+    }
+}
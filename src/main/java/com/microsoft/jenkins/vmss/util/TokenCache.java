@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+package com.microsoft.jenkins.vmss.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.microsoft.jenkins.azurecommons.core.credentials.TokenCredentialData;
+import jenkins.util.Timer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide cache of the deserialized credential data and of the access tokens acquired with it, so that
+ * builds using the same credential share one token instead of each client requesting its own.
+ * <p>
+ * A token is refreshed in the background once it gets close to its expiry, and the current one is served until the
+ * refresh completes. Only an expired token is fetched in the foreground. Concurrent requests for a missing token
+ * share a single fetch.
+ */
+public final class TokenCache {
+
+    private static final Logger LOGGER = Logger.getLogger(TokenCache.class.getName());
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String JWT_SEPARATOR = "\\.";
+
+    private static final TokenCache INSTANCE = new TokenCache(
+            Constants.TOKEN_CACHE_MAX_SIZE,
+            TimeUnit.SECONDS.toNanos(Constants.TOKEN_REFRESH_AHEAD_SECONDS),
+            Ticker.systemTicker(),
+            new Executor() {
+                @Override
+                public void execute(final Runnable command) {
+                    Timer.get().execute(command);
+                }
+            });
+
+    private final Cache<String, TokenCredentialData> credentialData;
+    private final Cache<String, Entry> tokens;
+    private final long refreshAheadNanos;
+    private final Ticker ticker;
+    private final Executor refreshExecutor;
+
+    @VisibleForTesting
+    TokenCache(final long maximumSize,
+               final long refreshAheadNanos,
+               final Ticker ticker,
+               final Executor refreshExecutor) {
+        this.credentialData = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+        this.tokens = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+        this.refreshAheadNanos = refreshAheadNanos;
+        this.ticker = ticker;
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    public static TokenCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the deserialized form of the credential data, deserializing it only the first time it is seen.
+     */
+    public TokenCredentialData credentialData(final String serializedTokenData) {
+        try {
+            return credentialData.get(AzureClientCache.fingerprint(serializedTokenData),
+                    new Callable<TokenCredentialData>() {
+                        @Override
+                        public TokenCredentialData call() {
+                            return TokenCredentialData.deserialize(serializedTokenData);
+                        }
+                    });
+        } catch (ExecutionException | UncheckedExecutionException ex) {
+            Throwables.throwIfUnchecked(ex.getCause());
+            throw new IllegalStateException(ex.getCause().getMessage(), ex.getCause());
+        }
+    }
+
+    /**
+     * Returns the cached access token for {@code key}, fetching it with {@code fetcher} if there is none or it has
+     * expired, and refreshing it in the background if it expires soon.
+     *
+     * @param key identifies the credential and the resource the token is for
+     */
+    public String getToken(final String key, final Callable<String> fetcher) throws IOException {
+        Entry entry = load(key, fetcher);
+        if (ticker.read() >= entry.expiresAt) {
+            tokens.asMap().remove(key, entry);
+            entry = load(key, fetcher);
+        }
+
+        final Entry current = entry;
+        if (ticker.read() >= current.refreshAt && current.refreshing.compareAndSet(false, true)) {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        tokens.asMap().replace(key, current, newEntry(fetcher.call()));
+                    } catch (Exception ex) {
+                        // the current token stays in use until it expires, then the fetch is retried in the foreground
+                        LOGGER.log(Level.FINE, "Failed to refresh access token " + key, ex);
+                    } finally {
+                        current.refreshing.set(false);
+                    }
+                }
+            });
+        }
+        return current.token;
+    }
+
+    private Entry load(final String key, final Callable<String> fetcher) throws IOException {
+        try {
+            return tokens.get(key, new Callable<Entry>() {
+                @Override
+                public Entry call() throws Exception {
+                    return newEntry(fetcher.call());
+                }
+            });
+        } catch (ExecutionException | UncheckedExecutionException ex) {
+            Throwables.throwIfInstanceOf(ex.getCause(), IOException.class);
+            Throwables.throwIfUnchecked(ex.getCause());
+            throw new IOException(ex.getCause().getMessage(), ex.getCause());
+        }
+    }
+
+    private Entry newEntry(final String token) {
+        final long now = ticker.read();
+        final long lifetimeNanos = TimeUnit.MILLISECONDS.toNanos(
+                lifetimeMillis(token, System.currentTimeMillis()));
+        // never refresh in the first half of the lifetime, even for short-lived tokens
+        final long refreshAhead = Math.min(refreshAheadNanos, lifetimeNanos / 2);
+        return new Entry(token, now + lifetimeNanos - refreshAhead, now + lifetimeNanos);
+    }
+
+    /**
+     * Reads the lifetime of a token from the {@code exp} claim of the JSON Web Token, falling back to a short default
+     * lifetime if the token is not a JWT.
+     */
+    static long lifetimeMillis(final String token, final long nowMillis) {
+        final String[] parts = token == null ? new String[0] : token.split(JWT_SEPARATOR);
+        if (parts.length >= 2) {
+            try {
+                final JsonNode claims = MAPPER.readTree(
+                        new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8));
+                final long expiresAt = TimeUnit.SECONDS.toMillis(claims.path("exp").asLong(0));
+                if (expiresAt > 0) {
+                    return Math.max(0, expiresAt - nowMillis);
+                }
+            } catch (IOException | IllegalArgumentException ex) {
+                LOGGER.log(Level.FINE, "Access token is not a JSON Web Token", ex);
+            }
+        }
+        return TimeUnit.SECONDS.toMillis(Constants.TOKEN_DEFAULT_LIFETIME_SECONDS);
+    }
+
+    public void invalidateAll() {
+        credentialData.invalidateAll();
+        tokens.invalidateAll();
+    }
+
+    public long size() {
+        return tokens.size();
+    }
+
+    private static final class Entry {
+        private final String token;
+        private final long refreshAt;
+        private final long expiresAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(final String token, final long refreshAt, final long expiresAt) {
+            this.token = token;
+            this.refreshAt = refreshAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+(function() {
+    var DEBOUNCE_MILLIS = 250;
+
+    // Lookup results by URL and dependent field values, then by typed prefix, kept for the lifetime of the page.
+    var lookupCache = {};
+    var listCount = 0;
+
+    function cachedMatches(entries, prefix) {
+        var exact = entries[prefix];
+        if (exact) {
+            return exact.names;
+        }
+        // all the matches of a shorter prefix are known, so the longer one is answered by filtering them
+        var lowerPrefix = prefix.toLowerCase();
+        for (var shorter in entries) {
+            if (entries.hasOwnProperty(shorter) && entries[shorter].complete
+                    && lowerPrefix.indexOf(shorter.toLowerCase()) === 0) {
+                return entries[shorter].names.filter(function(name) {
+                    return name.toLowerCase().indexOf(lowerPrefix) === 0;
+                });
+            }
+        }
+        return null;
+    }
+
+    function lookup(url, dependencies, prefix, callback) {
+        var scope = url + '?' + Object.toQueryString(dependencies);
+        var entries = lookupCache[scope] = lookupCache[scope] || {};
+        var names = cachedMatches(entries, prefix);
+        if (names) {
+            callback(names);
+            return;
+        }
+
+        var parameters = Object.extend({ value: prefix }, dependencies);
+        new Ajax.Request(url, {
+            method: 'get',
+            parameters: parameters,
+            onSuccess: function(rsp) {
+                var result = JSON.parse(rsp.responseText);
+                if (result.error) {
+                    console.log(result.error);
+                } else {
+                    entries[prefix] = result;
+                }
+                callback(result.names || []);
+            },
+            onFailure: function(rsp) {
+                console.log(rsp);
+            }
+        });
+    }
+
+    Behaviour.specify('INPUT.azure-vmss-type-ahead', 'vmssTypeAhead', 0, function(inputEl) {
+        var url = inputEl.getAttribute('data-lookup-url');
+        var dependsOn = (inputEl.getAttribute('data-lookup-depends-on') || '').split(' ');
+
+        var listEl = document.createElement('datalist');
+        listEl.id = 'azure-vmss-type-ahead-' + (++listCount);
+        inputEl.parentNode.appendChild(listEl);
+        inputEl.setAttribute('list', listEl.id);
+        inputEl.setAttribute('autocomplete', 'off');
+
+        function showSuggestions(names) {
+            listEl.innerHTML = '';
+            for (var i = 0; i < names.length; i++) {
+                var optionEl = document.createElement('option');
+                optionEl.value = names[i];
+                listEl.appendChild(optionEl);
+            }
+        }
+
+        function suggest() {
+            var dependencies = {};
+            for (var i = 0; i < dependsOn.length; i++) {
+                if (!dependsOn[i]) {
+                    continue;
+                }
+                var dependencyEl = findPreviousFormItem(inputEl, dependsOn[i]);
+                if (!dependencyEl || !dependencyEl.value) {
+                    showSuggestions([]);
+                    return;
+                }
+                dependencies[dependsOn[i]] = dependencyEl.value;
+            }
+            var prefix = inputEl.value;
+            lookup(url, dependencies, prefix, function(names) {
+                // drop the answers to prefixes the user has already typed past
+                if (inputEl.value === prefix) {
+                    showSuggestions(names);
+                }
+            });
+        }
+
+        var timer = null;
+        inputEl.addEventListener('input', function() {
+            clearTimeout(timer);
+            timer = setTimeout(suggest, DEBOUNCE_MILLIS);
+        });
+        inputEl.addEventListener('focus', suggest);
+    });
+})();
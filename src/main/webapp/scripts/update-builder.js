@@ -4,10 +4,94 @@
  * license information.
  */
 (function() {
-    Behaviour.specify('SELECT.select-azure-vmss-name', 'vmssImageType', 10000, function(nameEl) {
+    // Image metadata of the scale sets, by "credentials|resource group|name", shared by all the builders of the page.
+    // An entry holds either the result or the callbacks waiting for it.
+    var metadataCache = {};
+    // Lookups not sent yet, by endpoint. They are sent together once the current event has been handled, so that all
+    // the builders rendered on page load share one request.
+    var pendingLookups = {};
+    var flushScheduled = false;
+
+    function lookupImageMetadata(url, builder, callback) {
+        var key = [builder.azureCredentialsId, builder.resourceGroup, builder.name].join('|');
+        var entry = metadataCache[key];
+        if (entry && entry.result) {
+            callback(entry.result);
+            return;
+        }
+        if (entry) {
+            entry.callbacks.push(callback);
+            return;
+        }
+        metadataCache[key] = { callbacks: [callback] };
+        (pendingLookups[url] = pendingLookups[url] || []).push({ key: key, builder: builder });
+        if (!flushScheduled) {
+            flushScheduled = true;
+            setTimeout(flushLookups, 0);
+        }
+    }
+
+    function flushLookups() {
+        flushScheduled = false;
+        var lookups = pendingLookups;
+        pendingLookups = {};
+        for (var url in lookups) {
+            if (lookups.hasOwnProperty(url)) {
+                sendLookups(url, lookups[url]);
+            }
+        }
+    }
+
+    function sendLookups(url, lookups) {
+        var builders = [];
+        for (var i = 0; i < lookups.length; i++) {
+            builders.push(lookups[i].builder);
+        }
+        new Ajax.Request(url, {
+            parameters: { builders: Object.toJSON(builders) },
+            onSuccess: function(rsp) {
+                var results = JSON.parse(rsp.responseText);
+                for (var i = 0; i < lookups.length; i++) {
+                    var entry = metadataCache[lookups[i].key];
+                    var result = results[i] || { error: 'missing result' };
+                    if (result.error) {
+                        // not memoized, the next change of the builder asks again
+                        delete metadataCache[lookups[i].key];
+                    } else {
+                        entry.result = result;
+                    }
+                    for (var j = 0; j < entry.callbacks.length; j++) {
+                        entry.callbacks[j](result);
+                    }
+                }
+            },
+            onFailure: function(rsp) {
+                console.log(rsp);
+                for (var i = 0; i < lookups.length; i++) {
+                    var entry = metadataCache[lookups[i].key];
+                    delete metadataCache[lookups[i].key];
+                    for (var j = 0; j < entry.callbacks.length; j++) {
+                        entry.callbacks[j]({ error: rsp.statusText });
+                    }
+                }
+            }
+        });
+    }
+
+    function describeImage(metadata) {
+        if (metadata.imageType === 'official') {
+            return [metadata.publisher, metadata.offer, metadata.sku, metadata.version].join(':');
+        }
+        return metadata.id;
+    }
+
+    Behaviour.specify('.select-azure-vmss-name', 'vmssImageType', 10000, function(nameEl) {
         var credentialsEl = findPreviousFormItem(nameEl, 'azureCredentialsId');
         var resourceGroupEl = findPreviousFormItem(nameEl, 'resourceGroup');
         var spinnerEl = findNext(nameEl, function(e) { return e.className === 'azure-vmss-spinner'; });
+        var currentImageEl = findNext(nameEl, function(e) {
+            return e.className && e.className.indexOf('azure-vmss-current-image') >= 0;
+        });
 
         // Reset resource group and name field if credentials changed
         if (credentialsEl) {
@@ -26,7 +110,7 @@
 
         // Select appropriate image type according to VMSS profile
         function selectImageType() {
-            var checkUrl = nameEl.getAttribute("data-check-url");
+            var metadataUrl = nameEl.getAttribute("data-metadata-url");
             var builderTBody = findAncestor(nameEl, 'TBODY');
             if (!builderTBody)
                 return;
@@ -37,35 +121,60 @@
 
             var imageTypeOfficialEl = findNext(nameEl, function(e) { return e.tagName === 'INPUT' && e.value === 'official'; });
             var imageTypeCustomEl = findNext(nameEl, function(e) { return e.tagName === 'INPUT' && e.value === 'custom'; });
+            var imageTypeGalleryEl = findNext(nameEl, function(e) { return e.tagName === 'INPUT' && e.value === 'gallery'; });
+
+            if (currentImageEl) {
+                currentImageEl.style.display = 'none';
+            }
 
-            if (name && resourceGroup && azureCredentialsId && checkUrl) {
+            if (name && resourceGroup && azureCredentialsId && metadataUrl) {
                 spinnerEl.style.display = '';
 
-                var config = {
-                    parameters: {
-                        azureCredentialsId: azureCredentialsId,
-                        resourceGroup: resourceGroup,
-                        name: name
-                    },
-                    onSuccess: function(rsp) {
-                        console.log(rsp);
-                        spinnerEl.style.display = 'none';
-
-                        var isCustomImage = rsp.responseText === "true";
-                        var enabledEl = isCustomImage ? imageTypeCustomEl : imageTypeOfficialEl;
-                        var disabledEl = !isCustomImage ? imageTypeCustomEl : imageTypeOfficialEl;
-
-                        disabledEl.disabled = true;
-                        enabledEl.disabled = false;
+                var builder = {
+                    azureCredentialsId: azureCredentialsId,
+                    resourceGroup: resourceGroup,
+                    name: name
+                };
+                lookupImageMetadata(metadataUrl, builder, function(metadata) {
+                    spinnerEl.style.display = 'none';
+                    if (metadata.error) {
+                        console.log(metadata.error);
+                        return;
+                    }
+                    // the builder may have moved on to another scale set while the lookup was pending
+                    if (nameEl.value !== name) {
+                        return;
+                    }
+
+                    // A scale set created from an image ID can only be updated to another image ID, and a marketplace
+                    // one only to another marketplace image.
+                    var isCustomImage = metadata.found && metadata.imageType !== 'official';
+                    imageTypeOfficialEl.disabled = isCustomImage;
+                    imageTypeCustomEl.disabled = !isCustomImage;
+                    if (imageTypeGalleryEl) {
+                        imageTypeGalleryEl.disabled = !isCustomImage;
+                    }
+
+                    // keep the image type chosen by the user as long as it is still allowed
+                    var radios = [imageTypeOfficialEl, imageTypeCustomEl, imageTypeGalleryEl];
+                    var keepChecked = false;
+                    for (var i = 0; i < radios.length; i++) {
+                        keepChecked = keepChecked || (radios[i] && radios[i].checked && !radios[i].disabled);
+                    }
+                    if (!keepChecked) {
+                        var enabledEl = !isCustomImage ? imageTypeOfficialEl
+                            : metadata.imageType === 'gallery' && imageTypeGalleryEl ? imageTypeGalleryEl
+                            : imageTypeCustomEl;
                         enabledEl.checked = true;
+                    }
+                    imageTypeOfficialEl.form.radios['imageType'].updateButtons();
 
-                        enabledEl.form.radios['imageType'].updateButtons();
-                    },
-                    onFailure: function(rsp) {
-                        console.log(rsp);
+                    if (currentImageEl && metadata.found) {
+                        currentImageEl.textContent = currentImageEl.getAttribute('data-label') + ' '
+                            + describeImage(metadata);
+                        currentImageEl.style.display = '';
                     }
-                };
-                new Ajax.Request(checkUrl, config);
+                });
             }
         }
 
@@ -77,4 +186,3 @@
         selectImageType();
     });
 })();
-
@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.microsoft.azure.management.Azure;
+import com.microsoft.azure.management.compute.implementation.ImageReferenceInner;
+import com.microsoft.jenkins.vmss.util.AzureUtils;
+import com.microsoft.jenkins.vmss.util.Constants;
+import com.microsoft.jenkins.vmss.util.ImageMetadataCache;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Runs the asynchronous pipeline steps against {@link FakeArmServer}, including poll errors, stopping and resuming
+ * after a restart.
+ */
+public class AzureOperationStepExecutionTest {
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    private final BlockingQueue<Runnable> scheduled = new LinkedBlockingQueue<>();
+    private FakeArmServer server;
+    private Azure azure;
+    private ScheduledExecutorService timer;
+    private ScheduledExecutorService manualTimer;
+    private ScheduledFuture<?> pollTask;
+    private StepContext context;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeArmServer().withLroPolls(2).addScaleSet("rg", "vmss", 3);
+        azure = AzureUtils.buildClient(server.credentials(), FakeArmServer.SUBSCRIPTION_ID);
+        timer = Executors.newSingleThreadScheduledExecutor();
+
+        // keeps the polls until the test runs them
+        pollTask = mock(ScheduledFuture.class);
+        manualTimer = mock(ScheduledExecutorService.class);
+        doAnswer(new Answer<ScheduledFuture<?>>() {
+            @Override
+            public ScheduledFuture<?> answer(final InvocationOnMock invocation) {
+                scheduled.add(invocation.<Runnable>getArgument(0));
+                return pollTask;
+            }
+        }).when(manualTimer).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+
+        context = mock(StepContext.class, withSettings().serializable());
+        stub(context);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        timer.shutdownNow();
+        server.close();
+    }
+
+    private void stub(final StepContext stepContext) throws Exception {
+        final TaskListener listener = mock(TaskListener.class);
+        when(listener.getLogger()).thenReturn(new PrintStream(log, true));
+        when(stepContext.get(Run.class)).thenReturn(mock(Run.class));
+        when(stepContext.get(TaskListener.class)).thenReturn(listener);
+        when(stepContext.get(EnvVars.class)).thenReturn(new EnvVars("VERSION", "16.04.201801050"));
+    }
+
+    private <T extends AzureOperationStepExecution> T withClient(final T execution,
+                                                                 final ScheduledExecutorService scheduler) {
+        execution.setAzureClientFactory(new BaseBuilder.AzureClientFactory() {
+            @Override
+            public Azure createAzureClient(final Item owner, final String azureCredentialsId) {
+                return azure;
+            }
+        });
+        execution.setScheduler(scheduler);
+        return execution;
+    }
+
+    private AzureOperationStepExecution updateInstances(final ScheduledExecutorService scheduler) {
+        return withClient(new UpdateInstancesStep.Execution(context,
+                new UpdateInstancesStep("cid", "rg", "vmss", "0-2")), scheduler);
+    }
+
+    private Runnable nextPoll() throws InterruptedException {
+        final Runnable poll = scheduled.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        Assert.assertNotNull("no poll was scheduled", poll);
+        return poll;
+    }
+
+    @Test
+    public void updateStepChangesTheImage() throws Exception {
+        final ImageReference imageReference = new ImageReference();
+        imageReference.setPublisher("Canonical");
+        imageReference.setOffer("UbuntuServer");
+        imageReference.setSku("16.04-LTS");
+        imageReference.setVersion("${VERSION}");
+        // shown by the configuration form before the update
+        final String metadataKey = ImageMetadataCache.key("cid", FakeArmServer.SUBSCRIPTION_ID, "rg", "vmss");
+        final ImageMetadataCache.Metadata stale = ImageMetadataCache.Metadata.of(new ImageReferenceInner()
+                .withPublisher("Canonical").withOffer("UbuntuServer").withSku("16.04-LTS").withVersion("latest"));
+        ImageMetadataCache.getInstance().get(metadataKey, new Callable<ImageMetadataCache.Metadata>() {
+            @Override
+            public ImageMetadataCache.Metadata call() {
+                return stale;
+            }
+        });
+
+        Assert.assertFalse(withClient(new UpdateStep.Execution(context,
+                new UpdateStep("cid", "rg", "vmss", imageReference)), timer).start());
+
+        verify(context, timeout(TIMEOUT_MILLIS)).onSuccess(isNull());
+        verify(context, never()).onFailure(any(Throwable.class));
+        Assert.assertNotSame(stale, ImageMetadataCache.getInstance().get(metadataKey,
+                new Callable<ImageMetadataCache.Metadata>() {
+                    @Override
+                    public ImageMetadataCache.Metadata call() {
+                        return ImageMetadataCache.Metadata.notFound();
+                    }
+                }));
+        Assert.assertEquals("16.04.201801050", server.getScaleSet("rg", "vmss").path("properties")
+                .path("virtualMachineProfile").path("storageProfile").path("imageReference").path("version")
+                .asText());
+        Assert.assertEquals(3, server.getOutdatedInstances("rg", "vmss").size());
+    }
+
+    @Test
+    public void updateStepPinsTheLatestVersion() throws Exception {
+        final ImageReference imageReference = new ImageReference();
+        imageReference.setPublisher("Canonical");
+        imageReference.setOffer("UbuntuServer");
+        imageReference.setSku("16.04-LTS");
+        imageReference.setVersion("latest");
+        imageReference.setPinLatestVersion(true);
+        // resolved by an earlier step of the build
+        final ResolvedImageVersionsAction action = new ResolvedImageVersionsAction();
+        action.resolve("Canonical", "UbuntuServer", "16.04-LTS", new Callable<String>() {
+            @Override
+            public String call() {
+                return "16.04.201810";
+            }
+        });
+        when(context.get(Run.class).getAction(ResolvedImageVersionsAction.class)).thenReturn(action);
+
+        withClient(new UpdateStep.Execution(context, new UpdateStep("cid", "rg", "vmss", imageReference)), timer)
+                .start();
+
+        verify(context, timeout(TIMEOUT_MILLIS)).onSuccess(isNull());
+        Assert.assertEquals("16.04.201810", server.getScaleSet("rg", "vmss").path("properties")
+                .path("virtualMachineProfile").path("storageProfile").path("imageReference").path("version")
+                .asText());
+    }
+
+    @Test
+    public void updateStepDoesNotWriteUnresolvedGalleryImage() throws Exception {
+        final ImageReference imageReference = new ImageReference();
+        imageReference.setGalleryName("gallery");
+        imageReference.setGalleryImageDefinition("ubuntu");
+
+        withClient(new UpdateStep.Execution(context, new UpdateStep("cid", "rg", "vmss", imageReference)), timer)
+                .start();
+
+        verify(context, timeout(TIMEOUT_MILLIS)).onFailure(any(Throwable.class));
+        verify(context, never()).onSuccess(any());
+        Assert.assertEquals("latest", server.getScaleSet("rg", "vmss").path("properties")
+                .path("virtualMachineProfile").path("storageProfile").path("imageReference").path("version")
+                .asText());
+    }
+
+    @Test
+    public void updateInstancesStepWaitsForTheOperation() throws Exception {
+        server.getOutdatedInstances("rg", "vmss").add("1");
+
+        Assert.assertFalse(updateInstances(timer).start());
+
+        verify(context, timeout(TIMEOUT_MILLIS)).onSuccess(isNull());
+        verify(context).saveState();
+        Assert.assertTrue(server.getOutdatedInstances("rg", "vmss").isEmpty());
+        Assert.assertTrue(log.toString().contains(Messages.UpdateInstancesBuilder_PerformLogSuccess()));
+    }
+
+    @Test(expected = AbortException.class)
+    public void updateInstancesStepRejectsEmptyInstanceIds() throws Exception {
+        withClient(new UpdateInstancesStep.Execution(context, new UpdateInstancesStep("cid", "rg", "vmss", " ")),
+                timer).start();
+    }
+
+    @Test
+    public void updateInstancesStepFailsWhenNoInstanceExists() throws Exception {
+        server.getOutdatedInstances("rg", "vmss").add("1");
+
+        withClient(new UpdateInstancesStep.Execution(context, new UpdateInstancesStep("cid", "rg", "vmss", "5-7")),
+                timer).start();
+
+        verify(context, timeout(TIMEOUT_MILLIS)).onFailure(any(AbortException.class));
+        verify(context, never()).onSuccess(any());
+        Assert.assertEquals(1, server.getOutdatedInstances("rg", "vmss").size());
+    }
+
+    @Test
+    public void updateInstancesStepWaitsForOtherWrites() throws Exception {
+        server.getOutdatedInstances("rg", "vmss").add("1");
+        final ScaleSetCoordinator.Permit other = ScaleSetCoordinator.getInstance().acquireWrite(
+                ScaleSetCoordinator.key(FakeArmServer.SUBSCRIPTION_ID, "rg", "vmss"), false, null);
+        try {
+            updateInstances(timer).start();
+            verify(context, after(500).never()).onSuccess(any());
+            Assert.assertEquals(1, server.getOutdatedInstances("rg", "vmss").size());
+        } finally {
+            other.close();
+        }
+
+        verify(context, timeout(TIMEOUT_MILLIS)).onSuccess(isNull());
+        Assert.assertTrue(server.getOutdatedInstances("rg", "vmss").isEmpty());
+        Assert.assertTrue(log.toString().contains(Messages.ScaleSetCoordinator_Waiting(1,
+                ScaleSetCoordinator.key(FakeArmServer.SUBSCRIPTION_ID, "rg", "vmss"))));
+    }
+
+    @Test
+    public void pollErrorsFailTheStepAfterTheLimit() throws Exception {
+        updateInstances(manualTimer).start();
+        final Runnable firstPoll = nextPoll();
+        server.forgetOperations();
+
+        // each poll is sent by the HTTP client, which schedules the next one once it failed
+        firstPoll.run();
+        for (int i = 1; i < Constants.LRO_MAX_POLL_ERRORS; ++i) {
+            final Runnable poll = nextPoll();
+            verify(context, never()).onFailure(any(Throwable.class));
+            poll.run();
+        }
+
+        verify(context, timeout(TIMEOUT_MILLIS)).onFailure(any(IOException.class));
+        verify(context, never()).onSuccess(any());
+        Assert.assertTrue(scheduled.isEmpty());
+        Assert.assertTrue(log.toString().contains("Failed to check the Azure operation status, will retry"));
+    }
+
+    @Test
+    public void pollDoesNotBlockTheScheduler() throws Exception {
+        final AzureOperationStepExecution execution = updateInstances(manualTimer);
+        execution.start();
+        final Runnable poll = nextPoll();
+        server.withLatency(TIMEOUT_MILLIS, 0);
+
+        final long start = System.nanoTime();
+        poll.run();
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < TIMEOUT_MILLIS / 10);
+
+        execution.stop(new InterruptedException("aborted"));
+    }
+
+    @Test
+    public void stopCancelsPolling() throws Exception {
+        final AzureOperationStepExecution execution = updateInstances(manualTimer);
+        execution.start();
+        final Runnable poll = nextPoll();
+        final Exception cause = new InterruptedException("aborted");
+
+        execution.stop(cause);
+        poll.run();
+
+        verify(pollTask).cancel(true);
+        verify(context).onFailure(cause);
+        verify(context, never()).onSuccess(any());
+        Assert.assertTrue(scheduled.isEmpty());
+    }
+
+    @Test
+    public void resumePollsTheSavedOperation() throws Exception {
+        final AzureOperationStepExecution execution = updateInstances(manualTimer);
+        execution.start();
+        verify(context, timeout(TIMEOUT_MILLIS)).saveState();
+        // the controller goes down before the first poll
+        nextPoll();
+
+        final AzureOperationStepExecution resumed = withClient(restart(execution), timer);
+        resumed.onResume();
+
+        verify(resumed.getContext(), timeout(TIMEOUT_MILLIS)).onSuccess(isNull());
+        verify(resumed.getContext(), never()).onFailure(any(Throwable.class));
+        Assert.assertTrue(log.toString().contains(Messages.UpdateInstancesBuilder_PerformLogSuccess()));
+    }
+
+    @Test
+    public void resumeWithoutOperationFails() throws Exception {
+        updateInstances(timer).onResume();
+
+        verify(context).onFailure(any(AbortException.class));
+        verify(context, never()).onSuccess(any());
+    }
+
+    /**
+     * Serializes the execution as the pipeline does before a restart, and reads it back.
+     */
+    private AzureOperationStepExecution restart(final AzureOperationStepExecution execution) throws Exception {
+        // the write permit does not survive the restart
+        execution.stop(new InterruptedException("restart"));
+        reset(context);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(execution);
+        }
+        final AzureOperationStepExecution restored;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            restored = (AzureOperationStepExecution) in.readObject();
+        }
+        stub(restored.getContext());
+        return restored;
+    }
+}
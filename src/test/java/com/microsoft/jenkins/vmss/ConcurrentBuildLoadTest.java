@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.microsoft.azure.management.Azure;
+import com.microsoft.jenkins.vmss.util.AzureUtils;
+import com.microsoft.jenkins.vmss.util.LatencyHistogram;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Item;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs many {@link UpdateBuilder} and {@link UpdateInstancesBuilder} builds concurrently against
+ * {@link FakeArmServer} and reports throughput, build latency percentiles and thread usage.
+ * <p>
+ * Skipped unless {@code -DloadTest=true} is set, use {@code mvn -Pload-test test}. The load is tuned with the
+ * {@code loadTest.builds}, {@code loadTest.scaleSets}, {@code loadTest.latencyMillis},
+ * {@code loadTest.throttleRate} and {@code loadTest.failureRate} system properties.
+ */
+public class ConcurrentBuildLoadTest {
+
+    private static final int BUILDS = Integer.getInteger("loadTest.builds", 50);
+    private static final int SCALE_SETS = Integer.getInteger("loadTest.scaleSets", 10);
+    private static final int INSTANCES = 10;
+    private static final long LATENCY_MILLIS = Long.getLong("loadTest.latencyMillis", 100);
+    private static final double THROTTLE_RATE = Double.parseDouble(System.getProperty("loadTest.throttleRate", "0.02"));
+    private static final double FAILURE_RATE = Double.parseDouble(System.getProperty("loadTest.failureRate", "0"));
+
+    @Rule
+    public TemporaryFolder workspace = new TemporaryFolder();
+
+    @BeforeClass
+    public static void enabled() {
+        Assume.assumeTrue("Load test disabled, run with -DloadTest=true", Boolean.getBoolean("loadTest"));
+    }
+
+    @Test
+    public void concurrentBuilds() throws Exception {
+        try (FakeArmServer server = new FakeArmServer()
+                .withLatency(LATENCY_MILLIS, LATENCY_MILLIS)
+                .withThrottleRate(THROTTLE_RATE, 1)
+                .withFailureRate(FAILURE_RATE)) {
+            for (int i = 0; i < SCALE_SETS; ++i) {
+                server.addScaleSet("rg", "vmss-" + i, INSTANCES);
+            }
+            final Azure azure = AzureUtils.buildClient(server.credentials(), FakeArmServer.SUBSCRIPTION_ID);
+
+            final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            final int baselineThreads = threads.getThreadCount();
+            threads.resetPeakThreadCount();
+
+            final LatencyHistogram latency = new LatencyHistogram();
+            final AtomicInteger failures = new AtomicInteger();
+            final CountDownLatch startGate = new CountDownLatch(1);
+            final ExecutorService pool = Executors.newFixedThreadPool(BUILDS);
+            final List<Future<?>> builds = new ArrayList<>();
+            for (int i = 0; i < BUILDS; ++i) {
+                final Build build = new Build(builder(azure, i), failures);
+                builds.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        startGate.await();
+                        final long start = System.nanoTime();
+                        build.perform();
+                        latency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                        return null;
+                    }
+                }));
+            }
+
+            final long start = System.nanoTime();
+            startGate.countDown();
+            for (Future<?> build : builds) {
+                build.get();
+            }
+            final double seconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+            pool.shutdown();
+
+            System.out.println(String.format("Load test: %d builds against %d scale sets in %.2f s (%.2f builds/s)",
+                    BUILDS, SCALE_SETS, seconds, BUILDS / seconds));
+            System.out.println(String.format("  build latency ms: p50=%d p90=%d p99=%d max=%d",
+                    latency.percentile(0.5), latency.percentile(0.9), latency.percentile(0.99),
+                    latency.getMaxMillis()));
+            System.out.println(String.format("  ARM requests: %d, throttled: %d, injected failures: %d",
+                    server.getRequestCount(), server.getThrottledCount(), server.getFailedCount()));
+            System.out.println(String.format("  threads: baseline=%d peak=%d (%d build threads)",
+                    baselineThreads, threads.getPeakThreadCount(), BUILDS));
+            System.out.println(String.format("  failed builds: %d", failures.get()));
+
+            if (FAILURE_RATE == 0) {
+                Assert.assertEquals(0, failures.get());
+            }
+        }
+    }
+
+    private static BaseBuilder builder(final Azure azure, final int index) {
+        final String name = "vmss-" + (index % SCALE_SETS);
+        final BaseBuilder builder;
+        if (index % 2 == 0) {
+            final ImageReference imageReference = new ImageReference();
+            imageReference.setPublisher("Canonical");
+            imageReference.setOffer("UbuntuServer");
+            imageReference.setSku("16.04-LTS");
+            imageReference.setVersion("16.04." + index);
+            builder = new UpdateBuilder("cid", "rg", name, imageReference);
+        } else {
+            final StringBuilder ids = new StringBuilder("0");
+            for (int i = 1; i < INSTANCES; ++i) {
+                ids.append(',').append(i);
+            }
+            builder = new UpdateInstancesBuilder("cid", "rg", name, ids.toString());
+        }
+        builder.setAzureClientFactory(new BaseBuilder.AzureClientFactory() {
+            @Override
+            public Azure createAzureClient(final Item owner, final String azureCredentialsId) {
+                return azure;
+            }
+        });
+        return builder;
+    }
+
+    private final class Build {
+        private final BaseBuilder builder;
+        private final Run run = mock(Run.class);
+        private final TaskListener listener = mock(TaskListener.class);
+
+        Build(final BaseBuilder builder, final AtomicInteger failures) throws Exception {
+            this.builder = builder;
+            when(run.getEnvironment(listener)).thenReturn(new EnvVars());
+            when(listener.getLogger()).thenReturn(new PrintStream(new NullOutputStream()));
+            doAnswer(new Answer<Void>() {
+                @Override
+                public Void answer(final InvocationOnMock invocation) {
+                    if (Result.FAILURE.equals(invocation.getArgument(0))) {
+                        failures.incrementAndGet();
+                    }
+                    return null;
+                }
+            }).when(run).setResult(any(Result.class));
+        }
+
+        void perform() throws Exception {
+            builder.perform(run, new FilePath(workspace.getRoot()), mock(Launcher.class), listener);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import net.sf.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class DeploymentTimelineActionTest {
+
+    private static final long START = 1_000_000L;
+
+    @Test
+    public void phasesSpanTheirRequests() {
+        final DeploymentTimelineAction.Deployment deployment =
+                new DeploymentTimelineAction.Deployment("Update", "rg", "vmss", START);
+        deployment.phase(DeploymentTimelineAction.PHASE_AUTHENTICATE, START, 50);
+        deployment.request("GET", "/vmss", false, START + 50, 100, 200);
+        deployment.request("PATCH", "/vmss", false, START + 150, 200, 202);
+        deployment.request("GET", "/operations/1", true, START + 1350, 30, 200);
+        deployment.request("GET", "/operations/1", true, START + 2350, 30, 200);
+        deployment.request("GET", "/vmss", false, START + 2400, 100, 200);
+
+        final List<DeploymentTimelineAction.Phase> phases = deployment.getPhases();
+        Assert.assertEquals(4, phases.size());
+        Assert.assertEquals("GET", phases.get(1).getName());
+        Assert.assertEquals(50, phases.get(1).getOffsetMillis());
+        Assert.assertEquals(2450, phases.get(1).getDurationMillis());
+        Assert.assertEquals(2, phases.get(1).getRequests());
+
+        final DeploymentTimelineAction.Phase wait = phases.get(3);
+        Assert.assertEquals(DeploymentTimelineAction.PHASE_LRO_WAIT, wait.getName());
+        // from the end of the PATCH to the end of the last poll
+        Assert.assertEquals(350, wait.getOffsetMillis());
+        Assert.assertEquals(2030, wait.getDurationMillis());
+        Assert.assertEquals(2, wait.getRequests());
+    }
+
+    @Test
+    public void instancesAreSortedSlowestFirst() {
+        final DeploymentTimelineAction.Deployment deployment =
+                new DeploymentTimelineAction.Deployment("UpdateInstances", "rg", "vmss", START);
+        deployment.startBatch(Arrays.asList("0", "1"))
+                .finish(100, DeploymentTimelineAction.OUTCOME_SUCCEEDED, null);
+        deployment.startBatch(Arrays.asList("2"))
+                .finish(300, DeploymentTimelineAction.OUTCOME_FAILED, "Conflict");
+        deployment.finish(DeploymentTimelineAction.OUTCOME_FAILED, null);
+
+        final List<DeploymentTimelineAction.InstanceResult> instances = deployment.getInstances();
+        Assert.assertEquals("2", instances.get(0).getInstanceId());
+        Assert.assertEquals(2, instances.get(0).getBatch());
+        Assert.assertEquals(DeploymentTimelineAction.OUTCOME_FAILED, instances.get(0).getOutcome());
+        Assert.assertEquals(100, instances.get(2).getDurationMillis());
+
+        final JSONObject json = deployment.toJson();
+        Assert.assertEquals(2, json.getJSONArray("batches").size());
+        Assert.assertEquals(3, json.getJSONArray("instances").size());
+        Assert.assertEquals("Conflict", json.getJSONArray("batches").getJSONObject(1).getString("message"));
+    }
+}
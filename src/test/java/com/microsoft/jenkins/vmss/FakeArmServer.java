@@ -0,0 +1,602 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableMap;
+import com.microsoft.azure.AzureEnvironment;
+import com.microsoft.azure.credentials.AzureTokenCredentials;
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the Azure Resource Manager virtual machine scale set API, built on OkHttp's
+ * {@link MockWebServer}.
+ * <p>
+ * It serves scale set GET, PUT, PATCH, list (with paging), the instance list, manual upgrade of instances, the
+ * marketplace image versions, the Shared Image Gallery image versions and the status of the long running operations
+ * those start. Like Azure, a PATCH merges the image reference it carries into the current one. Scale sets are returned
+ * with an {@code ETag}, and writes carrying a stale one in {@code If-Match} are rejected. Changing the image marks
+ * all instances as not running the latest model until they are upgraded. Instances are spread over three
+ * availability zones and tagged with a role. Latency, throttling (429 with {@code Retry-After}) and server errors
+ * can be injected to exercise the client side under realistic conditions. Point a client at it with
+ * {@code AzureUtils.buildClient(server.credentials(), FakeArmServer.SUBSCRIPTION_ID)}.
+ */
+public final class FakeArmServer implements Closeable {
+
+    public static final String SUBSCRIPTION_ID = "00000000-0000-0000-0000-000000000000";
+    public static final String LOCATION = "fakeregion";
+
+    private static final int ZONES = 3;
+    private static final String GALLERY_RESOURCE_GROUP = "galleries";
+
+    private static final int HTTP_OK = 200;
+    private static final int HTTP_ACCEPTED = 202;
+    private static final int HTTP_NOT_FOUND = 404;
+    private static final int HTTP_PRECONDITION_FAILED = 412;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_INTERNAL_ERROR = 500;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final MockWebServer server = new MockWebServer();
+    private final ConcurrentMap<String, ObjectNode> scaleSets = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<String>> outdatedInstances = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicInteger> operations = new ConcurrentHashMap<>();
+    private final Set<String> failingOperations = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<String, Integer> peakCapacities = new ConcurrentHashMap<>();
+    private final Set<String> unhealthyInstances = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<String, AtomicLong> versions = new ConcurrentHashMap<>();
+    private final Set<String> modifiedAfterRead = ConcurrentHashMap.newKeySet();
+    private final List<String> imageVersions = new ArrayList<>();
+    private final ConcurrentMap<String, List<String>> galleryImageVersions = new ConcurrentHashMap<>();
+
+    private final AtomicInteger pendingThrottles = new AtomicInteger();
+    private final AtomicInteger pendingOperationFailures = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private volatile long latencyMillis;
+    private volatile long latencyJitterMillis;
+    private volatile double throttleRate;
+    private volatile int retryAfterSeconds = 1;
+    private volatile double failureRate;
+    private volatile int lroPolls = 2;
+    private volatile int pageSize = 100;
+
+    public FakeArmServer() throws IOException {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request) {
+                return FakeArmServer.this.dispatch(request);
+            }
+        });
+        server.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.shutdown();
+    }
+
+    public AzureTokenCredentials credentials() {
+        final String url = server.url("/").toString();
+        final AzureEnvironment environment = new AzureEnvironment(ImmutableMap.of(
+                "resourceManagerEndpointUrl", url,
+                "managementEndpointUrl", url,
+                "activeDirectoryEndpointUrl", url,
+                "activeDirectoryResourceId", url));
+        return new AzureTokenCredentials(environment, "tenant") {
+            @Override
+            public String getToken(final String resource) {
+                return "fake-token";
+            }
+        };
+    }
+
+    /**
+     * Fixed latency of every response plus a random jitter in {@code [0, jitterMillis)}.
+     */
+    public FakeArmServer withLatency(final long millis, final long jitterMillis) {
+        this.latencyMillis = millis;
+        this.latencyJitterMillis = jitterMillis;
+        return this;
+    }
+
+    public FakeArmServer withThrottleRate(final double rate, final int retryAfter) {
+        this.throttleRate = rate;
+        this.retryAfterSeconds = retryAfter;
+        return this;
+    }
+
+    /**
+     * Throttles the next {@code count} requests regardless of the throttle rate.
+     */
+    public FakeArmServer throttleNext(final int count, final int retryAfter) {
+        this.retryAfterSeconds = retryAfter;
+        pendingThrottles.set(count);
+        return this;
+    }
+
+    public FakeArmServer withFailureRate(final double rate) {
+        this.failureRate = rate;
+        return this;
+    }
+
+    /**
+     * Number of times a long running operation reports {@code InProgress} before it succeeds.
+     */
+    public FakeArmServer withLroPolls(final int polls) {
+        this.lroPolls = polls;
+        return this;
+    }
+
+    /**
+     * Makes the next long running operation started end with the {@code Failed} status instead of succeeding. The
+     * change it made is kept, like a partially applied update.
+     */
+    public FakeArmServer failNextOperation() {
+        pendingOperationFailures.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Forgets the long running operations started so far, so that polling them returns 404 Not Found.
+     */
+    public FakeArmServer forgetOperations() {
+        operations.clear();
+        return this;
+    }
+
+    /**
+     * Versions listed for every marketplace image, in the order they are returned.
+     */
+    public FakeArmServer withImageVersions(final String... names) {
+        imageVersions.addAll(Arrays.asList(names));
+        return this;
+    }
+
+    /**
+     * Adds a version of an image definition of a Shared Image Gallery, the gallery is created if needed.
+     */
+    public FakeArmServer addGalleryImageVersion(final String gallery, final String definition, final String version) {
+        galleryImageVersions.putIfAbsent(gallery, Collections.synchronizedList(new ArrayList<String>()));
+        galleryImageVersions.get(gallery).add(definition + "/" + version);
+        return this;
+    }
+
+    /**
+     * @return the resource ID of a gallery image version added with {@link #addGalleryImageVersion}
+     */
+    public static String galleryImageVersionId(final String gallery, final String definition, final String version) {
+        return String.format("/subscriptions/%s/resourceGroups/%s/providers/Microsoft.Compute/galleries/%s"
+                + "/images/%s/versions/%s", SUBSCRIPTION_ID, GALLERY_RESOURCE_GROUP, gallery, definition, version);
+    }
+
+    /**
+     * Simulates a change of the scale set by someone else right after its model is next read, so that a write
+     * conditional on that read fails.
+     */
+    public FakeArmServer modifyAfterNextRead(final String resourceGroup, final String name) {
+        modifiedAfterRead.add(key(resourceGroup, name));
+        return this;
+    }
+
+    public FakeArmServer withPageSize(final int size) {
+        this.pageSize = size;
+        return this;
+    }
+
+    public FakeArmServer addScaleSet(final String resourceGroup, final String name, final int capacity) {
+        final String id = String.format(
+                "/subscriptions/%s/resourceGroups/%s/providers/Microsoft.Compute/virtualMachineScaleSets/%s",
+                SUBSCRIPTION_ID, resourceGroup, name);
+        final ObjectNode vmss = mapper.createObjectNode();
+        vmss.put("id", id);
+        vmss.put("name", name);
+        vmss.put("type", "Microsoft.Compute/virtualMachineScaleSets");
+        vmss.put("location", LOCATION);
+        final ObjectNode sku = vmss.putObject("sku");
+        sku.put("name", "Standard_D1_v2");
+        sku.put("tier", "Standard");
+        sku.put("capacity", capacity);
+        final ObjectNode properties = vmss.putObject("properties");
+        properties.putObject("upgradePolicy").put("mode", "Manual");
+        properties.put("provisioningState", "Succeeded");
+        final ObjectNode profile = properties.putObject("virtualMachineProfile");
+        final ObjectNode imageReference = profile.putObject("storageProfile").putObject("imageReference");
+        imageReference.put("publisher", "Canonical");
+        imageReference.put("offer", "UbuntuServer");
+        imageReference.put("sku", "16.04-LTS");
+        imageReference.put("version", "latest");
+        final ObjectNode osProfile = profile.putObject("osProfile");
+        osProfile.put("computerNamePrefix", name);
+        osProfile.put("adminUsername", "azureuser");
+        profile.putObject("networkProfile").putArray("networkInterfaceConfigurations");
+        scaleSets.put(key(resourceGroup, name), vmss);
+        versions.put(key(resourceGroup, name), new AtomicLong(1));
+        outdatedInstances.put(key(resourceGroup, name),
+                Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+        return this;
+    }
+
+    public JsonNode getScaleSet(final String resourceGroup, final String name) {
+        return scaleSets.get(key(resourceGroup, name));
+    }
+
+    /**
+     * @return the instances that do not run the latest model, i.e. that were not upgraded since the last image change
+     */
+    public Set<String> getOutdatedInstances(final String resourceGroup, final String name) {
+        return outdatedInstances.get(key(resourceGroup, name));
+    }
+
+    /**
+     * Reports the instance as unhealthy in its instance view, as the application health extension would.
+     */
+    public FakeArmServer markUnhealthy(final String resourceGroup, final String name, final String instanceId) {
+        unhealthyInstances.add(key(resourceGroup, name) + "/" + instanceId);
+        return this;
+    }
+
+    public int getCapacity(final String resourceGroup, final String name) {
+        return scaleSets.get(key(resourceGroup, name)).path("sku").path("capacity").asInt();
+    }
+
+    /**
+     * Highest capacity the scale set was updated to, or {@code 0} if its capacity never changed.
+     */
+    public int getPeakCapacity(final String resourceGroup, final String name) {
+        final Integer peak = peakCapacities.get(key(resourceGroup, name));
+        return peak == null ? 0 : peak;
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    private MockResponse dispatch(final RecordedRequest request) {
+        requests.incrementAndGet();
+        final MockResponse response = route(request);
+        final long jitter = latencyJitterMillis;
+        final long delay = latencyMillis + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter) : 0);
+        if (delay > 0) {
+            response.setHeadersDelay(delay, TimeUnit.MILLISECONDS);
+        }
+        return response;
+    }
+
+    private MockResponse route(final RecordedRequest request) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (takePending(pendingThrottles) || random.nextDouble() < throttleRate) {
+            throttled.incrementAndGet();
+            return error(HTTP_TOO_MANY_REQUESTS, "TooManyRequests", "Throttled by the fake server")
+                    .setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+        }
+        if (random.nextDouble() < failureRate) {
+            failed.incrementAndGet();
+            return error(HTTP_INTERNAL_ERROR, "InternalServerError", "Failure injected by the fake server");
+        }
+
+        final HttpUrl url = request.getRequestUrl();
+        final List<String> segments = url.pathSegments();
+        final String method = request.getMethod();
+        try {
+            // /subscriptions/{s}/providers/Microsoft.Compute/locations/{l}/operations/{id}
+            if (segments.size() == 8 && "operations".equals(segments.get(6))) {
+                return operationStatus(segments.get(7));
+            }
+            // /subscriptions/{s}/providers/Microsoft.Compute/locations/{l}/publishers/{p}/.../skus/{sku}/versions
+            if (segments.size() == 15 && "publishers".equals(segments.get(6)) && "versions".equals(segments.get(14))) {
+                return imageVersions(segments.get(5));
+            }
+            // /subscriptions/{s}/providers/Microsoft.Compute/galleries
+            if (segments.size() == 5 && "galleries".equals(segments.get(4))) {
+                return galleries();
+            }
+            // /subscriptions/{s}/resourceGroups/{rg}/providers/Microsoft.Compute/galleries/{g}/images/{i}/versions
+            if (segments.size() == 11 && "galleries".equals(segments.get(6)) && "versions".equals(segments.get(10))) {
+                return galleryImageVersions(segments.get(7), segments.get(9));
+            }
+            // /subscriptions/{s}/resourceGroups/{rg}/providers/Microsoft.Compute/virtualMachineScaleSets[/{n}[/{a}]]
+            if (segments.size() < 7 || !"virtualMachineScaleSets".equalsIgnoreCase(segments.get(6))) {
+                return error(HTTP_NOT_FOUND, "NotFound", "Unsupported path " + url.encodedPath());
+            }
+            final String resourceGroup = segments.get(3);
+            if (segments.size() == 7 && "GET".equals(method)) {
+                return list(url, resourceGroup);
+            }
+            final String name = segments.get(7);
+            final ObjectNode vmss = scaleSets.get(key(resourceGroup, name));
+            if (vmss == null) {
+                return error(HTTP_NOT_FOUND, "ResourceNotFound", "Scale set " + name + " not found");
+            }
+            if (segments.size() == 9 && "GET".equals(method) && "virtualMachines".equalsIgnoreCase(segments.get(8))) {
+                return listInstances(url, key(resourceGroup, name), vmss,
+                        outdatedInstances.get(key(resourceGroup, name)));
+            }
+            if (segments.size() == 9 && "POST".equals(method) && "manualupgrade".equalsIgnoreCase(segments.get(8))) {
+                final Set<String> outdated = outdatedInstances.get(key(resourceGroup, name));
+                for (JsonNode id : mapper.readTree(request.getBody().readUtf8()).path("instanceIds")) {
+                    outdated.remove(id.asText());
+                }
+                return accepted(new MockResponse().setResponseCode(HTTP_ACCEPTED));
+            }
+            final AtomicLong version = versions.get(key(resourceGroup, name));
+            switch (method) {
+                case "GET":
+                    final MockResponse model = json(HTTP_OK, vmss).setHeader("ETag", etag(version));
+                    if (modifiedAfterRead.remove(key(resourceGroup, name))) {
+                        version.incrementAndGet();
+                    }
+                    return model;
+                case "PUT":
+                case "PATCH":
+                    final String ifMatch = request.getHeader("If-Match");
+                    if (ifMatch != null && !ifMatch.equals(etag(version))) {
+                        return error(HTTP_PRECONDITION_FAILED, "PreconditionFailed",
+                                "Scale set " + name + " was modified, its ETag is " + etag(version));
+                    }
+                    version.incrementAndGet();
+                    return update(key(resourceGroup, name), vmss, outdatedInstances.get(key(resourceGroup, name)),
+                            mapper.readTree(request.getBody().readUtf8()), "PATCH".equals(method));
+                default:
+                    return error(HTTP_NOT_FOUND, "NotFound", "Unsupported method " + method);
+            }
+        } catch (IOException e) {
+            return error(HTTP_INTERNAL_ERROR, "InternalServerError", e.getMessage());
+        }
+    }
+
+    private MockResponse list(final HttpUrl url, final String resourceGroup) throws IOException {
+        final List<ObjectNode> all = new ArrayList<>();
+        for (Map.Entry<String, ObjectNode> entry : scaleSets.entrySet()) {
+            if (entry.getKey().startsWith(resourceGroup.toLowerCase() + "/")) {
+                all.add(entry.getValue());
+            }
+        }
+        final String skipToken = url.queryParameter("$skiptoken");
+        final int from = skipToken == null ? 0 : Integer.parseInt(skipToken);
+        final int to = Math.min(all.size(), from + pageSize);
+        final ObjectNode page = mapper.createObjectNode();
+        final ArrayNode value = page.putArray("value");
+        for (int i = from; i < to; ++i) {
+            value.add(all.get(i));
+        }
+        if (to < all.size()) {
+            page.put("nextLink", url.newBuilder().setQueryParameter("$skiptoken", String.valueOf(to)).toString());
+        }
+        return json(HTTP_OK, page);
+    }
+
+    private MockResponse listInstances(final HttpUrl url,
+                                       final String scaleSetKey,
+                                       final ObjectNode vmss,
+                                       final Set<String> outdated) throws IOException {
+        final int capacity = vmss.path("sku").path("capacity").asInt();
+        final boolean outdatedOnly = "properties/latestModelApplied eq false".equals(url.queryParameter("$filter"));
+        final boolean instanceView = "instanceView".equals(url.queryParameter("$expand"));
+        final List<ObjectNode> vms = new ArrayList<>();
+        for (int i = 0; i < capacity; ++i) {
+            final String instanceId = String.valueOf(i);
+            if (outdatedOnly && !outdated.contains(instanceId)) {
+                continue;
+            }
+            final ObjectNode vm = mapper.createObjectNode();
+            vm.put("id", vmss.path("id").asText() + "/virtualMachines/" + instanceId);
+            vm.put("name", vmss.path("name").asText() + "_" + instanceId);
+            vm.put("instanceId", instanceId);
+            vm.put("location", LOCATION);
+            // instances are spread over zones 1 to 3 and alternately tagged as web and worker
+            vm.putArray("zones").add(String.valueOf(i % ZONES + 1));
+            vm.putObject("tags").put("role", i % 2 == 0 ? "web" : "worker");
+            final ObjectNode properties = vm.putObject("properties");
+            properties.put("latestModelApplied", !outdated.contains(instanceId));
+            if (instanceView) {
+                final ObjectNode view = properties.putObject("instanceView");
+                view.putArray("statuses")
+                        .add(mapper.createObjectNode().put("code", "ProvisioningState/succeeded"))
+                        .add(mapper.createObjectNode().put("code", "PowerState/running"));
+                view.putObject("vmHealth").putObject("status").put("code",
+                        unhealthyInstances.contains(scaleSetKey + "/" + instanceId)
+                                ? "HealthState/unhealthy" : "HealthState/healthy");
+            }
+            vms.add(vm);
+        }
+
+        final String skipToken = url.queryParameter("$skiptoken");
+        final int from = skipToken == null ? 0 : Integer.parseInt(skipToken);
+        final int to = Math.min(vms.size(), from + pageSize);
+        final ObjectNode page = mapper.createObjectNode();
+        page.putArray("value").addAll(vms.subList(from, to));
+        if (to < vms.size()) {
+            page.put("nextLink", url.newBuilder().setQueryParameter("$skiptoken", String.valueOf(to)).toString());
+        }
+        return json(HTTP_OK, page);
+    }
+
+    private MockResponse update(final String key,
+                                final ObjectNode vmss,
+                                final Set<String> outdated,
+                                final JsonNode body,
+                                final boolean merge) throws IOException {
+        synchronized (vmss) {
+            final JsonNode newCapacity = body.path("sku").path("capacity");
+            if (newCapacity.isNumber()) {
+                // added instances run the latest model, the instances with the highest IDs are removed first
+                final int capacity = newCapacity.asInt();
+                for (int i = capacity; i < vmss.path("sku").path("capacity").asInt(); ++i) {
+                    outdated.remove(String.valueOf(i));
+                }
+                ((ObjectNode) vmss.path("sku")).put("capacity", capacity);
+                final Integer peak = peakCapacities.get(key);
+                peakCapacities.put(key, peak == null ? capacity : Math.max(peak, capacity));
+            }
+            final JsonNode imageReference = body.path("properties").path("virtualMachineProfile")
+                    .path("storageProfile").path("imageReference");
+            if (imageReference.isObject()) {
+                final ObjectNode storageProfile =
+                        (ObjectNode) vmss.path("properties").path("virtualMachineProfile").path("storageProfile");
+                if (merge) {
+                    // like Azure, a PATCH only replaces the fields it carries
+                    ((ObjectNode) storageProfile.path("imageReference")).setAll((ObjectNode) imageReference);
+                } else {
+                    storageProfile.set("imageReference", imageReference);
+                }
+                final int capacity = vmss.path("sku").path("capacity").asInt();
+                for (int i = 0; i < capacity; ++i) {
+                    outdated.add(String.valueOf(i));
+                }
+            }
+            final ObjectNode updating = vmss.deepCopy();
+            ((ObjectNode) updating.path("properties")).put("provisioningState", "Updating");
+            return accepted(json(HTTP_OK, updating));
+        }
+    }
+
+    private MockResponse imageVersions(final String location) throws IOException {
+        final ArrayNode images = mapper.createArrayNode();
+        for (final String name : imageVersions) {
+            images.addObject().put("name", name).put("location", location);
+        }
+        return json(HTTP_OK, images);
+    }
+
+    private MockResponse galleries() throws IOException {
+        final ObjectNode page = mapper.createObjectNode();
+        final ArrayNode value = page.putArray("value");
+        for (final String gallery : galleryImageVersions.keySet()) {
+            value.addObject().put("name", gallery).put("id", String.format(
+                    "/subscriptions/%s/resourceGroups/%s/providers/Microsoft.Compute/galleries/%s",
+                    SUBSCRIPTION_ID, GALLERY_RESOURCE_GROUP, gallery));
+        }
+        return json(HTTP_OK, page);
+    }
+
+    private MockResponse galleryImageVersions(final String gallery, final String definition) throws IOException {
+        final List<String> versions = galleryImageVersions.get(gallery);
+        if (versions == null) {
+            return error(HTTP_NOT_FOUND, "ResourceNotFound", "Gallery " + gallery + " not found");
+        }
+        final ObjectNode page = mapper.createObjectNode();
+        final ArrayNode value = page.putArray("value");
+        synchronized (versions) {
+            for (final String version : versions) {
+                if (version.startsWith(definition + "/")) {
+                    final String name = version.substring(definition.length() + 1);
+                    value.addObject().put("name", name)
+                            .put("id", galleryImageVersionId(gallery, definition, name))
+                            .putObject("properties").put("provisioningState", "Succeeded");
+                }
+            }
+        }
+        return json(HTTP_OK, page);
+    }
+
+    private static String etag(final AtomicLong version) {
+        return "\"" + version.get() + "\"";
+    }
+
+    private MockResponse operationStatus(final String id) throws IOException {
+        final AtomicInteger remaining = operations.get(id);
+        if (remaining == null) {
+            return error(HTTP_NOT_FOUND, "NotFound", "Operation " + id + " not found");
+        }
+        final ObjectNode status = mapper.createObjectNode();
+        if (remaining.getAndDecrement() > 0) {
+            status.put("status", "InProgress");
+        } else if (failingOperations.remove(id)) {
+            operations.remove(id);
+            status.put("status", "Failed");
+            status.putObject("error").put("code", "InternalExecutionError")
+                    .put("message", "Failure injected by the fake server");
+        } else {
+            operations.remove(id);
+            status.put("status", "Succeeded");
+        }
+        return json(HTTP_OK, status).setHeader("Retry-After", "0");
+    }
+
+    private MockResponse accepted(final MockResponse response) {
+        final String id = UUID.randomUUID().toString();
+        operations.put(id, new AtomicInteger(lroPolls));
+        if (takePending(pendingOperationFailures)) {
+            failingOperations.add(id);
+        }
+        final String operation = server.url(String.format(
+                "/subscriptions/%s/providers/Microsoft.Compute/locations/%s/operations/%s?api-version=2017-12-01",
+                SUBSCRIPTION_ID, LOCATION, id)).toString();
+        return response
+                .setHeader("Azure-AsyncOperation", operation)
+                .setHeader("Retry-After", "0");
+    }
+
+    private MockResponse json(final int code, final JsonNode body) throws IOException {
+        return new MockResponse()
+                .setResponseCode(code)
+                .setHeader("Content-Type", "application/json; charset=utf-8")
+                .setHeader("x-ms-request-id", UUID.randomUUID().toString())
+                .setBody(mapper.writeValueAsString(body));
+    }
+
+    private MockResponse error(final int code, final String errorCode, final String message) {
+        final ObjectNode body = mapper.createObjectNode();
+        final ObjectNode error = body.putObject("error");
+        error.put("code", errorCode);
+        error.put("message", message);
+        try {
+            return json(code, body);
+        } catch (IOException e) {
+            return new MockResponse().setResponseCode(code);
+        }
+    }
+
+    private static boolean takePending(final AtomicInteger counter) {
+        int pending = counter.get();
+        while (pending > 0) {
+            if (counter.compareAndSet(pending, pending - 1)) {
+                return true;
+            }
+            pending = counter.get();
+        }
+        return false;
+    }
+
+    private static String key(final String resourceGroup, final String name) {
+        return (resourceGroup + "/" + name).toLowerCase();
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.google.common.collect.ImmutableSet;
+import com.microsoft.azure.management.Azure;
+import com.microsoft.jenkins.vmss.util.AzureUtils;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Item;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs the builders over HTTP against {@link FakeArmServer}, including long running operation polling and a
+ * throttled response.
+ */
+public class FakeArmServerTest {
+
+    @Rule
+    public TemporaryFolder workspace = new TemporaryFolder();
+
+    private FakeArmServer server;
+    private Azure azure;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeArmServer().withLroPolls(2).addScaleSet("rg", "vmss", 3);
+        azure = AzureUtils.buildClient(server.credentials(), FakeArmServer.SUBSCRIPTION_ID);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    private <T extends BaseBuilder> T withClient(final T builder) {
+        builder.setAzureClientFactory(new BaseBuilder.AzureClientFactory() {
+            @Override
+            public Azure createAzureClient(final Item owner, final String azureCredentialsId) {
+                return azure;
+            }
+        });
+        return builder;
+    }
+
+    private Run perform(final BaseBuilder builder) throws IOException, InterruptedException {
+        return perform(builder, mock(Run.class));
+    }
+
+    private Run perform(final BaseBuilder builder, final Run run) throws IOException, InterruptedException {
+        final TaskListener listener = mock(TaskListener.class);
+        when(run.getEnvironment(listener)).thenReturn(new EnvVars("VERSION", "16.04.201801050"));
+        when(listener.getLogger()).thenReturn(System.out);
+        builder.perform(run, new FilePath(workspace.getRoot()), mock(Launcher.class), listener);
+        return run;
+    }
+
+    @Test
+    public void updateImage() throws IOException, InterruptedException {
+        final ImageReference imageReference = new ImageReference();
+        imageReference.setPublisher("Canonical");
+        imageReference.setOffer("UbuntuServer");
+        imageReference.setSku("16.04-LTS");
+        imageReference.setVersion("${VERSION}");
+
+        final Run run = perform(withClient(new UpdateBuilder("cid", "rg", "vmss", imageReference)));
+
+        verify(run, never()).setResult(any(Result.class));
+        Assert.assertEquals("16.04.201801050", server.getScaleSet("rg", "vmss").path("properties")
+                .path("virtualMachineProfile").path("storageProfile").path("imageReference").path("version")
+                .asText());
+    }
+
+    @Test
+    public void updateImageRecordsTimeline() throws IOException, InterruptedException {
+        final ImageReference imageReference = new ImageReference();
+        imageReference.setPublisher("Canonical");
+        imageReference.setOffer("UbuntuServer");
+        imageReference.setSku("16.04-LTS");
+        imageReference.setVersion("16.04.201802220");
+        final DeploymentTimelineAction action = new DeploymentTimelineAction();
+        final Run run = mock(Run.class);
+        when(run.getAction(DeploymentTimelineAction.class)).thenReturn(action);
+
+        perform(withClient(new UpdateBuilder("cid", "rg", "vmss", imageReference)), run);
+
+        final DeploymentTimelineAction.Deployment deployment = action.getDeployments().get(0);
+        Assert.assertEquals(DeploymentTimelineAction.OUTCOME_SUCCEEDED, deployment.getOutcome());
+        final List<String> phases = new ArrayList<>();
+        for (final DeploymentTimelineAction.Phase phase : deployment.getPhases()) {
+            phases.add(phase.getName());
+        }
+        Assert.assertEquals(Arrays.asList(DeploymentTimelineAction.PHASE_AUTHENTICATE, "GET", "PATCH",
+                DeploymentTimelineAction.PHASE_LRO_WAIT), phases);
+        Assert.assertTrue(deployment.getPhases().get(3).getRequests() > 0);
+    }
+
+    @Test
+    public void updateInstancesAfterThrottling() throws IOException, InterruptedException {
+        server.throttleNext(2, 0);
+
+        final Run run = perform(withClient(new UpdateInstancesBuilder("cid", "rg", "vmss", "0,1,2")));
+
+        verify(run, never()).setResult(any(Result.class));
+        Assert.assertEquals(2, server.getThrottledCount());
+    }
+
+    @Test
+    public void surgeRollingUpdate() throws IOException, InterruptedException {
+        server.addScaleSet("rg", "surge", 4);
+        final ImageReference imageReference = new ImageReference();
+        imageReference.setPublisher("Canonical");
+        imageReference.setOffer("UbuntuServer");
+        imageReference.setSku("16.04-LTS");
+        imageReference.setVersion("${VERSION}");
+        perform(withClient(new UpdateBuilder("cid", "rg", "surge", imageReference)));
+        Assert.assertEquals(4, server.getOutdatedInstances("rg", "surge").size());
+
+        final RollingUpdate rollingUpdate = new RollingUpdate();
+        rollingUpdate.setBatchSize("1");
+        rollingUpdate.setSurgeCount(2);
+        final UpdateInstancesBuilder builder = new UpdateInstancesBuilder("cid", "rg", "surge", "0-3");
+        builder.setRollingUpdate(rollingUpdate);
+        final Run run = perform(withClient(builder));
+
+        verify(run, never()).setResult(any(Result.class));
+        Assert.assertTrue(server.getOutdatedInstances("rg", "surge").isEmpty());
+        Assert.assertEquals(6, server.getPeakCapacity("rg", "surge"));
+        Assert.assertEquals(4, server.getCapacity("rg", "surge"));
+    }
+
+    @Test
+    public void unhealthySurgeInstanceStopsTheRollout() throws IOException, InterruptedException {
+        server.addScaleSet("rg", "surge", 4).markUnhealthy("rg", "surge", "5");
+        server.getOutdatedInstances("rg", "surge").addAll(Arrays.asList("0", "1", "2", "3"));
+        final RollingUpdate rollingUpdate = new RollingUpdate();
+        rollingUpdate.setBatchSize("1");
+        rollingUpdate.setSurgeCount(2);
+        final HealthGate healthGate = new HealthGate();
+        healthGate.setTimeoutInSeconds(0);
+        final UpdateInstancesBuilder builder = new UpdateInstancesBuilder("cid", "rg", "surge", "0-3");
+        builder.setRollingUpdate(rollingUpdate);
+        builder.setHealthGate(healthGate);
+
+        final Run run = perform(withClient(builder));
+
+        verify(run).setResult(Result.FAILURE);
+        Assert.assertEquals(4, server.getOutdatedInstances("rg", "surge").size());
+        Assert.assertEquals(6, server.getPeakCapacity("rg", "surge"));
+        Assert.assertEquals(4, server.getCapacity("rg", "surge"));
+    }
+
+    @Test
+    public void healthGate()throws IOException, InterruptedException {
+        final HealthGate healthGate = new HealthGate();
+        healthGate.setTimeoutInSeconds(0);
+        final UpdateInstancesBuilder builder = new UpdateInstancesBuilder("cid", "rg", "vmss", "0,1");
+        builder.setHealthGate(healthGate);
+
+        Run run = perform(withClient(builder));
+        verify(run, never()).setResult(any(Result.class));
+
+        server.markUnhealthy("rg", "vmss", "1");
+        run = perform(withClient(builder));
+        verify(run).setResult(Result.FAILURE);
+    }
+
+    @Test
+    public void listPages() {
+        server.withPageSize(2).addScaleSet("rg", "vmss-2", 1).addScaleSet("rg", "vmss-3", 1);
+
+        final List<?> scaleSets = azure.virtualMachineScaleSets().listByResourceGroup("rg");
+
+        Assert.assertEquals(3, scaleSets.size());
+    }
+
+    @Test
+    public void updateOutdatedInstancesOnly() throws IOException, InterruptedException {
+        server.withPageSize(2).addScaleSet("rg", "large", 9);
+        final ImageReference imageReference = new ImageReference();
+        imageReference.setPublisher("Canonical");
+        imageReference.setOffer("UbuntuServer");
+        imageReference.setSku("16.04-LTS");
+        imageReference.setVersion("${VERSION}");
+        perform(withClient(new UpdateBuilder("cid", "rg", "large", imageReference)));
+        Assert.assertEquals(9, server.getOutdatedInstances("rg", "large").size());
+
+        perform(withClient(new UpdateInstancesBuilder("cid", "rg", "large", "0-2")));
+        Assert.assertEquals(ImmutableSet.of("3", "4", "5", "6", "7", "8"), server.getOutdatedInstances("rg", "large"));
+
+        final OutdatedInstances zone1 = new OutdatedInstances();
+        zone1.setZones("1");
+        final UpdateInstancesBuilder zone1Builder = new UpdateInstancesBuilder("cid", "rg", "large", "");
+        zone1Builder.setOutdatedInstances(zone1);
+        Run run = perform(withClient(zone1Builder));
+        verify(run, never()).setResult(any(Result.class));
+        Assert.assertEquals(ImmutableSet.of("4", "5", "7", "8"), server.getOutdatedInstances("rg", "large"));
+
+        final OutdatedInstances web = new OutdatedInstances();
+        web.setTag("role=web");
+        final UpdateInstancesBuilder webBuilder = new UpdateInstancesBuilder("cid", "rg", "large", "0-7");
+        webBuilder.setOutdatedInstances(web);
+        run = perform(withClient(webBuilder));
+        verify(run, never()).setResult(any(Result.class));
+        Assert.assertEquals(ImmutableSet.of("5", "7", "8"), server.getOutdatedInstances("rg", "large"));
+
+        // nothing left to update within the selection is not an error
+        run = perform(withClient(webBuilder));
+        verify(run, never()).setResult(any(Result.class));
+    }
+}
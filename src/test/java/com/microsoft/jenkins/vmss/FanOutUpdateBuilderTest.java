@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.microsoft.azure.management.Azure;
+import com.microsoft.jenkins.vmss.util.AzureUtils;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Item;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class FanOutUpdateBuilderTest {
+
+    @Rule
+    public TemporaryFolder workspace = new TemporaryFolder();
+
+    private FakeArmServer server;
+    private Azure azure;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeArmServer().withLroPolls(1)
+                .addScaleSet("rg1", "vmss-a", 1)
+                .addScaleSet("rg2", "vmss-b", 1)
+                .addScaleSet("rg2", "vmss-c", 1)
+                .addScaleSet("rg2", "other", 1);
+        azure = AzureUtils.buildClient(server.credentials(), FakeArmServer.SUBSCRIPTION_ID);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    private String imageVersion(final String resourceGroup, final String name) {
+        return server.getScaleSet(resourceGroup, name).path("properties").path("virtualMachineProfile")
+                .path("storageProfile").path("imageReference").path("version").asText();
+    }
+
+    @Test
+    public void globToPattern() {
+        Assert.assertTrue(FanOutUpdateBuilder.globToPattern("web-*").matcher("web-eastus").matches());
+        Assert.assertTrue(FanOutUpdateBuilder.globToPattern("web-?.1").matcher("WEB-a.1").matches());
+        Assert.assertFalse(FanOutUpdateBuilder.globToPattern("web-?.1").matcher("web-ab1").matches());
+    }
+
+    @Test
+    public void parseTargets() throws AbortException {
+        final List<FanOutUpdateBuilder.Target> targets =
+                FanOutUpdateBuilder.parseTargets("rg1/vmss-a\n# comment\n\n rg2 / web-* ,RG1/VMSS-A");
+
+        Assert.assertEquals(2, targets.size());
+        Assert.assertEquals("rg1/vmss-a", targets.get(0).toString());
+        Assert.assertEquals("rg2/web-*", targets.get(1).toString());
+    }
+
+    @Test(expected = AbortException.class)
+    public void parseTargetsRejectsInvalidLine() throws AbortException {
+        FanOutUpdateBuilder.parseTargets("rg1/vmss-a\nvmss-b");
+    }
+
+    @Test
+    public void perform() throws IOException, InterruptedException {
+        final ImageReference imageReference = new ImageReference();
+        imageReference.setPublisher("Canonical");
+        imageReference.setOffer("UbuntuServer");
+        imageReference.setSku("16.04-LTS");
+        imageReference.setVersion("16.04.201801050");
+        final FanOutUpdateBuilder builder = new FanOutUpdateBuilder("cid", "rg1/vmss-a\nrg2/vmss-*", imageReference);
+        builder.setMaxParallelism(2);
+        builder.setAzureClientFactory(new BaseBuilder.AzureClientFactory() {
+            @Override
+            public Azure createAzureClient(Item owner, String azureCredentialsId) {
+                return azure;
+            }
+        });
+
+        final Run run = mock(Run.class);
+        final TaskListener listener = mock(TaskListener.class);
+        when(run.getEnvironment(listener)).thenReturn(new EnvVars());
+        when(listener.getLogger()).thenReturn(System.out);
+
+        builder.perform(run, new FilePath(workspace.getRoot()), mock(Launcher.class), listener);
+
+        Assert.assertEquals("16.04.201801050", imageVersion("rg1", "vmss-a"));
+        Assert.assertEquals("16.04.201801050", imageVersion("rg2", "vmss-b"));
+        Assert.assertEquals("16.04.201801050", imageVersion("rg2", "vmss-c"));
+        Assert.assertEquals("latest", imageVersion("rg2", "other"));
+        verify(run, never()).setResult(Result.FAILURE);
+    }
+}
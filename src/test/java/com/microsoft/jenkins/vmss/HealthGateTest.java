@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.microsoft.jenkins.vmss.util.ScaleSetInstances;
+import com.microsoft.jenkins.vmss.util.ScaleSetInstances.Health;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class HealthGateTest {
+
+    private static final List<String> INSTANCE_IDS = Arrays.asList("0", "1");
+
+    private final Deque<Health[]> polls = new ArrayDeque<>();
+    private final List<Long> sleptSeconds = new ArrayList<>();
+    private final PrintStream logger = new PrintStream(new ByteArrayOutputStream());
+    private final HealthGate healthGate = new HealthGate();
+    private ScaleSetInstances instances;
+
+    @Before
+    public void setUp() throws Exception {
+        instances = mock(ScaleSetInstances.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                final Health[] health = polls.size() > 1 ? polls.poll() : polls.peek();
+                final ScaleSetInstances.Visitor visitor = invocation.getArgument(4);
+                for (int i = 0; i < health.length; ++i) {
+                    visitor.visit(new ScaleSetInstances.Instance(String.valueOf(i), true,
+                            Collections.<String>emptyList(), Collections.<String, String>emptyMap(), health[i]));
+                }
+                // not one of the updated instances
+                visitor.visit(new ScaleSetInstances.Instance("9", true, Collections.<String>emptyList(),
+                        Collections.<String, String>emptyMap(), Health.FAILED));
+                return null;
+            }
+        }).when(instances).forEach(eq("rg"), eq("vmss"), isNull(String.class),
+                eq(ScaleSetInstances.EXPAND_INSTANCE_VIEW), any(ScaleSetInstances.Visitor.class));
+
+        healthGate.setClock(new HealthGate.Clock() {
+            private long now;
+
+            @Override
+            public long nanoTime() {
+                return now;
+            }
+
+            @Override
+            public void sleep(final long nanos) {
+                sleptSeconds.add(TimeUnit.NANOSECONDS.toSeconds(nanos));
+                now += nanos;
+            }
+        });
+    }
+
+    private void poll(final Health... health) {
+        polls.add(health);
+    }
+
+    private List<String> await() throws Exception {
+        return healthGate.await(instances, "rg", "vmss", INSTANCE_IDS, logger);
+    }
+
+    @Test
+    public void backsOffWhileNothingChanges() throws Exception {
+        for (int i = 0; i < 4; ++i) {
+            poll(Health.PENDING, Health.PENDING);
+        }
+        poll(Health.HEALTHY, Health.PENDING);
+        poll(Health.HEALTHY, Health.HEALTHY);
+
+        Assert.assertTrue(await().isEmpty());
+        Assert.assertEquals(Arrays.asList(5L, 10L, 20L, 40L, 5L), sleptSeconds);
+    }
+
+    @Test
+    public void backOffIsCapped() throws Exception {
+        for (int i = 0; i < 7; ++i) {
+            poll(Health.UNHEALTHY, Health.PENDING);
+        }
+        poll(Health.HEALTHY, Health.HEALTHY);
+
+        Assert.assertTrue(await().isEmpty());
+        Assert.assertEquals(Arrays.asList(5L, 10L, 20L, 40L, 60L, 60L, 60L), sleptSeconds);
+    }
+
+    @Test
+    public void timeoutReturnsTheInstancesNotHealthy() throws Exception {
+        healthGate.setTimeoutInSeconds(30);
+        poll(Health.UNHEALTHY, Health.PENDING);
+
+        Assert.assertEquals(INSTANCE_IDS, await());
+        // the last sleep is cut short by the timeout
+        Assert.assertEquals(Arrays.asList(5L, 10L, 15L), sleptSeconds);
+    }
+
+    @Test
+    public void failedInstanceStopsWaiting() throws Exception {
+        poll(Health.HEALTHY, Health.FAILED);
+
+        Assert.assertEquals(Collections.singletonList("1"), await());
+        Assert.assertTrue(sleptSeconds.isEmpty());
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.google.common.collect.ImmutableMap;
+import com.microsoft.jenkins.vmss.util.ScaleSetInstances;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class OutdatedInstancesTest {
+
+    private static ScaleSetInstances.Instance instance(final boolean latest, final String zone, final String role) {
+        final Map<String, String> tags = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        tags.putAll(ImmutableMap.of("Role", role));
+        return new ScaleSetInstances.Instance("0", latest,
+                zone == null ? Collections.<String>emptyList() : Arrays.asList(zone), tags);
+    }
+
+    @Test
+    public void matchesOutdatedOnly() {
+        final OutdatedInstances filter = new OutdatedInstances();
+        Assert.assertTrue(filter.matches(instance(false, null, "web")));
+        Assert.assertFalse(filter.matches(instance(true, null, "web")));
+    }
+
+    @Test
+    public void matchesTag() {
+        final OutdatedInstances filter = new OutdatedInstances();
+        filter.setTag("role");
+        Assert.assertTrue(filter.matches(instance(false, null, "web")));
+
+        filter.setTag("role = web");
+        Assert.assertTrue(filter.matches(instance(false, null, "web")));
+        Assert.assertFalse(filter.matches(instance(false, null, "worker")));
+
+        filter.setTag("tier");
+        Assert.assertFalse(filter.matches(instance(false, null, "web")));
+    }
+
+    @Test
+    public void matchesZones() {
+        final OutdatedInstances filter = new OutdatedInstances();
+        filter.setZones("1, 3");
+        Assert.assertTrue(filter.matches(instance(false, "1", "web")));
+        Assert.assertTrue(filter.matches(instance(false, "3", "web")));
+        Assert.assertFalse(filter.matches(instance(false, "2", "web")));
+        Assert.assertFalse(filter.matches(instance(false, null, "web")));
+    }
+}
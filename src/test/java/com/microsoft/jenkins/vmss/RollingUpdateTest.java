@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class RollingUpdateTest {
+
+    private static List<String> ids(final int count) {
+        final List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            ids.add(String.valueOf(i));
+        }
+        return ids;
+    }
+
+    @Test
+    public void resolveBatchSize() {
+        final RollingUpdate rollingUpdate = new RollingUpdate();
+
+        rollingUpdate.setBatchSize("10");
+        Assert.assertEquals(10, rollingUpdate.resolveBatchSize(800));
+
+        rollingUpdate.setBatchSize("20%");
+        Assert.assertEquals(160, rollingUpdate.resolveBatchSize(800));
+        Assert.assertEquals(1, rollingUpdate.resolveBatchSize(3));
+
+        rollingUpdate.setBatchSize("");
+        Assert.assertEquals(800, rollingUpdate.resolveBatchSize(800));
+    }
+
+    @Test
+    public void invalidBatchSize() {
+        final RollingUpdate rollingUpdate = new RollingUpdate();
+        for (final String value : Arrays.asList("abc", "%", "0", "-5", "101%", "99999999999", "99999999999%")) {
+            rollingUpdate.setBatchSize(value);
+            Assert.assertFalse(value, rollingUpdate.isBatchSizeValid());
+            try {
+                rollingUpdate.resolveBatchSize(10);
+                Assert.fail(value);
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+        for (final String value : Arrays.asList("5", " 20 ", "100%", "20 %")) {
+            rollingUpdate.setBatchSize(value);
+            Assert.assertTrue(value, rollingUpdate.isBatchSizeValid());
+        }
+    }
+
+    @Test
+    public void surgeConcurrency() {
+        final RollingUpdate rollingUpdate = new RollingUpdate();
+        rollingUpdate.setMaxConcurrentBatches(2);
+
+        rollingUpdate.setSurgeCount(10);
+        Assert.assertEquals(5, rollingUpdate.surgeConcurrency(2));
+        Assert.assertEquals(4, rollingUpdate.surgeConcurrency(3));
+
+        rollingUpdate.setSurgeCount(1);
+        Assert.assertEquals(2, rollingUpdate.surgeConcurrency(2));
+    }
+
+    @Test
+    public void partition() {
+        final RollingUpdate rollingUpdate = new RollingUpdate();
+        rollingUpdate.setBatchSize("2");
+
+        Assert.assertEquals(
+                Arrays.asList(Arrays.asList("0", "1"), Arrays.asList("2", "3"), Collections.singletonList("4")),
+                rollingUpdate.partition(ids(5)));
+    }
+
+    @Test
+    public void executeUpdatesAllBatches() throws InterruptedException {
+        final RollingUpdate rollingUpdate = new RollingUpdate();
+        rollingUpdate.setBatchSize("25%");
+        rollingUpdate.setMaxConcurrentBatches(2);
+
+        final List<List<String>> applied = Collections.synchronizedList(new ArrayList<List<String>>());
+        final RollingUpdate.Summary summary = rollingUpdate.execute(ids(8), new RollingUpdate.BatchOperation() {
+            @Override
+            public void apply(final List<String> batch) {
+                applied.add(batch);
+            }
+        }, System.out);
+
+        Assert.assertEquals(4, applied.size());
+        Assert.assertEquals(4, summary.getBatchCount());
+        Assert.assertEquals(8, summary.getUpdatedInstanceIds().size());
+        Assert.assertFalse(summary.isAborted());
+    }
+
+    @Test
+    public void executeStopsWhenTooManyInstancesFail() throws InterruptedException {
+        final RollingUpdate rollingUpdate = new RollingUpdate();
+        rollingUpdate.setBatchSize("2");
+        rollingUpdate.setMaxFailedInstances(1);
+
+        final List<List<String>> applied = new ArrayList<>();
+        final RollingUpdate.Summary summary = rollingUpdate.execute(ids(6), new RollingUpdate.BatchOperation() {
+            @Override
+            public void apply(final List<String> batch) {
+                applied.add(batch);
+                throw new IllegalStateException("failed");
+            }
+        }, System.out);
+
+        Assert.assertEquals(1, applied.size());
+        Assert.assertEquals(Arrays.asList("0", "1"), summary.getFailedInstanceIds());
+        Assert.assertTrue(summary.isAborted());
+    }
+}
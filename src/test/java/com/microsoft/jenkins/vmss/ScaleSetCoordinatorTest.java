@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import com.microsoft.azure.management.compute.implementation.VirtualMachineScaleSetInner;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ScaleSetCoordinatorTest {
+
+    private static final String KEY = ScaleSetCoordinator.key("sub", "rg", "vmss");
+
+    @Test
+    public void keyIsCaseInsensitive() {
+        Assert.assertEquals(KEY, ScaleSetCoordinator.key("SUB", "RG", "VMSS"));
+    }
+
+    @Test
+    public void writesAreSerializedAndNewerImageUpdatesSupersede() throws Exception {
+        final ScaleSetCoordinator coordinator = new ScaleSetCoordinator();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final ScaleSetCoordinator.Permit first = coordinator.acquireWrite(KEY, true, null);
+            Assert.assertFalse(first.isSuperseded());
+
+            final ByteArrayOutputStream log = new ByteArrayOutputStream();
+            final Future<Boolean> second = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    try (ScaleSetCoordinator.Permit permit = coordinator.acquireWrite(
+                            KEY, true, new PrintStream(log, true))) {
+                        return permit.isSuperseded();
+                    }
+                }
+            });
+            try {
+                second.get(200, TimeUnit.MILLISECONDS);
+                Assert.fail("the second write must wait for the first one");
+            } catch (TimeoutException ex) {
+                // expected
+            }
+
+            Assert.assertTrue(first.isSuperseded());
+            first.close();
+            Assert.assertFalse(second.get(5, TimeUnit.SECONDS));
+            Assert.assertTrue(log.toString().contains(Messages.ScaleSetCoordinator_Waiting(1, KEY)));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void interruptedWaiterDoesNotBlockTheQueue() throws Exception {
+        final ScaleSetCoordinator coordinator = new ScaleSetCoordinator();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final ScaleSetCoordinator.Permit first = coordinator.acquireWrite(KEY, false, null);
+            final Future<?> abandoned = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    coordinator.acquireWrite(KEY, false, null).close();
+                    return null;
+                }
+            });
+            Thread.sleep(100);
+            abandoned.cancel(true);
+            first.close();
+
+            final ExecutorService other = Executors.newSingleThreadExecutor();
+            try {
+                final Future<?> third = other.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        coordinator.acquireWrite(KEY, false, null).close();
+                        return null;
+                    }
+                });
+                third.get(5, TimeUnit.SECONDS);
+            } finally {
+                other.shutdownNow();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void writesOfOtherScaleSetsDoNotWait() throws Exception {
+        final ScaleSetCoordinator coordinator = new ScaleSetCoordinator();
+        final ByteArrayOutputStream log = new ByteArrayOutputStream();
+        try (ScaleSetCoordinator.Permit first = coordinator.acquireWrite(KEY, false, null)) {
+            coordinator.acquireWrite(ScaleSetCoordinator.key("sub", "rg", "other"), false,
+                    new PrintStream(log, true)).close();
+        }
+        Assert.assertEquals("", log.toString());
+    }
+
+    @Test
+    public void concurrentReadsShareOneLoad() throws Exception {
+        final ScaleSetCoordinator coordinator = new ScaleSetCoordinator();
+        final ScaleSetModel model = new ScaleSetModel("rg", "vmss", new VirtualMachineScaleSetInner(), "\"1\"");
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<ScaleSetModel> loader = new Callable<ScaleSetModel>() {
+            @Override
+            public ScaleSetModel call() throws Exception {
+                loads.incrementAndGet();
+                started.countDown();
+                release.await();
+                return model;
+            }
+        };
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // a build holding the write permit reads the model while a configuration page reads it too
+            final ScaleSetCoordinator.Permit permit = coordinator.acquireWrite(KEY, true, null);
+            final Future<ScaleSetModel> first = executor.submit(
+                    new Callable<ScaleSetModel>() {
+                        @Override
+                        public ScaleSetModel call() throws Exception {
+                            return coordinator.read(KEY, "cid", loader);
+                        }
+                    });
+            started.await();
+            final Future<ScaleSetModel> second = executor.submit(
+                    new Callable<ScaleSetModel>() {
+                        @Override
+                        public ScaleSetModel call() throws Exception {
+                            return coordinator.read(KEY, "cid", loader);
+                        }
+                    });
+            Thread.sleep(100);
+            release.countDown();
+
+            Assert.assertSame(model, first.get(5, TimeUnit.SECONDS));
+            Assert.assertSame(model, second.get(5, TimeUnit.SECONDS));
+            Assert.assertEquals(1, loads.get());
+
+            permit.close();
+            Assert.assertSame(model, coordinator.read(KEY, "cid", loader));
+            Assert.assertEquals(2, loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void readsAreNotSharedAcrossCredentials() throws Exception {
+        final ScaleSetCoordinator coordinator = new ScaleSetCoordinator();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<ScaleSetModel> first = executor.submit(
+                    new Callable<ScaleSetModel>() {
+                        @Override
+                        public ScaleSetModel call() throws Exception {
+                            return coordinator.read(KEY, "cid", new Callable<ScaleSetModel>() {
+                                @Override
+                                public ScaleSetModel call() throws Exception {
+                                    loads.incrementAndGet();
+                                    started.countDown();
+                                    release.await();
+                                    return new ScaleSetModel("rg", "vmss", new VirtualMachineScaleSetInner(), null);
+                                }
+                            });
+                        }
+                    });
+            started.await();
+            Assert.assertNull(coordinator.read(KEY, "other", new Callable<ScaleSetModel>() {
+                @Override
+                public ScaleSetModel call() {
+                    loads.incrementAndGet();
+                    return null;
+                }
+            }));
+            release.countDown();
+            Assert.assertNotNull(first.get(5, TimeUnit.SECONDS));
+            Assert.assertEquals(2, loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
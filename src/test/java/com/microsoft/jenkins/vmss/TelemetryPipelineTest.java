@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TelemetryPipelineTest {
+
+    private static TelemetryPipeline.Event countingEvent(final AtomicInteger sent) {
+        return new TelemetryPipeline.Event() {
+            @Override
+            public void send() {
+                sent.incrementAndGet();
+            }
+        };
+    }
+
+    @Test
+    public void dropsEventsWhenFull() {
+        final TelemetryPipeline pipeline = new TelemetryPipeline(2, 10, null);
+        final AtomicInteger sent = new AtomicInteger();
+
+        Assert.assertTrue(pipeline.offer(countingEvent(sent)));
+        Assert.assertTrue(pipeline.offer(countingEvent(sent)));
+        Assert.assertFalse(pipeline.offer(countingEvent(sent)));
+
+        Assert.assertEquals(2, pipeline.getQueuedCount());
+        Assert.assertEquals(1, pipeline.getDroppedCount());
+        Assert.assertEquals(0, sent.get());
+    }
+
+    @Test
+    public void flushSendsInBatches() {
+        final TelemetryPipeline pipeline = new TelemetryPipeline(100, 3, null);
+        final AtomicInteger sent = new AtomicInteger();
+        for (int i = 0; i < 10; ++i) {
+            pipeline.offer(countingEvent(sent));
+        }
+
+        pipeline.flush();
+
+        Assert.assertEquals(10, sent.get());
+        Assert.assertEquals(10, pipeline.getSentCount());
+        Assert.assertEquals(0, pipeline.getPendingCount());
+    }
+
+    @Test
+    public void failedEventsAreCountedAsDropped() {
+        final TelemetryPipeline pipeline = new TelemetryPipeline(10, 10, null);
+        pipeline.offer(new TelemetryPipeline.Event() {
+            @Override
+            public void send() {
+                throw new IllegalStateException("unavailable");
+            }
+        });
+
+        pipeline.flush();
+
+        Assert.assertEquals(0, pipeline.getSentCount());
+        Assert.assertEquals(1, pipeline.getDroppedCount());
+    }
+}
@@ -6,32 +6,32 @@
 
 package com.microsoft.jenkins.vmss;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.microsoft.azure.management.Azure;
-import com.microsoft.azure.management.compute.VirtualMachineScaleSet;
-import com.microsoft.azure.management.compute.VirtualMachineScaleSetStorageProfile;
-import com.microsoft.azure.management.compute.VirtualMachineScaleSetVMProfile;
-import com.microsoft.azure.management.compute.VirtualMachineScaleSets;
-import com.microsoft.azure.management.compute.implementation.ImageReferenceInner;
-import com.microsoft.azure.management.compute.implementation.VirtualMachineScaleSetInner;
-import com.microsoft.azure.management.compute.implementation.VirtualMachineScaleSetsInner;
+import com.microsoft.jenkins.vmss.util.AzureUtils;
 import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.Item;
+import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import org.junit.After;
 import org.junit.Assert;
+import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
-import org.mockito.ArgumentCaptor;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collections;
 
-import static org.mockito.ArgumentMatchers.anyString;
-import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -40,67 +40,142 @@ public class UpdateBuilderTest {
     @Rule
     public TemporaryFolder workspace = new TemporaryFolder();
 
-    private Azure mockAzure(final ImageReferenceInner currentImageReference) {
-        final VirtualMachineScaleSetStorageProfile currentStorageProfile = mock(
-                VirtualMachineScaleSetStorageProfile.class);
-        when(currentStorageProfile.imageReference()).thenReturn(currentImageReference);
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    private FakeArmServer server;
+    private Azure azure;
 
-        final VirtualMachineScaleSetVMProfile vmProfile = mock(VirtualMachineScaleSetVMProfile.class);
-        when(vmProfile.storageProfile()).thenReturn(currentStorageProfile);
-
-        final VirtualMachineScaleSetInner vmssInner = mock(VirtualMachineScaleSetInner.class);
-        when(vmssInner.virtualMachineProfile()).thenReturn(vmProfile);
-        when(vmssInner.id()).thenReturn("test-vmss-inner-id");
-
-        final VirtualMachineScaleSet vmss = mock(VirtualMachineScaleSet.class);
-        when(vmss.storageProfile()).thenReturn(currentStorageProfile);
-        when(vmss.inner()).thenReturn(vmssInner);
-
-        final VirtualMachineScaleSetsInner vmssMgrInner = mock(VirtualMachineScaleSetsInner.class);
-        final VirtualMachineScaleSets vmssMgr = mock(VirtualMachineScaleSets.class);
-        when(vmssMgr.inner()).thenReturn(vmssMgrInner);
-        when(vmssMgr.getByResourceGroup(anyString(), anyString())).thenReturn(vmss);
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeArmServer().withLroPolls(1).addScaleSet("rg", "name", 2);
+        azure = AzureUtils.buildClient(server.credentials(), FakeArmServer.SUBSCRIPTION_ID);
+    }
 
-        final Azure azure = mock(Azure.class);
-        when(azure.virtualMachineScaleSets()).thenReturn(vmssMgr);
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
 
-        return azure;
+    private JsonNode currentImage() {
+        return server.getScaleSet("rg", "name").path("properties").path("virtualMachineProfile")
+                .path("storageProfile").path("imageReference");
     }
 
-    @Test
-    public void perform() throws IOException, InterruptedException {
-        final ImageReference imageReference = spy(new ImageReference());
-        imageReference.setId("id-new");
+    private void useImageId(final String id) {
+        ((ObjectNode) server.getScaleSet("rg", "name").path("properties").path("virtualMachineProfile")
+                .path("storageProfile")).putObject("imageReference").put("id", id);
+    }
 
-        final UpdateBuilder builder = new UpdateBuilder("cid", "rg", "name", imageReference);
-        final ImageReferenceInner azureImageReference = mock(ImageReferenceInner.class);
-        when(azureImageReference.id()).thenReturn("id-old");
-        final Azure azure = mockAzure(azureImageReference);
+    private Run perform(final String credentialsId,
+                        final ImageReference imageReference,
+                        final Run run,
+                        final EnvVars env) throws IOException, InterruptedException {
+        final UpdateBuilder builder = new UpdateBuilder(credentialsId, "rg", "name", imageReference);
         builder.setAzureClientFactory(new BaseBuilder.AzureClientFactory() {
             @Override
-            public Azure createAzureClient(Item owner, String azureCredentialsId) {
+            public Azure createAzureClient(final Item owner, final String azureCredentialsId) {
                 return azure;
             }
         });
-
-        final Run run = mock(Run.class);
-        final FilePath workspace = new FilePath(this.workspace.getRoot());
-        final Launcher launcher = mock(Launcher.class);
         final TaskListener listener = mock(TaskListener.class);
-        final EnvVars env = new EnvVars();
         when(run.getEnvironment(listener)).thenReturn(env);
-        when(listener.getLogger()).thenReturn(System.out);
+        when(listener.getLogger()).thenReturn(new PrintStream(log, true));
+        builder.perform(run, new FilePath(workspace.getRoot()), mock(Launcher.class), listener);
+        return run;
+    }
 
-        builder.perform(run, workspace, launcher, listener);
+    @Test
+    public void perform() throws IOException, InterruptedException {
+        useImageId("id-old");
+        final ImageReference imageReference = new ImageReference();
+        imageReference.setId("id-new");
+
+        final Run run = perform("cid", imageReference, mock(Run.class), new EnvVars());
 
-        verify(azure.virtualMachineScaleSets()).getByResourceGroup("rg", "name");
-        verify(imageReference).apply(azureImageReference, env);
-        verify(azureImageReference).withId("id-new");
+        verify(run, never()).setResult(any(Result.class));
+        Assert.assertEquals("id-new", currentImage().path("id").asText());
+        Assert.assertEquals(2, server.getOutdatedInstances("rg", "name").size());
+    }
 
-        final ArgumentCaptor<VirtualMachineScaleSetInner> updatedVMSSArg =
-                ArgumentCaptor.forClass(VirtualMachineScaleSetInner.class);
-        verify(azure.virtualMachineScaleSets().inner()).createOrUpdate(
-                eq("rg"), eq("name"), updatedVMSSArg.capture());
-        Assert.assertEquals("test-vmss-inner-id", updatedVMSSArg.getValue().id());
+    @Test
+    public void performSkipsUnchangedImage() throws IOException, InterruptedException {
+        useImageId("image-1");
+        final ImageReference imageReference = new ImageReference();
+        imageReference.setId("${IMAGE_ID}");
+
+        final Run run = perform("cid", imageReference, mock(Run.class), new EnvVars("IMAGE_ID", "IMAGE-1"));
+
+        verify(run, never()).setResult(any(Result.class));
+        Assert.assertTrue(server.getOutdatedInstances("rg", "name").isEmpty());
+    }
+
+    @Test
+    public void performPinsLatestVersion() throws IOException, InterruptedException {
+        server.withImageVersions("16.04.201809", "16.04.201810", "16.04.20180");
+        final ImageReference imageReference = new ImageReference();
+        imageReference.setPublisher("Canonical");
+        imageReference.setOffer("UbuntuServer");
+        imageReference.setSku("16.04-LTS");
+        imageReference.setVersion("latest");
+        imageReference.setPinLatestVersion(true);
+        final ResolvedImageVersionsAction action = new ResolvedImageVersionsAction();
+        final Run run = mock(Run.class);
+        when(run.getAction(ResolvedImageVersionsAction.class)).thenReturn(action);
+
+        // credentials of its own, so that the image versions are not served from another test's listing
+        perform("pin-latest", imageReference, run, new EnvVars());
+
+        Assert.assertEquals("16.04.201810", currentImage().path("version").asText());
+        Assert.assertEquals(Collections.singletonMap("canonical:ubuntuserver:16.04-lts", "16.04.201810"),
+                action.getVersions());
+    }
+
+    @Test
+    public void performSwitchesToGalleryImage() throws IOException, InterruptedException {
+        server.addGalleryImageVersion("gallery", "ubuntu", "1.0.0")
+                .addGalleryImageVersion("gallery", "ubuntu", "1.1.0");
+        final ImageReference imageReference = new ImageReference();
+        imageReference.setGalleryName("gallery");
+        imageReference.setGalleryImageDefinition("ubuntu");
+
+        // credentials of their own, so that the galleries are not served from another test's index
+        final Run run = perform("switch-to-gallery", imageReference, mock(Run.class), new EnvVars());
+
+        verify(run, never()).setResult(any(Result.class));
+        // a PATCH would have kept the marketplace image next to the ID
+        Assert.assertEquals(FakeArmServer.galleryImageVersionId("gallery", "ubuntu", "1.1.0"),
+                currentImage().path("id").asText());
+        Assert.assertFalse(currentImage().has("publisher"));
+        Assert.assertEquals(2, server.getOutdatedInstances("rg", "name").size());
+    }
+
+    @Test
+    public void performFailsTheBuildWhenTheOperationFails() throws IOException, InterruptedException {
+        server.failNextOperation();
+        final ImageReference imageReference = new ImageReference();
+        imageReference.setPublisher("Canonical");
+        imageReference.setOffer("UbuntuServer");
+        imageReference.setSku("16.04-LTS");
+        imageReference.setVersion("16.04.201801050");
+
+        final Run run = perform("cid", imageReference, mock(Run.class), new EnvVars());
+
+        verify(run).setResult(Result.FAILURE);
+        Assert.assertTrue(log.toString().contains("Failure injected by the fake server"));
+    }
+
+    @Test
+    public void performDoesNotOverwriteConcurrentChange() throws IOException, InterruptedException {
+        server.modifyAfterNextRead("rg", "name");
+        final ImageReference imageReference = new ImageReference();
+        imageReference.setPublisher("Canonical");
+        imageReference.setOffer("UbuntuServer");
+        imageReference.setSku("16.04-LTS");
+        imageReference.setVersion("16.04.201801050");
+
+        final Run run = perform("cid", imageReference, mock(Run.class), new EnvVars());
+
+        verify(run).setResult(Result.FAILURE);
+        Assert.assertEquals("latest", currentImage().path("version").asText());
+        Assert.assertTrue(log.toString().contains(Messages.ImageUpdater_ModifiedConcurrently("name")));
     }
 }
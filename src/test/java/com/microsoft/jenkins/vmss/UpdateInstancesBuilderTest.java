@@ -6,13 +6,21 @@
 
 package com.microsoft.jenkins.vmss;
 
+import com.microsoft.azure.PagedList;
 import com.microsoft.azure.management.Azure;
 import com.microsoft.azure.management.compute.VirtualMachineScaleSets;
+import com.microsoft.azure.management.compute.implementation.OperationStatusResponseInner;
+import com.microsoft.azure.management.compute.implementation.ComputeManagementClientImpl;
+import com.microsoft.azure.management.compute.implementation.ComputeManager;
+import com.microsoft.azure.management.compute.implementation.VirtualMachineScaleSetVMInner;
+import com.microsoft.azure.management.compute.implementation.VirtualMachineScaleSetVMsInner;
 import com.microsoft.azure.management.compute.implementation.VirtualMachineScaleSetsInner;
+import com.microsoft.rest.ServiceResponse;
 import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.Item;
+import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import org.junit.Assert;
@@ -20,13 +28,25 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import retrofit2.Response;
+import rx.Observable;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -36,9 +56,38 @@ public class UpdateInstancesBuilderTest {
     public TemporaryFolder workspace = new TemporaryFolder();
 
     private Azure mockAzure() {
+        return mockAzure(10);
+    }
+
+    private Azure mockAzure(final int instanceCount) {
+        final List<VirtualMachineScaleSetVMInner> vms = new ArrayList<>();
+        for (int i = 0; i < instanceCount; ++i) {
+            final VirtualMachineScaleSetVMInner vm = mock(VirtualMachineScaleSetVMInner.class);
+            when(vm.instanceId()).thenReturn(String.valueOf(i));
+            vms.add(vm);
+        }
+        final PagedList<VirtualMachineScaleSetVMInner> vmList = mock(PagedList.class);
+        when(vmList.iterator()).thenAnswer(new Answer<Iterator<VirtualMachineScaleSetVMInner>>() {
+            @Override
+            public Iterator<VirtualMachineScaleSetVMInner> answer(final InvocationOnMock invocation) {
+                return vms.iterator();
+            }
+        });
+        final VirtualMachineScaleSetVMsInner vmsInner = mock(VirtualMachineScaleSetVMsInner.class);
+        when(vmsInner.list(anyString(), anyString())).thenReturn(vmList);
+        final ComputeManagementClientImpl computeInner = mock(ComputeManagementClientImpl.class);
+        when(computeInner.virtualMachineScaleSetVMs()).thenReturn(vmsInner);
+        final ComputeManager computeManager = mock(ComputeManager.class);
+        when(computeManager.inner()).thenReturn(computeInner);
+
         final VirtualMachineScaleSetsInner vmssMgrInner = mock(VirtualMachineScaleSetsInner.class);
+        // the update completes synchronously, without an operation to poll
+        when(vmssMgrInner.beginUpdateInstancesWithServiceResponseAsync(anyString(), anyString(), anyList()))
+                .thenReturn(Observable.just(
+                new ServiceResponse<OperationStatusResponseInner>(null, Response.success(null))));
         final VirtualMachineScaleSets vmssMgr = mock(VirtualMachineScaleSets.class);
         when(vmssMgr.inner()).thenReturn(vmssMgrInner);
+        when(vmssMgr.manager()).thenReturn(computeManager);
 
         final Azure azure = mock(Azure.class);
         when(azure.virtualMachineScaleSets()).thenReturn(vmssMgr);
@@ -70,8 +119,161 @@ public class UpdateInstancesBuilderTest {
         builder.perform(run, workspace, launcher, listener);
 
         final ArgumentCaptor<List<String>> instanceIdsArg = ArgumentCaptor.forClass(List.class);
-        verify(azure.virtualMachineScaleSets().inner()).updateInstances(
+        verify(azure.virtualMachineScaleSets().inner()).beginUpdateInstancesWithServiceResponseAsync(
                 eq("rg"), eq("name"), instanceIdsArg.capture());
         Assert.assertEquals(Arrays.asList("1", "2", "3", "4", "5"), instanceIdsArg.getValue());
     }
+
+    @Test
+    public void performRollingUpdate() throws IOException, InterruptedException {
+        final UpdateInstancesBuilder builder = new UpdateInstancesBuilder(
+                "cid", "rg", "name",
+                "1,2,3,4,5");
+        final RollingUpdate rollingUpdate = new RollingUpdate();
+        rollingUpdate.setBatchSize("2");
+        builder.setRollingUpdate(rollingUpdate);
+        final Azure azure = mockAzure();
+        builder.setAzureClientFactory(new BaseBuilder.AzureClientFactory() {
+            @Override
+            public Azure createAzureClient(Item owner, String azureCredentialsId) {
+                return azure;
+            }
+        });
+
+        final Run run = mock(Run.class);
+        final FilePath workspace = new FilePath(this.workspace.getRoot());
+        final Launcher launcher = mock(Launcher.class);
+        final TaskListener listener = mock(TaskListener.class);
+        when(run.getEnvironment(listener)).thenReturn(new EnvVars());
+        when(listener.getLogger()).thenReturn(System.out);
+
+        builder.perform(run, workspace, launcher, listener);
+
+        final VirtualMachineScaleSetsInner vmssMgrInner = azure.virtualMachineScaleSets().inner();
+        verify(vmssMgrInner).beginUpdateInstancesWithServiceResponseAsync(
+                "rg", "name", Arrays.asList("1", "2"));
+        verify(vmssMgrInner).beginUpdateInstancesWithServiceResponseAsync(
+                "rg", "name", Arrays.asList("3", "4"));
+        verify(vmssMgrInner).beginUpdateInstancesWithServiceResponseAsync(
+                "rg", "name", Collections.singletonList("5"));
+    }
+
+    @Test
+    public void performResumesUnfinishedRollout() throws IOException, InterruptedException {
+        final UpdateInstancesBuilder builder = new UpdateInstancesBuilder(
+                "cid", "rg", "name",
+                "1,2,3,4,5");
+        final RollingUpdate rollingUpdate = new RollingUpdate();
+        rollingUpdate.setBatchSize("2");
+        builder.setRollingUpdate(rollingUpdate);
+        final Azure azure = mockAzure();
+        builder.setAzureClientFactory(new BaseBuilder.AzureClientFactory() {
+            @Override
+            public Azure createAzureClient(Item owner, String azureCredentialsId) {
+                return azure;
+            }
+        });
+
+        // the controller restarted after the first batch of the previous build
+        final Run previous = mock(Run.class);
+        when(previous.getRootDir()).thenReturn(workspace.newFolder("1"));
+        when(previous.getNumber()).thenReturn(1);
+        final RolloutState interrupted = RolloutState.create(previous, "rg", "name",
+                rollingUpdate.partition(Arrays.asList("1", "2", "3", "4", "5")));
+        interrupted.completed(0);
+
+        final Run run = mock(Run.class);
+        final File rootDir = workspace.newFolder("2");
+        when(run.getRootDir()).thenReturn(rootDir);
+        when(run.getPreviousBuild()).thenReturn(previous);
+        final TaskListener listener = mock(TaskListener.class);
+        when(run.getEnvironment(listener)).thenReturn(new EnvVars());
+        when(listener.getLogger()).thenReturn(System.out);
+
+        builder.perform(run, new FilePath(workspace.getRoot()), mock(Launcher.class), listener);
+
+        final VirtualMachineScaleSetsInner vmssMgrInner = azure.virtualMachineScaleSets().inner();
+        verify(vmssMgrInner, never()).beginUpdateInstancesWithServiceResponseAsync(
+                "rg", "name", Arrays.asList("1", "2"));
+        verify(vmssMgrInner).beginUpdateInstancesWithServiceResponseAsync(
+                "rg", "name", Arrays.asList("3", "4"));
+        verify(vmssMgrInner).beginUpdateInstancesWithServiceResponseAsync(
+                "rg", "name", Collections.singletonList("5"));
+        verify(run, never()).setResult(any(Result.class));
+
+        // the rollout is finished, so the next build starts over
+        final Run next = mock(Run.class);
+        when(next.getPreviousBuild()).thenReturn(run);
+        Assert.assertNull(RolloutState.resumable(next, "rg", "name", Arrays.asList("1", "2", "3", "4", "5")));
+    }
+
+    @Test
+    public void resumeDoesNotSearchPastTheLastSuccessfulBuild() throws IOException {
+        final List<String> instanceIds = Arrays.asList("1", "2");
+        final Run older = mock(Run.class);
+        when(older.getRootDir()).thenReturn(workspace.newFolder("1"));
+        RolloutState.create(older, "rg", "name", Collections.singletonList(instanceIds));
+        final Run successful = mock(Run.class);
+        when(successful.getResult()).thenReturn(Result.SUCCESS);
+        when(successful.getPreviousBuild()).thenReturn(older);
+        final Run failed = mock(Run.class);
+        when(failed.getResult()).thenReturn(Result.FAILURE);
+        when(failed.getRootDir()).thenReturn(workspace.newFolder("3"));
+        when(failed.getPreviousBuild()).thenReturn(successful);
+        final Run run = mock(Run.class);
+        when(run.getPreviousBuild()).thenReturn(failed);
+
+        Assert.assertNull(RolloutState.resumable(run, "rg", "name", instanceIds));
+        verify(successful, never()).getPreviousBuild();
+    }
+
+    @Test
+    public void performRangesSkipsMissingInstances()throws IOException, InterruptedException {
+        final UpdateInstancesBuilder builder = new UpdateInstancesBuilder(
+                "cid", "rg", "name",
+                "0-3, 2, !1, 8-12");
+        final Azure azure = mockAzure(10);
+        builder.setAzureClientFactory(new BaseBuilder.AzureClientFactory() {
+            @Override
+            public Azure createAzureClient(Item owner, String azureCredentialsId) {
+                return azure;
+            }
+        });
+
+        final Run run = mock(Run.class);
+        final TaskListener listener = mock(TaskListener.class);
+        when(run.getEnvironment(listener)).thenReturn(new EnvVars());
+        when(listener.getLogger()).thenReturn(System.out);
+
+        builder.perform(run, new FilePath(workspace.getRoot()), mock(Launcher.class), listener);
+
+        verify(azure.virtualMachineScaleSets().inner()).beginUpdateInstancesWithServiceResponseAsync(
+                "rg", "name", Arrays.asList("0", "2", "3", "8", "9"));
+        verify(run, never()).setResult(any(Result.class));
+    }
+
+    @Test
+    public void performFailsOnInvalidInstanceIds() throws IOException, InterruptedException {
+        final UpdateInstancesBuilder builder = new UpdateInstancesBuilder(
+                "cid", "rg", "name",
+                "1,2,x");
+        final Azure azure = mockAzure();
+        builder.setAzureClientFactory(new BaseBuilder.AzureClientFactory() {
+            @Override
+            public Azure createAzureClient(Item owner, String azureCredentialsId) {
+                return azure;
+            }
+        });
+
+        final Run run = mock(Run.class);
+        final TaskListener listener = mock(TaskListener.class);
+        when(run.getEnvironment(listener)).thenReturn(new EnvVars());
+        when(listener.getLogger()).thenReturn(System.out);
+
+        builder.perform(run, new FilePath(workspace.getRoot()), mock(Launcher.class), listener);
+
+        verify(run).setResult(Result.FAILURE);
+        verify(azure.virtualMachineScaleSets().inner(), never()).beginUpdateInstancesWithServiceResponseAsync(
+                anyString(), anyString(), anyList());
+    }
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss.util;
+
+import okhttp3.Interceptor;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ArmRateLimiterTest {
+
+    private static final String URL = "https://management.azure.com/subscriptions/SUB-1/resourceGroups/rg"
+            + "/providers/Microsoft.Compute/virtualMachineScaleSets/vmss?api-version=2017-12-01";
+
+    private final ArmRateLimiter limiter = new ArmRateLimiter(new ArmRateLimiter.Sleeper() {
+        @Override
+        public void sleep(final long millis) throws InterruptedException {
+            Thread.sleep(millis);
+        }
+    });
+
+    private static Request request(final String method) {
+        final Request.Builder builder = new Request.Builder().url(URL);
+        if ("GET".equals(method)) {
+            return builder.get().build();
+        }
+        return builder.method(method, RequestBody.create(null, "{}")).build();
+    }
+
+    private static Response response(final Request request, final int code, final String header, final String value) {
+        final Response.Builder builder = new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(code)
+                .message("");
+        if (header != null) {
+            builder.header(header, value);
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void subscriptionId() {
+        Assert.assertEquals("sub-1", ArmRateLimiter.subscriptionId(request("GET")));
+        Assert.assertNull(ArmRateLimiter.subscriptionId(
+                new Request.Builder().url("https://management.azure.com/tenants?api-version=1").build()));
+    }
+
+    @Test
+    public void retriesThrottledRequest() throws IOException {
+        final Request request = request("PATCH");
+        final Interceptor.Chain chain = mock(Interceptor.Chain.class);
+        when(chain.request()).thenReturn(request);
+        when(chain.proceed(any(Request.class))).thenReturn(
+                response(request, OperationMetrics.HTTP_TOO_MANY_REQUESTS, ArmRateLimiter.HEADER_RETRY_AFTER, "0"),
+                response(request, 200, null, null));
+
+        final Response response;
+        try (RequestTimeline.Watch watch = RequestTimeline.getInstance().watch(
+                "/subscriptions/sub-1/resourceGroups/rg/providers/Microsoft.Compute/virtualMachineScaleSets/vmss",
+                RequestTimeline.Recorder.NONE)) {
+            response = limiter.intercept(chain);
+            Assert.assertEquals(1, watch.getRateLimitRetries());
+        }
+
+        Assert.assertEquals(200, response.code());
+        verify(chain, times(2)).proceed(request);
+        Assert.assertTrue(limiter.getWriteRate("sub-1") < Constants.RATE_LIMIT_WRITES_PER_SECOND);
+    }
+
+    @Test
+    public void givesUpAfterMaxRetries() throws IOException {
+        final Request request = request("GET");
+        final Interceptor.Chain chain = mock(Interceptor.Chain.class);
+        when(chain.request()).thenReturn(request);
+        when(chain.proceed(any(Request.class))).thenReturn(
+                response(request, OperationMetrics.HTTP_TOO_MANY_REQUESTS, ArmRateLimiter.HEADER_RETRY_AFTER, "0"));
+
+        final Response response = limiter.intercept(chain);
+
+        Assert.assertEquals(OperationMetrics.HTTP_TOO_MANY_REQUESTS, response.code());
+        verify(chain, times(Constants.RATE_LIMIT_MAX_RETRIES + 1)).proceed(request);
+    }
+
+    @Test
+    public void slowsDownWhenQuotaRunsLow() throws IOException {
+        final Request request = request("GET");
+        final Interceptor.Chain chain = mock(Interceptor.Chain.class);
+        when(chain.request()).thenReturn(request);
+        when(chain.proceed(any(Request.class))).thenReturn(
+                response(request, 200, ArmRateLimiter.HEADER_REMAINING_READS, "100"),
+                response(request, 200, ArmRateLimiter.HEADER_REMAINING_READS, "11000"));
+
+        limiter.intercept(chain);
+        Assert.assertEquals(Constants.RATE_LIMIT_READS_PER_SECOND / 10, limiter.getReadRate("sub-1"), 0.01);
+
+        limiter.intercept(chain);
+        Assert.assertEquals(Constants.RATE_LIMIT_READS_PER_SECOND, limiter.getReadRate("sub-1"), 0.01);
+    }
+
+    @Test
+    public void waitForPermitIsInterruptible() throws Exception {
+        final Request request = request("PATCH");
+        final Interceptor.Chain chain = mock(Interceptor.Chain.class);
+        when(chain.request()).thenReturn(request);
+        when(chain.proceed(any(Request.class))).thenReturn(
+                response(request, 200, ArmRateLimiter.HEADER_REMAINING_WRITES, "0"));
+        // drops the write rate to the minimum, the permit after the next one is seconds away
+        limiter.intercept(chain);
+        limiter.intercept(chain);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Response> waiting = executor.submit(new Callable<Response>() {
+                @Override
+                public Response call() throws IOException {
+                    return limiter.intercept(chain);
+                }
+            });
+            Thread.sleep(200);
+            final long start = System.nanoTime();
+            waiting.cancel(true);
+            executor.shutdown();
+            Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+            Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        } finally {
+            executor.shutdownNow();
+        }
+        verify(chain, times(2)).proceed(request);
+    }
+
+    @Test
+    public void interruptedRequestIsNotSent() throws IOException {
+        final Request request = request("GET");
+        final Interceptor.Chain chain = mock(Interceptor.Chain.class);
+        when(chain.request()).thenReturn(request);
+
+        Thread.currentThread().interrupt();
+        try {
+            limiter.intercept(chain);
+            Assert.fail("the request was sent");
+        } catch (InterruptedIOException expected) {
+            Assert.assertTrue(Thread.interrupted());
+        }
+        verify(chain, times(0)).proceed(any(Request.class));
+    }
+
+    @Test
+    public void adaptedRate() {
+        Assert.assertEquals(10, ArmRateLimiter.adaptedRate(10, 100, 500), 0);
+        Assert.assertEquals(5, ArmRateLimiter.adaptedRate(10, 100, 50), 0);
+        Assert.assertEquals(Constants.RATE_LIMIT_MIN_PER_SECOND, ArmRateLimiter.adaptedRate(10, 100, 0), 0);
+    }
+
+    @Test
+    public void retryDelay() {
+        final long fromHeader = ArmRateLimiter.retryDelayMillis("8", 0);
+        Assert.assertTrue(fromHeader >= 8000 && fromHeader <= 10000);
+
+        final long backoff = ArmRateLimiter.retryDelayMillis(null, 2);
+        Assert.assertTrue(backoff >= 8000 && backoff <= 10000);
+
+        final long capped = ArmRateLimiter.retryDelayMillis("not-a-number", 30);
+        Assert.assertTrue(capped >= 60000 && capped <= 75000);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss.util;
+
+import okhttp3.Headers;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+public class AsyncOperationTest {
+
+    private final MockWebServer server = new MockWebServer();
+    private final OkHttpClient client = new OkHttpClient();
+
+    @Before
+    public void setUp() throws IOException {
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    private AsyncOperation asyncOperation() {
+        return AsyncOperation.fromHeaders(Headers.of(
+                AsyncOperation.HEADER_ASYNC_OPERATION, server.url("/operations/1").toString()));
+    }
+
+    private AsyncOperation location() {
+        return AsyncOperation.fromHeaders(Headers.of(
+                AsyncOperation.HEADER_LOCATION, server.url("/results/1").toString()));
+    }
+
+    private static MockResponse status(final String status) {
+        return new MockResponse().setBody("{\"status\":\"" + status + "\"}");
+    }
+
+    @Test
+    public void fromHeaders() {
+        final AsyncOperation both = AsyncOperation.fromHeaders(Headers.of(
+                AsyncOperation.HEADER_ASYNC_OPERATION, "https://management.azure.com/operations/1",
+                AsyncOperation.HEADER_LOCATION, "https://management.azure.com/results/1"));
+        Assert.assertEquals("https://management.azure.com/operations/1", both.getUrl());
+
+        final AsyncOperation location = AsyncOperation.fromHeaders(Headers.of(
+                AsyncOperation.HEADER_LOCATION, "https://management.azure.com/results/1"));
+        Assert.assertEquals("https://management.azure.com/results/1", location.getUrl());
+
+        Assert.assertNull(AsyncOperation.fromHeaders(Headers.of()));
+        Assert.assertNull(AsyncOperation.fromHeaders(Headers.of(AsyncOperation.HEADER_ASYNC_OPERATION, " ")));
+    }
+
+    @Test
+    public void pollAsyncOperationStatus() throws IOException {
+        server.enqueue(status("InProgress").setHeader(AsyncOperation.HEADER_RETRY_AFTER, "7"));
+        server.enqueue(status("InProgress"));
+        server.enqueue(status("InProgress").setHeader(AsyncOperation.HEADER_RETRY_AFTER, "soon"));
+        server.enqueue(status("Succeeded"));
+        server.enqueue(new MockResponse().setBody(
+                "{\"status\":\"Failed\",\"error\":{\"code\":\"Conflict\",\"message\":\"Instance busy\"}}"));
+        final AsyncOperation operation = asyncOperation();
+
+        final AsyncOperation.Status retryAfter = operation.poll(client);
+        Assert.assertFalse(retryAfter.isDone());
+        Assert.assertEquals(7, retryAfter.getRetryAfterSeconds());
+
+        Assert.assertEquals(Constants.LRO_DEFAULT_POLL_INTERVAL_SECONDS, operation.poll(client).getRetryAfterSeconds());
+        Assert.assertEquals(Constants.LRO_DEFAULT_POLL_INTERVAL_SECONDS, operation.poll(client).getRetryAfterSeconds());
+
+        final AsyncOperation.Status succeeded = operation.poll(client);
+        Assert.assertTrue(succeeded.isSucceeded());
+        Assert.assertNull(succeeded.getError());
+
+        final AsyncOperation.Status failed = operation.poll(client);
+        Assert.assertTrue(failed.isDone());
+        Assert.assertFalse(failed.isSucceeded());
+        Assert.assertEquals("Failed: Instance busy", failed.getError());
+    }
+
+    @Test
+    public void onlyFailedAndCanceledAreFailures() throws IOException {
+        server.enqueue(status("Running"));
+        server.enqueue(status("Updating"));
+        server.enqueue(status("Accepted"));
+        server.enqueue(status("Canceled"));
+        final AsyncOperation operation = asyncOperation();
+
+        Assert.assertFalse(operation.poll(client).isDone());
+        Assert.assertFalse(operation.poll(client).isDone());
+        Assert.assertFalse(operation.poll(client).isDone());
+
+        final AsyncOperation.Status canceled = operation.poll(client);
+        Assert.assertTrue(canceled.isDone());
+        Assert.assertFalse(canceled.isSucceeded());
+        Assert.assertEquals("Canceled: ", canceled.getError());
+    }
+
+    @Test
+    public void parseRetryAfter() {
+        Assert.assertEquals(Constants.LRO_MIN_POLL_INTERVAL_SECONDS, AsyncOperation.parseRetryAfter("0"));
+        Assert.assertEquals(Constants.LRO_MIN_POLL_INTERVAL_SECONDS, AsyncOperation.parseRetryAfter("000"));
+        Assert.assertEquals(30, AsyncOperation.parseRetryAfter("030"));
+        Assert.assertEquals(Constants.LRO_MAX_POLL_INTERVAL_SECONDS, AsyncOperation.parseRetryAfter("86400"));
+        Assert.assertEquals(Constants.LRO_MAX_POLL_INTERVAL_SECONDS,
+                AsyncOperation.parseRetryAfter("99999999999999999999"));
+        Assert.assertEquals(Constants.LRO_DEFAULT_POLL_INTERVAL_SECONDS, AsyncOperation.parseRetryAfter("-1"));
+        Assert.assertEquals(Constants.LRO_DEFAULT_POLL_INTERVAL_SECONDS, AsyncOperation.parseRetryAfter(null));
+    }
+
+    @Test(expected = IOException.class)
+    public void pollAsyncOperationError() throws IOException {
+        server.enqueue(new MockResponse().setResponseCode(404));
+        asyncOperation().poll(client);
+    }
+
+    @Test
+    public void pollLocation() throws IOException {
+        server.enqueue(new MockResponse().setResponseCode(202).setHeader(AsyncOperation.HEADER_RETRY_AFTER, "3"));
+        server.enqueue(new MockResponse().setResponseCode(200));
+        server.enqueue(new MockResponse().setResponseCode(409).setStatus("HTTP/1.1 409 Conflict"));
+        final AsyncOperation operation = location();
+
+        final AsyncOperation.Status accepted = operation.poll(client);
+        Assert.assertFalse(accepted.isDone());
+        Assert.assertEquals(3, accepted.getRetryAfterSeconds());
+
+        Assert.assertTrue(operation.poll(client).isSucceeded());
+
+        final AsyncOperation.Status failed = operation.poll(client);
+        Assert.assertFalse(failed.isSucceeded());
+        Assert.assertEquals("409 Conflict", failed.getError());
+    }
+
+    @Test
+    public void awaitFollowsRetryAfter() throws IOException, InterruptedException {
+        server.enqueue(status("InProgress").setHeader(AsyncOperation.HEADER_RETRY_AFTER, "0"));
+        server.enqueue(status("InProgress").setHeader(AsyncOperation.HEADER_RETRY_AFTER, "0"));
+        server.enqueue(status("Succeeded"));
+
+        final long start = System.nanoTime();
+        Assert.assertTrue(asyncOperation().await(client).isSucceeded());
+        Assert.assertEquals(3, server.getRequestCount());
+        // a zero Retry-After still waits the minimum interval between polls
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start)
+                >= 2 * Constants.LRO_MIN_POLL_INTERVAL_SECONDS);
+    }
+}
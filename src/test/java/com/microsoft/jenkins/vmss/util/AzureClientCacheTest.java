@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss.util;
+
+import com.microsoft.azure.management.Azure;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.mock;
+
+public class AzureClientCacheTest {
+
+    private static Callable<Azure> countingLoader(final AtomicInteger loads) {
+        return new Callable<Azure>() {
+            @Override
+            public Azure call() {
+                loads.incrementAndGet();
+                return mock(Azure.class);
+            }
+        };
+    }
+
+    @Test
+    public void reusesClientForSameCredential() {
+        final AzureClientCache cache = new AzureClientCache(10, 1, TimeUnit.HOURS);
+        final AtomicInteger loads = new AtomicInteger();
+
+        final Azure first = cache.get("cid", "token-data", countingLoader(loads));
+        final Azure second = cache.get("cid", "token-data", countingLoader(loads));
+
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals(1, cache.stats().hitCount());
+        Assert.assertEquals(1, cache.stats().missCount());
+    }
+
+    @Test
+    public void rebuildsClientWhenCredentialChanges() {
+        final AzureClientCache cache = new AzureClientCache(10, 1, TimeUnit.HOURS);
+        final AtomicInteger loads = new AtomicInteger();
+
+        final Azure first = cache.get("cid", "token-data", countingLoader(loads));
+        final Azure second = cache.get("cid", "token-data-rotated", countingLoader(loads));
+
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void keepsClientsOfSameIdInDifferentScopes() {
+        final AzureClientCache cache = new AzureClientCache(10, 1, TimeUnit.HOURS);
+        final AtomicInteger loads = new AtomicInteger();
+
+        // the same credentials ID defined in two folders
+        final Azure folderA = cache.get("cid", "token-data-a", countingLoader(loads));
+        final Azure folderB = cache.get("cid", "token-data-b", countingLoader(loads));
+
+        Assert.assertSame(folderA, cache.get("cid", "token-data-a", countingLoader(loads)));
+        Assert.assertSame(folderB, cache.get("cid", "token-data-b", countingLoader(loads)));
+        Assert.assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void invalidate() {
+        final AzureClientCache cache = new AzureClientCache(10, 1, TimeUnit.HOURS);
+        final AtomicInteger loads = new AtomicInteger();
+
+        cache.get("cid", "token-data", countingLoader(loads));
+        cache.get("cid", "token-data-rotated", countingLoader(loads));
+        cache.get("other", "token-data", countingLoader(loads));
+        cache.invalidate("cid");
+        cache.get("cid", "token-data", countingLoader(loads));
+
+        Assert.assertEquals(4, loads.get());
+        Assert.assertEquals(2, cache.size());
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss.util;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class GalleryImageIndexTest {
+
+    private static final String GALLERY_ID =
+            "/subscriptions/sub/resourceGroups/rg/providers/Microsoft.Compute/galleries/Gallery";
+
+    private final AtomicLong now = new AtomicLong();
+
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return now.get();
+        }
+    };
+
+    private static final class FakeSource implements GalleryImageIndex.Source {
+        private final List<GalleryImageIndex.Version> versions = new ArrayList<>();
+        private final AtomicInteger galleryLists = new AtomicInteger();
+        private final AtomicInteger versionLists = new AtomicInteger();
+
+        void publish(final String name, final boolean excludeFromLatest) {
+            versions.add(new GalleryImageIndex.Version(name, GALLERY_ID + "/images/app/versions/" + name,
+                    excludeFromLatest));
+        }
+
+        @Override
+        public Map<String, String> listGalleries() {
+            galleryLists.incrementAndGet();
+            return Collections.singletonMap("gallery", GALLERY_ID);
+        }
+
+        @Override
+        public List<GalleryImageIndex.Version> listVersions(final String galleryId, final String imageDefinition) {
+            versionLists.incrementAndGet();
+            return "app".equals(imageDefinition)
+                    ? new ArrayList<>(versions)
+                    : Collections.<GalleryImageIndex.Version>emptyList();
+        }
+    }
+
+    private GalleryImageIndex newIndex() {
+        return new GalleryImageIndex(TimeUnit.SECONDS.toNanos(60), ticker, MoreExecutors.directExecutor());
+    }
+
+    @Test
+    public void resolvesNewestMatchingVersion() throws IOException {
+        final FakeSource source = new FakeSource();
+        source.publish("1.4.2", false);
+        source.publish("1.4.10", false);
+        source.publish("1.5.0", false);
+        source.publish("2.0.0", true);
+        final GalleryImageIndex index = newIndex();
+
+        Assert.assertEquals("1.4.10", index.resolve(source, "Gallery", "app", "1.4.*").getName());
+        Assert.assertEquals("1.5.0", index.resolve(source, "gallery", "app", "1.*").getName());
+        Assert.assertEquals("1.5.0", index.resolve(source, "gallery", "app", "latest").getName());
+        Assert.assertEquals("2.0.0", index.resolve(source, "gallery", "app", "2.0.0").getName());
+        Assert.assertEquals(GALLERY_ID + "/images/app/versions/1.4.2",
+                index.resolve(source, "gallery", "app", "1.4.2").getId());
+
+        Assert.assertEquals(1, source.galleryLists.get());
+        Assert.assertEquals(1, source.versionLists.get());
+    }
+
+    @Test
+    public void reloadsOnceWhenNothingMatches() throws IOException {
+        final FakeSource source = new FakeSource();
+        source.publish("1.0.0", false);
+        final GalleryImageIndex index = newIndex();
+        Assert.assertEquals("1.0.0", index.resolve(source, "gallery", "app", "latest").getName());
+
+        source.publish("1.1.0", false);
+        Assert.assertEquals("1.0.0", index.resolve(source, "gallery", "app", "latest").getName());
+        Assert.assertEquals("1.1.0", index.resolve(source, "gallery", "app", "1.1.*").getName());
+        Assert.assertEquals(2, source.versionLists.get());
+
+        Assert.assertNull(index.resolve(source, "other", "app", "latest"));
+        Assert.assertNull(index.resolve(source, "gallery", "missing", "latest"));
+        Assert.assertEquals(2, source.galleryLists.get());
+    }
+
+    @Test
+    public void refreshesStaleEntriesInBackground() throws IOException {
+        final FakeSource source = new FakeSource();
+        source.publish("1.0.0", false);
+        final GalleryImageIndex index = newIndex();
+        index.resolve(source, "gallery", "app", "latest");
+
+        source.publish("1.1.0", false);
+        now.addAndGet(TimeUnit.SECONDS.toNanos(90));
+        // the stale entry is served, and refreshed for the next lookup
+        Assert.assertEquals("1.0.0", index.resolve(source, "gallery", "app", "latest").getName());
+        Assert.assertEquals("1.1.0", index.resolve(source, "gallery", "app", "latest").getName());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidPattern() throws IOException {
+        newIndex().resolve(new FakeSource(), "gallery", "app", "1.x");
+    }
+}
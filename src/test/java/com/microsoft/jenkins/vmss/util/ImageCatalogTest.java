@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ImageCatalogTest {
+
+    @Test
+    public void versionOrder() {
+        final List<String> versions = new ArrayList<>(Arrays.asList(
+                "16.04.201611150", "16.04.20170", "16.04.201611150.1", "9.1.0", "16.04.0201611151", "16.10.1"));
+        Collections.sort(versions, ImageCatalog.VERSION_ORDER);
+        Assert.assertEquals(Arrays.asList(
+                "9.1.0", "16.04.20170", "16.04.201611150", "16.04.201611150.1", "16.04.0201611151", "16.10.1"),
+                versions);
+    }
+
+    @Test
+    public void imageCatalogKeysAreScopedByCredentials() {
+        Assert.assertNotEquals(
+                ListingCache.imageCatalogKey("a", "sub", "publishers", "eastus"),
+                ListingCache.imageCatalogKey("b", "sub", "publishers", "eastus"));
+        Assert.assertEquals("imageCatalog|a|sub|offers|eastus|canonical",
+                ListingCache.imageCatalogKey("a", "sub", "offers", "eastus", "canonical"));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss.util;
+
+import com.google.common.base.Ticker;
+import com.microsoft.azure.management.compute.implementation.ImageReferenceInner;
+import net.sf.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ImageMetadataCacheTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return now.get();
+        }
+    };
+
+    private static Callable<ImageMetadataCache.Metadata> fetcher(final AtomicInteger fetches) {
+        return new Callable<ImageMetadataCache.Metadata>() {
+            @Override
+            public ImageMetadataCache.Metadata call() {
+                fetches.incrementAndGet();
+                return ImageMetadataCache.Metadata.of(new ImageReferenceInner().withId("id"));
+            }
+        };
+    }
+
+    @Test
+    public void fetchesOncePerTimeToLive() {
+        final ImageMetadataCache cache = new ImageMetadataCache(10, TimeUnit.SECONDS.toNanos(30), ticker);
+        final AtomicInteger fetches = new AtomicInteger();
+        final String key = ImageMetadataCache.key("cred", "sub", "rg", "vmss");
+
+        cache.get(key, fetcher(fetches));
+        now.addAndGet(TimeUnit.SECONDS.toNanos(20));
+        cache.get(key, fetcher(fetches));
+        Assert.assertEquals(1, fetches.get());
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(20));
+        cache.get(key, fetcher(fetches));
+        Assert.assertEquals(2, fetches.get());
+
+        cache.invalidate(key);
+        cache.get(key, fetcher(fetches));
+        Assert.assertEquals(3, fetches.get());
+    }
+
+    @Test
+    public void imageType() {
+        final ImageReferenceInner official = new ImageReferenceInner()
+                .withPublisher("Canonical").withOffer("UbuntuServer").withSku("16.04-LTS").withVersion("latest");
+        final JSONObject json = ImageMetadataCache.Metadata.of(official).toJson();
+        Assert.assertEquals("official", json.getString("imageType"));
+        Assert.assertEquals("UbuntuServer", json.getString("offer"));
+        Assert.assertFalse(ImageMetadataCache.Metadata.of(official).isCustomImage());
+
+        final ImageMetadataCache.Metadata custom = ImageMetadataCache.Metadata.of(new ImageReferenceInner()
+                .withId("/subscriptions/sub/resourceGroups/rg/providers/Microsoft.Compute/images/image"));
+        Assert.assertEquals(ImageMetadataCache.Metadata.TYPE_CUSTOM, custom.getType());
+        Assert.assertTrue(custom.isCustomImage());
+
+        final ImageMetadataCache.Metadata gallery = ImageMetadataCache.Metadata.of(new ImageReferenceInner()
+                .withId("/subscriptions/sub/resourceGroups/rg/providers/Microsoft.Compute/galleries/g/images/i"));
+        Assert.assertEquals(ImageMetadataCache.Metadata.TYPE_GALLERY, gallery.getType());
+
+        Assert.assertFalse(ImageMetadataCache.Metadata.notFound().toJson().getBoolean("found"));
+        Assert.assertFalse(ImageMetadataCache.Metadata.notFound().isCustomImage());
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+
+public class InstanceIdSetTest {
+
+    @Test
+    public void parse() {
+        Assert.assertEquals(Arrays.asList("1", "2", "3"), InstanceIdSet.parse("1,2,3").toList());
+        Assert.assertEquals(Arrays.asList("1", "2", "3"), InstanceIdSet.parse(" 3 ,1\n2, ").toList());
+        Assert.assertEquals(Arrays.asList("1", "2"), InstanceIdSet.parse("2 1").toList());
+        Assert.assertEquals(Collections.emptyList(), InstanceIdSet.parse("").toList());
+        Assert.assertEquals(Collections.emptyList(), InstanceIdSet.parse(null).toList());
+    }
+
+    @Test
+    public void ranges() {
+        final InstanceIdSet ids = InstanceIdSet.parse("0-499,600,700-799");
+        Assert.assertEquals(601, ids.size());
+        Assert.assertTrue(ids.contains(0));
+        Assert.assertTrue(ids.contains(499));
+        Assert.assertFalse(ids.contains(500));
+        Assert.assertTrue(ids.contains(600));
+        Assert.assertEquals("0-499,600,700-799", ids.toString());
+        Assert.assertEquals(Arrays.asList("4", "5", "6"), InstanceIdSet.parse("4 - 6").toList());
+    }
+
+    @Test
+    public void exclusions() {
+        Assert.assertEquals("0-1,3-4,8-9", InstanceIdSet.parse("!2, 0-9, !5-7").toString());
+        Assert.assertTrue(InstanceIdSet.parse("1,!1").isEmpty());
+    }
+
+    @Test
+    public void duplicates() {
+        final InstanceIdSet ids = InstanceIdSet.parse("1,1,0-3,2");
+        Assert.assertEquals(Arrays.asList("0", "1", "2", "3"), ids.toList());
+        Assert.assertEquals(3, ids.getDuplicateCount());
+    }
+
+    @Test
+    public void invalid() {
+        for (String text : Arrays.asList("1,a", "1-", "3-1", "1-2-3", "!", "-1", "1;2", "99999999999")) {
+            try {
+                InstanceIdSet.parse(text);
+                Assert.fail("Expected " + text + " to be rejected");
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void missingAndRetain() {
+        final BitSet existing = new BitSet();
+        existing.set(0, 5);
+        final InstanceIdSet ids = InstanceIdSet.parse("3-7");
+        Assert.assertEquals("5-7", ids.missingFrom(existing).toString());
+        Assert.assertEquals("3-4", ids.retain(existing).toString());
+    }
+
+    @Test
+    public void largeList() {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 50000; ++i) {
+            text.append(i).append(',');
+        }
+        final InstanceIdSet ids = InstanceIdSet.parse(text);
+        Assert.assertEquals(50000, ids.size());
+        Assert.assertEquals("0-49999", ids.toString());
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss.util;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ListingCacheTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return now.get();
+        }
+    };
+
+    private ListingCache newCache(final Executor executor) {
+        return new ListingCache(10, TimeUnit.SECONDS.toNanos(60), TimeUnit.MINUTES.toNanos(30), ticker, executor);
+    }
+
+    private static Callable<List<String>> fetcher(final AtomicInteger fetches) {
+        return new Callable<List<String>>() {
+            @Override
+            public List<String> call() {
+                return Collections.singletonList("rg-" + fetches.incrementAndGet());
+            }
+        };
+    }
+
+    @Test
+    public void servesCachedValueWithinRefreshInterval() {
+        final ListingCache cache = newCache(MoreExecutors.directExecutor());
+        final AtomicInteger fetches = new AtomicInteger();
+
+        Assert.assertEquals(Arrays.asList("rg-1"), cache.get("key", fetcher(fetches)));
+        now.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        Assert.assertEquals(Arrays.asList("rg-1"), cache.get("key", fetcher(fetches)));
+        Assert.assertEquals(1, fetches.get());
+    }
+
+    @Test
+    public void returnsStaleValueAndRefreshesInBackground() {
+        final List<Runnable> scheduled = new ArrayList<>();
+        final ListingCache cache = newCache(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                scheduled.add(command);
+            }
+        });
+        final AtomicInteger fetches = new AtomicInteger();
+
+        cache.get("key", fetcher(fetches));
+        now.addAndGet(TimeUnit.SECONDS.toNanos(61));
+
+        Assert.assertEquals(Arrays.asList("rg-1"), cache.get("key", fetcher(fetches)));
+        Assert.assertEquals(Arrays.asList("rg-1"), cache.get("key", fetcher(fetches)));
+        Assert.assertEquals("only one refresh is scheduled", 1, scheduled.size());
+
+        scheduled.get(0).run();
+        Assert.assertEquals(Arrays.asList("rg-2"), cache.get("key", fetcher(fetches)));
+    }
+
+    @Test
+    public void invalidate() {
+        final ListingCache cache = newCache(MoreExecutors.directExecutor());
+        final AtomicInteger fetches = new AtomicInteger();
+
+        cache.get(ListingCache.scaleSetsKey("cid", null, "rg"), fetcher(fetches));
+        cache.invalidate(ListingCache.scaleSetsKey("cid", null, "rg"));
+
+        Assert.assertEquals(Arrays.asList("rg-2"),
+                cache.get(ListingCache.scaleSetsKey("cid", null, "rg"), fetcher(fetches)));
+    }
+}
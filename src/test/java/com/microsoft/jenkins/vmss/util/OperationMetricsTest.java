@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss.util;
+
+import okhttp3.HttpUrl;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OperationMetricsTest {
+
+    private static final String VMSS = "https://management.azure.com/subscriptions/s/resourceGroups/rg"
+            + "/providers/Microsoft.Compute/virtualMachineScaleSets";
+
+    private static String classify(final String method, final String url) {
+        return OperationMetrics.classify(method, HttpUrl.parse(url));
+    }
+
+    @Test
+    public void classify() {
+        Assert.assertEquals(OperationMetrics.OP_GET, classify("GET", VMSS + "/web?api-version=1"));
+        Assert.assertEquals(OperationMetrics.OP_LIST, classify("GET", VMSS + "?api-version=1"));
+        Assert.assertEquals(OperationMetrics.OP_LIST_INSTANCES, classify("GET", VMSS + "/web/virtualMachines"));
+        Assert.assertEquals(OperationMetrics.OP_CREATE_OR_UPDATE, classify("PUT", VMSS + "/web"));
+        Assert.assertEquals(OperationMetrics.OP_UPDATE, classify("PATCH", VMSS + "/web"));
+        Assert.assertEquals(OperationMetrics.OP_UPDATE_INSTANCES, classify("POST", VMSS + "/web/manualupgrade"));
+        Assert.assertEquals(OperationMetrics.OP_LRO_POLL, classify("GET",
+                "https://management.azure.com/subscriptions/s/providers/Microsoft.Compute/locations/eastus"
+                        + "/operations/1234?api-version=1"));
+    }
+
+    @Test
+    public void histogram() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; ++i) {
+            histogram.record(i * 10);
+        }
+
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(505, histogram.getMeanMillis());
+        Assert.assertEquals(1000, histogram.getMaxMillis());
+        Assert.assertEquals(500, histogram.percentile(0.5));
+        Assert.assertEquals(1000, histogram.percentile(0.99));
+    }
+
+    @Test
+    public void counters() {
+        final OperationMetrics metrics = new OperationMetrics();
+        metrics.requestStarted();
+        metrics.requestStarted();
+        Assert.assertEquals(2, metrics.getInFlight());
+
+        metrics.requestFinished(OperationMetrics.OP_GET, 200, 12);
+        metrics.requestFinished(OperationMetrics.OP_GET, OperationMetrics.HTTP_TOO_MANY_REQUESTS, 3);
+
+        Assert.assertEquals(0, metrics.getInFlight());
+        Assert.assertEquals(1, metrics.getThrottledCount());
+        Assert.assertEquals(2, metrics.getOperations().get(OperationMetrics.OP_GET).getCount());
+    }
+}
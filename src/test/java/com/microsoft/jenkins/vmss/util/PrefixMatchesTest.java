@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PrefixMatchesTest {
+
+    /**
+     * An endless listing that counts the names read from it.
+     */
+    private static Iterable<String> listing(final AtomicInteger read) {
+        return new Iterable<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new Iterator<String>() {
+                    @Override
+                    public boolean hasNext() {
+                        return true;
+                    }
+
+                    @Override
+                    public String next() {
+                        final int index = read.getAndIncrement();
+                        return (index % 2 == 0 ? "web-" : "db-") + index;
+                    }
+                };
+            }
+        };
+    }
+
+    @Test
+    public void stopsReadingOnceEnoughMatchesAreFound() {
+        final AtomicInteger read = new AtomicInteger();
+        final PrefixMatches matches = PrefixMatches.of(listing(read), "WEB", 3);
+
+        Assert.assertEquals(Arrays.asList("web-0", "web-2", "web-4"), matches.getNames());
+        Assert.assertFalse(matches.isComplete());
+        Assert.assertEquals(7, read.get());
+    }
+
+    @Test
+    public void completeWhenTheListingIsExhausted() {
+        final PrefixMatches matches = PrefixMatches.of(Arrays.asList("rg-a", "other", "rg-b"), "rg-", 2);
+
+        Assert.assertEquals(Arrays.asList("rg-a", "rg-b"), matches.getNames());
+        Assert.assertTrue(matches.isComplete());
+        Assert.assertEquals(3, PrefixMatches.of(Arrays.asList("a", "b", "c"), null, 10).getNames().size());
+    }
+}
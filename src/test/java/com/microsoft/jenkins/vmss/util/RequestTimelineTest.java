@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss.util;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class RequestTimelineTest {
+
+    private static final String SCALE_SET = "/subscriptions/sub/resourceGroups/rg/providers/"
+            + "Microsoft.Compute/virtualMachineScaleSets/vmss";
+
+    private final MockWebServer server = new MockWebServer();
+    private final OkHttpClient client = new OkHttpClient.Builder()
+            .addInterceptor(RequestTimeline.getInstance())
+            .build();
+    private final ExecutorService otherThread = Executors.newSingleThreadExecutor();
+    private final List<RequestTimeline.Watch> watches = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (final RequestTimeline.Watch watch : watches) {
+            watch.close();
+        }
+        otherThread.shutdownNow();
+        server.shutdown();
+    }
+
+    private RequestTimeline.Watch watch(final Requests requests) {
+        final RequestTimeline.Watch watch = RequestTimeline.getInstance().watch(SCALE_SET, requests);
+        watches.add(watch);
+        return watch;
+    }
+
+    private void send(final String method, final String path) throws IOException {
+        server.enqueue(new MockResponse().setHeader("Azure-AsyncOperation", server.url("/operations/1")));
+        final RequestBody body = "GET".equals(method)
+                ? null : RequestBody.create(MediaType.parse("application/json"), "{}");
+        client.newCall(new Request.Builder().url(server.url(path)).method(method, body).build()).execute().close();
+    }
+
+    private void sendFromOtherThread(final String method,
+                                     final String path,
+                                     final RequestTimeline.Watch attachTo) throws Exception {
+        otherThread.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                if (attachTo != null) {
+                    attachTo.attach();
+                }
+                try {
+                    send(method, path);
+                } finally {
+                    if (attachTo != null) {
+                        attachTo.detach();
+                    }
+                }
+                return null;
+            }
+        }).get();
+    }
+
+    @Test
+    public void laterWatchDoesNotStealTheRequests() throws Exception {
+        final Requests running = new Requests();
+        final Requests waiting = new Requests();
+        final RequestTimeline.Watch runningWatch = otherThread.submit(new Callable<RequestTimeline.Watch>() {
+            @Override
+            public RequestTimeline.Watch call() {
+                return watch(running);
+            }
+        }).get();
+        watch(waiting);
+
+        // a worker of the running build, then the thread of the waiting build
+        final ExecutorService worker = Executors.newSingleThreadExecutor();
+        try {
+            worker.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    runningWatch.attach();
+                    try {
+                        send("POST", SCALE_SET + "/manualupgrade");
+                    } finally {
+                        runningWatch.detach();
+                    }
+                    return null;
+                }
+            }).get();
+        } finally {
+            worker.shutdownNow();
+        }
+        send("GET", SCALE_SET);
+
+        Assert.assertEquals(Collections.singletonList("POST"), running.methods);
+        Assert.assertEquals(Collections.singletonList("GET"), waiting.methods);
+    }
+
+    @Test
+    public void operationPollsGoToTheWatchThatStartedThem() throws Exception {
+        final Requests requests = new Requests();
+        final Requests other = new Requests();
+        watch(requests);
+        final RequestTimeline.Watch otherWatch = watch(other);
+
+        send("PATCH", SCALE_SET);
+        otherWatch.close();
+        sendFromOtherThread("GET", "/operations/1", null);
+
+        Assert.assertEquals(2, requests.methods.size());
+        Assert.assertEquals(Collections.singletonList(Boolean.TRUE), requests.operationPolls.subList(1, 2));
+        Assert.assertTrue(other.methods.isEmpty());
+    }
+
+    @Test
+    public void rateLimiterWaitsOfOperationPollsGoToTheWatch() throws Exception {
+        final RequestTimeline.Watch watch = watch(new Requests());
+        send("PATCH", SCALE_SET);
+
+        otherThread.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                RequestTimeline.getInstance().rateLimited(
+                        new Request.Builder().url(server.url("/operations/1")).build(), 40, 1);
+                RequestTimeline.getInstance().rateLimited(
+                        new Request.Builder().url(server.url(SCALE_SET)).build(), 2, 0);
+                return null;
+            }
+        }).get();
+
+        Assert.assertEquals(42, watch.getRateLimitWaitMillis());
+        Assert.assertEquals(1, watch.getRateLimitRetries());
+    }
+
+    @Test
+    public void unattributedRequestsGoToTheOldestWatch() throws Exception {
+        final Requests oldest = new Requests();
+        final Requests newest = new Requests();
+        watch(oldest);
+        final RequestTimeline.Watch newestWatch = watch(newest);
+
+        sendFromOtherThread("GET", SCALE_SET + "/virtualMachines", null);
+        sendFromOtherThread("GET", SCALE_SET, newestWatch);
+        sendFromOtherThread("GET", "/subscriptions/sub/resourceGroups/rg", newestWatch);
+
+        Assert.assertEquals(1, oldest.methods.size());
+        Assert.assertEquals(1, newest.methods.size());
+    }
+
+    private static final class Requests implements RequestTimeline.Recorder {
+        private final List<String> methods = Collections.synchronizedList(new ArrayList<String>());
+        private final List<Boolean> operationPolls = Collections.synchronizedList(new ArrayList<Boolean>());
+
+        @Override
+        public void request(final String method,
+                            final String path,
+                            final boolean operationPoll,
+                            final long startMillis,
+                            final long durationMillis,
+                            final int statusCode) {
+            methods.add(method);
+            operationPolls.add(operationPoll);
+        }
+    }
+}
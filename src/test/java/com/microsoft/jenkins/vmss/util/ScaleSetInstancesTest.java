@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss.util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class ScaleSetInstancesTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final String SUCCEEDED = "{\"code\":\"ProvisioningState/succeeded\"}";
+    private static final String RUNNING = "{\"code\":\"PowerState/running\"}";
+
+    /**
+     * Instance views, as returned with {@code $expand=instanceView}, and the health they report.
+     */
+    private static final Object[][] HEALTH_CASES = {
+            {"provisioning failed",
+                    "{\"statuses\":[{\"code\":\"ProvisioningState/failed/AllocationFailed\"}]}",
+                    ScaleSetInstances.Health.FAILED},
+            {"extension failed",
+                    "{\"statuses\":[" + SUCCEEDED + "," + RUNNING + "],\"extensions\":[{\"statuses\":["
+                            + "{\"code\":\"ProvisioningState/failed/1\"}]}],"
+                            + "\"vmHealth\":{\"status\":{\"code\":\"HealthState/healthy\"}}}",
+                    ScaleSetInstances.Health.FAILED},
+            {"still creating",
+                    "{\"statuses\":[{\"code\":\"ProvisioningState/creating\"}," + RUNNING + "]}",
+                    ScaleSetInstances.Health.PENDING},
+            {"not started",
+                    "{\"statuses\":[" + SUCCEEDED + ",{\"code\":\"PowerState/starting\"}]}",
+                    ScaleSetInstances.Health.PENDING},
+            {"healthy before running",
+                    "{\"statuses\":[" + SUCCEEDED + ",{\"code\":\"PowerState/starting\"}],"
+                            + "\"vmHealth\":{\"status\":{\"code\":\"HealthState/healthy\"}}}",
+                    ScaleSetInstances.Health.PENDING},
+            {"unknown health",
+                    "{\"statuses\":[" + SUCCEEDED + "," + RUNNING + "],"
+                            + "\"vmHealth\":{\"status\":{\"code\":\"HealthState/unknown\"}}}",
+                    ScaleSetInstances.Health.PENDING},
+            {"unhealthy",
+                    "{\"statuses\":[" + SUCCEEDED + "," + RUNNING + "],"
+                            + "\"vmHealth\":{\"status\":{\"code\":\"HealthState/unhealthy\"}}}",
+                    ScaleSetInstances.Health.UNHEALTHY},
+            {"healthy",
+                    "{\"statuses\":[" + SUCCEEDED + "," + RUNNING + "],\"extensions\":[{\"statuses\":["
+                            + "{\"code\":\"ProvisioningState/succeeded\"}]}],"
+                            + "\"vmHealth\":{\"status\":{\"code\":\"HealthState/Healthy\"}}}",
+                    ScaleSetInstances.Health.HEALTHY},
+            {"running without health extension",
+                    "{\"statuses\":[" + SUCCEEDED + "," + RUNNING + "]}",
+                    ScaleSetInstances.Health.HEALTHY},
+    };
+
+    @Test
+    public void healthOf() throws IOException {
+        for (final Object[] healthCase : HEALTH_CASES) {
+            Assert.assertEquals((String) healthCase[0], healthCase[2],
+                    ScaleSetInstances.Instance.healthOf(MAPPER.readTree((String) healthCase[1])));
+        }
+        Assert.assertEquals(ScaleSetInstances.Health.UNKNOWN,
+                ScaleSetInstances.Instance.healthOf(MissingNode.getInstance()));
+    }
+}
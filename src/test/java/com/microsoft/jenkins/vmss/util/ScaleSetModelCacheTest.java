@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss.util;
+
+import com.google.common.base.Ticker;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ScaleSetModelCacheTest {
+
+    private static final String VMSS_PATH =
+            "/subscriptions/sub/resourceGroups/rg/providers/Microsoft.Compute/virtualMachineScaleSets/vmss";
+
+    private final MockWebServer server = new MockWebServer();
+    private final AtomicLong now = new AtomicLong();
+    private ScaleSetModelCache cache;
+    private OkHttpClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        server.start();
+        cache = new ScaleSetModelCache(1024 * 1024, TimeUnit.MINUTES.toNanos(10), new Ticker() {
+            @Override
+            public long read() {
+                return now.get();
+            }
+        });
+        client = new OkHttpClient.Builder().addInterceptor(cache).build();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    private Response send(final String method, final String path) throws IOException {
+        return send(method, path, null);
+    }
+
+    private Response send(final String method, final String path, final String ifMatch) throws IOException {
+        final Request.Builder request = new Request.Builder()
+                .url(server.url(path).newBuilder().addQueryParameter("api-version", "2017-12-01").build());
+        if (ifMatch != null) {
+            request.header("If-Match", ifMatch);
+        }
+        if ("GET".equals(method)) {
+            request.get();
+        } else {
+            request.method(method, RequestBody.create(MediaType.parse("application/json"), "{}"));
+        }
+        return client.newCall(request.build()).execute();
+    }
+
+    private String read() throws IOException {
+        try (Response response = send("GET", VMSS_PATH)) {
+            Assert.assertEquals(200, response.code());
+            return response.body().string();
+        }
+    }
+
+    @Test
+    public void servesUnchangedModelFromCache() throws Exception {
+        server.enqueue(new MockResponse().setHeader("ETag", "\"1\"").setBody("{\"name\":\"vmss\"}"));
+        server.enqueue(new MockResponse().setResponseCode(304));
+
+        Assert.assertEquals("{\"name\":\"vmss\"}", read());
+        Assert.assertNull(server.takeRequest().getHeader("If-None-Match"));
+
+        Assert.assertEquals("{\"name\":\"vmss\"}", read());
+        Assert.assertEquals("\"1\"", server.takeRequest().getHeader("If-None-Match"));
+        Assert.assertEquals(1, cache.getNotModifiedCount());
+    }
+
+    @Test
+    public void writesAreOnlyConditionalOnTheCallersETag() throws Exception {
+        server.enqueue(new MockResponse().setHeader("ETag", "\"2\"").setBody("{}"));
+        server.enqueue(new MockResponse().setBody("{}"));
+        server.enqueue(new MockResponse().setResponseCode(412));
+        server.enqueue(new MockResponse().setBody("{}"));
+
+        // the model cached by another caller's read does not make this write conditional
+        read();
+        server.takeRequest();
+        send("PATCH", VMSS_PATH).close();
+        Assert.assertNull(server.takeRequest().getHeader("If-Match"));
+
+        try (Response response = send("PATCH", VMSS_PATH, "\"1\"")) {
+            Assert.assertEquals(412, response.code());
+        }
+        Assert.assertEquals("\"1\"", server.takeRequest().getHeader("If-Match"));
+        Assert.assertEquals(1, cache.getPreconditionFailedCount());
+
+        // the write dropped the cached model, so the next read is unconditional
+        read();
+        Assert.assertNull(server.takeRequest().getHeader("If-None-Match"));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void evictsByAge() throws Exception {
+        server.enqueue(new MockResponse().setHeader("ETag", "\"1\"").setBody("{}"));
+        server.enqueue(new MockResponse().setHeader("ETag", "\"2\"").setBody("{}"));
+
+        read();
+        now.addAndGet(TimeUnit.MINUTES.toNanos(11));
+        read();
+        server.takeRequest();
+        Assert.assertNull(server.takeRequest().getHeader("If-None-Match"));
+    }
+
+    @Test
+    public void onlyScaleSetsAreCached() {
+        final HttpUrl base = HttpUrl.parse("https://management.azure.com");
+        Assert.assertEquals(VMSS_PATH.toLowerCase(), ScaleSetModelCache.resourceId(base.resolve(VMSS_PATH)));
+        Assert.assertNull(ScaleSetModelCache.resourceId(base.resolve(VMSS_PATH + "/virtualMachines")));
+        Assert.assertNull(ScaleSetModelCache.resourceId(base.resolve("/subscriptions/sub/resourceGroups/rg")));
+    }
+}
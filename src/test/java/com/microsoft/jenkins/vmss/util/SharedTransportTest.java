@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss.util;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+
+public class SharedTransportTest {
+
+    private final SharedTransport transport = SharedTransport.getInstance();
+
+    @After
+    public void restoreDefaults() {
+        transport.configure(Constants.TRANSPORT_MAX_IDLE_CONNECTIONS, Constants.TRANSPORT_KEEP_ALIVE_SECONDS,
+                Constants.TRANSPORT_MAX_REQUESTS, Constants.TRANSPORT_MAX_REQUESTS_PER_HOST, true);
+    }
+
+    @Test
+    public void clientsShareThePoolAndTheDispatcher() {
+        final OkHttpClient first = transport.newClientBuilder().build();
+        final OkHttpClient second = transport.newClientBuilder().build();
+
+        Assert.assertSame(first.connectionPool(), second.connectionPool());
+        Assert.assertSame(first.dispatcher(), second.dispatcher());
+        Assert.assertTrue(first.protocols().contains(Protocol.HTTP_2));
+    }
+
+    @Test
+    public void configureReplacesTheTransport() {
+        final OkHttpClient before = transport.newClientBuilder().build();
+        transport.configure(4, 30, 8, 2, false);
+        final OkHttpClient after = transport.newClientBuilder().build();
+
+        Assert.assertNotSame(before.connectionPool(), after.connectionPool());
+        Assert.assertEquals(8, after.dispatcher().getMaxRequests());
+        Assert.assertEquals(2, after.dispatcher().getMaxRequestsPerHost());
+        Assert.assertEquals(Collections.singletonList(Protocol.HTTP_1_1), after.protocols());
+        Assert.assertFalse(transport.isHttp2());
+        Assert.assertEquals(0, transport.toJson().getInt("connections"));
+    }
+}
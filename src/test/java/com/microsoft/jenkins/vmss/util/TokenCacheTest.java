@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.vmss.util;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TokenCacheTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return now.get();
+        }
+    };
+
+    private TokenCache newCache(final Executor executor) {
+        return new TokenCache(10, TimeUnit.MINUTES.toNanos(5), ticker, executor);
+    }
+
+    private static String jwt(final long lifetimeSeconds, final int serial) {
+        final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        final long exp = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + lifetimeSeconds;
+        return encoder.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8)) + "."
+                + encoder.encodeToString(String.format("{\"exp\":%d,\"serial\":%d}", exp, serial)
+                .getBytes(StandardCharsets.UTF_8)) + ".";
+    }
+
+    private static Callable<String> fetcher(final AtomicInteger fetches) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                return jwt(TimeUnit.HOURS.toSeconds(1), fetches.incrementAndGet());
+            }
+        };
+    }
+
+    @Test
+    public void lifetimeFromJwt() {
+        final long nowMillis = System.currentTimeMillis();
+        final long lifetime = TokenCache.lifetimeMillis(jwt(3600, 1), nowMillis);
+        Assert.assertTrue(lifetime > TimeUnit.MINUTES.toMillis(59) && lifetime <= TimeUnit.HOURS.toMillis(1));
+
+        Assert.assertEquals(TimeUnit.SECONDS.toMillis(Constants.TOKEN_DEFAULT_LIFETIME_SECONDS),
+                TokenCache.lifetimeMillis("opaque-token", nowMillis));
+    }
+
+    @Test
+    public void sharesTokenUntilRefreshIsDue() throws IOException {
+        final TokenCache cache = newCache(MoreExecutors.directExecutor());
+        final AtomicInteger fetches = new AtomicInteger();
+
+        final String first = cache.getToken("cred|resource", fetcher(fetches));
+        now.addAndGet(TimeUnit.MINUTES.toNanos(30));
+        Assert.assertEquals(first, cache.getToken("cred|resource", fetcher(fetches)));
+        Assert.assertEquals(1, fetches.get());
+
+        cache.getToken("cred|other-resource", fetcher(fetches));
+        Assert.assertEquals(2, fetches.get());
+    }
+
+    @Test
+    public void refreshesInBackgroundBeforeExpiry() throws IOException {
+        final List<Runnable> scheduled = new ArrayList<>();
+        final TokenCache cache = newCache(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                scheduled.add(command);
+            }
+        });
+        final AtomicInteger fetches = new AtomicInteger();
+
+        final String first = cache.getToken("key", fetcher(fetches));
+        now.addAndGet(TimeUnit.MINUTES.toNanos(57));
+
+        // the current token is served while a single refresh is pending
+        Assert.assertEquals(first, cache.getToken("key", fetcher(fetches)));
+        Assert.assertEquals(first, cache.getToken("key", fetcher(fetches)));
+        Assert.assertEquals(1, scheduled.size());
+
+        scheduled.get(0).run();
+        final String refreshed = cache.getToken("key", fetcher(fetches));
+        Assert.assertNotEquals(first, refreshed);
+        Assert.assertEquals(2, fetches.get());
+    }
+
+    @Test
+    public void fetchesAgainOnceExpired() throws IOException {
+        final TokenCache cache = newCache(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                // never refresh in the background
+            }
+        });
+        final AtomicInteger fetches = new AtomicInteger();
+
+        final String first = cache.getToken("key", fetcher(fetches));
+        now.addAndGet(TimeUnit.MINUTES.toNanos(61));
+
+        Assert.assertNotEquals(first, cache.getToken("key", fetcher(fetches)));
+        Assert.assertEquals(2, fetches.get());
+    }
+}